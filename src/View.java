@@ -7,7 +7,12 @@ import sgraph.Nodes.INode;
 import java.io.InputStream;
 import java.nio.FloatBuffer;
 import java.util.HashMap;
-import java.util.Stack;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 
 /**
@@ -19,7 +24,7 @@ import java.util.Stack;
 public class View
 {
     private int WINDOW_WIDTH,WINDOW_HEIGHT;
-    private Stack<Matrix4f> modelView;
+    private sgraph.MatrixStack modelView;
     private Matrix4f projection,trackballTransform;
     private Matrix3f keyBoardTransform;
     private float trackballRadius;
@@ -29,8 +34,26 @@ public class View
 
     private util.ShaderProgram program;
     private int projectionLocation;
+    private FloatBuffer projectionBuffer;
     private sgraph.IScenegraph scenegraph;
-    private int angleOfRotation;
+
+    //the animation runs in fixed steps of this many per second, however fast frames are drawn,
+    //and its time (0-360) goes up this much per second
+    private static final double SIMULATION_RATE = 30;
+    private static final double ANIMATION_SPEED = 60;
+    private sgraph.FixedTimestep clock;
+    private long lastFrameTime;
+    private ForkJoinPool transformUpdatePool;
+    private sgraph.OcclusionBuffer occlusionBuffer;
+    //'o' asks for occlusion culling to be turned on or off, and the next frame does it, so
+    //that it never changes while the scene is being drawn
+    private volatile boolean occlusionCulling;
+    private boolean occlusionApplied;
+    private int spiderEyeHandle;
+
+    //the scene is animated and published on this thread, while the last published frame is drawn
+    private ExecutorService updateThread;
+    private Future<?> update;
 
     private HashMap<Character, Boolean> cameraMoveCharMap;
 
@@ -56,9 +79,27 @@ public class View
     public View()
     {
         projection = new Matrix4f();
-        modelView = new Stack<Matrix4f>();
-        angleOfRotation = 0;
+        modelView = new sgraph.MatrixStack();
+        projectionBuffer = Buffers.newDirectFloatBuffer(16);
+        clock = new sgraph.FixedTimestep(1/SIMULATION_RATE);
+        lastFrameTime = 0;
         trackballRadius = 300;
+        transformUpdatePool = new ForkJoinPool();
+        occlusionBuffer = new sgraph.OcclusionBuffer(256,128,transformUpdatePool);
+        occlusionCulling = false;
+        occlusionApplied = false;
+        spiderEyeHandle = sgraph.NodeRegistry.NO_HANDLE;
+        updateThread = Executors.newSingleThreadExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r,"scene update");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        update = null;
 
 
         resetMoveCamera();
@@ -84,15 +125,97 @@ public class View
     {
         GL3 gl = gla.getGL().getGL3();
 
+        finishUpdate();
         if (scenegraph!=null)
             scenegraph.dispose();
 
         scenegraph = sgraph.SceneXMLReader.importScenegraph(in);
+        spiderEyeHandle = scenegraph.getNodeHandle("spiderA-root-spiderEye");
 
-        sgraph.IScenegraphRenderer renderer = new sgraph.GL3ScenegraphRenderer();
+        sgraph.GL3ScenegraphRenderer renderer = new sgraph.GL3ScenegraphRenderer();
         renderer.setContext(gla);
+        renderer.setLightClusters(sgraph.LightClusters.DEFAULT_TILES_X,sgraph.LightClusters.DEFAULT_TILES_Y,
+                sgraph.LightClusters.DEFAULT_SLICES,transformUpdatePool);
         renderer.initShaderProgram(program);
         scenegraph.setRenderer(renderer);
+        scenegraph.setParallelTransformUpdate(transformUpdatePool,sgraph.CompiledScenegraph.DEFAULT_PARALLEL_THRESHOLD);
+        scenegraph.setProjection(projection);
+        occlusionApplied = occlusionCulling;
+        scenegraph.setOcclusionBuffer(occlusionApplied ? occlusionBuffer : null);
+        scenegraph.compile();
+        scenegraph.publish(clock.getTime());
+    }
+
+    /**
+     * Add the time since the last frame to the clock, and start taking the steps that are due
+     * on the update thread, unless the previous ones are still being worked on. Drawing never
+     * waits for them: it draws the last published steps, interpolated to the present
+     */
+    private void startUpdate()
+    {
+        long now = System.nanoTime();
+        if (lastFrameTime != 0)
+        {
+            clock.advance((now-lastFrameTime)/1e9);
+        }
+        lastFrameTime = now;
+        scenegraph.setDrawTime(clock.getInterpolationTime());
+
+        if ((update != null) && !update.isDone())
+            return;
+        finishUpdate();
+
+        final int steps = clock.takeSteps();
+        if (steps == 0)
+            return;
+        final sgraph.IScenegraph scene = scenegraph;
+        final double end = clock.getTime();
+        final double step = clock.getStep();
+        update = updateThread.submit(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                for (int k=steps-1;k>=0;k--)
+                {
+                    scene.animate(animationTime(end-k*step));
+                }
+                scene.publish(end);
+            }
+        });
+    }
+
+    /**
+     * Get the time to animate the scene to after the given number of seconds
+     */
+    private static float animationTime(double seconds)
+    {
+        return (float)((seconds*ANIMATION_SPEED)%360);
+    }
+
+    /**
+     * Wait for the frame being updated, if any, passing on anything it threw
+     */
+    private void finishUpdate()
+    {
+        if (update == null)
+            return;
+        try
+        {
+            update.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException e)
+        {
+            throw new IllegalStateException(e.getCause());
+        }
+        finally
+        {
+            update = null;
+        }
     }
 
     public void init(GLAutoDrawable gla) throws Exception
@@ -118,8 +241,12 @@ public class View
 
     public void draw(GLAutoDrawable gla)
     {
-        scenegraph.animate(angleOfRotation);
-        angleOfRotation = (angleOfRotation+1)%360;
+        if (occlusionApplied != occlusionCulling)
+        {
+            occlusionApplied = occlusionCulling;
+            scenegraph.setOcclusionBuffer(occlusionApplied ? occlusionBuffer : null);
+        }
+        startUpdate();
 
 
 
@@ -136,15 +263,12 @@ public class View
 
         program.enable(gl);
 
-        while (!modelView.empty())
-            modelView.pop();
-
         /*
          *In order to change the shape of this triangle, we can either move the vertex positions above, or "transform" them
          * We use a modelview matrix to store the transformations to be applied to our triangle.
          * Right now this matrix is identity, which means "no transformations"
          */
-        modelView.push(new Matrix4f());
+        modelView.reset();
 
 
 
@@ -157,16 +281,13 @@ public class View
                 break;
             case ONSPIDER:
 
-                // camera matrix
-                Matrix4f cameraMatrix = new Matrix4f(modelView.peek());
-
-                INode n = scenegraph.getNodes().get("spiderA-root-spiderEye");
+                INode n = scenegraph.getNode(spiderEyeHandle);
                 if (n == null) {
                     throw new NullPointerException("Cannot find the head");
                 }
-                Matrix4f om = new Matrix4f().identity();
-                Matrix4f objectToView = n.getObjectToViewTransform(new Matrix4f(), new Matrix4f(cameraMatrix));
-                Matrix4f viewToObject = new Matrix4f(objectToView).invert();
+                // the camera matrix is still identity here, so the object-to-view transform
+                // of the eye is simply its world transform in the frame being drawn
+                Matrix4f viewToObject = scenegraph.getWorldTransform(spiderEyeHandle,new Matrix4f()).invert();
 
                 modelView.peek()
                         .lookAt(new Vector3f(-1,0,0),new Vector3f(-2,0,0),new Vector3f(0,1,0))
@@ -206,8 +327,7 @@ public class View
     /*
      *Supply the shader with all the matrices it expects.
     */
-        FloatBuffer fb = Buffers.newDirectFloatBuffer(16);
-        gl.glUniformMatrix4fv(projectionLocation,1,false,projection.get(fb));
+        gl.glUniformMatrix4fv(projectionLocation,1,false,projection.get(projectionBuffer));
         //return;
 
 
@@ -254,6 +374,10 @@ public class View
             }
         }
 
+        if (c == 'o') {
+            occlusionCulling = !occlusionCulling;
+        }
+
 
 
     }
@@ -362,6 +486,8 @@ public class View
         gl.glViewport(0, 0, width, height);
 
         projection = new Matrix4f().perspective((float)Math.toRadians(120.0f),(float)width/height,0.1f,10000.0f);
+        if (scenegraph!=null)
+            scenegraph.setProjection(projection);
 //        projection = new Matrix4f().ortho(-400,400,-400,400,0.1f,10000.0f);
 
     }
@@ -369,6 +495,8 @@ public class View
     public void dispose(GLAutoDrawable gla)
     {
         GL3 gl = gla.getGL().getGL3();
+        finishUpdate();
+        updateThread.shutdown();
 
     }
 
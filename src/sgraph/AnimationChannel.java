@@ -0,0 +1,240 @@
+package sgraph;
+
+import org.joml.Matrix3f;
+import org.joml.Matrix4f;
+import org.joml.Quaternionf;
+import org.joml.Vector3f;
+import sgraph.Nodes.INode;
+
+import java.util.Arrays;
+
+/**
+ * The keyframes that animate one transform node. Each key is a pose at a given time, made of a
+ * translation, a rotation and a scale (in that order of application from the outside in, i.e.
+ * T*R*S). Between keys the translation and scale are interpolated linearly and the rotation
+ * spherically; before the first key and after the last the pose is held.
+ *
+ * The key that the last evaluation fell after is remembered, so that when time moves forward
+ * (the common case) finding the keys around it is a step or two instead of a search. The result
+ * is written into a {@link TRS} owned by the channel, which is then copied into a batch as it
+ * is, so evaluating neither allocates nor builds a matrix. A channel must only be evaluated by
+ * one thread at a time.
+ */
+public class AnimationChannel
+{
+    /**
+     * Each key is stored as 10 floats: translation (3), rotation quaternion (4) and scale (3)
+     */
+    public static final int FLOATS_PER_KEY = 10;
+    private static final int ROTATION = 3;
+    private static final int SCALE = 7;
+
+    private final String nodeName;
+    private int handle;
+
+    private float[] times;
+    private float[] keys;
+    private int keyCount;
+
+    /**
+     * The index of the key at or before the time last evaluated
+     */
+    private int cursor;
+
+    private final TRS pose;
+    private final Matrix4f value;
+
+    /**
+     * @param nodeName the name of the transform node that this channel animates
+     */
+    public AnimationChannel(String nodeName)
+    {
+        this.nodeName = nodeName;
+        handle = NodeRegistry.NO_HANDLE;
+        times = new float[4];
+        keys = new float[4*FLOATS_PER_KEY];
+        keyCount = 0;
+        cursor = 0;
+        pose = new TRS();
+        value = new Matrix4f();
+    }
+
+    /**
+     * Add a key. Keys must be added in increasing order of time
+     * @param time the time of the key
+     * @param translation the translation at that time
+     * @param rotation the rotation at that time
+     * @param scale the scale at that time
+     * @throws IllegalArgumentException if the key is not after the previous one
+     */
+    public void addKey(float time,Vector3f translation,Quaternionf rotation,Vector3f scale) throws IllegalArgumentException
+    {
+        if ((keyCount > 0) && (time <= times[keyCount-1]))
+            throw new IllegalArgumentException("Keys of the animation of "+nodeName+" are not in increasing order of time");
+        if (keyCount == times.length)
+        {
+            times = Arrays.copyOf(times,2*keyCount);
+            keys = Arrays.copyOf(keys,2*keyCount*FLOATS_PER_KEY);
+        }
+        int o = keyCount*FLOATS_PER_KEY;
+        keys[o] = translation.x;
+        keys[o+1] = translation.y;
+        keys[o+2] = translation.z;
+
+        //q and -q are the same rotation; pick the one closer to the previous key so that
+        //interpolating between them takes the short way round
+        float sign = 1;
+        if (keyCount > 0)
+        {
+            int p = o - FLOATS_PER_KEY + ROTATION;
+            float dot = keys[p]*rotation.x + keys[p+1]*rotation.y + keys[p+2]*rotation.z + keys[p+3]*rotation.w;
+            if (dot < 0)
+                sign = -1;
+        }
+        keys[o+ROTATION] = sign*rotation.x;
+        keys[o+ROTATION+1] = sign*rotation.y;
+        keys[o+ROTATION+2] = sign*rotation.z;
+        keys[o+ROTATION+3] = sign*rotation.w;
+
+        keys[o+SCALE] = scale.x;
+        keys[o+SCALE+1] = scale.y;
+        keys[o+SCALE+2] = scale.z;
+        times[keyCount++] = time;
+    }
+
+    /**
+     * Add a key given as a transformation, which is decomposed into translation, rotation and
+     * scale. It must not contain any shear
+     * @param time the time of the key
+     * @param pose the transformation at that time
+     * @throws IllegalArgumentException if the key is not after the previous one
+     */
+    public void addKey(float time,Matrix4f pose) throws IllegalArgumentException
+    {
+        Vector3f scale = pose.getScale(new Vector3f());
+        //the rotation is what is left of the upper 3x3 once each column is divided by its scale
+        Matrix3f rotation = new Matrix3f(pose).scale(1/scale.x,1/scale.y,1/scale.z);
+        addKey(time,pose.getTranslation(new Vector3f()),new Quaternionf().setFromNormalized(rotation),scale);
+    }
+
+    /**
+     * Make a channel with the same keys for another node
+     * @param nodeName the name of the node that the copy animates
+     * @return the copy
+     */
+    public AnimationChannel copy(String nodeName)
+    {
+        AnimationChannel c = new AnimationChannel(nodeName);
+        c.times = Arrays.copyOf(times,Math.max(1,keyCount));
+        c.keys = Arrays.copyOf(keys,Math.max(1,keyCount)*FLOATS_PER_KEY);
+        c.keyCount = keyCount;
+        return c;
+    }
+
+    public String getNodeName()
+    {
+        return nodeName;
+    }
+
+    public int getKeyCount()
+    {
+        return keyCount;
+    }
+
+    /**
+     * The time of the last key, or 0 if there are no keys
+     */
+    public float getEndTime()
+    {
+        return (keyCount > 0) ? times[keyCount-1] : 0;
+    }
+
+    /**
+     * Compute the pose at a given time, as a matrix
+     * @param time the time
+     * @return the pose, in a matrix owned by this channel that is overwritten by the next call
+     */
+    public Matrix4f evaluate(float time)
+    {
+        return evaluate(time,pose).get(value);
+    }
+
+    /**
+     * Compute the pose at a given time
+     * @param time the time
+     * @param dest where to store the pose
+     * @return dest
+     */
+    public TRS evaluate(float time,TRS dest)
+    {
+        if (keyCount == 0)
+            return dest.identity();
+
+        if (time < times[cursor])
+        {
+            //time went backwards (e.g. a looping clip started over): search for the key
+            int k = Arrays.binarySearch(times,0,keyCount,time);
+            cursor = Math.max(0,(k >= 0) ? k : -k-2);
+        }
+        while ((cursor+1 < keyCount) && (times[cursor+1] <= time))
+        {
+            cursor++;
+        }
+
+        int a = cursor*FLOATS_PER_KEY;
+        if ((cursor+1 == keyCount) || (time <= times[cursor]))
+        {
+            return dest.set(keys[a],keys[a+1],keys[a+2],
+                    keys[a+ROTATION],keys[a+ROTATION+1],keys[a+ROTATION+2],keys[a+ROTATION+3],
+                    keys[a+SCALE],keys[a+SCALE+1],keys[a+SCALE+2]);
+        }
+
+        int b = a + FLOATS_PER_KEY;
+        float t = (time - times[cursor])/(times[cursor+1] - times[cursor]);
+        float s = 1 - t;
+
+        //spherical interpolation of the rotation, falling back to linear when the keys are
+        //so close that the angle between them is lost in rounding
+        float dot = keys[a+ROTATION]*keys[b+ROTATION] + keys[a+ROTATION+1]*keys[b+ROTATION+1]
+                + keys[a+ROTATION+2]*keys[b+ROTATION+2] + keys[a+ROTATION+3]*keys[b+ROTATION+3];
+        float wa = s,wb = t;
+        if (dot < 0.9995f)
+        {
+            double angle = Math.acos(Math.max(-1,dot));
+            double sin = Math.sin(angle);
+            wa = (float)(Math.sin(s*angle)/sin);
+            wb = (float)(Math.sin(t*angle)/sin);
+        }
+        float qx = wa*keys[a+ROTATION] + wb*keys[b+ROTATION];
+        float qy = wa*keys[a+ROTATION+1] + wb*keys[b+ROTATION+1];
+        float qz = wa*keys[a+ROTATION+2] + wb*keys[b+ROTATION+2];
+        float qw = wa*keys[a+ROTATION+3] + wb*keys[b+ROTATION+3];
+        float length = (float)Math.sqrt(qx*qx + qy*qy + qz*qz + qw*qw);
+
+        return dest.set(s*keys[a] + t*keys[b],s*keys[a+1] + t*keys[b+1],s*keys[a+2] + t*keys[b+2],
+                qx/length,qy/length,qz/length,qw/length,
+                s*keys[a+SCALE] + t*keys[b+SCALE],s*keys[a+SCALE+1] + t*keys[b+SCALE+1],s*keys[a+SCALE+2] + t*keys[b+SCALE+2]);
+    }
+
+    /**
+     * Compute the pose at a given time and record it in a batch as the animation transform of
+     * the node. The node is identified by its handle, which is looked up again only if it has
+     * gone stale. If there is no such node the slot is left as it is
+     * @param scenegraph the scene graph that the node is part of
+     * @param time the time
+     * @param batch the batch to record the pose in
+     * @param slot the slot of the batch reserved for this channel
+     */
+    public void apply(IScenegraph scenegraph,float time,TransformBatch batch,int slot)
+    {
+        INode node = scenegraph.getNode(handle);
+        if (node == null)
+        {
+            handle = scenegraph.getNodeHandle(nodeName);
+            node = scenegraph.getNode(handle);
+            if (node == null)
+                return;
+        }
+        batch.set(slot,handle,evaluate(time,pose));
+    }
+}
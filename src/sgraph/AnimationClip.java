@@ -0,0 +1,120 @@
+package sgraph;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A named set of {@link AnimationChannel}s that play together, each animating a different node.
+ * In the scene XML a clip is declared in the scene element, with one channel per node and one
+ * key per pose. The pose of a key is given with the same translate, rotate and scale elements
+ * as the set element of a transform:
+ * <pre>
+ * &lt;animation name="wave" duration="100" loop="true"&gt;
+ *     &lt;channel node="arm"&gt;
+ *         &lt;key time="0"&gt;&lt;rotate&gt;0 0 0 1&lt;/rotate&gt;&lt;/key&gt;
+ *         &lt;key time="50"&gt;&lt;translate&gt;0 5 0&lt;/translate&gt;&lt;rotate&gt;45 0 0 1&lt;/rotate&gt;&lt;/key&gt;
+ *         &lt;key time="100"&gt;&lt;rotate&gt;0 0 0 1&lt;/rotate&gt;&lt;/key&gt;
+ *     &lt;/channel&gt;
+ * &lt;/animation&gt;
+ * </pre>
+ * Times are in the units of the time given to {@link IScenegraph#animate(float)}. The duration
+ * defaults to the time of the last key of any channel. A looping clip starts over after its
+ * duration, otherwise it holds its last pose.
+ */
+public class AnimationClip
+{
+    private final String name;
+    private float duration;
+    private float lastKeyTime;
+    private boolean loop;
+    private List<AnimationChannel> channels;
+
+    public AnimationClip(String name)
+    {
+        this.name = name;
+        duration = -1;
+        lastKeyTime = 0;
+        loop = true;
+        channels = new ArrayList<AnimationChannel>();
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * Add a channel, which must already have all its keys
+     * @param channel the channel
+     */
+    public void addChannel(AnimationChannel channel)
+    {
+        channels.add(channel);
+        lastKeyTime = Math.max(lastKeyTime,channel.getEndTime());
+    }
+
+    public List<AnimationChannel> getChannels()
+    {
+        return channels;
+    }
+
+    /**
+     * Set the duration of this clip
+     * @param duration the duration, or a negative number to use the time of the last key
+     */
+    public void setDuration(float duration)
+    {
+        this.duration = duration;
+    }
+
+    public float getDuration()
+    {
+        return (duration >= 0) ? duration : lastKeyTime;
+    }
+
+    public void setLoop(boolean loop)
+    {
+        this.loop = loop;
+    }
+
+    public boolean isLoop()
+    {
+        return loop;
+    }
+
+    /**
+     * Convert a time into the time within this clip, taking looping into account
+     * @param time the time
+     * @return the time to evaluate the channels at
+     */
+    public float getLocalTime(float time)
+    {
+        float d = getDuration();
+        if (d <= 0)
+            return 0;
+        if (loop)
+        {
+            float t = time % d;
+            return (t < 0) ? t + d : t;
+        }
+        return Math.max(0,Math.min(d,time));
+    }
+
+    /**
+     * Make a copy of this clip whose channels animate the nodes with the given prefix added to
+     * their names. This is used when a scene is imported into another and its nodes renamed
+     * @param prefix the prefix
+     * @return the copy
+     */
+    public AnimationClip copyWithPrefix(String prefix)
+    {
+        AnimationClip c = new AnimationClip(prefix+name);
+        c.duration = duration;
+        c.loop = loop;
+        for (AnimationChannel channel:channels)
+        {
+            c.addChannel(channel.copy(prefix+channel.getNodeName()));
+        }
+        return c;
+    }
+}
@@ -0,0 +1,213 @@
+package sgraph;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Plays the {@link AnimationClip}s and {@link ProceduralAnimation}s of a scene graph. Every
+ * update, the time within each clip is worked out first, and then all channels of all clips
+ * are evaluated and the poses recorded in a {@link TransformBatch}, each channel in a slot of
+ * its own. The channels are kept in one flat array for this, so that with a fork/join pool
+ * they can be split into ranges of about the same size and evaluated in parallel regardless of
+ * how they are spread among clips. The procedural animations are recorded after that, in the
+ * order they were added. The nodes themselves only change when the batch is committed.
+ */
+public class Animator
+{
+    /**
+     * The default smallest number of channels worth evaluating in parallel
+     */
+    public static final int DEFAULT_PARALLEL_THRESHOLD = 256;
+
+    private List<AnimationClip> clips;
+    private List<ProceduralAnimation> procedurals;
+
+    /**
+     * The animation time wraps around to 0 when it reaches this
+     */
+    public static final float TIME_PERIOD = 360;
+
+    /**
+     * The time animated so far, counting the times it wrapped around, and the time of the last
+     * update
+     */
+    private double frame;
+    private float lastTime;
+    private boolean started;
+
+    /**
+     * All channels of all clips, and for each the index of its clip. Rebuilt when a clip is
+     * added
+     */
+    private AnimationChannel[] channels;
+    private int[] channelClips;
+    private boolean channelsStale;
+
+    /**
+     * The time within each clip for the current update
+     */
+    private float[] clipTimes;
+
+    /**
+     * The batch being recorded by the current update, and the slot of its first channel
+     */
+    private TransformBatch batch;
+    private int firstSlot;
+
+    private IScenegraph scenegraph;
+    private ForkJoinPool pool;
+    private int parallelThreshold;
+
+    public Animator(IScenegraph scenegraph)
+    {
+        this.scenegraph = scenegraph;
+        clips = new ArrayList<AnimationClip>();
+        procedurals = new ArrayList<ProceduralAnimation>();
+        frame = 0;
+        lastTime = 0;
+        started = false;
+        channels = new AnimationChannel[0];
+        channelClips = new int[0];
+        clipTimes = new float[0];
+        channelsStale = false;
+        pool = null;
+        parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+    }
+
+    public void addClip(AnimationClip clip)
+    {
+        clips.add(clip);
+        channelsStale = true;
+    }
+
+    public List<AnimationClip> getClips()
+    {
+        return clips;
+    }
+
+    public void addProcedural(ProceduralAnimation procedural)
+    {
+        procedurals.add(procedural);
+    }
+
+    public List<ProceduralAnimation> getProcedurals()
+    {
+        return procedurals;
+    }
+
+    /**
+     * Use the given pool to evaluate channels in parallel
+     * @param pool the pool to run on, or null to always evaluate sequentially
+     * @param threshold the smallest number of channels worth splitting
+     */
+    public void setParallelUpdate(ForkJoinPool pool,int threshold)
+    {
+        this.pool = pool;
+        this.parallelThreshold = Math.max(1,threshold);
+    }
+
+    private void gatherChannels()
+    {
+        int count = 0;
+        for (AnimationClip clip:clips)
+        {
+            count += clip.getChannels().size();
+        }
+        channels = new AnimationChannel[count];
+        channelClips = new int[count];
+        clipTimes = Arrays.copyOf(clipTimes,clips.size());
+        int i = 0;
+        for (int c=0;c<clips.size();c++)
+        {
+            for (AnimationChannel channel:clips.get(c).getChannels())
+            {
+                channels[i] = channel;
+                channelClips[i] = c;
+                i++;
+            }
+        }
+        channelsStale = false;
+    }
+
+    /**
+     * Work out the pose of every animated node for the given time
+     * @param time the time
+     * @param batch the batch to record the poses in, as changes to animation transforms
+     */
+    public void update(float time,TransformBatch batch)
+    {
+        //a time earlier than the last one has wrapped around
+        float delta = started ? time-lastTime : time;
+        if (delta < 0)
+        {
+            delta += TIME_PERIOD;
+        }
+        frame += delta;
+        lastTime = time;
+        started = true;
+        if (channelsStale)
+        {
+            gatherChannels();
+        }
+        for (int c=0;c<clipTimes.length;c++)
+        {
+            clipTimes[c] = clips.get(c).getLocalTime(time);
+        }
+
+        this.batch = batch;
+        firstSlot = batch.reserve(channels.length);
+        if ((pool != null) && (channels.length >= parallelThreshold))
+        {
+            pool.invoke(new ChannelTask(0,channels.length));
+        }
+        else
+        {
+            apply(0,channels.length);
+        }
+        this.batch = null;
+
+        for (int i=0;i<procedurals.size();i++)
+        {
+            procedurals.get(i).apply(scenegraph,time,(float)frame,batch);
+        }
+    }
+
+    private void apply(int start,int end)
+    {
+        for (int i=start;i<end;i++)
+        {
+            channels[i].apply(scenegraph,clipTimes[channelClips[i]],batch,firstSlot+i);
+        }
+    }
+
+    /**
+     * Splits a range of channels in halves until it is smaller than the threshold
+     */
+    private class ChannelTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final int start,end;
+
+        ChannelTask(int start,int end)
+        {
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (end-start < parallelThreshold)
+            {
+                apply(start,end);
+                return;
+            }
+            int mid = (start+end)/2;
+            invokeAll(new ChannelTask(start,mid),new ChannelTask(mid,end));
+        }
+    }
+}
@@ -0,0 +1,1189 @@
+package sgraph;
+
+import org.joml.FrustumIntersection;
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+import org.joml.Vector4f;
+import sgraph.Nodes.INode;
+import sgraph.Nodes.LODNode;
+import sgraph.Nodes.ReferenceNode;
+import util.Light;
+import util.Material;
+import util.PolygonMesh;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A flat, array-based form of a scene graph tree. The nodes are laid out in depth-first order,
+ * so a node always comes after its parent and the subtree of node i occupies the indices
+ * i to subtreeEnd[i]-1. All per-node data is kept in primitive arrays indexed by node: the
+ * parent index, the local and world matrices (16 floats each, column-major) and the mesh,
+ * material and texture ids of leaves. Updating transforms and drawing are then simple loops
+ * over these arrays instead of recursive calls through the {@link INode} tree.
+ *
+ * Each node also has the world-space bounding box of its subtree, refitted from the bounds
+ * of the meshes whenever transforms change. When a projection is set, drawing skips every
+ * subtree whose box is outside the view frustum. If an {@link OcclusionBuffer} is also set, the
+ * nodes marked as occluders are rasterized into it first, and every subtree whose box is hidden
+ * behind them is skipped as well. Level-of-detail nodes draw only the subtree of the child they
+ * select.
+ *
+ * The {@link INode} tree is still the way to build and edit a scene graph. Each node
+ * remembers where it was compiled to, and writes changes to its transform or material through
+ * to this object. Structural changes (adding children) cannot be written through; they mark
+ * this object as stale so that the scene graph compiles itself again.
+ *
+ * A subtree shared by {@link ReferenceNode}s is compiled once for every place it is drawn at,
+ * so every copy has its own world transform and bounds. The copies of a node are chained
+ * together, so that a change to the shared node is written through to all of them, except where
+ * a reference overrides it: that reference is then asked to work out its override again.
+ *
+ * The scene can be animated on one thread and drawn on another. The updating thread calls
+ * {@link #publish(double)} when a frame is complete, which copies what changes from frame to
+ * frame into a {@link SceneSnapshot}. Drawing then uses the latest published snapshot and
+ * nothing else that the updating thread writes to, interpolated to a time between the two
+ * latest if one is set (see {@link #setDrawTime(double)}). The snapshots are handed over without
+ * either thread waiting for the other (see {@link SnapshotPublisher}). Until the first frame is
+ * published, drawing uses the arrays of this object directly, and must then be done on the
+ * thread that updates it.
+ */
+public class CompiledScenegraph
+{
+    /**
+     * The default smallest subtree that is worth updating in parallel
+     */
+    public static final int DEFAULT_PARALLEL_THRESHOLD = 2048;
+
+    /**
+     * The number of nodes compiled so far
+     */
+    protected int size;
+
+    /**
+     * The index of the parent of each node, -1 for the root
+     */
+    protected int[] parent;
+
+    /**
+     * One past the index of the last node in the subtree rooted at each node
+     */
+    protected int[] subtreeEnd;
+
+    /**
+     * Local transformation of each node (identity for nodes without one), and its
+     * transformation to the world coordinate system. 16 floats per node
+     */
+    protected float[] local,world;
+
+    /**
+     * Whether the local transform of a node changed since world transforms were last updated,
+     * and whether any node did at all
+     */
+    protected boolean[] dirty;
+    protected boolean anyDirty;
+
+    /**
+     * For each node, the index in {@link #meshNames}, {@link #materials} and
+     * {@link #textureNames} of what it draws, or -1 if it does not draw anything
+     */
+    protected int[] meshId,materialId,textureId;
+
+    /**
+     * The world-space axis-aligned bounding box of the subtree rooted at each node, as
+     * (minX,minY,minZ,maxX,maxY,maxZ). These are refitted whenever world transforms change
+     */
+    protected float[] bounds;
+
+    /**
+     * The number of nodes that draw a mesh in the subtree rooted at each node
+     */
+    protected int[] subtreeLeaves;
+
+    /**
+     * The object-space bounding box of each mesh, indexed by mesh id, in the same layout as
+     * {@link #bounds}. Meshes whose bounds are not known are never culled
+     */
+    protected float[] meshBounds;
+
+    /**
+     * Whether each node is drawn into the occlusion buffer, and the triangles of each mesh
+     * drawn by an occluder (positions, 4 floats per vertex, and vertex indices) by mesh id.
+     * Meshes that no occluder draws have no triangles here
+     */
+    protected boolean[] occluder;
+    protected float[][] occluderPositions;
+    protected int[][] occluderIndices;
+
+    /**
+     * The level-of-detail node compiled at each index, or null if the node is not one. Only
+     * the child selected by such a node is drawn
+     */
+    protected LODNode[] lod;
+
+    /**
+     * The level last selected at each level-of-detail index, kept for its hysteresis. A node
+     * shared by several references is compiled to an index below each of them, so each copy
+     * keeps its own level
+     */
+    protected int[] lodLevel;
+
+    /**
+     * The indices of all nodes that draw a mesh, in drawing order
+     */
+    protected int[] leaves;
+    protected int leafCount;
+
+    /**
+     * The lights attached to the nodes, and the index of the node each is attached to. Every
+     * frame they are transformed to view coordinates into {@link #lights}, right after the
+     * world transforms are brought up to date
+     */
+    protected List<Light> lightSources;
+    protected int[] lightNodes;
+    protected LightArray lights;
+
+    protected List<String> meshNames;
+    protected List<Material> materials;
+    protected List<String> textureNames;
+
+    /**
+     * The node object compiled at each index
+     */
+    protected INode[] nodes;
+
+    /**
+     * For each node, the index that the same node object was compiled to before, or -1. A
+     * node is compiled more than once only if it is part of a subtree shared by references
+     */
+    protected int[] previousCopy;
+
+    /**
+     * The reference that overrides the transform or material of each node, or null
+     */
+    protected ReferenceNode[] overriddenBy;
+
+    /**
+     * Set when the tree this was compiled from changed its structure
+     */
+    protected boolean stale;
+
+    /**
+     * Lookup tables that give each distinct mesh, material and texture a single id
+     */
+    private Map<String,Integer> meshIds,textureIds;
+    private Map<Material,Integer> materialIds;
+
+    /**
+     * How many nodes use each material id, and the ids that no node uses any more, to be
+     * handed out again (their place in {@link #materials} is null). Every change to a material
+     * makes a new material object, so without this the materials would pile up
+     */
+    private int[] materialUses;
+    private int[] freeMaterialIds;
+    private int freeMaterialCount;
+
+    /**
+     * The pool used to update world transforms in parallel (null to update sequentially), and
+     * the smallest subtree worth splitting into parallel tasks
+     */
+    private ForkJoinPool pool;
+    private int parallelThreshold;
+
+    /**
+     * The projection used to cull subtrees outside the view frustum, or null to draw
+     * everything. It is copied into the same matrix every time, since it is set before
+     * every frame
+     */
+    private Matrix4f projection;
+    private final Matrix4f projectionMatrix;
+    private FrustumIntersection frustum;
+
+    /**
+     * The buffer that occluders are rasterized into, or null to skip occlusion culling
+     */
+    private volatile OcclusionBuffer occlusion;
+
+    /**
+     * Where the counts of the last frame are recorded
+     */
+    private FrameStatistics statistics;
+
+    /**
+     * Scratch matrices used while drawing
+     */
+    private Matrix4f worldMatrix,modelView,viewProjection;
+
+    /**
+     * Hands frames to the thread that draws, and the snapshot drawn from in the current frame
+     */
+    private final SnapshotPublisher snapshots;
+    private SceneSnapshot view;
+
+    /**
+     * The index that each node object was last compiled to
+     */
+    private Map<INode,Integer> indices;
+
+    public CompiledScenegraph()
+    {
+        this(64);
+    }
+
+    public CompiledScenegraph(int initialCapacity)
+    {
+        initialCapacity = Math.max(1,initialCapacity);
+        size = 0;
+        parent = new int[initialCapacity];
+        subtreeEnd = new int[initialCapacity];
+        local = new float[16*initialCapacity];
+        world = new float[16*initialCapacity];
+        dirty = new boolean[initialCapacity];
+        meshId = new int[initialCapacity];
+        materialId = new int[initialCapacity];
+        textureId = new int[initialCapacity];
+        nodes = new INode[initialCapacity];
+        previousCopy = new int[initialCapacity];
+        overriddenBy = new ReferenceNode[initialCapacity];
+        leaves = new int[initialCapacity];
+        leafCount = 0;
+        bounds = new float[6*initialCapacity];
+        subtreeLeaves = new int[initialCapacity];
+        meshBounds = new float[0];
+        occluder = new boolean[initialCapacity];
+        lod = new LODNode[initialCapacity];
+        lodLevel = new int[initialCapacity];
+        occluderPositions = new float[0][];
+        occluderIndices = new int[0][];
+        anyDirty = false;
+        stale = false;
+
+        lightSources = new ArrayList<Light>();
+        lightNodes = new int[0];
+        lights = new LightArray();
+
+        meshNames = new ArrayList<String>();
+        materials = new ArrayList<Material>();
+        textureNames = new ArrayList<String>();
+        meshIds = new TreeMap<String,Integer>();
+        textureIds = new TreeMap<String,Integer>();
+        materialIds = new IdentityHashMap<Material,Integer>();
+        materialUses = new int[0];
+        freeMaterialIds = new int[0];
+        freeMaterialCount = 0;
+
+        worldMatrix = new Matrix4f();
+        modelView = new Matrix4f();
+        viewProjection = new Matrix4f();
+        projection = null;
+        projectionMatrix = new Matrix4f();
+        frustum = new FrustumIntersection();
+        occlusion = null;
+        statistics = new FrameStatistics();
+
+        pool = null;
+        parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+
+        snapshots = new SnapshotPublisher();
+        view = null;
+        indices = new IdentityHashMap<INode,Integer>();
+    }
+
+    /**
+     * Compile the tree rooted at the given node
+     * @param root the root of the tree
+     * @param meshes the meshes drawn by the tree, keyed by name. These are used to get their
+     *               bounding boxes, and the triangles of the meshes drawn by occluders
+     * @return the compiled form of the tree
+     */
+    public static CompiledScenegraph compile(INode root,Map<String,PolygonMesh> meshes)
+    {
+        CompiledScenegraph compiled = new CompiledScenegraph();
+        root.compile(compiled,-1);
+        for (int id=0;id<compiled.meshNames.size();id++)
+        {
+            PolygonMesh mesh = meshes.get(compiled.meshNames.get(id));
+            if (mesh != null)
+            {
+                compiled.setMeshBounds(id,mesh.getMinimumBounds(),mesh.getMaximumBounds());
+            }
+        }
+        for (int j=0;j<compiled.leafCount;j++)
+        {
+            int i = compiled.leaves[j];
+            PolygonMesh mesh = meshes.get(compiled.meshNames.get(compiled.meshId[i]));
+            if (compiled.occluder[i] && (mesh != null) && (compiled.occluderPositions[compiled.meshId[i]] == null))
+            {
+                compiled.setOccluderMesh(compiled.meshId[i],mesh);
+            }
+        }
+        compiled.updateWorldTransforms();
+        return compiled;
+    }
+
+    /**
+     * Append a node to this compiled form. This is called by the nodes themselves while they
+     * are being compiled, in depth-first order. The node starts with an identity transform and
+     * draws nothing.
+     * @param node the node being compiled
+     * @param parentIndex the index its parent was compiled to, -1 for the root
+     * @return the index of this node
+     */
+    public int addNode(INode node,int parentIndex)
+    {
+        return addNode(node,parentIndex,-1);
+    }
+
+    /**
+     * Append a node that may have been compiled before, as part of a subtree that is drawn at
+     * more than one place
+     * @param node the node being compiled
+     * @param parentIndex the index its parent was compiled to, -1 for the root
+     * @param previousCopy the index the node was last compiled to, -1 if this is the first time
+     * @return the index of this copy of the node
+     */
+    public int addNode(INode node,int parentIndex,int previousCopy)
+    {
+        if (size == parent.length)
+        {
+            grow();
+        }
+        int i = size++;
+        parent[i] = parentIndex;
+        subtreeEnd[i] = i+1;
+        nodes[i] = node;
+        indices.put(node,i);
+        this.previousCopy[i] = previousCopy;
+        overriddenBy[i] = null;
+        meshId[i] = materialId[i] = textureId[i] = -1;
+        occluder[i] = false;
+        lod[i] = null;
+        lodLevel[i] = 0;
+        subtreeLeaves[i] = 0;
+        MatrixArrays.setIdentity(local,16*i);
+        dirty[i] = true;
+        anyDirty = true;
+
+        List<Light> own = node.getLights();
+        if (!own.isEmpty())
+        {
+            if (lightSources.size()+own.size() > lightNodes.length)
+            {
+                lightNodes = Arrays.copyOf(lightNodes,Math.max(lightSources.size()+own.size(),2*lightNodes.length));
+            }
+            for (int k=0;k<own.size();k++)
+            {
+                lightNodes[lightSources.size()] = i;
+                lightSources.add(own.get(k));
+            }
+        }
+        return i;
+    }
+
+    /**
+     * Record that all the nodes of the subtree rooted at the given node have been added
+     * @param index the index of the root of the subtree
+     */
+    public void endSubtree(int index)
+    {
+        subtreeEnd[index] = size;
+    }
+
+    /**
+     * Make the given node draw a mesh
+     * @param index the index of the node
+     * @param meshName the name of the mesh, as known to the renderer
+     * @param material the material to draw it with
+     * @param textureName the name of the texture, as known to the renderer
+     */
+    public void setLeaf(int index,String meshName,Material material,String textureName)
+    {
+        meshId[index] = idOf(meshIds,meshNames,meshName);
+        textureId[index] = idOf(textureIds,textureNames,textureName);
+        setMaterial(index,material);
+
+        if (6*meshNames.size() > meshBounds.length)
+        {
+            //a new mesh: unbounded until told otherwise
+            int old = meshBounds.length;
+            meshBounds = Arrays.copyOf(meshBounds,6*meshNames.size());
+            for (int k=old;k<meshBounds.length;k+=6)
+            {
+                MatrixArrays.setUnbounded(meshBounds,k);
+            }
+            occluderPositions = Arrays.copyOf(occluderPositions,meshNames.size());
+            occluderIndices = Arrays.copyOf(occluderIndices,meshNames.size());
+        }
+        for (int n=index;n>=0;n=parent[n])
+        {
+            subtreeLeaves[n]++;
+        }
+
+        if (leafCount == leaves.length)
+        {
+            leaves = Arrays.copyOf(leaves,2*leaves.length);
+        }
+        leaves[leafCount++] = index;
+    }
+
+    /**
+     * Change the material of a node that draws a mesh. Only this copy of the node is changed
+     * @param index the index of the node
+     * @param material the new material
+     */
+    public void setMaterial(int index,Material material)
+    {
+        int old = materialId[index];
+        Integer id = materialIds.get(material);
+        if (id == null)
+        {
+            if ((old >= 0) && (materialUses[old] == 1))
+            {
+                //only this node used its old material, so the new one takes its id
+                materialIds.remove(materials.get(old));
+                materials.set(old,material);
+                materialIds.put(material,old);
+                return;
+            }
+            id = newMaterialId(material);
+        }
+        materialId[index] = id;
+        materialUses[id]++;
+        if (old >= 0)
+        {
+            releaseMaterialId(old);
+        }
+    }
+
+    /**
+     * Give a material an id, reusing one that is no longer used if there is one
+     */
+    private int newMaterialId(Material material)
+    {
+        int id;
+        if (freeMaterialCount > 0)
+        {
+            id = freeMaterialIds[--freeMaterialCount];
+            materials.set(id,material);
+        }
+        else
+        {
+            id = materials.size();
+            materials.add(material);
+            if (id == materialUses.length)
+            {
+                materialUses = Arrays.copyOf(materialUses,Math.max(16,2*id));
+            }
+        }
+        materialIds.put(material,id);
+        return id;
+    }
+
+    /**
+     * Stop using a material id for one node, and free it if no node uses it any more
+     */
+    private void releaseMaterialId(int id)
+    {
+        if (--materialUses[id] > 0)
+            return;
+        materialIds.remove(materials.get(id));
+        materials.set(id,null);
+        if (freeMaterialCount == freeMaterialIds.length)
+        {
+            freeMaterialIds = Arrays.copyOf(freeMaterialIds,Math.max(16,2*freeMaterialCount));
+        }
+        freeMaterialIds[freeMaterialCount++] = id;
+    }
+
+    /**
+     * Set the object-space bounding box of a mesh, used to cull the nodes that draw it
+     * @param id the id of the mesh
+     * @param min the minimum corner of the box
+     * @param max the maximum corner of the box
+     */
+    public void setMeshBounds(int id,Vector4f min,Vector4f max)
+    {
+        meshBounds[6*id] = min.x;
+        meshBounds[6*id+1] = min.y;
+        meshBounds[6*id+2] = min.z;
+        meshBounds[6*id+3] = max.x;
+        meshBounds[6*id+4] = max.y;
+        meshBounds[6*id+5] = max.z;
+        for (int j=0;j<leafCount;j++)
+        {
+            if (meshId[leaves[j]] == id)
+            {
+                dirty[leaves[j]] = true;
+                anyDirty = true;
+            }
+        }
+    }
+
+    /**
+     * Mark a node that draws a mesh as an occluder, i.e. something large and opaque that is
+     * rasterized into the occlusion buffer to hide what is behind it
+     * @param index the index of the node
+     * @param occluder true if the node is an occluder
+     */
+    public void setOccluder(int index,boolean occluder)
+    {
+        this.occluder[index] = occluder;
+    }
+
+    /**
+     * Make a node choose a single child to draw, by level of detail
+     * @param index the index of the node
+     * @param node the level-of-detail node that selects the child
+     */
+    public void setLOD(int index,LODNode node)
+    {
+        lod[index] = node;
+    }
+
+    /**
+     * Keep the triangles of a mesh, to rasterize the occluders that draw it. Only meshes made
+     * of triangles can be used
+     * @param id the id of the mesh
+     * @param mesh the mesh
+     * @throws IllegalArgumentException if the mesh is not made of triangles
+     */
+    public void setOccluderMesh(int id,PolygonMesh mesh) throws IllegalArgumentException
+    {
+        if (mesh.getPrimitiveSize() != 3)
+            throw new IllegalArgumentException("Only triangle meshes can be occluders");
+        float[] positions = new float[4*mesh.getVertexCount()];
+        mesh.getVertexPositions().get(positions);
+        int[] indices = new int[mesh.getPrimitiveCount()];
+        mesh.getPrimitives().get(indices);
+        occluderPositions[id] = positions;
+        occluderIndices[id] = indices;
+    }
+
+    /**
+     * Change the local transformation of a node. World transforms are not recomputed until
+     * {@link #updateWorldTransforms()} is called. Only this copy of the node is changed
+     * @param index the index of the node
+     * @param transform the new local transformation
+     */
+    public void setLocalTransform(int index,Matrix4f transform)
+    {
+        transform.get(local,16*index);
+        dirty[index] = true;
+        anyDirty = true;
+    }
+
+    /**
+     * Write a change to the local transformation of a node through to every copy of it. This
+     * is what nodes call when their transform changes after they have been compiled
+     * @param index the index the node was last compiled to
+     * @param transform the new local transformation
+     */
+    public void writeLocalTransform(int index,Matrix4f transform)
+    {
+        for (int i=index;i>=0;i=previousCopy[i])
+        {
+            if (overriddenBy[i] != null)
+            {
+                overriddenBy[i].applyOverride(this,i,nodes[i]);
+            }
+            else
+            {
+                setLocalTransform(i,transform);
+            }
+        }
+    }
+
+    /**
+     * Write a change to the material of a node through to every copy of it
+     * @param index the index the node was last compiled to
+     * @param material the new material
+     */
+    public void writeMaterial(int index,Material material)
+    {
+        for (int i=index;i>=0;i=previousCopy[i])
+        {
+            if (overriddenBy[i] != null)
+            {
+                overriddenBy[i].applyOverride(this,i,nodes[i]);
+            }
+            else
+            {
+                setMaterial(i,material);
+            }
+        }
+    }
+
+    /**
+     * Record that a reference overrides what the given copy of a shared node draws. Changes
+     * to the shared node are then not written to this copy; the reference is asked to apply
+     * its override again instead
+     * @param index the index of the copy
+     * @param reference the reference that overrides it
+     */
+    public void setOverride(int index,ReferenceNode reference)
+    {
+        overriddenBy[index] = reference;
+    }
+
+    /**
+     * Get the index that the node at the given index was compiled to before it, if it is part
+     * of a subtree that is drawn at more than one place
+     * @param index the index of the node
+     * @return the index of the previous copy, -1 if there is none
+     */
+    public int getPreviousCopy(int index)
+    {
+        return previousCopy[index];
+    }
+
+    /**
+     * Recompute the world transforms of all nodes whose local transform, or the local transform
+     * of an ancestor, changed since the last update. Since parents come before their children
+     * this is a single pass over the nodes. If a fork/join pool has been set and the scene is
+     * at least as big as the parallel threshold, independent subtrees are updated in parallel
+     */
+    public void updateWorldTransforms()
+    {
+        if (!anyDirty)
+            return;
+
+        if ((pool != null) && (size >= parallelThreshold))
+        {
+            pool.invoke(new WorldTransformTask(0,size));
+        }
+        else
+        {
+            updateWorldTransforms(0,size);
+        }
+        updateBounds();
+        Arrays.fill(dirty,0,size,false);
+        anyDirty = false;
+    }
+
+    /**
+     * Refit the bounding boxes of all nodes whose world transform changed, and of all their
+     * ancestors. Since children come after their parents this is a single backward pass: each
+     * node marks its parent for refitting after it has been refitted itself
+     */
+    protected void updateBounds()
+    {
+        for (int i=size-1;i>=0;i--)
+        {
+            if (!dirty[i])
+                continue;
+
+            int b = 6*i;
+            if (meshId[i]>=0)
+            {
+                MatrixArrays.transformBounds(meshBounds,6*meshId[i],world,16*i,bounds,b);
+            }
+            else
+            {
+                MatrixArrays.setEmpty(bounds,b);
+            }
+            for (int child=i+1;child<subtreeEnd[i];child=subtreeEnd[child])
+            {
+                int c = 6*child;
+                bounds[b] = Math.min(bounds[b],bounds[c]);
+                bounds[b+1] = Math.min(bounds[b+1],bounds[c+1]);
+                bounds[b+2] = Math.min(bounds[b+2],bounds[c+2]);
+                bounds[b+3] = Math.max(bounds[b+3],bounds[c+3]);
+                bounds[b+4] = Math.max(bounds[b+4],bounds[c+4]);
+                bounds[b+5] = Math.max(bounds[b+5],bounds[c+5]);
+            }
+            if (parent[i]>=0)
+            {
+                dirty[parent[i]] = true;
+            }
+        }
+    }
+
+    /**
+     * Recompute the world transforms of the nodes in the given range. The parent of the first
+     * node must already be up to date, which is the case if the range is a subtree (or a
+     * sequence of sibling subtrees) whose parent has been updated
+     * @param start the first node to update
+     * @param end one past the last node to update
+     */
+    protected void updateWorldTransforms(int start,int end)
+    {
+        for (int i=start;i<end;i++)
+        {
+            int p = parent[i];
+            if ((p>=0) && dirty[p])
+            {
+                dirty[i] = true;
+            }
+            if (dirty[i])
+            {
+                if (p<0)
+                {
+                    System.arraycopy(local,16*i,world,16*i,16);
+                }
+                else if (MatrixArrays.isAffine(world,16*p) && MatrixArrays.isAffine(local,16*i))
+                {
+                    MatrixArrays.mulAffine(world,16*p,local,16*i,world,16*i);
+                }
+                else
+                {
+                    MatrixArrays.mul(world,16*p,local,16*i,world,16*i);
+                }
+            }
+        }
+    }
+
+    /**
+     * Use the given pool to update world transforms in parallel. Subtrees with fewer nodes than
+     * the threshold are updated sequentially by a single task, so small scenes are not split at
+     * all
+     * @param pool the pool to run on, or null to always update sequentially
+     * @param threshold the smallest number of nodes in a subtree worth splitting
+     */
+    public void setParallelUpdate(ForkJoinPool pool,int threshold)
+    {
+        this.pool = pool;
+        this.parallelThreshold = Math.max(1,threshold);
+    }
+
+    /**
+     * Updates the world transforms of a range of sibling subtrees, whose parent is already up
+     * to date. Since these subtrees are independent of each other, a range with many nodes is
+     * split in two halves that are updated in parallel. A range that is a single subtree is
+     * split below its root, after updating the root. Ranges smaller than the threshold are
+     * updated in a single loop
+     */
+    private class WorldTransformTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private int start,end;
+
+        WorldTransformTask(int start,int end)
+        {
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute()
+        {
+            while ((end-start >= parallelThreshold) && (subtreeEnd[start] == end))
+            {
+                //a single subtree: update its root, then continue with its children
+                updateWorldTransforms(start,start+1);
+                start++;
+            }
+
+            if (end-start < parallelThreshold)
+            {
+                updateWorldTransforms(start,end);
+                return;
+            }
+
+            //several sibling subtrees: split them into two ranges of about the same size
+            int mid = (start+end)/2;
+            int split = subtreeEnd[start];
+            while (subtreeEnd[split] <= mid)
+            {
+                split = subtreeEnd[split];
+            }
+            invokeAll(new WorldTransformTask(start,split),new WorldTransformTask(split,end));
+        }
+    }
+
+    /**
+     * Make the current state of this scene graph the frame that is drawn next. World transforms
+     * are brought up to date, and then copied together with the bounds and materials into a
+     * snapshot, which is exchanged for the latest published one. This is called by the thread
+     * that updates the scene, and never waits for drawing. Once a frame has been published,
+     * drawing no longer brings world transforms up to date itself, so every frame to be drawn
+     * must be published
+     * @param time the simulation time of this state, which drawing interpolates by
+     */
+    public void publish(double time)
+    {
+        updateWorldTransforms();
+        snapshots.publish(this,time);
+    }
+
+    /**
+     * Get the snapshot to draw from: the latest published one if there is one newer than the
+     * last drawn, the last drawn one otherwise, or this object's own arrays (brought up to date)
+     * if nothing has been published. The snapshot drawn before a newer one is kept to
+     * interpolate from. Only the thread that draws may call this; {@link #draw} calls it at the
+     * start of every frame
+     * @return the snapshot, which stays valid until this is called again
+     */
+    public SceneSnapshot acquireSnapshot()
+    {
+        return snapshots.acquire(this);
+    }
+
+    /**
+     * Set the simulation time to draw published snapshots at. The world transforms drawn are
+     * interpolated between the two latest snapshots taken for drawing, and held at the latest
+     * if the time is past it. Only the thread that draws may call this
+     * @param time the time, in the units given to {@link #publish(double)}, or NaN to always
+     *             draw the latest snapshot as it is
+     */
+    public void setDrawTime(double time)
+    {
+        snapshots.setDrawTime(time);
+    }
+
+    /**
+     * Get the world transformation of a node as it is drawn: from the snapshot that
+     * {@link #acquireSnapshot()} gives, interpolated to the draw time. Only the thread that
+     * draws may call this
+     * @param index the index of the node
+     * @param dest the matrix to store the transformation in
+     * @return dest
+     */
+    public Matrix4f getDrawnWorldTransform(int index,Matrix4f dest)
+    {
+        view = acquireSnapshot();
+        return snapshots.getWorldTransform(index,dest);
+    }
+
+    /**
+     * Draw every mesh in this scene graph. The latest published snapshot is drawn if there is
+     * one (see {@link #publish(double)}), interpolated to the draw time if one is set;
+     * otherwise world transforms are brought up to date first. Culling uses the bounds of the
+     * latest snapshot.
+     * The lights are transformed to view coordinates with the same world transforms (see
+     * {@link #getLights()}).
+     * If a projection has been set, subtrees whose bounding box is outside the view frustum
+     * are skipped entirely, and subtrees completely inside it are not tested against the
+     * frustum any further. If an occlusion buffer has been set too, the occluders in the
+     * frustum are rasterized into it, and then each subtree is skipped if its box is hidden.
+     * Level-of-detail nodes only draw the subtree of the child they select.
+     * @param renderer the renderer to draw with
+     * @param worldToView the camera transformation
+     */
+    public void draw(IScenegraphRenderer renderer,Matrix4f worldToView)
+    {
+        view = acquireSnapshot();
+        gatherLights(worldToView);
+        statistics.reset();
+
+        //read once, so that the whole frame uses the same buffer even if it is changed meanwhile
+        OcclusionBuffer occlusion = (projection != null) ? this.occlusion : null;
+        if (projection != null)
+        {
+            frustum.set(viewProjection.set(projection).mul(worldToView));
+            if (occlusion != null)
+            {
+                rasterizeOccluders(occlusion);
+            }
+        }
+        drawRange(renderer,worldToView,0,size,projection != null,occlusion);
+    }
+
+    /**
+     * Transform every light to view coordinates, with the world transform of its node
+     */
+    private void gatherLights(Matrix4f worldToView)
+    {
+        lights.clear();
+        for (int k=0;k<lightSources.size();k++)
+        {
+            lights.add(lightSources.get(k),snapshots.getWorldTransform(lightNodes[k],worldMatrix),worldToView);
+        }
+    }
+
+    /**
+     * Get the lights of the last frame drawn, in view coordinates, in depth-first order
+     * @return the lights
+     */
+    public LightArray getLights()
+    {
+        return lights;
+    }
+
+    /**
+     * Draw the meshes of a range of sibling subtrees
+     * @param renderer the renderer to draw with
+     * @param worldToView the camera transformation
+     * @param start the first node of the range
+     * @param end one past the last node of the range
+     * @param testFrustum false if the range is already known to be inside the view frustum
+     *                    (or there is no projection to test against)
+     * @param occlusion the occlusion buffer rasterized for this frame, or null to skip
+     *                  occlusion culling
+     */
+    private void drawRange(IScenegraphRenderer renderer,Matrix4f worldToView,int start,int end,boolean testFrustum,
+                           OcclusionBuffer occlusion)
+    {
+        float[] bounds = view.bounds;
+        int i = start;
+        int insideEnd = testFrustum ? start : end; //nodes before this are known to be inside the frustum
+        while (i<end)
+        {
+            int b = 6*i;
+            if (subtreeLeaves[i] == 0)
+            {
+                i = subtreeEnd[i];
+                continue;
+            }
+            if (i >= insideEnd)
+            {
+                int result = frustum.intersectAab(bounds[b],bounds[b+1],bounds[b+2],bounds[b+3],bounds[b+4],bounds[b+5]);
+                if (result == FrustumIntersection.INSIDE)
+                {
+                    insideEnd = subtreeEnd[i];
+                }
+                else if (result != FrustumIntersection.INTERSECT)
+                {
+                    statistics.addFrustumCulled(subtreeLeaves[i]);
+                    i = subtreeEnd[i];
+                    continue;
+                }
+            }
+            if ((occlusion != null) && !occluder[i]
+                    && occlusion.isOccluded(bounds[b],bounds[b+1],bounds[b+2],bounds[b+3],bounds[b+4],bounds[b+5]))
+            {
+                statistics.addOcclusionCulled(subtreeLeaves[i]);
+                i = subtreeEnd[i];
+                continue;
+            }
+            if (meshId[i]>=0)
+            {
+                drawNode(renderer,worldToView,i);
+            }
+            if (lod[i] != null)
+            {
+                drawSelectedLevel(renderer,worldToView,i,i >= insideEnd,occlusion);
+                i = subtreeEnd[i];
+                continue;
+            }
+            i++;
+        }
+    }
+
+    /**
+     * Draw only the child selected by a level-of-detail node
+     * @param renderer the renderer to draw with
+     * @param worldToView the camera transformation
+     * @param i the index of the level-of-detail node
+     * @param testFrustum false if the node is known to be inside the view frustum
+     * @param occlusion the occlusion buffer rasterized for this frame, or null
+     */
+    private void drawSelectedLevel(IScenegraphRenderer renderer,Matrix4f worldToView,int i,boolean testFrustum,
+                                   OcclusionBuffer occlusion)
+    {
+        snapshots.getWorldTransform(i,worldMatrix);
+        modelView.set(worldToView).mul(worldMatrix);
+        int level = lod[i].selectLevel(modelView,projection,lodLevel[i]);
+        lodLevel[i] = level;
+
+        int child = i+1;
+        for (int k=0;(k<level) && (child<subtreeEnd[i]);k++)
+        {
+            child = subtreeEnd[child];
+        }
+        int drawnLeaves = 0;
+        if (child<subtreeEnd[i])
+        {
+            drawnLeaves = subtreeLeaves[child];
+            drawRange(renderer,worldToView,child,subtreeEnd[child],testFrustum,occlusion);
+        }
+        statistics.addLODSkipped(subtreeLeaves[i]-drawnLeaves);
+    }
+
+    /**
+     * Rasterize all occluders that are at least partly inside the view frustum into an
+     * occlusion buffer
+     */
+    private void rasterizeOccluders(OcclusionBuffer occlusion)
+    {
+        float[] bounds = view.bounds;
+        occlusion.begin(viewProjection);
+        for (int j=0;j<leafCount;j++)
+        {
+            int i = leaves[j];
+            int b = 6*i;
+            if (!occluder[i] || (occluderPositions[meshId[i]] == null))
+                continue;
+            if (!frustum.testAab(bounds[b],bounds[b+1],bounds[b+2],bounds[b+3],bounds[b+4],bounds[b+5]))
+                continue;
+            snapshots.getWorldTransform(i,worldMatrix);
+            occlusion.addOccluder(occluderPositions[meshId[i]],occluderIndices[meshId[i]],worldMatrix);
+        }
+        occlusion.rasterize();
+    }
+
+    /**
+     * Draw the mesh of a single node
+     */
+    private void drawNode(IScenegraphRenderer renderer,Matrix4f worldToView,int i)
+    {
+        snapshots.getWorldTransform(i,worldMatrix);
+        modelView.set(worldToView).mul(worldMatrix);
+        renderer.drawMesh(meshNames.get(meshId[i]),view.materials.get(view.materialId[i]),modelView,textureNames.get(textureId[i]));
+        statistics.addDrawn(1);
+    }
+
+    /**
+     * Set the projection used to cull against the view frustum. The camera transformation
+     * is supplied separately to {@link #draw}. This must be called from the thread that draws
+     * @param projection the projection matrix, or null to disable culling
+     */
+    public void setProjection(Matrix4f projection)
+    {
+        if (projection == null)
+        {
+            this.projection = null;
+        }
+        else
+        {
+            this.projection = projectionMatrix.set(projection);
+        }
+    }
+
+    /**
+     * Cull subtrees hidden behind occluders using the given buffer. This only has an effect
+     * while a projection is set
+     * @param occlusion the buffer to rasterize occluders into, or null to disable occlusion
+     *                  culling
+     */
+    public void setOcclusionBuffer(OcclusionBuffer occlusion)
+    {
+        this.occlusion = occlusion;
+    }
+
+    public OcclusionBuffer getOcclusionBuffer()
+    {
+        return occlusion;
+    }
+
+    /**
+     * Record the counts of each frame in the given object from now on
+     * @param statistics where to record the counts
+     */
+    public void setFrameStatistics(FrameStatistics statistics)
+    {
+        this.statistics = statistics;
+    }
+
+    public FrameStatistics getFrameStatistics()
+    {
+        return statistics;
+    }
+
+    /**
+     * Get the world-space bounding box of the subtree rooted at a node, as of the last update
+     * @param index the index of the node
+     * @param min where to store the minimum corner
+     * @param max where to store the maximum corner
+     */
+    public void getBounds(int index,Vector3f min,Vector3f max)
+    {
+        min.set(bounds[6*index],bounds[6*index+1],bounds[6*index+2]);
+        max.set(bounds[6*index+3],bounds[6*index+4],bounds[6*index+5]);
+    }
+
+    /**
+     * Get the world transformation of a node, as of the last update
+     * @param index the index of the node
+     * @param dest the matrix to store the transformation in
+     * @return dest
+     */
+    public Matrix4f getWorldTransform(int index,Matrix4f dest)
+    {
+        return dest.set(world,16*index);
+    }
+
+    /**
+     * Get the number of nodes in this compiled form
+     * @return the number of nodes
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Get the index that a node object was last compiled to
+     * @param node the node
+     * @return the index, -1 if the node is not part of this compiled form
+     */
+    public int indexOf(INode node)
+    {
+        Integer index = indices.get(node);
+        return (index != null) ? index : -1;
+    }
+
+    /**
+     * Get the node object compiled at an index
+     * @param index the index
+     * @return the node
+     */
+    public INode getNode(int index)
+    {
+        return nodes[index];
+    }
+
+    /**
+     * Get the root of the tree this was compiled from
+     * @return the root node, null if nothing has been compiled
+     */
+    public INode getRoot()
+    {
+        if (size == 0)
+            return null;
+        return nodes[0];
+    }
+
+    /**
+     * Mark this compiled form as out of date. Once stale, it must be compiled again from the
+     * tree before being used
+     */
+    public void invalidate()
+    {
+        stale = true;
+    }
+
+    public boolean isStale()
+    {
+        return stale;
+    }
+
+    private static int idOf(Map<String,Integer> ids,List<String> names,String name)
+    {
+        Integer id = ids.get(name);
+        if (id == null)
+        {
+            id = names.size();
+            names.add(name);
+            ids.put(name,id);
+        }
+        return id;
+    }
+
+    private void grow()
+    {
+        int n = 2*parent.length;
+        parent = Arrays.copyOf(parent,n);
+        subtreeEnd = Arrays.copyOf(subtreeEnd,n);
+        meshId = Arrays.copyOf(meshId,n);
+        materialId = Arrays.copyOf(materialId,n);
+        textureId = Arrays.copyOf(textureId,n);
+        local = Arrays.copyOf(local,16*n);
+        world = Arrays.copyOf(world,16*n);
+        dirty = Arrays.copyOf(dirty,n);
+        bounds = Arrays.copyOf(bounds,6*n);
+        subtreeLeaves = Arrays.copyOf(subtreeLeaves,n);
+        occluder = Arrays.copyOf(occluder,n);
+        lod = Arrays.copyOf(lod,n);
+        lodLevel = Arrays.copyOf(lodLevel,n);
+        nodes = Arrays.copyOf(nodes,n);
+        previousCopy = Arrays.copyOf(previousCopy,n);
+        overriddenBy = Arrays.copyOf(overriddenBy,n);
+    }
+}
@@ -0,0 +1,409 @@
+package sgraph;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An arithmetic expression over named variables, compiled once into a tree of method handles.
+ * Evaluating it is then a chain of direct calls that the JIT compiler can inline, rather than
+ * a walk over a syntax tree. Parts of the expression that do not depend on any variable are
+ * computed while compiling.
+ *
+ * The expression may use numbers, the variables it was compiled with, the constants pi and e,
+ * the operators + - * / % (remainder, as in Java) and ^ (power), parentheses, and the functions
+ * rad (degrees to radians), deg (radians to degrees) and those of {@link Math} that take and
+ * return doubles (sin, cos, atan2, sqrt, abs, floor, min, max, pow, exp, log etc.). All
+ * arithmetic is in doubles.
+ */
+public class Expression
+{
+    private static final MethodType EVALUATE = MethodType.methodType(double.class,double[].class);
+
+    private final String source;
+    private final MethodHandle handle;
+    private final boolean constant;
+
+    private Expression(String source,MethodHandle handle,boolean constant)
+    {
+        this.source = source;
+        this.handle = handle;
+        this.constant = constant;
+    }
+
+    /**
+     * Compile an expression
+     * @param source the text of the expression
+     * @param variables the names of the variables, in the order that their values will be given
+     *                  to {@link #evaluate(double[])}
+     * @return the compiled expression
+     * @throws IllegalArgumentException if the expression is malformed or uses an unknown name
+     */
+    public static Expression compile(String source,List<String> variables) throws IllegalArgumentException
+    {
+        Parser parser = new Parser(source,variables);
+        Node root = parser.parseExpression();
+        parser.skipSpaces();
+        if (parser.position < source.length())
+            throw parser.error("Unexpected '"+source.charAt(parser.position)+"'");
+        return new Expression(source,root.handle(),root.constant);
+    }
+
+    /**
+     * Evaluate this expression
+     * @param variables the values of the variables, in the order given when compiling
+     * @return the value of the expression
+     */
+    public double evaluate(double[] variables)
+    {
+        try
+        {
+            return (double)handle.invokeExact(variables);
+        }
+        catch (RuntimeException e)
+        {
+            throw e;
+        }
+        catch (Throwable t)
+        {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    /**
+     * Whether this expression does not depend on any variable
+     */
+    public boolean isConstant()
+    {
+        return constant;
+    }
+
+    @Override
+    public String toString()
+    {
+        return source;
+    }
+
+    /*
+     * The operators, as static methods that the method handles call
+     */
+
+    private static double add(double a,double b)
+    {
+        return a + b;
+    }
+
+    private static double subtract(double a,double b)
+    {
+        return a - b;
+    }
+
+    private static double multiply(double a,double b)
+    {
+        return a * b;
+    }
+
+    private static double divide(double a,double b)
+    {
+        return a / b;
+    }
+
+    private static double remainder(double a,double b)
+    {
+        return a % b;
+    }
+
+    private static double negate(double a)
+    {
+        return -a;
+    }
+
+    private static MethodHandle operator(String name,int arity)
+    {
+        try
+        {
+            return MethodHandles.lookup().findStatic(Expression.class,name,type(arity));
+        }
+        catch (ReflectiveOperationException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MethodType type(int arity)
+    {
+        Class<?>[] parameters = new Class<?>[arity];
+        for (int i=0;i<arity;i++)
+        {
+            parameters[i] = double.class;
+        }
+        return MethodType.methodType(double.class,parameters);
+    }
+
+    /**
+     * Find a function, either in {@link Math} or one of rad and deg
+     */
+    private static MethodHandle function(String name,int arity)
+    {
+        String method = name;
+        if (name.equals("rad"))
+            method = "toRadians";
+        else if (name.equals("deg"))
+            method = "toDegrees";
+        try
+        {
+            return MethodHandles.publicLookup().findStatic(Math.class,method,type(arity));
+        }
+        catch (ReflectiveOperationException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * A part of the expression: either a constant, or a method handle of type double(double[])
+     */
+    private static class Node
+    {
+        final boolean constant;
+        final double value;
+        final MethodHandle handle;
+
+        Node(double value)
+        {
+            this.constant = true;
+            this.value = value;
+            this.handle = null;
+        }
+
+        Node(MethodHandle handle)
+        {
+            this.constant = false;
+            this.value = 0;
+            this.handle = handle;
+        }
+
+        MethodHandle handle()
+        {
+            if (!constant)
+                return handle;
+            return MethodHandles.dropArguments(MethodHandles.constant(double.class,value),0,double[].class);
+        }
+    }
+
+    /**
+     * Apply a function to some parts. If they are all constant so is the result, otherwise the
+     * result is the function with each argument filtered by the handle of its part, and all the
+     * double[] parameters that this creates merged into one. A function without arguments, such
+     * as random(), is not constant, since it may give a different value every time
+     */
+    private static Node apply(MethodHandle f,Node... arguments)
+    {
+        boolean constant = arguments.length > 0;
+        for (Node n:arguments)
+        {
+            constant = constant && n.constant;
+        }
+        if (constant)
+        {
+            Object[] values = new Object[arguments.length];
+            for (int i=0;i<arguments.length;i++)
+            {
+                values[i] = arguments[i].value;
+            }
+            try
+            {
+                return new Node((Double)f.invokeWithArguments(values));
+            }
+            catch (Throwable t)
+            {
+                throw new IllegalStateException(t);
+            }
+        }
+
+        MethodHandle[] filters = new MethodHandle[arguments.length];
+        for (int i=0;i<arguments.length;i++)
+        {
+            filters[i] = arguments[i].handle();
+        }
+        MethodHandle h = MethodHandles.filterArguments(f,0,filters);
+        return new Node(MethodHandles.permuteArguments(h,EVALUATE,new int[arguments.length]));
+    }
+
+    /**
+     * A recursive descent parser that builds the handles as it goes
+     */
+    private static class Parser
+    {
+        private static final MethodHandle ADD = operator("add",2);
+        private static final MethodHandle SUBTRACT = operator("subtract",2);
+        private static final MethodHandle MULTIPLY = operator("multiply",2);
+        private static final MethodHandle DIVIDE = operator("divide",2);
+        private static final MethodHandle REMAINDER = operator("remainder",2);
+        private static final MethodHandle NEGATE = operator("negate",1);
+        private static final MethodHandle POWER = function("pow",2);
+        private static final MethodHandle ELEMENT = MethodHandles.arrayElementGetter(double[].class);
+
+        private final String source;
+        private final List<String> variables;
+        int position;
+
+        Parser(String source,List<String> variables)
+        {
+            this.source = source;
+            this.variables = variables;
+            position = 0;
+        }
+
+        IllegalArgumentException error(String message)
+        {
+            return new IllegalArgumentException(message+" at position "+position+" of \""+source+"\"");
+        }
+
+        void skipSpaces()
+        {
+            while ((position < source.length()) && Character.isWhitespace(source.charAt(position)))
+            {
+                position++;
+            }
+        }
+
+        boolean accept(char c)
+        {
+            skipSpaces();
+            if ((position < source.length()) && (source.charAt(position) == c))
+            {
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+        // expression := term (('+'|'-') term)*
+        Node parseExpression()
+        {
+            Node n = parseTerm();
+            while (true)
+            {
+                if (accept('+'))
+                    n = apply(ADD,n,parseTerm());
+                else if (accept('-'))
+                    n = apply(SUBTRACT,n,parseTerm());
+                else
+                    return n;
+            }
+        }
+
+        // term := unary (('*'|'/'|'%') unary)*
+        Node parseTerm()
+        {
+            Node n = parseUnary();
+            while (true)
+            {
+                if (accept('*'))
+                    n = apply(MULTIPLY,n,parseUnary());
+                else if (accept('/'))
+                    n = apply(DIVIDE,n,parseUnary());
+                else if (accept('%'))
+                    n = apply(REMAINDER,n,parseUnary());
+                else
+                    return n;
+            }
+        }
+
+        // unary := '-' unary | primary ('^' unary)?
+        Node parseUnary()
+        {
+            if (accept('-'))
+                return apply(NEGATE,parseUnary());
+            Node n = parsePrimary();
+            if (accept('^'))
+                return apply(POWER,n,parseUnary());
+            return n;
+        }
+
+        // primary := number | name | name '(' expression (',' expression)* ')' | '(' expression ')'
+        Node parsePrimary()
+        {
+            skipSpaces();
+            if (accept('('))
+            {
+                Node n = parseExpression();
+                if (!accept(')'))
+                    throw error("Expected ')'");
+                return n;
+            }
+            if (position >= source.length())
+                throw error("Unexpected end");
+
+            int start = position;
+            char c = source.charAt(position);
+            if (Character.isDigit(c) || (c == '.'))
+            {
+                while ((position < source.length())
+                        && (Character.isDigit(source.charAt(position)) || (source.charAt(position) == '.')))
+                {
+                    position++;
+                }
+                if ((position < source.length()) && ((source.charAt(position) == 'e') || (source.charAt(position) == 'E')))
+                {
+                    position++;
+                    if ((position < source.length()) && ((source.charAt(position) == '+') || (source.charAt(position) == '-')))
+                        position++;
+                    while ((position < source.length()) && Character.isDigit(source.charAt(position)))
+                    {
+                        position++;
+                    }
+                }
+                try
+                {
+                    return new Node(Double.parseDouble(source.substring(start,position)));
+                }
+                catch (NumberFormatException e)
+                {
+                    position = start;
+                    throw error("Malformed number");
+                }
+            }
+            if (!Character.isJavaIdentifierStart(c))
+                throw error("Unexpected '"+c+"'");
+            while ((position < source.length()) && Character.isJavaIdentifierPart(source.charAt(position)))
+            {
+                position++;
+            }
+            String name = source.substring(start,position);
+
+            if (accept('('))
+            {
+                Node[] arguments = new Node[0];
+                if (!accept(')'))
+                {
+                    do
+                    {
+                        arguments = Arrays.copyOf(arguments,arguments.length+1);
+                        arguments[arguments.length-1] = parseExpression();
+                    }
+                    while (accept(','));
+                    if (!accept(')'))
+                        throw error("Expected ')'");
+                }
+                MethodHandle f = function(name,arguments.length);
+                if (f == null)
+                    throw error("Unknown function "+name+" of "+arguments.length+" arguments");
+                return apply(f,arguments);
+            }
+
+            int index = variables.indexOf(name);
+            if (index >= 0)
+                return new Node(MethodHandles.insertArguments(ELEMENT,1,index));
+            if (name.equals("pi"))
+                return new Node(Math.PI);
+            if (name.equals("e"))
+                return new Node(Math.E);
+            position = start;
+            throw error("Unknown variable "+name);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package sgraph;
+
+/**
+ * Decides when to advance a simulation, so that it runs in steps of a fixed length however
+ * often frames are drawn. Real time is added to an accumulator as frames go by, and the
+ * simulation takes one step for every whole step of time in it. What is left over is how far
+ * the present lies past the last step, which is used to draw a state interpolated between the
+ * last two steps (see {@link #getInterpolationTime()}). The simulation can then run at, say,
+ * 30 steps per second while frames are drawn at 144 per second, or the other way around, and
+ * move at the same speed either way.
+ *
+ * If more than a given amount of time (a quarter of a second by default) is waiting to be
+ * simulated, the rest is dropped, so that when frames take too long the simulation slows down
+ * rather than falling further and further behind.
+ */
+public class FixedTimestep
+{
+    /**
+     * The default largest amount of time waiting to be simulated, in seconds
+     */
+    public static final double DEFAULT_MAX_LAG = 0.25;
+
+    /**
+     * The length of a step, in seconds
+     */
+    private final double step;
+    private final double maxLag;
+
+    /**
+     * The time not yet simulated, in seconds, and the number of steps taken so far
+     */
+    private double accumulator;
+    private long steps;
+
+    public FixedTimestep(double step)
+    {
+        this(step,DEFAULT_MAX_LAG);
+    }
+
+    /**
+     * @param step the length of a step, in seconds
+     * @param maxLag the largest amount of time waiting to be simulated, in seconds. It is at
+     *               least one step
+     * @throws IllegalArgumentException if the step is not positive
+     */
+    public FixedTimestep(double step,double maxLag) throws IllegalArgumentException
+    {
+        if (!(step > 0))
+            throw new IllegalArgumentException("The step must be positive, not "+step);
+        this.step = step;
+        this.maxLag = Math.max(step,maxLag);
+        accumulator = 0;
+        steps = 0;
+    }
+
+    /**
+     * Add real time that has gone by. Whatever would leave more than the largest lag waiting to
+     * be simulated is dropped
+     * @param seconds the time since the last call
+     */
+    public void advance(double seconds)
+    {
+        accumulator = Math.min(accumulator+Math.max(0,seconds),maxLag);
+    }
+
+    /**
+     * Take all the steps that are due, and leave the rest of the time in the accumulator
+     * @return the number of steps the simulation must now take
+     */
+    public int takeSteps()
+    {
+        int n = (int)Math.floor(accumulator/step);
+        accumulator -= n*step;
+        steps += n;
+        return n;
+    }
+
+    /**
+     * Get the simulation time after the last step taken
+     * @return the number of steps taken times the length of a step, in seconds
+     */
+    public double getTime()
+    {
+        return steps*step;
+    }
+
+    /**
+     * Get the time to draw at: as far past the next to last step as the present is past the
+     * last one. A state interpolated to this time lies between the last two steps, so drawing
+     * it never needs a state that has not been simulated yet
+     * @return the time, in seconds
+     */
+    public double getInterpolationTime()
+    {
+        return getTime()-step+accumulator;
+    }
+
+    /**
+     * Get how far the present is past the last step, as a fraction of a step
+     * @return a number from 0 to 1
+     */
+    public double getAlpha()
+    {
+        return accumulator/step;
+    }
+
+    public double getStep()
+    {
+        return step;
+    }
+
+    public long getSteps()
+    {
+        return steps;
+    }
+}
@@ -0,0 +1,122 @@
+package sgraph;
+
+/**
+ * Counters describing the work done to draw the last frame of a scene graph. They are reset
+ * at the start of every frame, so they can be read at any time after a frame has been drawn
+ * (e.g. to show them on screen).
+ */
+public class FrameStatistics
+{
+    /**
+     * The number of meshes that were actually drawn
+     */
+    protected int drawn;
+
+    /**
+     * The number of meshes that were not drawn because they were outside the view frustum
+     */
+    protected int frustumCulled;
+
+    /**
+     * The number of meshes that were not drawn because they were hidden behind occluders
+     */
+    protected int occlusionCulled;
+
+    /**
+     * The number of meshes that were not drawn because they belong to a level of detail that
+     * was not selected
+     */
+    protected int lodSkipped;
+
+    /**
+     * The number of meshlets of meshes that were drawn, and of those that were not because
+     * they were outside the view frustum or faced away from the camera
+     */
+    protected int meshletsDrawn,meshletsCulled;
+
+    public FrameStatistics()
+    {
+        reset();
+    }
+
+    /**
+     * Set all counters to zero. This is done at the start of every frame
+     */
+    public void reset()
+    {
+        drawn = 0;
+        frustumCulled = 0;
+        occlusionCulled = 0;
+        lodSkipped = 0;
+        meshletsDrawn = 0;
+        meshletsCulled = 0;
+    }
+
+    public void addDrawn(int count)
+    {
+        drawn += count;
+    }
+
+    public void addFrustumCulled(int count)
+    {
+        frustumCulled += count;
+    }
+
+    public void addOcclusionCulled(int count)
+    {
+        occlusionCulled += count;
+    }
+
+    public void addLODSkipped(int count)
+    {
+        lodSkipped += count;
+    }
+
+    public void addMeshletsDrawn(int count)
+    {
+        meshletsDrawn += count;
+    }
+
+    public void addMeshletsCulled(int count)
+    {
+        meshletsCulled += count;
+    }
+
+    public int getDrawn()
+    {
+        return drawn;
+    }
+
+    public int getFrustumCulled()
+    {
+        return frustumCulled;
+    }
+
+    public int getOcclusionCulled()
+    {
+        return occlusionCulled;
+    }
+
+    public int getLODSkipped()
+    {
+        return lodSkipped;
+    }
+
+    public int getMeshletsDrawn()
+    {
+        return meshletsDrawn;
+    }
+
+    public int getMeshletsCulled()
+    {
+        return meshletsCulled;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "drawn: "+drawn+", frustum culled: "+frustumCulled+", occlusion culled: "+occlusionCulled
+                +", other levels of detail: "+lodSkipped+", meshlets drawn: "+meshletsDrawn
+                +", meshlets culled: "+meshletsCulled;
+    }
+}
@@ -3,10 +3,14 @@ package sgraph;
 import com.jogamp.opengl.GL;
 import com.jogamp.opengl.GL3;
 import com.jogamp.opengl.GLAutoDrawable;
+import com.jogamp.common.nio.PointerBuffer;
 import com.jogamp.opengl.util.GLBuffers;
+import org.joml.Matrix4f;
+import util.Meshlets;
 
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
+import java.util.Arrays;
 import java.util.Map;
 
 /**
@@ -14,6 +18,14 @@ import java.util.Map;
  * all the JOGL-specific code required to render a mesh, namely a VAO, VBO, number and type of
  * primitives and the GL3 context required to call rendering functions.
  * {@link sgraph.GL3ScenegraphRenderer uses this implementation.}
+ *
+ * The mesh can be uploaded either as three arrays of vec4s, or in the compact interleaved
+ * format of {@link PackedMesh}, with 16-bit indices if they fit. In the latter case the
+ * uniforms that the shader decodes the vertices with are set whenever the mesh is bound.
+ *
+ * If the mesh has been split into {@link Meshlets}, the meshlets that can be seen with a
+ * camera can be marked, and only those drawn: meshlets that follow each other are drawn as one
+ * range of indices, and all the ranges with a single glMultiDrawElements.
  * @author Amit Shesh
  */
 public class GL3MeshRenderer
@@ -32,10 +44,31 @@ public class GL3MeshRenderer
     protected IntBuffer vbo;//all our Vertex Buffer Object IDs
     protected int primitive,primitiveCount;
 
+    /**
+     * The type of the indices, and whether the vertices are packed along with the uniforms that
+     * unpack them
+     */
+    protected int indexType;
+    protected boolean packed;
+    protected float[] positionOffset,positionScale;
+    protected int packedLocation,positionOffsetLocation,positionScaleLocation;
+
+    /**
+     * The meshlets of the mesh or null, which of them are marked to be drawn, and the ranges
+     * of indices they make up
+     */
+    protected Meshlets meshlets;
+    private boolean[] visible;
+    private IntBuffer rangeCounts;
+    private PointerBuffer rangeOffsets;
+
     public GL3MeshRenderer()
     {
         vao = IntBuffer.allocate(1);
         vbo = IntBuffer.allocate(Buffer_IDs.NumBuffers.ordinal());
+        indexType = GL.GL_UNSIGNED_INT;
+        packed = false;
+        packedLocation = positionOffsetLocation = positionScaleLocation = -1;
     }
 
     public void dispose()
@@ -60,17 +93,215 @@ public class GL3MeshRenderer
     public void draw()
     {
         //1. bind its VAO
-        glContext.glBindVertexArray(vao.get(0));
+        bind();
 
         //2. execute the "superpower" command
-        glContext.glDrawElements(primitive, primitiveCount, GL.GL_UNSIGNED_INT, 0);
+        glContext.glDrawElements(primitive, primitiveCount, indexType, 0);
 
         glContext.glBindVertexArray(0);
 
 
     }
 
+    /**
+     * Bind the VAO of this mesh, so that it can be drawn several times in a row with
+     * {@link #drawBound()}
+     */
+    public void bind()
+    {
+        glContext.glBindVertexArray(vao.get(0));
+        setDecodeUniforms();
+    }
+
+    /**
+     * Tell the shader whether the vertices of this mesh are packed, and how to unpack them
+     */
+    private void setDecodeUniforms()
+    {
+        if (packedLocation < 0)
+            return;
+        glContext.glUniform1i(packedLocation, packed ? 1 : 0);
+        if (packed)
+        {
+            glContext.glUniform3f(positionOffsetLocation, positionOffset[0], positionOffset[1], positionOffset[2]);
+            glContext.glUniform3f(positionScaleLocation, positionScale[0], positionScale[1], positionScale[2]);
+        }
+    }
+
+    /**
+     * Draw this mesh, assuming that its VAO is already bound by {@link #bind()}
+     */
+    public void drawBound()
+    {
+        glContext.glDrawElements(primitive, primitiveCount, indexType, 0);
+    }
+
+    /**
+     * Draw several instances of this mesh in a single call. The per-instance attributes must
+     * have been set up with {@link #setInstanceAttributes} first
+     * @param instanceCount the number of instances to draw
+     */
+    public void drawInstanced(int instanceCount)
+    {
+        bind();
+        glContext.glDrawElementsInstanced(primitive, primitiveCount, indexType, 0, instanceCount);
+        glContext.glBindVertexArray(0);
+    }
+
+    /**
+     * Set the meshlets of the mesh. The mesh must have been split into them before it was
+     * prepared, so that each meshlet is a range of the indices sent to the GPU
+     * @param meshlets the meshlets, or null to always draw the whole mesh
+     */
+    public void setMeshlets(Meshlets meshlets)
+    {
+        this.meshlets = meshlets;
+        if (meshlets != null)
+        {
+            visible = new boolean[meshlets.getCount()];
+            rangeCounts = GLBuffers.newDirectIntBuffer(meshlets.getCount());
+            rangeOffsets = PointerBuffer.allocateDirect(meshlets.getCount());
+        }
+    }
+
+    public boolean hasMeshlets()
+    {
+        return meshlets != null;
+    }
+
+    public int getMeshletCount()
+    {
+        return (meshlets != null) ? meshlets.getCount() : 0;
+    }
+
+    /**
+     * Unmark all the meshlets
+     */
+    public void clearVisible()
+    {
+        Arrays.fill(visible,false);
+    }
+
+    /**
+     * Mark the meshlets that can be seen with a camera, keeping those marked already
+     * @param projection the projection
+     * @param modelView the transformation from the mesh to the view
+     * @return the number of meshlets that can be seen with this camera
+     */
+    public int markVisible(Matrix4f projection,Matrix4f modelView)
+    {
+        return meshlets.markVisible(projection,modelView,visible);
+    }
+
+    /**
+     * Draw the marked meshlets, assuming that the VAO is already bound by {@link #bind()}
+     * @return the number of meshlets drawn
+     */
+    public int drawVisible()
+    {
+        int ranges = findRanges();
+        if (ranges == 1)
+            glContext.glDrawElements(primitive, rangeCounts.get(0), indexType, rangeOffsets.get(0));
+        else if (ranges > 1)
+            glContext.glMultiDrawElements(primitive, rangeCounts, indexType, rangeOffsets, ranges);
+        return countVisible();
+    }
+
+    /**
+     * Draw the marked meshlets of several instances, one instanced draw call per range. The
+     * per-instance attributes must have been set up with {@link #setInstanceAttributes} first
+     * @param instanceCount the number of instances to draw
+     * @return the number of meshlets drawn for each instance
+     */
+    public int drawVisibleInstanced(int instanceCount)
+    {
+        int ranges = findRanges();
+        bind();
+        for (int r = 0; r < ranges; r++)
+        {
+            glContext.glDrawElementsInstanced(primitive, rangeCounts.get(r), indexType, rangeOffsets.get(r), instanceCount);
+        }
+        glContext.glBindVertexArray(0);
+        return countVisible();
+    }
+
+    /**
+     * Merge the marked meshlets that follow each other into ranges of indices
+     * @return the number of ranges
+     */
+    private int findRanges()
+    {
+        int indexSize = (indexType == GL.GL_UNSIGNED_SHORT) ? 2 : 4;
+        int ranges = 0;
+        for (int m = 0; m < visible.length; m++)
+        {
+            if (!visible[m])
+                continue;
+            if ((m > 0) && visible[m-1])
+            {
+                rangeCounts.put(ranges-1, rangeCounts.get(ranges-1) + meshlets.getIndexCount(m));
+            }
+            else
+            {
+                rangeCounts.put(ranges, meshlets.getIndexCount(m));
+                rangeOffsets.put(ranges, (long)meshlets.getOffset(m) * indexSize);
+                ranges++;
+            }
+        }
+        return ranges;
+    }
+
+    private int countVisible()
+    {
+        int count = 0;
+        for (boolean v : visible)
+        {
+            if (v)
+                count++;
+        }
+        return count;
+    }
+
+    /**
+     * Point the per-instance attributes of this mesh's VAO at the data of a batch of instances,
+     * in the layout of {@link InstanceBatch}. Each attribute advances once per instance
+     * @param instanceBuffer the buffer object holding the instance data
+     * @param offset the offset in bytes of the first instance of the batch in that buffer
+     * @param locations the location of each attribute in {@link InstanceBatch#ATTRIBUTE_NAMES}
+     */
+    public void setInstanceAttributes(int instanceBuffer, long offset, int[] locations)
+    {
+        int stride = InstanceBatch.FLOATS_PER_INSTANCE * GLBuffers.SIZEOF_FLOAT;
+
+        glContext.glBindVertexArray(vao.get(0));
+        glContext.glBindBuffer(GL3.GL_ARRAY_BUFFER, instanceBuffer);
+        for (int i = 0; i < locations.length; i++)
+        {
+            for (int c = 0; c < InstanceBatch.ATTRIBUTE_COLUMNS[i]; c++)
+            {
+                glContext.glVertexAttribPointer(locations[i] + c, 4, GL3.GL_FLOAT, false, stride, offset);
+                glContext.glEnableVertexAttribArray(locations[i] + c);
+                glContext.glVertexAttribDivisor(locations[i] + c, 1);
+                offset += 4 * GLBuffers.SIZEOF_FLOAT;
+            }
+        }
+        glContext.glBindVertexArray(0);
+    }
+
     public void prepare(util.PolygonMesh mesh,Map<String,Integer> shaderVariableMap) throws Exception
+    {
+        prepare(mesh,shaderVariableMap,false);
+    }
+
+    /**
+     * Send a mesh to the GPU
+     * @param mesh the mesh
+     * @param shaderVariableMap the locations of the shader variables
+     * @param pack true to send it in the format of {@link PackedMesh}, if the shader can decode
+     *             it (i.e. it has the uniform packedVertices)
+     * @throws Exception if the context is not set
+     */
+    public void prepare(util.PolygonMesh mesh,Map<String,Integer> shaderVariableMap,boolean pack) throws Exception
     {
         int i, j;
         int a;
@@ -79,6 +310,17 @@ public class GL3MeshRenderer
             throw new Exception("Context of the GL3MeshRenderer is not set");
         GL3 gl = glContext;
 
+        packedLocation = shaderVariableMap.containsKey("packedVertices") ? shaderVariableMap.get("packedVertices") : -1;
+        positionOffsetLocation = shaderVariableMap.containsKey("positionOffset") ? shaderVariableMap.get("positionOffset") : -1;
+        positionScaleLocation = shaderVariableMap.containsKey("positionScale") ? shaderVariableMap.get("positionScale") : -1;
+        if (pack && (packedLocation >= 0))
+        {
+            preparePacked(new PackedMesh(mesh),mesh.getPrimitiveType(),shaderVariableMap);
+            return;
+        }
+        packed = false;
+        indexType = GL.GL_UNSIGNED_INT;
+
         FloatBuffer vertexBuffer = mesh.getVertexPositions();
         FloatBuffer normalBuffer = mesh.getVertexNormals();
         FloatBuffer texcoordsBuffer = mesh.getTexCoords();
@@ -166,6 +408,50 @@ public class GL3MeshRenderer
         gl.glBindVertexArray(0);
     }
 
+    /**
+     * Send a packed mesh to the GPU: one buffer of interleaved vertices and one of indices
+     */
+    private void preparePacked(PackedMesh mesh,int primitiveType,Map<String,Integer> shaderVariableMap)
+    {
+        GL3 gl = glContext;
+        packed = true;
+        primitive = primitiveType;
+        primitiveCount = mesh.getIndexCount();
+        indexType = mesh.getIndexType();
+        positionOffset = mesh.getPositionOffset();
+        positionScale = mesh.getPositionScale();
+
+        gl.glBindVertexArray(vao.get(0));
+
+        gl.glBindBuffer(GL3.GL_ARRAY_BUFFER, vbo.get(Buffer_IDs.PositionArrayBuffer.ordinal()));
+        gl.glBufferData(GL3.GL_ARRAY_BUFFER, mesh.getVertices().capacity(), mesh.getVertices(), GL3.GL_STATIC_DRAW);
+
+        gl.glBindBuffer(GL3.GL_ELEMENT_ARRAY_BUFFER, vbo.get(Buffer_IDs.IndexArrayBuffer.ordinal()));
+        gl.glBufferData(GL3.GL_ELEMENT_ARRAY_BUFFER, (long)mesh.getIndexCount() * mesh.getIndexSize(), mesh.getIndices(), GL3.GL_STATIC_DRAW);
+
+        int stride = PackedMesh.BYTES_PER_VERTEX;
+        if (shaderVariableMap.containsKey("vPosition"))
+        {
+            int location = shaderVariableMap.get("vPosition");
+            gl.glVertexAttribPointer(location, 4, GL3.GL_UNSIGNED_SHORT, true, stride, PackedMesh.POSITION_OFFSET);
+            gl.glEnableVertexAttribArray(location);
+        }
+        if (shaderVariableMap.containsKey("vNormal"))
+        {
+            int location = shaderVariableMap.get("vNormal");
+            gl.glVertexAttribPointer(location, 2, GL3.GL_SHORT, true, stride, PackedMesh.NORMAL_OFFSET);
+            gl.glEnableVertexAttribArray(location);
+        }
+        if (shaderVariableMap.containsKey("vTexCoord"))
+        {
+            int location = shaderVariableMap.get("vTexCoord");
+            gl.glVertexAttribPointer(location, 2, GL3.GL_HALF_FLOAT, false, stride, PackedMesh.TEXCOORD_OFFSET);
+            gl.glEnableVertexAttribArray(location);
+        }
+
+        gl.glBindVertexArray(0);
+    }
+
     public void cleanup()
     {
         if (vao.get(0)!=0)
@@ -6,13 +6,19 @@ import com.jogamp.opengl.GLAutoDrawable;
 import com.jogamp.opengl.util.texture.Texture;
 import com.jogamp.opengl.util.texture.TextureIO;
 import org.joml.Matrix4f;
+import org.joml.Vector3f;
 import sgraph.Nodes.INode;
 import util.Light;
 import util.Material;
 import util.TextureImage;
 
+import com.jogamp.common.nio.Buffers;
+
+import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * This is a scene graph renderer implementation that works specifically with the JOGL library
@@ -59,8 +65,114 @@ public class GL3ScenegraphRenderer implements IScenegraphRenderer {
 
 
     private List<LightLocation> lightLocations;
+
+    /**
+     * The lights of the frame being drawn, gathered into the same array every frame
+     */
+    private LightArray lights;
+
+    /**
+     * Clustered lighting: the lights of a frame are assigned to clusters of the view frustum
+     * with the projection last set, and sent as three texture buffers: the packed lights
+     * ("lightTexels", 6 RGBA texels each), the offset and count of each cluster ("clusters",
+     * RG texels) and the light indices of all clusters ("lightIndices"). They are bound to the
+     * texture units after the one used by the image
+     */
+    private LightClusters clusters;
+    private Matrix4f projection;
+    private IntBuffer clusterBuffers,clusterTextures;
+    private FloatBuffer lightTexels;
+    private IntBuffer clusterTexels,indexTexels;
+    private static final String[] CLUSTER_SAMPLERS = {"lightTexels","clusters","lightIndices"};
+    private static final int[] CLUSTER_FORMATS = {GL3.GL_RGBA32F,GL3.GL_RG32UI,GL3.GL_R32UI};
+    private int[] clusterSamplerLocations;
     int angleOfRotation = 0;
 
+    /**
+     * Scratch buffers and matrices reused by every call to {@link #drawMesh}, so that drawing
+     * a mesh does not allocate any memory
+     */
+    private FloatBuffer fb4,fb16;
+    private Matrix4f normalMatrix;
+
+    /**
+     * The two texture matrices that are ever needed: one that leaves texture coordinates alone
+     * and one that flips the image vertically
+     */
+    private final Matrix4f identityTextureTransform,flipTextureTransform;
+
+    /**
+     * While a scene graph is being drawn, meshes are not drawn as {@link #drawMesh} is called but
+     * added to a render queue. At the end, the queue is sorted by state (texture, mesh, material)
+     * and drawn in that order, so that binds and uploads that would repeat the current state
+     * can be skipped. The ids used in the sort keys are given to meshes and textures as they
+     * are added, and to materials as they are first drawn
+     */
+    private RenderQueue renderQueue;
+    private boolean queueing;
+    private Map<String,Integer> meshIds,textureIds;
+    private List<GL3MeshRenderer> meshRenderersById;
+    private List<String> textureNamesById;
+    private IdentityHashMap<Material,Integer> materialIds;
+
+    /**
+     * The most materials to give ids to. After that the ids are handed out again from the
+     * start, so that materials that are no longer used do not accumulate
+     */
+    private static final int MAX_MATERIAL_IDS = 1<<16;
+
+    /**
+     * Instancing: when the shader has the per-instance attributes of {@link InstanceBatch} and
+     * an "instanced" switch, each run of queued meshes that share a mesh and texture is drawn
+     * with a single instanced draw call instead
+     */
+    private boolean instancing,instancingSupported;
+
+    /**
+     * Whether meshes added from now on are sent to the GPU in the packed format of
+     * {@link PackedMesh}, which is only done if the shader can decode it
+     */
+    private boolean packedVertices;
+
+    /**
+     * Meshlets: meshes with at least {@link #MESHLET_MIN_TRIANGLES} triangles are split into
+     * {@link util.Meshlets} as they are added, and each time one of them is drawn only the
+     * meshlets that can be seen are. The counts go to the statistics of the compiled scene
+     * graph being drawn, if there is one
+     */
+    public static final int MESHLET_MIN_TRIANGLES = 1024;
+    private boolean meshletCulling;
+    private FrameStatistics statistics;
+
+    /**
+     * The shader locations of the per-instance attributes, the buffer object they are read from,
+     * the instances of a frame in queue order and the (reused) buffer used to send them
+     */
+    private int[] instanceLocations;
+    private IntBuffer instanceBuffer;
+    private InstanceBatch instances;
+    private FloatBuffer instanceData;
+
+    /**
+     * Uniform buffers: when the shader reads its per-draw and light data from the uniform blocks
+     * of {@link UniformBlocks}, the data of all queued meshes is packed into one ring buffer and
+     * sent at once, and each draw only attaches its own range of it. The lights of a frame go
+     * into a second ring buffer
+     */
+    private boolean uniformBlocksSupported;
+    private GL3UniformRing drawDataRing,lightDataRing;
+
+    /**
+     * The locations of the uniforms that are set while drawing, looked up once
+     */
+    private int instancedLocation,textureMatrixLocation;
+
+    /**
+     * Scratch storage used while queueing and drawing the queue
+     */
+    private Matrix4f queuedModelview;
+    private Vector3f translation;
+
 
 
     ////////////////////////////////////////////////////////
@@ -79,8 +191,98 @@ public class GL3ScenegraphRenderer implements IScenegraphRenderer {
         shaderLocationsSet = false;
 
         lightLocations = new ArrayList<LightLocation>();
+        lights = new LightArray();
+
+        clusters = new LightClusters();
+        projection = null;
+        clusterBuffers = IntBuffer.allocate(CLUSTER_SAMPLERS.length);
+        clusterTextures = IntBuffer.allocate(CLUSTER_SAMPLERS.length);
+        lightTexels = Buffers.newDirectFloatBuffer(16*LightArray.FLOATS_PER_LIGHT);
+        clusterTexels = Buffers.newDirectIntBuffer(2*LightClusters.DEFAULT_TILES_X*LightClusters.DEFAULT_TILES_Y*LightClusters.DEFAULT_SLICES);
+        indexTexels = Buffers.newDirectIntBuffer(1024);
+        clusterSamplerLocations = new int[CLUSTER_SAMPLERS.length];
+
+        fb4 = FloatBuffer.allocate(4);
+        fb16 = FloatBuffer.allocate(16);
+        normalMatrix = new Matrix4f();
+        identityTextureTransform = new Matrix4f();
+        flipTextureTransform = new Matrix4f().translate(0,1,0).scale(1,-1,1);
+
+        renderQueue = new RenderQueue();
+        queueing = false;
+        meshIds = new TreeMap<String,Integer>();
+        textureIds = new TreeMap<String,Integer>();
+        meshRenderersById = new ArrayList<GL3MeshRenderer>();
+        textureNamesById = new ArrayList<String>();
+        textureNamesById.add(""); //id 0: no texture, i.e. the white texture
+        materialIds = new IdentityHashMap<Material,Integer>();
+
+        uniformBlocksSupported = false;
+        drawDataRing = lightDataRing = null;
+        instancedLocation = textureMatrixLocation = -1;
+
+        instancing = true;
+        instancingSupported = false;
+        packedVertices = true;
+        meshletCulling = true;
+        statistics = null;
+        instanceLocations = new int[InstanceBatch.ATTRIBUTE_NAMES.length];
+        instanceBuffer = IntBuffer.allocate(1);
+        instances = new InstanceBatch();
+        instanceData = Buffers.newDirectFloatBuffer(256*InstanceBatch.FLOATS_PER_INSTANCE);
+
+        queuedModelview = new Matrix4f();
+        translation = new Vector3f();
+    }
 
+    /**
+     * Use a different grid of clusters for lighting, e.g. one that is filled in parallel
+     * @param tilesX the number of tiles across the screen
+     * @param tilesY the number of tiles down the screen
+     * @param slices the number of slices in depth
+     * @param pool the pool used to fill the clusters in parallel, or null
+     */
+    public void setLightClusters(int tilesX,int tilesY,int slices,ForkJoinPool pool)
+    {
+        clusters = new LightClusters(tilesX,tilesY,slices,pool);
+    }
 
+    @Override
+    public void setProjection(Matrix4f projection)
+    {
+        this.projection = (projection != null) ? new Matrix4f(projection) : null;
+    }
+
+    /**
+     * Enable or disable drawing repeated meshes with instanced draw calls. It is enabled by
+     * default, but only used if the shader program supports it
+     * @param instancing true to draw meshes instanced
+     */
+    public void setInstancing(boolean instancing)
+    {
+        this.instancing = instancing;
+    }
+
+    /**
+     * Enable or disable sending meshes to the GPU in the packed format of {@link PackedMesh},
+     * which takes a third of the memory. It is enabled by default, but only used if the shader
+     * program can decode it. It applies to meshes added after it is called
+     * @param packed true to pack the vertices of meshes
+     */
+    public void setPackedVertices(boolean packed)
+    {
+        this.packedVertices = packed;
+    }
+
+    /**
+     * Enable or disable drawing only the meshlets of large meshes that can be seen. It is
+     * enabled by default. Only meshes added while it is enabled are split into meshlets, which
+     * reorders their triangles
+     * @param culling true to cull meshlets
+     */
+    public void setMeshletCulling(boolean culling)
+    {
+        this.meshletCulling = culling;
     }
 
     /**
@@ -117,8 +319,23 @@ public class GL3ScenegraphRenderer implements IScenegraphRenderer {
             throw new Exception("Attempting to add mesh before setting GL context. Call setContext and pass it a GLAutoDrawable first.");
         GL3MeshRenderer mr = new GL3MeshRenderer();
         mr.setGL(glContext);
-        mr.prepare(mesh,shaderLocationsVault);
+        util.Meshlets meshlets = null;
+        if (meshletCulling && (mesh.getPrimitiveSize() == 3) && (mesh.getPrimitiveCount()/3 >= MESHLET_MIN_TRIANGLES))
+        {
+            meshlets = util.Meshlets.build(mesh);
+        }
+        mr.prepare(mesh,shaderLocationsVault,packedVertices);
+        mr.setMeshlets(meshlets);
         meshRenderers.put(name,mr);
+        if (meshIds.containsKey(name))
+        {
+            meshRenderersById.set(meshIds.get(name),mr);
+        }
+        else
+        {
+            meshIds.put(name,meshRenderersById.size());
+            meshRenderersById.add(mr);
+        }
     }
 
     @Override
@@ -128,6 +345,11 @@ public class GL3ScenegraphRenderer implements IScenegraphRenderer {
         if (glContext==null)
             throw new Exception("Attempting to add mesh before setting GL context. Call setContext and pass it a GLAutoDrawable first.");
         textureRenderers.put(name,tex);
+        if (!textureIds.containsKey(name))
+        {
+            textureIds.put(name,textureNamesById.size());
+            textureNamesById.add(name);
+        }
 
         TextureImage textureImage = textureRenderers.get(name);
 
@@ -187,10 +409,252 @@ public class GL3ScenegraphRenderer implements IScenegraphRenderer {
 
 
 
+        queueing = true;
+        root.draw(this,modelView);
+        lights.clear();
+        root.getAllLights(modelView.peek(),lights);
+        drawLight(lights);
+        drawQueue();
+    }
+
+    /**
+     * Begin rendering of the scene graph from the root, using a preallocated modelview stack
+     * @param root
+     * @param modelView
+     */
+    @Override
+    public void draw(INode root, MatrixStack modelView)
+    {
+        queueing = true;
         root.draw(this,modelView);
-        drawLight(root.getAllLights(modelView.peek()));
+        lights.clear();
+        root.getAllLights(modelView.peek(),lights);
+        drawLight(lights);
+        drawQueue();
+    }
 
+    /**
+     * Render a compiled scene graph. The compiled form loops over its leaves and calls
+     * {@link #drawMesh} for each of them
+     * @param scene
+     * @param modelView
+     */
+    @Override
+    public void draw(CompiledScenegraph scene, MatrixStack modelView)
+    {
+        queueing = true;
+        statistics = scene.getFrameStatistics();
+        scene.draw(this,modelView.peek());
+        drawLight(scene.getLights());
+        drawQueue();
+        statistics = null;
+    }
 
+    /**
+     * Get the id of a material, giving it one if it has none yet
+     */
+    private int getMaterialId(Material material)
+    {
+        Integer id = materialIds.get(material);
+        if (id == null)
+        {
+            if (materialIds.size() == MAX_MATERIAL_IDS)
+            {
+                materialIds.clear();
+            }
+            id = materialIds.size();
+            materialIds.put(material,id);
+        }
+        return id;
+    }
+
+    /**
+     * Sort and draw everything queued since drawing started, then empty the queue
+     */
+    private void drawQueue()
+    {
+        queueing = false;
+        if (renderQueue.size() == 0)
+            return;
+
+        GL3 gl = glContext.getGL().getGL3();
+        renderQueue.sort();
+        if (instancing && instancingSupported)
+        {
+            drawQueueInstanced(gl);
+        }
+        else
+        {
+            drawQueueSorted(gl);
+        }
+        renderQueue.clear();
+    }
+
+    /**
+     * Draw the sorted queue one mesh at a time, binding a texture, a mesh or a material only
+     * when it is different from the one drawn just before. With uniform buffers the modelview
+     * and material of every item are sent beforehand, and each draw binds its range instead
+     */
+    private void drawQueueSorted(GL3 gl)
+    {
+        int currentTexture = -1,currentMesh = -1;
+        Material currentMaterial = null;
+        GL3MeshRenderer mr = null;
+        int stride = 0;
+
+        if (uniformBlocksSupported)
+        {
+            stride = UniformBlocks.align(UniformBlocks.DRAW_DATA_SIZE,drawDataRing.getAlignment());
+            ByteBuffer data = drawDataRing.begin(renderQueue.size()*stride);
+            for (int k=0;k<renderQueue.size();k++)
+            {
+                putDrawData(data,k*stride,k);
+            }
+            drawDataRing.upload();
+        }
+
+        for (int k=0;k<renderQueue.size();k++)
+        {
+            if (renderQueue.getTextureId(k) != currentTexture)
+            {
+                currentTexture = renderQueue.getTextureId(k);
+                bindTexture(gl,textureNamesById.get(currentTexture));
+            }
+            if (uniformBlocksSupported)
+            {
+                drawDataRing.bindRange(UniformBlocks.DRAW_DATA_BINDING,k*stride,UniformBlocks.DRAW_DATA_SIZE);
+            }
+            else
+            {
+                if (renderQueue.getMaterial(k) != currentMaterial)
+                {
+                    currentMaterial = renderQueue.getMaterial(k);
+                    setMaterial(gl,currentMaterial);
+                }
+                setModelview(gl,renderQueue.getModelview(k,queuedModelview));
+            }
+            if (renderQueue.getMeshId(k) != currentMesh)
+            {
+                currentMesh = renderQueue.getMeshId(k);
+                mr = meshRenderersById.get(currentMesh);
+                mr.bind();
+            }
+            if (cullsMeshlets(mr))
+            {
+                mr.clearVisible();
+                mr.markVisible(projection,renderQueue.getModelview(k,queuedModelview));
+                countMeshlets(mr,mr.drawVisible(),1);
+            }
+            else
+            {
+                mr.drawBound();
+            }
+        }
+        gl.glBindVertexArray(0);
+    }
+
+    /**
+     * Whether only the meshlets of a mesh that can be seen are to be drawn
+     */
+    private boolean cullsMeshlets(GL3MeshRenderer mr)
+    {
+        return meshletCulling && (projection != null) && mr.hasMeshlets();
+    }
+
+    /**
+     * Add the meshlets drawn and culled for some instances of a mesh to the statistics
+     */
+    private void countMeshlets(GL3MeshRenderer mr,int drawn,int instances)
+    {
+        if (statistics != null)
+        {
+            statistics.addMeshletsDrawn(drawn*instances);
+            statistics.addMeshletsCulled((mr.getMeshletCount()-drawn)*instances);
+        }
+    }
+
+    /**
+     * Pack the modelview, normal matrix and material of the k-th queued item as a DrawData block
+     */
+    private void putDrawData(ByteBuffer dest,int offset,int k)
+    {
+        renderQueue.getModelview(k,queuedModelview);
+        normalMatrix.set(queuedModelview).invert().transpose();
+        UniformBlocks.putDrawData(dest,offset,queuedModelview,normalMatrix,renderQueue.getMaterial(k));
+    }
+
+    /**
+     * Draw the sorted queue with one instanced draw call per run of items that share a mesh and
+     * a texture. The instance data of the whole queue is sent to the GPU at once, and each draw
+     * call reads its part of it
+     */
+    private void drawQueueInstanced(GL3 gl)
+    {
+        instances.clear();
+        for (int k=0;k<renderQueue.size();k++)
+        {
+            renderQueue.getModelview(k,queuedModelview);
+            normalMatrix.set(queuedModelview).invert().transpose();
+            instances.add(queuedModelview,normalMatrix,renderQueue.getMaterial(k));
+        }
+
+        int total = instances.getCount()*InstanceBatch.FLOATS_PER_INSTANCE;
+        if (instanceData.capacity() < total)
+        {
+            instanceData = Buffers.newDirectFloatBuffer(Math.max(total,2*instanceData.capacity()));
+        }
+        instanceData.clear();
+        instanceData.put(instances.getData(),0,total);
+        instanceData.flip();
+        gl.glBindBuffer(GL3.GL_ARRAY_BUFFER,instanceBuffer.get(0));
+        gl.glBufferData(GL3.GL_ARRAY_BUFFER,total*Buffers.SIZEOF_FLOAT,instanceData,GL3.GL_STREAM_DRAW);
+
+        if (uniformBlocksSupported)
+        {
+            //the shader ignores the DrawData block when drawing instanced, but it must still be backed
+            ByteBuffer data = drawDataRing.begin(UniformBlocks.DRAW_DATA_SIZE);
+            putDrawData(data,0,0);
+            drawDataRing.upload();
+            drawDataRing.bindRange(UniformBlocks.DRAW_DATA_BINDING,0,UniformBlocks.DRAW_DATA_SIZE);
+        }
+
+        gl.glUniform1i(instancedLocation,1);
+        int currentTexture = -1;
+        int start = 0;
+        while (start<renderQueue.size())
+        {
+            int texture = renderQueue.getTextureId(start),mesh = renderQueue.getMeshId(start);
+            int end = start+1;
+            while ((end<renderQueue.size()) && (renderQueue.getTextureId(end) == texture)
+                    && (renderQueue.getMeshId(end) == mesh))
+            {
+                end++;
+            }
+
+            if (texture != currentTexture)
+            {
+                currentTexture = texture;
+                bindTexture(gl,textureNamesById.get(texture));
+            }
+            GL3MeshRenderer mr = meshRenderersById.get(mesh);
+            mr.setInstanceAttributes(instanceBuffer.get(0),(long)start*InstanceBatch.FLOATS_PER_INSTANCE*Buffers.SIZEOF_FLOAT,instanceLocations);
+            if (cullsMeshlets(mr))
+            {
+                //every instance draws the meshlets that any of them can see
+                mr.clearVisible();
+                for (int k=start;k<end;k++)
+                {
+                    mr.markVisible(projection,renderQueue.getModelview(k,queuedModelview));
+                }
+                countMeshlets(mr,mr.drawVisibleInstanced(end-start),end-start);
+            }
+            else
+            {
+                mr.drawInstanced(end-start);
+            }
+            start = end;
+        }
+        gl.glUniform1i(instancedLocation,0);
     }
 
     @Override
@@ -198,6 +662,18 @@ public class GL3ScenegraphRenderer implements IScenegraphRenderer {
     {
         for (GL3MeshRenderer s:meshRenderers.values())
             s.dispose();
+        if (instanceBuffer.get(0) != 0)
+        {
+            glContext.getGL().getGL3().glDeleteBuffers(1,instanceBuffer);
+        }
+        if (drawDataRing != null)
+        {
+            GL3 gl = glContext.getGL().getGL3();
+            drawDataRing.dispose();
+            lightDataRing.dispose();
+            gl.glDeleteTextures(CLUSTER_SAMPLERS.length,clusterTextures);
+            gl.glDeleteBuffers(CLUSTER_SAMPLERS.length,clusterBuffers);
+        }
     }
 
     /**
@@ -214,36 +690,72 @@ public class GL3ScenegraphRenderer implements IScenegraphRenderer {
     @Override
     public void drawMesh(String name, Material material, final Matrix4f transformation, String texturename) {
         if (meshRenderers.containsKey(name)) {
+            if (queueing) {
+                int meshId = meshIds.get(name);
+                Integer textureId = (texturename != null) ? textureIds.get(texturename) : null;
+                if (textureId == null) {
+                    textureId = 0;
+                }
+                int materialId = getMaterialId(material);
+                float depth = -transformation.getTranslation(translation).z;
+                renderQueue.add(RenderQueue.makeKey(0, textureId, meshId, materialId, depth),
+                        meshId, textureId, materialId, material, transformation);
+                return;
+            }
+
+            if (uniformBlocksSupported) {
+                //the per-draw data only reaches the shader through the ring buffer, so draw a queue of one
+                queueing = true;
+                drawMesh(name, material, transformation, texturename);
+                drawQueue();
+                return;
+            }
+
             GL3 gl = glContext.getGL().getGL3();
 
-            FloatBuffer fb4 = FloatBuffer.allocate(4);
-            FloatBuffer fb16 = FloatBuffer.allocate(16);
+            setMaterial(gl, material);
+
+            setModelview(gl, transformation);
 
-            int loc = shaderLocationsVault.get("material.ambient");
+            bindTexture(gl, texturename);
 
-            // AMBIENT
-            if (loc < 0)
-                throw new IllegalArgumentException("No shader variable for \" ambient \"\"");
-            gl.glUniform3fv(loc, 1, material.getAmbient().get(fb4));
+            meshRenderers.get(name).draw();
 
+        }
 
-            // DIFFUSE
-            loc = shaderLocationsVault.get("material.diffuse");
-            if (loc < 0)
-                throw new IllegalArgumentException("No shader variable for \" diffuse \"\"");
-            gl.glUniform3fv(loc, 1, material.getDiffuse().get(fb4));
+    }
 
-            // SPECULAR
-            loc = shaderLocationsVault.get("material.specular");
-            if (loc < 0)
-                throw new IllegalArgumentException("No shader variable for \" diffuse \"\"");
-            gl.glUniform3fv(loc, 1, material.getSpecular().get(fb4));
 
-            // SHININESS
-            loc = shaderLocationsVault.get("material.shininess");
-            if (loc < 0)
-                throw new IllegalArgumentException("No shader variable for \" shininess \"\"");
-            gl.glUniform1f(loc, material.getShininess());
+    /**
+     * Send a material to the material uniforms of the shader
+     */
+    private void setMaterial(GL3 gl, Material material)
+    {
+        int loc = shaderLocationsVault.get("material.ambient");
+
+        // AMBIENT
+        if (loc < 0)
+            throw new IllegalArgumentException("No shader variable for \" ambient \"\"");
+        gl.glUniform3fv(loc, 1, material.getAmbient().get(fb4));
+
+
+        // DIFFUSE
+        loc = shaderLocationsVault.get("material.diffuse");
+        if (loc < 0)
+            throw new IllegalArgumentException("No shader variable for \" diffuse \"\"");
+        gl.glUniform3fv(loc, 1, material.getDiffuse().get(fb4));
+
+        // SPECULAR
+        loc = shaderLocationsVault.get("material.specular");
+        if (loc < 0)
+            throw new IllegalArgumentException("No shader variable for \" diffuse \"\"");
+        gl.glUniform3fv(loc, 1, material.getSpecular().get(fb4));
+
+        // SHININESS
+        loc = shaderLocationsVault.get("material.shininess");
+        if (loc < 0)
+            throw new IllegalArgumentException("No shader variable for \" shininess \"\"");
+        gl.glUniform1f(loc, material.getShininess());
 
 //            // ABSORPTION
 //            loc = shaderLocationsVault.get("material.absorption");
@@ -268,108 +780,176 @@ public class GL3ScenegraphRenderer implements IScenegraphRenderer {
 //            if (loc < 0)
 //                throw new IllegalArgumentException("No shader variable for \" refractive \"\"");
 //            gl.glUniform1f(loc, material.getRefractiveIndex());
+    }
 
+    /**
+     * Send a modelview matrix, and the matching normal matrix, to the shader
+     */
+    private void setModelview(GL3 gl, Matrix4f transformation)
+    {
+        // MODEL VIEW
+        int loc = shaderLocationsVault.get("modelview");
+        if (loc < 0)
+            throw new IllegalArgumentException("No shader variable for \" modelview \"");
+        gl.glUniformMatrix4fv(loc, 1, false, transformation.get(fb16));
+
+        loc = shaderLocationsVault.get("normalmatrix");
+        gl.glUniformMatrix4fv(loc, 1, false, normalMatrix.set(transformation).invert().transpose().get(fb16));
+    }
 
+    /**
+     * Bind the texture with the given name, or the "white-texture" if there is no such texture,
+     * and send the texture matrix to use with it (which flips the image vertically if needed)
+     * @param gl the GL context
+     * @param texturename the name of the texture
+     */
+    private void bindTexture(GL3 gl, String texturename)
+    {
+        Matrix4f textureTransform = identityTextureTransform;
 
 
-            // MODEL VIEW
-            loc = shaderLocationsVault.get("modelview");
-            if (loc < 0)
-                throw new IllegalArgumentException("No shader variable for \" modelview \"");
-            gl.glUniformMatrix4fv(loc, 1, false, transformation.get(fb16));
-
-            loc = shaderLocationsVault.get("normalmatrix");
-            gl.glUniformMatrix4fv(loc, 1, false, transformation.invert().transpose().get(fb16));
-
-
+        if(textureRenderers.containsKey(texturename)) {
+            // if textures does not have texture
+            // initialize this texture
 
-            Matrix4f textureTransform = new Matrix4f();
 
+            TextureImage textureImage = textureRenderers.get(texturename);
 
-            if(textureRenderers.containsKey(texturename)) {
-                // if textures does not have texture
-                // initialize this texture
+            Texture texture = textureImage.getTexture();
 
+            if (texture.getMustFlipVertically()) //for flipping the image vertically
+            {
+                textureTransform = flipTextureTransform;
+            }
 
-                TextureImage textureImage = textureRenderers.get(texturename);
+            texture.bind(gl);
 
-                Texture texture = textureImage.getTexture();
 
-                if (texture.getMustFlipVertically()) //for flipping the image vertically
-                {
-                    textureTransform = new Matrix4f().translate(0,1,0).scale(1,-1,1);
-                }
 
-                texture.bind(gl);
+        } else {
+            //TO-DO
+            // pass in white texture
 
 
+            if(textureRenderers.containsKey("white-texture")) {
 
             } else {
-                //TO-DO
-                // pass in white texture
-
-
-                if(textureRenderers.containsKey("white-texture")) {
-
-                } else {
-                    throw new IllegalArgumentException("\"white-texture\" missed.\n" +
-                            "Must pass in a default texture with a name of \"white-texture\"");
-                }
-
-                TextureImage textureImage = textureRenderers.get("white-texture");
-
-                Texture texture = textureImage.getTexture();
+                throw new IllegalArgumentException("\"white-texture\" missed.\n" +
+                        "Must pass in a default texture with a name of \"white-texture\"");
+            }
 
+            TextureImage textureImage = textureRenderers.get("white-texture");
 
-                if (!texture.getMustFlipVertically()) //for flipping the image vertically
-                {
-                    textureTransform = new Matrix4f().translate(0,1,0).scale(1,-1,1);
-                }
+            Texture texture = textureImage.getTexture();
 
-                texture.bind(gl);
 
+            if (!texture.getMustFlipVertically()) //for flipping the image vertically
+            {
+                textureTransform = flipTextureTransform;
             }
 
+            texture.bind(gl);
 
-            loc = shaderLocationsVault.get("texturematrix");
-            gl.glUniformMatrix4fv(loc, 1, false, textureTransform.get(fb16));
+        }
 
+        gl.glUniformMatrix4fv(textureMatrixLocation, 1, false, textureTransform.get(fb16));
+    }
 
 
-            meshRenderers.get(name).draw();
-
+    @Override
+    public void drawLight(List<Light> lol) {
+        lights.clear();
+        for (int i = 0; i < lol.size(); i++) {
+            lights.add(lol.get(i));
         }
-
+        drawLight(lights);
     }
 
-
     @Override
-    public void drawLight(List<Light> lights) {
+    public void drawLight(LightArray lights) {
         GL3 gl = glContext.getGL().getGL3();
 
-        FloatBuffer fb4 = FloatBuffer.allocate(4);
-
-
-        gl.glUniform1i(shaderLocationsVault.get("numLights"), lights.size());
-        for (int i = 0; i < lightLocations.size(); i++) {
+        if (uniformBlocksSupported) {
+            clusters.build(lights, projection);
+            uploadClusters(gl, lights);
 
+            ByteBuffer data = lightDataRing.begin(UniformBlocks.LIGHT_DATA_SIZE);
+            UniformBlocks.putLightData(data, 0, clusters);
+            lightDataRing.upload();
+            lightDataRing.bindRange(UniformBlocks.LIGHT_DATA_BINDING, 0, UniformBlocks.LIGHT_DATA_SIZE);
+            return;
+        }
 
-            gl.glUniform3fv(lightLocations.get(i).ambient,1,lights.get(i).getAmbient().get(fb4));
-            gl.glUniform3fv(lightLocations.get(i).diffuse,1,lights.get(i).getDiffuse().get(fb4));
-            gl.glUniform3fv(lightLocations.get(i).specular,1,lights.get(i).getSpecular().get(fb4));
-            gl.glUniform4fv(lightLocations.get(i).position,1,lights.get(i).getPosition().get(fb4));
-            gl.glUniform4fv(lightLocations.get(i).spotDirection,1,lights.get(i).getSpotDirection().get(fb4));
-            gl.glUniform1f(lightLocations.get(i).spotCutoff, lights.get(i).getSpotCutoff());
+        float[] data = lights.getData();
+        int n = Math.min(lights.size(), lightLocations.size());
+        gl.glUniform1i(shaderLocationsVault.get("numLights"), n);
+        for (int i = 0; i < n; i++) {
+            int o = i * LightArray.FLOATS_PER_LIGHT;
+            LightLocation ll = lightLocations.get(i);
+
+            gl.glUniform3fv(ll.ambient, 1, data, o + LightArray.AMBIENT);
+            gl.glUniform3fv(ll.diffuse, 1, data, o + LightArray.DIFFUSE);
+            gl.glUniform3fv(ll.specular, 1, data, o + LightArray.SPECULAR);
+            gl.glUniform4fv(ll.position, 1, data, o + LightArray.POSITION);
+            gl.glUniform4fv(ll.spotDirection, 1, data, o + LightArray.SPOT_DIRECTION);
+            gl.glUniform1f(ll.spotCutoff, data[o + LightArray.SPOT_CUTOFF]);
+        }
+    }
 
 
-//            System.out.println("The position of the light " + i + ": " + lights.get(i).getPosition());
 
+    /**
+     * Send the packed lights, the clusters and the light indices to their texture buffers, and
+     * bind these to the texture units after the image's
+     */
+    private void uploadClusters(GL3 gl, LightArray lights)
+    {
+        //each buffer gets at least one texel, so that none of them is ever empty
+        int lightFloats = Math.max(1, lights.size()) * LightArray.FLOATS_PER_LIGHT;
+        if (lightTexels.capacity() < lightFloats) {
+            lightTexels = Buffers.newDirectFloatBuffer(Math.max(lightFloats, 2 * lightTexels.capacity()));
         }
+        lightTexels.clear();
+        lightTexels.put(lights.getData(), 0, lights.size() * LightArray.FLOATS_PER_LIGHT);
+        lightTexels.position(lightFloats);
+        lightTexels.flip();
+
+        int clusterInts = 2 * clusters.getClusterCount();
+        if (clusterTexels.capacity() < clusterInts) {
+            clusterTexels = Buffers.newDirectIntBuffer(clusterInts);
+        }
+        clusterTexels.clear();
+        clusterTexels.put(clusters.getClusterData(), 0, clusterInts);
+        clusterTexels.flip();
 
-
+        int indexInts = Math.max(1, clusters.getIndexCount());
+        if (indexTexels.capacity() < indexInts) {
+            indexTexels = Buffers.newDirectIntBuffer(Math.max(indexInts, 2 * indexTexels.capacity()));
+        }
+        indexTexels.clear();
+        indexTexels.put(clusters.getIndices(), 0, clusters.getIndexCount());
+        indexTexels.position(indexInts);
+        indexTexels.flip();
+
+        uploadTexels(gl, 0, lightTexels);
+        uploadTexels(gl, 1, clusterTexels);
+        uploadTexels(gl, 2, indexTexels);
+        gl.glBindBuffer(GL3.GL_TEXTURE_BUFFER, 0);
+        gl.glActiveTexture(GL.GL_TEXTURE0);
     }
 
+    /**
+     * Send 4-byte texels to the i-th texture buffer and bind it to texture unit i+1
+     */
+    private void uploadTexels(GL3 gl, int i, java.nio.Buffer texels)
+    {
+        gl.glBindBuffer(GL3.GL_TEXTURE_BUFFER, clusterBuffers.get(i));
+        gl.glBufferData(GL3.GL_TEXTURE_BUFFER, (long) texels.limit() * 4, texels, GL3.GL_STREAM_DRAW);
 
+        gl.glActiveTexture(GL.GL_TEXTURE1 + i);
+        gl.glBindTexture(GL3.GL_TEXTURE_BUFFER, clusterTextures.get(i));
+        gl.glUniform1i(clusterSamplerLocations[i], 1 + i);
+    }
 
     /**
      * Queries the shader program for all variables and locations, and adds them to itself
@@ -384,6 +964,57 @@ public class GL3ScenegraphRenderer implements IScenegraphRenderer {
         GL3 gl = glContext.getGL().getGL3();
 
         shaderLocationsVault = shaderProgram.getAllShaderVariables(gl);
+        instancedLocation = findUniform("instanced");
+        textureMatrixLocation = findUniform("texturematrix");
+
+        //the uniform buffers are used if the shader declares both blocks
+        int drawDataIndex = gl.glGetUniformBlockIndex(shaderProgram.getProgram(),UniformBlocks.DRAW_DATA);
+        int lightDataIndex = gl.glGetUniformBlockIndex(shaderProgram.getProgram(),UniformBlocks.LIGHT_DATA);
+        uniformBlocksSupported = (drawDataIndex != GL3.GL_INVALID_INDEX) && (lightDataIndex != GL3.GL_INVALID_INDEX);
+        for (int i=0;i<CLUSTER_SAMPLERS.length;i++)
+        {
+            clusterSamplerLocations[i] = findUniform(CLUSTER_SAMPLERS[i]);
+        }
+        if (uniformBlocksSupported)
+        {
+            gl.glUniformBlockBinding(shaderProgram.getProgram(),drawDataIndex,UniformBlocks.DRAW_DATA_BINDING);
+            gl.glUniformBlockBinding(shaderProgram.getProgram(),lightDataIndex,UniformBlocks.LIGHT_DATA_BINDING);
+            if (drawDataRing == null)
+            {
+                drawDataRing = new GL3UniformRing(gl,256*UniformBlocks.DRAW_DATA_SIZE);
+                lightDataRing = new GL3UniformRing(gl,UniformBlocks.LIGHT_DATA_SIZE);
+
+                gl.glGenBuffers(CLUSTER_SAMPLERS.length,clusterBuffers);
+                gl.glGenTextures(CLUSTER_SAMPLERS.length,clusterTextures);
+                for (int i=0;i<CLUSTER_SAMPLERS.length;i++)
+                {
+                    gl.glBindBuffer(GL3.GL_TEXTURE_BUFFER,clusterBuffers.get(i));
+                    gl.glBindTexture(GL3.GL_TEXTURE_BUFFER,clusterTextures.get(i));
+                    gl.glTexBuffer(GL3.GL_TEXTURE_BUFFER,CLUSTER_FORMATS[i],clusterBuffers.get(i));
+                }
+                gl.glBindTexture(GL3.GL_TEXTURE_BUFFER,0);
+                gl.glBindBuffer(GL3.GL_TEXTURE_BUFFER,0);
+            }
+        }
+
+        //instancing needs all the per-instance attributes and the switch between them and the uniforms
+        instancingSupported = shaderLocationsVault.containsKey("instanced");
+        for (int i=0;i<InstanceBatch.ATTRIBUTE_NAMES.length;i++)
+        {
+            Integer location = shaderLocationsVault.get(InstanceBatch.ATTRIBUTE_NAMES[i]);
+            if ((location == null) || (location < 0))
+            {
+                instancingSupported = false;
+            }
+            else
+            {
+                instanceLocations[i] = location;
+            }
+        }
+        if (instancingSupported && (instanceBuffer.get(0) == 0))
+        {
+            gl.glGenBuffers(1,instanceBuffer);
+        }
 
         int a = gl.glGetError();
         shaderLocationsSet = true;
@@ -392,6 +1023,15 @@ public class GL3ScenegraphRenderer implements IScenegraphRenderer {
     }
 
 
+    /**
+     * The location of a shader variable, or -1 (which GL ignores) if the shader has no such variable
+     */
+    private int findUniform(String name)
+    {
+        Integer location = shaderLocationsVault.get(name);
+        return (location != null) ? location : -1;
+    }
+
     @Override
     public int getShaderLocation(String name)
     {
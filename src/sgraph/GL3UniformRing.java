@@ -0,0 +1,113 @@
+package sgraph;
+
+import com.jogamp.common.nio.Buffers;
+import com.jogamp.opengl.GL3;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * A uniform buffer object split into {@link #SEGMENTS} equal segments that are used in turn,
+ * one per upload. The data of an upload is written into a staging buffer on the CPU and sent to
+ * its segment with a single call. Because the segment written next is never the one the
+ * previous two uploads went to, the GPU can still be reading those while the CPU fills it.
+ * Ranges of the current segment are then attached to uniform block binding points by offset.
+ *
+ * All offsets given to {@link #bindRange} must be multiples of {@link #getAlignment()}.
+ */
+public class GL3UniformRing
+{
+    public static final int SEGMENTS = 3;
+
+    private GL3 gl;
+    private IntBuffer buffer;
+    private int alignment;
+    private int segmentSize;
+    private int segment;
+    private ByteBuffer staging;
+
+    /**
+     * Create the buffer object
+     * @param gl the GL context
+     * @param initialSegmentSize the size in bytes of each segment to start with. Segments grow
+     *                           when an upload does not fit
+     */
+    public GL3UniformRing(GL3 gl,int initialSegmentSize)
+    {
+        this.gl = gl;
+        int[] value = new int[1];
+        gl.glGetIntegerv(GL3.GL_UNIFORM_BUFFER_OFFSET_ALIGNMENT,value,0);
+        alignment = Math.max(1,value[0]);
+
+        buffer = IntBuffer.allocate(1);
+        gl.glGenBuffers(1,buffer);
+        segment = 0;
+        allocate(UniformBlocks.align(Math.max(1,initialSegmentSize),alignment));
+    }
+
+    private void allocate(int size)
+    {
+        segmentSize = size;
+        staging = Buffers.newDirectByteBuffer(segmentSize);
+        gl.glBindBuffer(GL3.GL_UNIFORM_BUFFER,buffer.get(0));
+        gl.glBufferData(GL3.GL_UNIFORM_BUFFER,(long)SEGMENTS*segmentSize,null,GL3.GL_DYNAMIC_DRAW);
+        gl.glBindBuffer(GL3.GL_UNIFORM_BUFFER,0);
+    }
+
+    /**
+     * The alignment that offsets within a segment must have
+     */
+    public int getAlignment()
+    {
+        return alignment;
+    }
+
+    /**
+     * Move on to the next segment and get the staging buffer to fill it with
+     * @param size the number of bytes that will be uploaded
+     * @return the staging buffer, in native byte order, with its limit set to size. It is meant
+     * to be written with absolute puts
+     */
+    public ByteBuffer begin(int size)
+    {
+        if (size > segmentSize)
+        {
+            allocate(UniformBlocks.align(Math.max(size,2*segmentSize),alignment));
+        }
+        segment = (segment+1)%SEGMENTS;
+        staging.clear();
+        staging.limit(size);
+        return staging;
+    }
+
+    /**
+     * Send the staging buffer to the current segment
+     */
+    public void upload()
+    {
+        staging.position(0);
+        gl.glBindBuffer(GL3.GL_UNIFORM_BUFFER,buffer.get(0));
+        gl.glBufferSubData(GL3.GL_UNIFORM_BUFFER,(long)segment*segmentSize,staging.limit(),staging);
+        gl.glBindBuffer(GL3.GL_UNIFORM_BUFFER,0);
+    }
+
+    /**
+     * Attach part of the current segment to a uniform block binding point
+     * @param binding the binding point
+     * @param offset the offset of the part in the segment, a multiple of {@link #getAlignment()}
+     * @param size the size of the part in bytes
+     */
+    public void bindRange(int binding,int offset,int size)
+    {
+        gl.glBindBufferRange(GL3.GL_UNIFORM_BUFFER,binding,buffer.get(0),(long)segment*segmentSize + offset,size);
+    }
+
+    public void dispose()
+    {
+        if (buffer.get(0) != 0)
+        {
+            gl.glDeleteBuffers(1,buffer);
+            buffer.put(0,0);
+        }
+    }
+}
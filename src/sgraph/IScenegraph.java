@@ -3,8 +3,10 @@ package sgraph;
 import org.joml.Matrix4f;
 import sgraph.Nodes.INode;
 
+import java.util.List;
 import java.util.Map;
 import java.util.Stack;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * This interface captures all the operations that a scene graph should offer.
@@ -18,7 +20,9 @@ import java.util.Stack;
  * Conversely the scene graph also stores references to all the nodes keyed by their name. This
  * way the scene graph can directly refer to any of its nodes by name instead of traversing
  * the tree every time to find it. This is useful when nodes must be identified and animated
- * in specific ways.
+ * in specific ways. A name can be resolved once into an integer handle (see
+ * {@link NodeRegistry}), after which the node can be reached without any search at all; this is
+ * how nodes that are animated every frame should be referred to.
  * @author Amit Shesh
  */
 public interface IScenegraph
@@ -45,6 +49,61 @@ public interface IScenegraph
      */
     void draw(Stack<Matrix4f> modelView);
 
+    /**
+     * Draw this scene graph, using the preallocated stack of modelview matrices provided. This
+     * is the allocation-free counterpart of {@link #draw(Stack)}, meant to be called every frame.
+     * The scene graph will use this stack as it navigates its tree.
+     * @param modelView
+     */
+    void draw(MatrixStack modelView);
+
+    /**
+     * Compile the tree of this scene graph into a flat, array-based form
+     * (see {@link CompiledScenegraph}). Once compiled, {@link #draw(MatrixStack)} draws the
+     * compiled form. The tree can still be edited: changes to transforms and materials are
+     * written through, and structural changes cause the scene graph to be compiled again before
+     * it is next drawn
+     */
+    void compile();
+
+    /**
+     * Update the world transforms of the compiled form on the given fork/join pool, splitting
+     * independent subtrees into parallel tasks. Subtrees with fewer nodes than the threshold
+     * (and so whole scenes smaller than it) are updated sequentially. Animation clips are
+     * evaluated on the same pool
+     * @param pool the pool to run on, or null to always update sequentially
+     * @param threshold the smallest number of nodes in a subtree worth splitting
+     */
+    void setParallelTransformUpdate(ForkJoinPool pool,int threshold);
+
+    /**
+     * Set the projection that is in use when drawing. The compiled form uses it together with
+     * the camera transformation to skip subtrees whose bounding box is outside the view frustum
+     * @param projection the projection matrix, or null to disable culling
+     */
+    void setProjection(Matrix4f projection);
+
+    /**
+     * Get the projection set by {@link #setProjection}
+     * @return the projection matrix, or null if none has been set
+     */
+    Matrix4f getProjection();
+
+    /**
+     * Set the buffer used to rasterize occluders (leaves marked with occluder="true") on the
+     * CPU, and skip the parts of the compiled form that are hidden behind them. This needs a
+     * projection to be set
+     * @param occlusion the occlusion buffer, or null to disable occlusion culling
+     */
+    void setOcclusionBuffer(OcclusionBuffer occlusion);
+
+    /**
+     * Get the counts (meshes drawn, meshes culled etc.) of the last frame drawn from the
+     * compiled form. The same object is updated every frame
+     * @return the statistics of the last frame
+     */
+    FrameStatistics getFrameStatistics();
+
     /**
      * Add a polygon mesh that will be used by one or more leaves in this scene graph
      * @param name a unique name by which this mesh may be referred to in future
@@ -60,11 +119,38 @@ public interface IScenegraph
     void addTextureImage(String name, util.TextureImage textureImage);
     /**
      * Specific scene graph implementations should put code that animates specific nodes in the
-     * scene graph, based on a time provided by the caller
-     * @param time provides a simple time reference for animation
+     * scene graph, based on a time provided by the caller. This also plays the animation clips
+     * and procedural animations of this scene graph
+     * @param time provides a simple time reference for animation, which wraps around to 0 at
+     *             {@link Animator#TIME_PERIOD}
      */
     void animate(float time);
 
+    /**
+     * Add a keyframe animation clip, which {@link #animate(float)} then plays. No two clips may
+     * animate the same node
+     * @param clip the clip
+     */
+    void addAnimation(AnimationClip clip);
+
+    /**
+     * Get the animation clips that have been added to this scene graph
+     * @return the clips
+     */
+    List<AnimationClip> getAnimations();
+
+    /**
+     * Add a procedural animation, which {@link #animate(float)} then plays after the clips
+     * @param animation the procedural animation
+     */
+    void addProceduralAnimation(ProceduralAnimation animation);
+
+    /**
+     * Get the procedural animations that have been added to this scene graph
+     * @return the procedural animations
+     */
+    List<ProceduralAnimation> getProceduralAnimations();
+
     /**
      * Adds a node to itself. This should be stored in a suitable manner by an implementation,
      * so that it is possible to look up a specific node by name
@@ -73,6 +159,90 @@ public interface IScenegraph
      */
     void addNode(String name,INode node);
 
+    /**
+     * Look up the handle of a node by name. This is meant to be done once, e.g. after loading,
+     * and the handle used from then on
+     * @param name the name of the node
+     * @return the handle of the node, or {@link NodeRegistry#NO_HANDLE} if there is no such node
+     */
+    int getNodeHandle(String name);
+
+    /**
+     * Get a node by its handle
+     * @param handle the handle returned by {@link #getNodeHandle(String)}
+     * @return the node, or null if the handle is stale (the name was given to another node
+     * since) or invalid
+     */
+    INode getNode(int handle);
+
+    /**
+     * Get a node by name. This is a wrapper around {@link #getNodeHandle(String)} and
+     * {@link #getNode(int)}
+     * @param name the name of the node
+     * @return the node, or null if there is no such node
+     */
+    INode getNode(String name);
+
+    /**
+     * Set the animation transform of a node by its handle
+     * @param handle the handle of the node
+     * @param transform the animation transform, which is copied
+     * @throws IllegalArgumentException if the handle is stale or invalid, or if the node does
+     * not have an animation transform
+     */
+    void setAnimationTransform(int handle,Matrix4f transform) throws IllegalArgumentException;
+
+    /**
+     * Get an empty batch to record changes to the transforms of nodes in, to be made together
+     * by {@link #commit(TransformBatch)}. The batch belongs to the scene graph and is reused, so
+     * only one should be recorded at a time
+     * @return the batch
+     */
+    TransformBatch beginBatch();
+
+    /**
+     * Make all the changes recorded in a batch. What depends on the changed transforms (cached
+     * world transforms, the compiled scene graph and its bounds) is brought up to date once for
+     * the whole batch, rather than once per change. The batch is empty afterwards
+     * @param batch the changes
+     * @throws IllegalArgumentException if a handle is stale or invalid, or a node does not have
+     * transforms. None of the changes are made then, and the batch is left as it was
+     */
+    void commit(TransformBatch batch) throws IllegalArgumentException;
+
+    /**
+     * Make the current state of the scene the next frame to draw. The compiled form (compiled
+     * now if need be) brings its world transforms up to date and copies them, with its bounds
+     * and materials, into a snapshot. From then on {@link #draw(MatrixStack)} draws the latest
+     * published snapshot and reads nothing else that animating writes to, so the scene can be
+     * animated and published on one thread while it is drawn on another. Every frame must then
+     * be published to be drawn
+     * @param time the simulation time of this state (see {@link #setDrawTime(double)})
+     */
+    void publish(double time);
+
+    /**
+     * Set the simulation time to draw published frames at, from the thread that draws. The
+     * world transforms drawn are interpolated between the two latest published frames that
+     * have been drawn, by the times they were published with, so that a simulation that runs
+     * in fixed steps (see {@link FixedTimestep}) moves smoothly however fast frames are drawn
+     * @param time the time, or NaN (the default) to draw the latest published frame as it is
+     */
+    void setDrawTime(double time);
+
+    /**
+     * Get the world transform of a node as it is drawn. Once frames are published this is the
+     * transform in the latest published frame (interpolated to the draw time), and it must be
+     * called from the thread that draws; otherwise it is the current world transform of the
+     * node
+     * @param handle the handle of the node
+     * @param dest the matrix to store the transform in
+     * @return dest
+     * @throws IllegalArgumentException if the handle is stale or invalid, or its node is not
+     * part of the published frame
+     */
+    Matrix4f getWorldTransform(int handle,Matrix4f dest) throws IllegalArgumentException;
+
     /**
      * Get the root of this scene graph
      * @return the root of this scene graph
@@ -76,7 +76,26 @@ public interface IScenegraphRenderer
     void draw(INode root, Stack<Matrix4f> modelView);
 
     /**
-     * Draw a specific mesh. This is called from a leaf node of the associated scene graph
+     * Draw the scene graph rooted at supplied node using the supplied preallocated modelview
+     * stack. Implementations should not allocate memory per node or per mesh here, as this is
+     * called every frame
+     * @param root
+     * @param modelView
+     */
+    void draw(INode root, MatrixStack modelView);
+
+    /**
+     * Draw a compiled scene graph using the supplied preallocated modelview stack, whose top
+     * is the camera transformation
+     * @param scene
+     * @param modelView
+     */
+    void draw(CompiledScenegraph scene, MatrixStack modelView);
+
+    /**
+     * Draw a specific mesh. This is called from a leaf node of the associated scene graph.
+     * While one of the draw methods above is running, implementations may defer the actual
+     * drawing until it ends, e.g. to draw all instances of the same mesh together
      * @param name
      * @param material
      * @param transformation
@@ -90,5 +109,18 @@ public interface IScenegraphRenderer
      */
     void drawLight(List<Light> lol);
 
+    /**
+     * Send the lights of a frame, already packed in view coordinates
+     * @param lights the lights
+     */
+    void drawLight(LightArray lights);
+
+    /**
+     * Set the projection in use, which the renderer may use to sort lights into regions of the
+     * view frustum
+     * @param projection the projection matrix, or null if it is not known
+     */
+    void setProjection(Matrix4f projection);
+
     void dispose();
 }
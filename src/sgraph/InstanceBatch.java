@@ -0,0 +1,101 @@
+package sgraph;
+
+import org.joml.Matrix4f;
+import org.joml.Vector4f;
+import util.Material;
+
+import java.util.Arrays;
+
+/**
+ * Instances to be drawn with instanced draw calls. Each instance has its own modelview matrix,
+ * normal matrix and material, which are packed one after the other in a float array in the
+ * layout expected by the per-instance attributes of the shaders:
+ * <ul>
+ * <li>iModelview: 16 floats, column-major</li>
+ * <li>iNormalMatrix: 16 floats, column-major</li>
+ * <li>iAmbient: ambient color, 4 floats</li>
+ * <li>iDiffuse: diffuse color, 4 floats</li>
+ * <li>iSpecular: specular color in xyz and shininess in w, 4 floats</li>
+ * </ul>
+ * The array is kept from frame to frame, so once it is big enough collecting instances does not
+ * allocate any memory.
+ */
+public class InstanceBatch
+{
+    /**
+     * The names of the per-instance attributes in the shaders, in the order they are packed
+     */
+    public static final String[] ATTRIBUTE_NAMES = {"iModelview","iNormalMatrix","iAmbient","iDiffuse","iSpecular"};
+
+    /**
+     * The number of vec4 columns (and so of consecutive attribute locations) of each attribute
+     */
+    public static final int[] ATTRIBUTE_COLUMNS = {4,4,1,1,1};
+
+    /**
+     * The number of floats per instance
+     */
+    public static final int FLOATS_PER_INSTANCE = 44;
+
+    protected float[] data;
+    protected int count;
+
+    public InstanceBatch()
+    {
+        data = new float[16*FLOATS_PER_INSTANCE];
+        count = 0;
+    }
+
+    /**
+     * Append an instance
+     * @param modelview the modelview matrix of the instance
+     * @param normalMatrix the matrix to transform its normals with
+     * @param material its material
+     */
+    public void add(Matrix4f modelview,Matrix4f normalMatrix,Material material)
+    {
+        if ((count+1)*FLOATS_PER_INSTANCE > data.length)
+        {
+            data = Arrays.copyOf(data,2*data.length);
+        }
+        int o = count*FLOATS_PER_INSTANCE;
+        modelview.get(data,o);
+        normalMatrix.get(data,o+16);
+        put(material.getAmbient(),data,o+32);
+        put(material.getDiffuse(),data,o+36);
+        put(material.getSpecular(),data,o+40);
+        data[o+43] = material.getShininess();
+        count++;
+    }
+
+    private static void put(Vector4f v,float[] dest,int offset)
+    {
+        dest[offset] = v.x;
+        dest[offset+1] = v.y;
+        dest[offset+2] = v.z;
+        dest[offset+3] = v.w;
+    }
+
+    /**
+     * Forget all instances, keeping the storage for the next frame
+     */
+    public void clear()
+    {
+        count = 0;
+    }
+
+    public int getCount()
+    {
+        return count;
+    }
+
+    /**
+     * Get the packed instance data. Only the first {@link #getCount()} times
+     * {@link #FLOATS_PER_INSTANCE} floats are meaningful
+     * @return the packed instance data
+     */
+    public float[] getData()
+    {
+        return data;
+    }
+}
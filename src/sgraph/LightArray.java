@@ -0,0 +1,189 @@
+package sgraph;
+
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+import org.joml.Vector4f;
+import util.Light;
+
+import java.util.Arrays;
+
+/**
+ * The lights of a frame, in view coordinates, packed one after the other in a float array.
+ * Each light takes {@link #FLOATS_PER_LIGHT} floats, i.e. 6 vec4s, so that the array can be sent
+ * to the GPU as is and read back 4 floats at a time:
+ * <ul>
+ * <li>ambient: 3 floats at {@link #AMBIENT}</li>
+ * <li>diffuse: 3 floats at {@link #DIFFUSE}</li>
+ * <li>specular: 3 floats at {@link #SPECULAR}</li>
+ * <li>position: 4 floats at {@link #POSITION}, w is 0 for a directional light</li>
+ * <li>spot direction: 4 floats at {@link #SPOT_DIRECTION}</li>
+ * <li>cosine of the spot cutoff angle: 1 float at {@link #SPOT_CUTOFF}</li>
+ * <li>range, in view coordinates: 1 float at {@link #RANGE}, 0 if the light reaches
+ * everywhere</li>
+ * </ul>
+ * The array is kept from frame to frame, so once it is big enough gathering lights does not
+ * allocate any memory.
+ */
+public class LightArray
+{
+    public static final int FLOATS_PER_LIGHT = 24;
+    public static final int AMBIENT = 0;
+    public static final int DIFFUSE = 4;
+    public static final int SPECULAR = 8;
+    public static final int POSITION = 12;
+    public static final int SPOT_DIRECTION = 16;
+    public static final int SPOT_CUTOFF = 20;
+    public static final int RANGE = 21;
+
+    protected float[] data;
+    protected int count;
+
+    /**
+     * Scratch storage, so that adding a light does not allocate
+     */
+    private final Matrix4f toView;
+    private final Vector3f color;
+    private final Vector4f vector;
+
+    public LightArray()
+    {
+        data = new float[16*FLOATS_PER_LIGHT];
+        count = 0;
+        toView = new Matrix4f();
+        color = new Vector3f();
+        vector = new Vector4f();
+    }
+
+    /**
+     * Forget all lights, keeping the storage for the next frame
+     */
+    public void clear()
+    {
+        count = 0;
+    }
+
+    /**
+     * Append a light as it is, i.e. already in view coordinates
+     * @param light the light
+     */
+    public void add(Light light)
+    {
+        add(light,toView.identity());
+    }
+
+    /**
+     * Append a light that is attached to a node
+     * @param light the light, in the coordinate system of the node
+     * @param objectToWorld the transformation from the node to the world
+     * @param worldToView the camera transformation
+     */
+    public void add(Light light,Matrix4f objectToWorld,Matrix4f worldToView)
+    {
+        add(light,toView.set(worldToView).mul(objectToWorld));
+    }
+
+    /**
+     * Append a light transformed to view coordinates. A positional light has its position and
+     * spot direction transformed, a directional light only its direction
+     */
+    private void add(Light light,Matrix4f transform)
+    {
+        if ((count+1)*FLOATS_PER_LIGHT > data.length)
+        {
+            data = Arrays.copyOf(data,2*data.length);
+        }
+        int o = count*FLOATS_PER_LIGHT;
+
+        put(light.getAmbient(color),data,o+AMBIENT);
+        put(light.getDiffuse(color),data,o+DIFFUSE);
+        put(light.getSpecular(color),data,o+SPECULAR);
+
+        light.getPosition(vector);
+        boolean positional = (vector.w == 1);
+        if (positional || (vector.w == 0))
+        {
+            transform.transform(vector);
+        }
+        put(vector,data,o+POSITION);
+
+        light.getSpotDirection(vector);
+        if (positional)
+        {
+            transform.transform(vector);
+        }
+        put(vector,data,o+SPOT_DIRECTION);
+
+        data[o+SPOT_CUTOFF] = light.getSpotCutoff();
+
+        //the range grows with the largest scale of the transformation
+        float scale = 0;
+        for (int c=0;c<3;c++)
+        {
+            transform.transform(vector.set(c == 0 ? 1 : 0,c == 1 ? 1 : 0,c == 2 ? 1 : 0,0));
+            scale = Math.max(scale,vector.x*vector.x + vector.y*vector.y + vector.z*vector.z);
+        }
+        data[o+RANGE] = light.getRange()*(float)Math.sqrt(scale);
+        count++;
+    }
+
+    private static void put(Vector3f v,float[] dest,int offset)
+    {
+        dest[offset] = v.x;
+        dest[offset+1] = v.y;
+        dest[offset+2] = v.z;
+    }
+
+    private static void put(Vector4f v,float[] dest,int offset)
+    {
+        dest[offset] = v.x;
+        dest[offset+1] = v.y;
+        dest[offset+2] = v.z;
+        dest[offset+3] = v.w;
+    }
+
+    /**
+     * Make a new light with the properties of the i-th light of this array
+     * @param i the index of the light
+     * @return a new light
+     */
+    public Light get(int i)
+    {
+        int o = i*FLOATS_PER_LIGHT;
+        Light light = new Light();
+        light.setAmbient(data[o+AMBIENT],data[o+AMBIENT+1],data[o+AMBIENT+2]);
+        light.setDiffuse(data[o+DIFFUSE],data[o+DIFFUSE+1],data[o+DIFFUSE+2]);
+        light.setSpecular(data[o+SPECULAR],data[o+SPECULAR+1],data[o+SPECULAR+2]);
+        light.setPosition(new Vector4f(data[o+POSITION],data[o+POSITION+1],data[o+POSITION+2],data[o+POSITION+3]));
+        light.setSpotDirection(new Vector4f(data[o+SPOT_DIRECTION],data[o+SPOT_DIRECTION+1],data[o+SPOT_DIRECTION+2],data[o+SPOT_DIRECTION+3]));
+        light.setSpotCutoff(data[o+SPOT_CUTOFF]);
+        light.setRange(data[o+RANGE]);
+        return light;
+    }
+
+    public int size()
+    {
+        return count;
+    }
+
+    /**
+     * Whether the i-th light has a finite range and a position, so that it only lights the
+     * inside of a sphere
+     * @param i the index of the light
+     * @return true if the light only reaches a bounded region
+     */
+    public boolean isBounded(int i)
+    {
+        int o = i*FLOATS_PER_LIGHT;
+        return (data[o+RANGE] > 0) && (data[o+POSITION+3] != 0);
+    }
+
+    /**
+     * Get the packed lights. Only the first {@link #size()} times {@link #FLOATS_PER_LIGHT}
+     * floats are meaningful
+     * @return the packed lights
+     */
+    public float[] getData()
+    {
+        return data;
+    }
+}
@@ -0,0 +1,377 @@
+package sgraph;
+
+import org.joml.Matrix4f;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Assigns lights to clusters of the view frustum, for clustered forward shading. The frustum is
+ * split into a grid of tiles across the screen and slices in depth, the slices growing
+ * exponentially with distance so that clusters stay roughly cube-shaped. Each light with a
+ * position and a finite range is added to every cluster that the bounding box of its sphere of
+ * influence overlaps; the others (directional lights, and lights that reach everywhere) are
+ * global and apply to every fragment. A fragment then only shades with the global lights and
+ * the lights of its own cluster.
+ *
+ * The result is a list of light indices and, for each cluster, the offset and number of its
+ * entries in that list. The global lights come first in the list. Slices are filled
+ * independently (in parallel if a fork/join pool is given), each writing only to its own
+ * clusters. If there is no projection, or it is not a perspective projection, every light is
+ * global and the grid has a single, empty cluster.
+ */
+public class LightClusters
+{
+    public static final int DEFAULT_TILES_X = 16;
+    public static final int DEFAULT_TILES_Y = 9;
+    public static final int DEFAULT_SLICES = 24;
+
+    /**
+     * The fewest lights worth filling the slices in parallel for
+     */
+    public static final int PARALLEL_THRESHOLD = 256;
+
+    private final int tilesX,tilesY,slices;
+
+    /**
+     * The size of the grid used by the last build: either the full grid or 1x1x1
+     */
+    private int gridX,gridY,gridZ;
+
+    /**
+     * The slice of a fragment at view depth d is log(d)*depthScale + depthBias
+     */
+    private float depthScale,depthBias;
+
+    /**
+     * The clusters each light covers: 6 ints per light, the first and last tile in x and y and
+     * the first and last slice. A light that covers nothing has its first slice past its last
+     */
+    private int[] lightBounds;
+
+    /**
+     * For each cluster, the offset of its first light index and the number of its lights
+     */
+    private int[] clusterData;
+
+    /**
+     * The light indices of all clusters, preceded by the global lights
+     */
+    private int[] indices;
+    private int indexCount,globalCount;
+
+    private LightArray lights;
+    private Matrix4f projection;
+    private float near,far;
+
+    /**
+     * The pool to assign lights on, null to assign them sequentially
+     */
+    private ForkJoinPool pool;
+
+    public LightClusters()
+    {
+        this(DEFAULT_TILES_X,DEFAULT_TILES_Y,DEFAULT_SLICES,null);
+    }
+
+    /**
+     * @param tilesX the number of tiles across the screen
+     * @param tilesY the number of tiles down the screen
+     * @param slices the number of slices in depth
+     * @param pool the pool used to fill slices in parallel, or null to fill them sequentially
+     */
+    public LightClusters(int tilesX,int tilesY,int slices,ForkJoinPool pool)
+    {
+        if ((tilesX < 1) || (tilesY < 1) || (slices < 1))
+            throw new IllegalArgumentException("The cluster grid must have at least one cluster");
+        this.tilesX = tilesX;
+        this.tilesY = tilesY;
+        this.slices = slices;
+        this.pool = pool;
+        lightBounds = new int[6*16];
+        clusterData = new int[2*tilesX*tilesY*slices];
+        indices = new int[256];
+        projection = new Matrix4f();
+    }
+
+    /**
+     * Assign lights to clusters
+     * @param lights the lights, in view coordinates
+     * @param projection the projection in use, or null if unknown
+     */
+    public void build(LightArray lights,Matrix4f projection)
+    {
+        this.lights = lights;
+        int n = lights.size();
+        if (6*n > lightBounds.length)
+        {
+            lightBounds = new int[Math.max(6*n,2*lightBounds.length)];
+        }
+
+        //a perspective projection has -1 in its bottom row, which lets near and far be recovered
+        boolean perspective = (projection != null) && (projection.m23 == -1) && (projection.m33 == 0);
+        if (perspective)
+        {
+            this.projection.set(projection);
+            near = projection.m32/(projection.m22 - 1);
+            far = projection.m32/(projection.m22 + 1);
+            gridX = tilesX;
+            gridY = tilesY;
+            gridZ = slices;
+            depthScale = slices/(float)Math.log(far/near);
+            depthBias = -(float)Math.log(near)*depthScale;
+        }
+        else
+        {
+            gridX = gridY = gridZ = 1;
+            depthScale = depthBias = 0;
+        }
+
+        //the global lights go first
+        globalCount = 0;
+        for (int i=0;i<n;i++)
+        {
+            if (!perspective || !lights.isBounded(i))
+            {
+                ensureIndices(globalCount+1);
+                indices[globalCount++] = i;
+                lightBounds[6*i+4] = 1;
+                lightBounds[6*i+5] = 0;
+            }
+            else
+            {
+                computeBounds(i);
+            }
+        }
+
+        //count the lights of each cluster, then turn the counts into offsets and fill
+        int clusters = gridX*gridY*gridZ;
+        Arrays.fill(clusterData,0,2*clusters,0);
+        runSlices(false);
+        int offset = globalCount;
+        for (int c=0;c<clusters;c++)
+        {
+            clusterData[2*c] = offset;
+            offset += clusterData[2*c+1];
+            clusterData[2*c+1] = 0;
+        }
+        indexCount = offset;
+        ensureIndices(indexCount);
+        runSlices(true);
+    }
+
+    private void ensureIndices(int size)
+    {
+        if (size > indices.length)
+        {
+            indices = Arrays.copyOf(indices,Math.max(size,2*indices.length));
+        }
+    }
+
+    /**
+     * Find the clusters covered by the box around the sphere of influence of a light
+     */
+    private void computeBounds(int i)
+    {
+        float[] data = lights.getData();
+        int o = i*LightArray.FLOATS_PER_LIGHT;
+        float x = data[o+LightArray.POSITION],y = data[o+LightArray.POSITION+1],z = data[o+LightArray.POSITION+2];
+        float r = data[o+LightArray.RANGE];
+        int b = 6*i;
+
+        //depths are positive in front of the camera
+        float dMin = Math.max(-z-r,near),dMax = Math.min(-z+r,far);
+        if (dMin > dMax)
+        {
+            lightBounds[b+4] = 1;
+            lightBounds[b+5] = 0;
+            return;
+        }
+
+        //the extremes of x/d and y/d over the box are at its corners
+        float xMin = Float.POSITIVE_INFINITY,xMax = Float.NEGATIVE_INFINITY;
+        float yMin = Float.POSITIVE_INFINITY,yMax = Float.NEGATIVE_INFINITY;
+        for (int k=0;k<8;k++)
+        {
+            float cx = ((k&1) == 0) ? x-r : x+r;
+            float cy = ((k&2) == 0) ? y-r : y+r;
+            float cz = ((k&4) == 0) ? -dMin : -dMax;
+            float w = -cz;
+            float nx = (projection.m00*cx + projection.m10*cy + projection.m20*cz + projection.m30)/w;
+            float ny = (projection.m01*cx + projection.m11*cy + projection.m21*cz + projection.m31)/w;
+            xMin = Math.min(xMin,nx);
+            xMax = Math.max(xMax,nx);
+            yMin = Math.min(yMin,ny);
+            yMax = Math.max(yMax,ny);
+        }
+        if ((xMax < -1) || (xMin > 1) || (yMax < -1) || (yMin > 1))
+        {
+            lightBounds[b+4] = 1;
+            lightBounds[b+5] = 0;
+            return;
+        }
+
+        lightBounds[b] = tile(xMin,gridX);
+        lightBounds[b+1] = tile(xMax,gridX);
+        lightBounds[b+2] = tile(yMin,gridY);
+        lightBounds[b+3] = tile(yMax,gridY);
+        lightBounds[b+4] = slice(dMin);
+        lightBounds[b+5] = slice(dMax);
+    }
+
+    /**
+     * The tile that a normalized device coordinate falls in, clamped to the grid
+     */
+    private static int tile(float ndc,int tiles)
+    {
+        int t = (int)Math.floor((0.5f*ndc + 0.5f)*tiles);
+        return Math.max(0,Math.min(tiles-1,t));
+    }
+
+    /**
+     * The slice that a view depth falls in, clamped to the grid. This must match the shaders
+     */
+    private int slice(float depth)
+    {
+        int s = (int)Math.floor(Math.log(depth)*depthScale + depthBias);
+        return Math.max(0,Math.min(gridZ-1,s));
+    }
+
+    private void runSlices(boolean fill)
+    {
+        if ((pool != null) && (gridZ > 1) && (lights.size() >= PARALLEL_THRESHOLD))
+        {
+            pool.invoke(new SliceTask(0,gridZ,fill));
+        }
+        else
+        {
+            for (int s=0;s<gridZ;s++)
+            {
+                processSlice(s,fill);
+            }
+        }
+    }
+
+    /**
+     * Splits the slices in halves until each task has a single slice
+     */
+    private class SliceTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final int start,end;
+        private final boolean fill;
+
+        SliceTask(int start,int end,boolean fill)
+        {
+            this.start = start;
+            this.end = end;
+            this.fill = fill;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (end-start == 1)
+            {
+                processSlice(start,fill);
+                return;
+            }
+            int mid = (start+end)/2;
+            invokeAll(new SliceTask(start,mid,fill),new SliceTask(mid,end,fill));
+        }
+    }
+
+    /**
+     * Either count the lights of each cluster of a slice, or write their indices at the offsets
+     * of the clusters (using the count as a cursor). Lights are visited in order, so the lists
+     * are sorted
+     */
+    private void processSlice(int s,boolean fill)
+    {
+        int n = lights.size();
+        for (int i=0;i<n;i++)
+        {
+            int b = 6*i;
+            if ((s < lightBounds[b+4]) || (s > lightBounds[b+5]))
+                continue;
+            for (int ty=lightBounds[b+2];ty<=lightBounds[b+3];ty++)
+            {
+                int c = (s*gridY + ty)*gridX + lightBounds[b];
+                for (int tx=lightBounds[b];tx<=lightBounds[b+1];tx++,c++)
+                {
+                    if (fill)
+                    {
+                        indices[clusterData[2*c] + clusterData[2*c+1]] = i;
+                    }
+                    clusterData[2*c+1]++;
+                }
+            }
+        }
+    }
+
+    /*
+     * The following describe the result of the last build
+     */
+
+    public int getGridX()
+    {
+        return gridX;
+    }
+
+    public int getGridY()
+    {
+        return gridY;
+    }
+
+    public int getGridZ()
+    {
+        return gridZ;
+    }
+
+    public int getClusterCount()
+    {
+        return gridX*gridY*gridZ;
+    }
+
+    public float getDepthScale()
+    {
+        return depthScale;
+    }
+
+    public float getDepthBias()
+    {
+        return depthBias;
+    }
+
+    /**
+     * Get the offset and count of each cluster, 2 ints per cluster, ordered by slice, then row,
+     * then column. Only the first 2*{@link #getClusterCount()} ints are meaningful
+     * @return the cluster data
+     */
+    public int[] getClusterData()
+    {
+        return clusterData;
+    }
+
+    /**
+     * Get the light indices. Only the first {@link #getIndexCount()} ints are meaningful, and
+     * the first {@link #getGlobalCount()} of them are the global lights
+     * @return the light indices
+     */
+    public int[] getIndices()
+    {
+        return indices;
+    }
+
+    public int getIndexCount()
+    {
+        return indexCount;
+    }
+
+    public int getGlobalCount()
+    {
+        return globalCount;
+    }
+}
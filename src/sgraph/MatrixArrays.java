@@ -0,0 +1,122 @@
+package sgraph;
+
+/**
+ * Operations on matrices and boxes stored in float arrays, as {@link CompiledScenegraph} keeps
+ * them: a matrix is 16 floats in column-major order, and a box is 6 floats, its minimum corner
+ * followed by its maximum corner. Each one is given by the array and the offset it starts at.
+ */
+final class MatrixArrays
+{
+    /**
+     * The half-size of the box used for meshes whose bounds are not known
+     */
+    private static final float UNBOUNDED = 1e30f;
+
+    /**
+     * Multiply two column-major 4x4 matrices stored in float arrays: d = a * b.
+     * d must not overlap b.
+     */
+    static void mul(float[] a,int ao,float[] b,int bo,float[] d,int dOff)
+    {
+        float a00 = a[ao],a01 = a[ao+1],a02 = a[ao+2],a03 = a[ao+3];
+        float a10 = a[ao+4],a11 = a[ao+5],a12 = a[ao+6],a13 = a[ao+7];
+        float a20 = a[ao+8],a21 = a[ao+9],a22 = a[ao+10],a23 = a[ao+11];
+        float a30 = a[ao+12],a31 = a[ao+13],a32 = a[ao+14],a33 = a[ao+15];
+
+        for (int c=0;c<4;c++)
+        {
+            float b0 = b[bo+4*c],b1 = b[bo+4*c+1],b2 = b[bo+4*c+2],b3 = b[bo+4*c+3];
+            d[dOff+4*c]   = a00*b0 + a10*b1 + a20*b2 + a30*b3;
+            d[dOff+4*c+1] = a01*b0 + a11*b1 + a21*b2 + a31*b3;
+            d[dOff+4*c+2] = a02*b0 + a12*b1 + a22*b2 + a32*b3;
+            d[dOff+4*c+3] = a03*b0 + a13*b1 + a23*b2 + a33*b3;
+        }
+    }
+
+    /**
+     * Multiply two column-major affine matrices (whose last row is 0,0,0,1) stored in float
+     * arrays: d = a * b. Only the upper 3x3 part and the translation are computed, which takes 36
+     * multiplications instead of 64. d must not overlap b.
+     */
+    static void mulAffine(float[] a,int ao,float[] b,int bo,float[] d,int dOff)
+    {
+        float a00 = a[ao],a01 = a[ao+1],a02 = a[ao+2];
+        float a10 = a[ao+4],a11 = a[ao+5],a12 = a[ao+6];
+        float a20 = a[ao+8],a21 = a[ao+9],a22 = a[ao+10];
+        float a30 = a[ao+12],a31 = a[ao+13],a32 = a[ao+14];
+
+        for (int c=0;c<3;c++)
+        {
+            float b0 = b[bo+4*c],b1 = b[bo+4*c+1],b2 = b[bo+4*c+2];
+            d[dOff+4*c]   = a00*b0 + a10*b1 + a20*b2;
+            d[dOff+4*c+1] = a01*b0 + a11*b1 + a21*b2;
+            d[dOff+4*c+2] = a02*b0 + a12*b1 + a22*b2;
+            d[dOff+4*c+3] = 0;
+        }
+        float b0 = b[bo+12],b1 = b[bo+13],b2 = b[bo+14];
+        d[dOff+12] = a00*b0 + a10*b1 + a20*b2 + a30;
+        d[dOff+13] = a01*b0 + a11*b1 + a21*b2 + a31;
+        d[dOff+14] = a02*b0 + a12*b1 + a22*b2 + a32;
+        d[dOff+15] = 1;
+    }
+
+    /**
+     * Whether the column-major matrix stored at m[mo] is affine, i.e. its last row is 0,0,0,1
+     */
+    static boolean isAffine(float[] m,int mo)
+    {
+        return (m[mo+3] == 0) && (m[mo+7] == 0) && (m[mo+11] == 0) && (m[mo+15] == 1);
+    }
+
+    /**
+     * Transform the box stored at b[bo] by the matrix at m[mo], storing the box that bounds
+     * the result at d[dOff]. The center is transformed as a point, and the extents by the
+     * absolute values of the matrix
+     */
+    static void transformBounds(float[] b,int bo,float[] m,int mo,float[] d,int dOff)
+    {
+        if (b[bo] <= -UNBOUNDED)
+        {
+            setUnbounded(d,dOff);
+            return;
+        }
+        float cx = 0.5f*(b[bo]+b[bo+3]),cy = 0.5f*(b[bo+1]+b[bo+4]),cz = 0.5f*(b[bo+2]+b[bo+5]);
+        float ex = 0.5f*(b[bo+3]-b[bo]),ey = 0.5f*(b[bo+4]-b[bo+1]),ez = 0.5f*(b[bo+5]-b[bo+2]);
+
+        for (int r=0;r<3;r++)
+        {
+            float c = m[mo+r]*cx + m[mo+4+r]*cy + m[mo+8+r]*cz + m[mo+12+r];
+            float e = Math.abs(m[mo+r])*ex + Math.abs(m[mo+4+r])*ey + Math.abs(m[mo+8+r])*ez;
+            d[dOff+r] = c-e;
+            d[dOff+3+r] = c+e;
+        }
+    }
+
+    static void setEmpty(float[] b,int off)
+    {
+        b[off] = b[off+1] = b[off+2] = Float.POSITIVE_INFINITY;
+        b[off+3] = b[off+4] = b[off+5] = Float.NEGATIVE_INFINITY;
+    }
+
+    /**
+     * A box that contains everything. It is large but finite, so that frustum tests on it
+     * never produce NaNs
+     */
+    static void setUnbounded(float[] b,int off)
+    {
+        b[off] = b[off+1] = b[off+2] = -UNBOUNDED;
+        b[off+3] = b[off+4] = b[off+5] = UNBOUNDED;
+    }
+
+    static void setIdentity(float[] m,int off)
+    {
+        for (int k=0;k<16;k++)
+        {
+            m[off+k] = ((k%5) == 0) ? 1 : 0;
+        }
+    }
+
+    private MatrixArrays()
+    {
+    }
+}
@@ -0,0 +1,115 @@
+package sgraph;
+
+import org.joml.Matrix4f;
+
+/**
+ * A stack of 4x4 matrices that preallocates its matrices and indexes them by depth. Pushing
+ * copies the current top into the next (already existing) slot instead of creating a new
+ * matrix, so once the stack has grown to the depth of the scene graph a traversal does not
+ * allocate any memory.
+ *
+ * This is meant as a drop-in replacement for the {@link java.util.Stack} of modelview matrices
+ * when drawing a scene graph every frame. The matrices returned by {@link #peek()} and
+ * {@link #push()} belong to the stack: callers may modify the top in place, but must not keep
+ * references to them beyond the matching {@link #pop()}.
+ */
+public class MatrixStack
+{
+    /**
+     * The preallocated matrices. Slots above the top are kept around to be reused
+     */
+    private Matrix4f[] matrices;
+
+    /**
+     * The index of the current top of the stack
+     */
+    private int top;
+
+    public MatrixStack()
+    {
+        this(16);
+    }
+
+    /**
+     * Create a stack that can hold the given number of matrices before it must grow
+     * @param initialCapacity the number of matrices to preallocate
+     */
+    public MatrixStack(int initialCapacity)
+    {
+        matrices = new Matrix4f[Math.max(1,initialCapacity)];
+        for (int i=0;i<matrices.length;i++)
+        {
+            matrices[i] = new Matrix4f();
+        }
+        top = 0;
+    }
+
+    /**
+     * Discard everything on the stack and leave a single identity matrix on it
+     * @return the (only) matrix on the stack
+     */
+    public Matrix4f reset()
+    {
+        top = 0;
+        return matrices[0].identity();
+    }
+
+    /**
+     * Get the matrix on top of the stack. This is the matrix itself, not a copy
+     * @return the top of the stack
+     */
+    public Matrix4f peek()
+    {
+        return matrices[top];
+    }
+
+    /**
+     * Push a copy of the current top on the stack
+     * @return the new top of the stack, which can be modified in place
+     */
+    public Matrix4f push()
+    {
+        if (top+1 == matrices.length)
+        {
+            grow();
+        }
+        matrices[top+1].set(matrices[top]);
+        top++;
+        return matrices[top];
+    }
+
+    /**
+     * Restore the matrix that was on top before the last {@link #push()}
+     * @throws IllegalStateException if only the bottom matrix is left on the stack
+     */
+    public void pop() throws IllegalStateException
+    {
+        if (top == 0)
+            throw new IllegalStateException("Cannot pop the last matrix of the stack");
+        top--;
+    }
+
+    /**
+     * Get the number of matrices currently on the stack
+     * @return the number of matrices on the stack (at least 1)
+     */
+    public int size()
+    {
+        return top+1;
+    }
+
+    /**
+     * Double the number of preallocated matrices. This only happens while the stack is deeper
+     * than it has ever been before
+     */
+    private void grow()
+    {
+        Matrix4f[] bigger = new Matrix4f[2*matrices.length];
+        System.arraycopy(matrices,0,bigger,0,matrices.length);
+        for (int i=matrices.length;i<bigger.length;i++)
+        {
+            bigger[i] = new Matrix4f();
+        }
+        matrices = bigger;
+    }
+}
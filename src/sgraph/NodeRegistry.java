@@ -0,0 +1,221 @@
+package sgraph;
+
+import sgraph.Nodes.INode;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps the named nodes of a scene graph in an array, and hands out integer handles to them.
+ * Looking up a name costs a hash lookup, and is meant to be done once, when the scene is
+ * loaded. Resolving a handle after that is an array access.
+ *
+ * A handle is made of the slot of the node in the array and the generation of that slot. The
+ * generation changes whenever the slot is given to another node, either because a different
+ * node was added under the same name or because the slot was freed and reused. A handle to the
+ * previous node is then stale, and resolves to null instead of to the wrong node.
+ */
+public class NodeRegistry
+{
+    /**
+     * A handle that never resolves to a node
+     */
+    public static final int NO_HANDLE = -1;
+
+    /**
+     * The low bits of a handle are the slot, the others (except the sign bit) the generation
+     */
+    private static final int SLOT_BITS = 20;
+    private static final int SLOT_MASK = (1<<SLOT_BITS) - 1;
+    private static final int GENERATION_MASK = (1<<(31-SLOT_BITS)) - 1;
+
+    private INode[] nodes;
+    private String[] names;
+    private int[] generations;
+    private int slotCount;
+
+    /**
+     * The slots that have been freed, to be reused before new ones are used
+     */
+    private int[] freeSlots;
+    private int freeCount;
+
+    private Map<String,Integer> handles;
+
+    /**
+     * Incremented every time a name starts or stops referring to a node
+     */
+    private int version;
+
+    public NodeRegistry()
+    {
+        nodes = new INode[64];
+        names = new String[64];
+        generations = new int[64];
+        slotCount = 0;
+        freeSlots = new int[16];
+        freeCount = 0;
+        handles = new HashMap<String,Integer>();
+        version = 0;
+    }
+
+    /**
+     * Register a node under a name. If the name already refers to this node its handle is kept;
+     * if it refers to another node, that node is replaced and its handle becomes stale
+     * @param name the name of the node
+     * @param node the node
+     * @return the handle to the node
+     */
+    public int add(String name,INode node)
+    {
+        Integer existing = handles.get(name);
+        if (existing != null)
+        {
+            int slot = existing & SLOT_MASK;
+            if (nodes[slot] == node)
+                return existing;
+            nodes[slot] = node;
+            generations[slot] = (generations[slot]+1) & GENERATION_MASK;
+            int handle = makeHandle(slot);
+            handles.put(name,handle);
+            version++;
+            return handle;
+        }
+
+        int slot;
+        if (freeCount > 0)
+        {
+            slot = freeSlots[--freeCount];
+        }
+        else
+        {
+            if (slotCount == SLOT_MASK + 1)
+                throw new IllegalArgumentException("Too many named nodes");
+            if (slotCount == nodes.length)
+            {
+                nodes = Arrays.copyOf(nodes,2*slotCount);
+                names = Arrays.copyOf(names,2*slotCount);
+                generations = Arrays.copyOf(generations,2*slotCount);
+            }
+            slot = slotCount++;
+        }
+        nodes[slot] = node;
+        names[slot] = name;
+        int handle = makeHandle(slot);
+        handles.put(name,handle);
+        version++;
+        return handle;
+    }
+
+    /**
+     * Forget a node, making its handle stale. The node itself is not touched
+     * @param handle the handle to the node
+     * @return true if the handle was valid
+     */
+    public boolean remove(int handle)
+    {
+        if (!isValid(handle))
+            return false;
+        int slot = handle & SLOT_MASK;
+        handles.remove(names[slot]);
+        nodes[slot] = null;
+        names[slot] = null;
+        generations[slot] = (generations[slot]+1) & GENERATION_MASK;
+        if (freeCount == freeSlots.length)
+        {
+            freeSlots = Arrays.copyOf(freeSlots,2*freeCount);
+        }
+        freeSlots[freeCount++] = slot;
+        version++;
+        return true;
+    }
+
+    private int makeHandle(int slot)
+    {
+        return (generations[slot]<<SLOT_BITS) | slot;
+    }
+
+    /**
+     * Look up the handle of a node by name
+     * @param name the name of the node
+     * @return its handle, or {@link #NO_HANDLE} if no node has this name
+     */
+    public int getHandle(String name)
+    {
+        Integer handle = handles.get(name);
+        if (handle == null)
+            return NO_HANDLE;
+        return handle;
+    }
+
+    /**
+     * Whether a handle still refers to the node it was handed out for
+     * @param handle the handle
+     * @return true if the handle resolves to a node
+     */
+    public boolean isValid(int handle)
+    {
+        if (handle < 0)
+            return false;
+        int slot = handle & SLOT_MASK;
+        return (slot < slotCount) && (nodes[slot] != null) && (makeHandle(slot) == handle);
+    }
+
+    /**
+     * Resolve a handle
+     * @param handle the handle
+     * @return the node it refers to, or null if the handle is stale or {@link #NO_HANDLE}
+     */
+    public INode get(int handle)
+    {
+        if (!isValid(handle))
+            return null;
+        return nodes[handle & SLOT_MASK];
+    }
+
+    /**
+     * Look up a node by name
+     * @param name the name of the node
+     * @return the node, or null if no node has this name
+     */
+    public INode get(String name)
+    {
+        return get(getHandle(name));
+    }
+
+    /**
+     * The number of named nodes
+     */
+    public int size()
+    {
+        return handles.size();
+    }
+
+    /**
+     * Get a number that changes whenever a name is added, removed or given to another node, so
+     * that handles resolved earlier can be checked cheaply for being out of date
+     * @return the version of this registry
+     */
+    public int getVersion()
+    {
+        return version;
+    }
+
+    /**
+     * Copy all (name,node) pairs into a map
+     * @param dest the map to add the pairs to
+     * @return dest
+     */
+    public Map<String,INode> copyTo(Map<String,INode> dest)
+    {
+        for (int slot=0;slot<slotCount;slot++)
+        {
+            if (nodes[slot] != null)
+            {
+                dest.put(names[slot],nodes[slot]);
+            }
+        }
+        return dest;
+    }
+}
@@ -2,8 +2,10 @@ package sgraph.Nodes;
 
 import com.jogamp.opengl.util.texture.Texture;
 import org.joml.Matrix4f;
-import org.joml.Vector4f;
+import sgraph.CompiledScenegraph;
 import sgraph.IScenegraph;
+import sgraph.LightArray;
+import sgraph.MatrixStack;
 import util.Light;
 
 import java.util.ArrayList;
@@ -35,13 +37,60 @@ public abstract class AbstractNode implements INode {
    */
   protected ArrayList<Light> listOfLights;
 
+  /**
+   * The cached transformation from this node to the world coordinate system, and whether it is
+   * out of date. If a node is dirty then so is every node below it, which lets
+   * {@link #invalidateWorldTransform()} stop at the first node that is already dirty
+   */
+  protected Matrix4f worldTransform;
+  protected boolean worldTransformDirty;
+
+  /**
+   * The compiled form of the scene graph that this node was last compiled to (null if none),
+   * and its index there
+   */
+  protected CompiledScenegraph compiledScenegraph;
+  protected int compiledIndex;
+
+  /**
+   * The queue used by {@link #getAllLights(Matrix4f, LightArray)}, kept so that gathering the
+   * lights of a frame does not allocate
+   */
+  private List<INode> unvisited;
+
   public AbstractNode(IScenegraph graph, String name) {
     this.parent = null;
     scenegraph = graph;
     listOfLights = new ArrayList<Light>();
+    worldTransform = null;
+    worldTransformDirty = true;
+    compiledScenegraph = null;
+    compiledIndex = -1;
     setName(name);
   }
 
+  /**
+   * Looks the name up in the scene graph first, and accepts the node found if it still has
+   * that name and this node is one of its ancestors. Otherwise falls back to searching the
+   * subtree with {@link #findNode(String)}
+   *
+   * @param name name of node to be searched
+   * @return the node whose name this is if it exists within this subtree, null otherwise
+   */
+  public INode getNode(String name) {
+    if (scenegraph != null) {
+      INode n = scenegraph.getNode(name);
+      if ((n != null) && name.equals(n.getName())) {
+        for (INode a = n; a != null; a = a.getParent()) {
+          if (a == this) {
+            return n;
+          }
+        }
+      }
+    }
+    return findNode(name);
+  }
+
   /**
    * By default, this method checks only itself. Nodes that have children should override this
    * method and navigate to children to find the one with the correct name
@@ -49,13 +98,28 @@ public abstract class AbstractNode implements INode {
    * @param name name of node to be searched
    * @return the node whose name this is, null otherwise
    */
-  public INode getNode(String name) {
+  protected INode findNode(String name) {
     if (this.name.equals(name))
       return this;
 
     return null;
   }
 
+  /**
+   * Searches the subtree rooted at the given node, without looking the name up again at every
+   * level
+   *
+   * @param node the root of the subtree
+   * @param name name of node to be searched
+   * @return the node whose name this is if it exists within the subtree, null otherwise
+   */
+  protected static INode findNode(INode node, String name) {
+    if (node instanceof AbstractNode) {
+      return ((AbstractNode) node).findNode(name);
+    }
+    return node.getNode(name);
+  }
+
   /**
    * Sets the parent of this node
    *
@@ -64,6 +128,114 @@ public abstract class AbstractNode implements INode {
 
   public void setParent(INode parent) {
     this.parent = parent;
+    invalidateWorldTransform();
+    structureChanged();
+  }
+
+  @Override
+  public INode getParent() {
+    return parent;
+  }
+
+  /**
+   * Adds only this node to the compiled scene graph and remembers where. Nodes with children
+   * or with anything else to compile should override {@link #compile} and call this first.
+   * If this node is part of a subtree shared by {@link ReferenceNode}s it is compiled once per
+   * reference; it then remembers the last copy, which is chained to the ones before it
+   *
+   * @param compiled    the compiled scene graph being built
+   * @param parentIndex the index that the parent of this node was compiled to, -1 for the root
+   */
+  @Override
+  public void compile(CompiledScenegraph compiled, int parentIndex) {
+    int previous = (compiledScenegraph == compiled) ? compiledIndex : -1;
+    compiledScenegraph = compiled;
+    compiledIndex = compiled.addNode(this, parentIndex, previous);
+  }
+
+  /**
+   * Tells the compiled scene graph that this node is part of (if any) that it no longer
+   * matches the tree. This must be called when children are added or removed
+   */
+  protected void structureChanged() {
+    if (compiledScenegraph != null) {
+      compiledScenegraph.invalidate();
+    }
+  }
+
+  /**
+   * Returns the cached world transform, recomputing it from the parent's world transform
+   * if it is out of date. It is only allocated the first time it is asked for, since a
+   * compiled scene graph keeps world transforms of its own
+   *
+   * @return the object-to-world transform of this node
+   */
+  @Override
+  public Matrix4f getWorldTransform() {
+    if (worldTransform == null) {
+      worldTransform = new Matrix4f();
+      worldTransformDirty = true;
+    }
+    if (worldTransformDirty) {
+      if (parent == null) {
+        worldTransform.identity();
+      } else {
+        worldTransform.set(parent.getWorldTransform());
+      }
+      applyLocalTransform(worldTransform);
+      worldTransformDirty = false;
+    }
+    return worldTransform;
+  }
+
+  /**
+   * Marks this node dirty and propagates to the children, unless it was dirty already
+   */
+  @Override
+  public void invalidateWorldTransform() {
+    if (!worldTransformDirty) {
+      worldTransformDirty = true;
+      invalidateChildren();
+    }
+  }
+
+  /**
+   * Post-multiplies the transformation of this node (if any) to the given matrix. By default
+   * a node has no transformation of its own, so this does nothing
+   *
+   * @param m the matrix to be modified
+   */
+  protected void applyLocalTransform(Matrix4f m) {
+  }
+
+  /**
+   * Post-multiplies the transformation of the copy of this node being drawn to the given
+   * matrix. This differs from {@link #applyLocalTransform(Matrix4f)} only where a
+   * {@link ReferenceNode} drawing this node overrides it
+   *
+   * @param m the matrix to be modified
+   */
+  protected void applyLocalTransformOfCopy(Matrix4f m) {
+    applyLocalTransform(m);
+  }
+
+  /**
+   * Calls {@link INode#invalidateWorldTransform()} on every child of this node. By default
+   * a node has no children, so this does nothing
+   */
+  protected void invalidateChildren() {
+  }
+
+  /**
+   * Composes the cached world transform of this node with the given camera transform
+   *
+   * @param accumulator the transformation below this node, applied first
+   * @param worldToView the camera matrix
+   * @return worldToView * (object to world) * accumulator
+   */
+  @Override
+  public Matrix4f getObjectToViewTransform(Matrix4f accumulator, Matrix4f worldToView) {
+    return new Matrix4f(worldToView).mul(getWorldTransform()).mul(accumulator);
   }
 
   /**
@@ -141,6 +313,7 @@ public abstract class AbstractNode implements INode {
   @Override
   public void addLight(util.Light light) {
     listOfLights.add(light.clone());
+    structureChanged();
   }
 
   @Override
@@ -148,40 +321,98 @@ public abstract class AbstractNode implements INode {
     return this.listOfLights;
   }
 
+  /**
+   * Adds the lights of this node, transformed by its cached world transform, and then appends
+   * its children (see {@link #addChildrenTo})
+   */
   @Override
-  public List<Light> getAllLights(Matrix4f worldToView) {
-    return getAllLightsHelp(new ArrayList<Light>(), new ArrayList<INode>(), worldToView);
+  public void gatherLights(Matrix4f worldToView, LightArray dest, List<INode> unvisited) {
+    if (!listOfLights.isEmpty()) {
+      Matrix4f objectToWorld = getWorldTransform();
+      for (int i = 0; i < listOfLights.size(); i++) {
+        dest.add(listOfLights.get(i), objectToWorld, worldToView);
+      }
+    }
+    addChildrenTo(unvisited);
   }
 
+  /**
+   * Visits the subtree breadth-first, using the list of nodes to visit as a queue that is only
+   * ever appended to, so that each node is handled once and nothing is removed from its front
+   */
   @Override
-  public void setTexture(Texture m) throws IllegalArgumentException {
-    throw new IllegalArgumentException(getName() + " is not a leaf node");
+  public void getAllLights(Matrix4f worldToView, LightArray dest) {
+    if (unvisited == null) {
+      unvisited = new ArrayList<INode>();
+    }
+    unvisited.add(this);
+    for (int head = 0; head < unvisited.size(); head++) {
+      unvisited.get(head).gatherLights(worldToView, dest, unvisited);
+    }
+    unvisited.clear();
   }
 
   @Override
-  public void transformLightsPassedIn(Matrix4f toView, List<Light> listOfLightsTransformed) {
-    for (Light l : listOfLightsTransformed) {
-      // if the light's position is a vector…
-      // it means that it is a directional light
-      // no transformations on position,
-
-
-      if (l.getPosition().w == 1) {
-        l.setPosition(new Vector4f(l.getPosition())
-                .mul(toView));
+  public List<Light> getAllLights(Matrix4f worldToView) {
+    LightArray lights = new LightArray();
+    getAllLights(worldToView, lights);
+    List<Light> result = new ArrayList<Light>(lights.size());
+    for (int i = 0; i < lights.size(); i++) {
+      result.add(lights.get(i));
+    }
+    return result;
+  }
 
-        l.setSpotDirection(
-                new Vector4f(l.getSpotDirection())
-                        .mul(toView));
+  /**
+   * Adds the lights of the subtree rooted at this node as if it were placed below the
+   * transformation on top of the given stack, rather than below its own parent. This is how
+   * the lights of a subtree shared by {@link ReferenceNode}s are found at every place it is
+   * drawn at
+   *
+   * @param objectToWorld the stack whose top is the transformation from the parent of this
+   *                      node to the world. It is left as it was
+   * @param worldToView   the camera transformation
+   * @param dest          the array to add the lights to
+   */
+  protected void gatherLights(MatrixStack objectToWorld, Matrix4f worldToView, LightArray dest) {
+    Matrix4f m = objectToWorld.push();
+    applyLocalTransformOfCopy(m);
+    for (int i = 0; i < listOfLights.size(); i++) {
+      dest.add(listOfLights.get(i), m, worldToView);
+    }
+    gatherChildLights(objectToWorld, worldToView, dest);
+    objectToWorld.pop();
+  }
 
+  /**
+   * Calls {@link #gatherLights(MatrixStack, Matrix4f, LightArray)} on every child of this node.
+   * By default a node has no children, so this does nothing
+   */
+  protected void gatherChildLights(MatrixStack objectToWorld, Matrix4f worldToView, LightArray dest) {
+  }
 
-      } else if (l.getPosition().w == 0) {
-        l.setDirection(new Vector4f(l.getPosition())
-                .mul(toView));
-      }
+  /**
+   * Gathers the lights of the subtree rooted at the given node below the transformation on top
+   * of the stack. Only nodes derived from this class can do this
+   */
+  protected static void gatherLights(INode node, MatrixStack objectToWorld, Matrix4f worldToView, LightArray dest) {
+    if (node instanceof AbstractNode) {
+      ((AbstractNode) node).gatherLights(objectToWorld, worldToView, dest);
+    }
+  }
 
+  /**
+   * Appends the children of this node to the given list. By default a node has no children,
+   * so this does nothing
+   *
+   * @param nodes the list to append to
+   */
+  protected void addChildrenTo(List<INode> nodes) {
+  }
 
-    }
+  @Override
+  public void setTexture(Texture m) throws IllegalArgumentException {
+    throw new IllegalArgumentException(getName() + " is not a leaf node");
   }
 
 }
@@ -2,8 +2,11 @@ package sgraph.Nodes;
 
 import org.joml.Matrix4f;
 import org.joml.Vector4f;
+import sgraph.CompiledScenegraph;
 import sgraph.IScenegraph;
 import sgraph.IScenegraphRenderer;
+import sgraph.LightArray;
+import sgraph.MatrixStack;
 import util.Light;
 
 import java.util.ArrayList;
@@ -34,8 +37,8 @@ public class GroupNode extends AbstractNode {
    * @return the node whose name this is if it exists within this subtree, null otherwise
    */
   @Override
-  public INode getNode(String name) {
-    INode n = super.getNode(name);
+  protected INode findNode(String name) {
+    INode n = super.findNode(name);
     if (n != null) {
       return n;
     }
@@ -44,7 +47,7 @@ public class GroupNode extends AbstractNode {
     INode answer = null;
 
     while ((i < children.size()) && (answer == null)) {
-      answer = children.get(i).getNode(name);
+      answer = findNode(children.get(i), name);
       i++;
     }
     return answer;
@@ -77,6 +80,19 @@ public class GroupNode extends AbstractNode {
     }
   }
 
+  /**
+   * To draw this node, it simply delegates to all its children
+   *
+   * @param context   the generic renderer context {@link sgraph.IScenegraphRenderer}
+   * @param modelView the preallocated stack of modelview matrices
+   */
+  @Override
+  public void draw(IScenegraphRenderer context, MatrixStack modelView) {
+    for (int i = 0; i < children.size(); i++) {
+      children.get(i).draw(context, modelView);
+    }
+  }
+
   /**
    * Makes a deep copy of the subtree rooted at this node
    *
@@ -117,16 +133,29 @@ public class GroupNode extends AbstractNode {
   public void addChild(INode child) throws IllegalArgumentException {
     children.add(child);
     child.setParent(this);
+    structureChanged();
   }
 
+  /**
+   * Compiles itself and then each of its children in order
+   *
+   * @param compiled    the compiled scene graph being built
+   * @param parentIndex the index that the parent of this node was compiled to, -1 for the root
+   */
   @Override
-  public Matrix4f getObjectToViewTransform(Matrix4f accumulator, Matrix4f worldToView) {
+  public void compile(CompiledScenegraph compiled, int parentIndex) {
+    super.compile(compiled, parentIndex);
+    for (int i = 0; i < children.size(); i++) {
+      children.get(i).compile(compiled, compiledIndex);
+    }
+    compiled.endSubtree(compiledIndex);
+  }
 
-    if (this.parent == null) {
-      return new Matrix4f().mul(worldToView).mul(accumulator);
+  @Override
+  protected void invalidateChildren() {
+    for (int i = 0; i < children.size(); i++) {
+      children.get(i).invalidateWorldTransform();
     }
-    // M v <- w     M w <- train    M train <- animation    M animation <- transform    M transform <- light
-    return parent.getObjectToViewTransform(accumulator, worldToView);
   }
 
   /**
@@ -140,31 +169,17 @@ public class GroupNode extends AbstractNode {
   }
 
   @Override
-  public List<Light> getAllLightsHelp(List<Light> accLights, List<INode> unvisited, Matrix4f worldToView) {
-//        System.out.println("Group getAllLights");
-    // Transform New Lights in this node
-    Matrix4f toView = getObjectToViewTransform(new Matrix4f(), new Matrix4f(worldToView));
-    List<Light> listOfLightsTransformed = new ArrayList<>();
-    for (Light l : listOfLights) {
-      listOfLightsTransformed.add(l.clone());
-    }
-
-    transformLightsPassedIn(toView, listOfLightsTransformed);
-
-    // New Acc
-    List<Light> transformedLights = new ArrayList<>(accLights);
-    transformedLights.addAll(listOfLightsTransformed);
-
-    if (!unvisited.isEmpty()) {
-      unvisited.remove(0);
+  protected void gatherChildLights(MatrixStack objectToWorld, Matrix4f worldToView, LightArray dest) {
+    for (int i = 0; i < children.size(); i++) {
+      gatherLights(children.get(i), objectToWorld, worldToView, dest);
     }
-    unvisited.addAll(children);
-
+  }
 
-    if (unvisited.isEmpty()) {
-      return transformedLights;
+  @Override
+  protected void addChildrenTo(List<INode> nodes) {
+    for (int i = 0; i < children.size(); i++) {
+      nodes.add(children.get(i));
     }
-    return unvisited.get(0).getAllLightsHelp(transformedLights, unvisited, worldToView);
   }
 
 }
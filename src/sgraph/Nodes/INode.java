@@ -2,8 +2,11 @@ package sgraph.Nodes;
 
 import com.jogamp.opengl.util.texture.Texture;
 import org.joml.Matrix4f;
+import sgraph.CompiledScenegraph;
 import sgraph.IScenegraph;
 import sgraph.IScenegraphRenderer;
+import sgraph.LightArray;
+import sgraph.MatrixStack;
 import util.Light;
 
 import java.util.ArrayList;
@@ -20,7 +23,9 @@ import java.util.Stack;
  */
 public interface INode {
   /**
-   * In the scene graph rooted at this node, get the node whose name is as given
+   * In the scene graph rooted at this node, get the node whose name is as given. If the name
+   * is registered with the scene graph this only checks that the registered node is in this
+   * subtree, otherwise the subtree is searched
    *
    * @param name name of node to be searched
    * @return the node reference if it exists, null otherwise
@@ -35,6 +40,16 @@ public interface INode {
    */
   void draw(IScenegraphRenderer context, Stack<Matrix4f> modelView);
 
+  /**
+   * Draw the scene graph rooted at this node, using a preallocated modelview stack and context.
+   * Unlike {@link #draw(IScenegraphRenderer, Stack)} this does not allocate any matrices, so it
+   * is the one to use when drawing every frame
+   *
+   * @param context   the generic renderer context {@link sgraph.IScenegraphRenderer}
+   * @param modelView the preallocated stack of modelview matrices
+   */
+  void draw(IScenegraphRenderer context, MatrixStack modelView);
+
   /**
    * Return a deep copy of the scene graph subtree rooted at this node
    *
@@ -49,6 +64,13 @@ public interface INode {
    */
   void setParent(INode parent);
 
+  /**
+   * Get the parent of this node
+   *
+   * @return the parent of this node, null if it is the root
+   */
+  INode getParent();
+
   /**
    * Traverse the scene graph rooted at this node, and store references to the scenegraph object
    *
@@ -127,6 +149,32 @@ public interface INode {
    */
   Matrix4f getObjectToViewTransform(Matrix4f accumulator, Matrix4f worldToView);
 
+  /**
+   * Get the transformation from the coordinate system of this node to the world (root)
+   * coordinate system. This includes the transformation of this node itself, if it has one.
+   * The result is cached, and only recomputed after a transformation above this node changes.
+   * The returned matrix belongs to the node and must not be modified by the caller.
+   *
+   * @return the object-to-world transform of this node
+   */
+  Matrix4f getWorldTransform();
+
+  /**
+   * Mark the cached world transform of this node and all the nodes below it as out of date.
+   * This must be called whenever a transformation on the path from the root to this node changes.
+   */
+  void invalidateWorldTransform();
+
+  /**
+   * Append this node and the subtree below it to a compiled scene graph, in depth-first order.
+   * The node remembers where it was compiled to, so that later changes to it can be written
+   * through to the compiled form
+   *
+   * @param compiled    the compiled scene graph being built
+   * @param parentIndex the index that the parent of this node was compiled to, -1 for the root
+   */
+  void compile(CompiledScenegraph compiled, int parentIndex);
+
   /**
    * Add the light to the list of lights
    *
@@ -144,24 +192,32 @@ public interface INode {
   ArrayList<Light> getLights();
 
   /**
-   * Get the list of all lights within this node and its children.
+   * Add the lights of this node, in view coordinates, to a light array, and append the children
+   * of this node to the list of nodes still to visit. {@link #getAllLights(Matrix4f, LightArray)}
+   * calls this on every node of a subtree in turn, without recursion.
+   *
+   * @param worldToView the camera transformation
+   * @param dest        the array to add the lights to
+   * @param unvisited   the nodes still to visit
+   */
+  void gatherLights(Matrix4f worldToView, LightArray dest, List<INode> unvisited);
+
+  /**
+   * Get all lights within this node and its children, in view coordinates, in breadth-first
+   * order. Each node is visited once, using its cached world transform.
    *
-   * @param accLights   the accumulator
-   * @param unvisited   the unvisited list
-   * @param worldToView
-   * @return all lights in this node and its children
+   * @param worldToView the camera transformation
+   * @param dest        the array to add the lights to
    */
-  List<util.Light> getAllLightsHelp(List<Light> accLights, List<INode> unvisited, Matrix4f worldToView);
+  void getAllLights(Matrix4f worldToView, LightArray dest);
 
   /**
    * Get the list of all lights within this node and its children.
    *
-   * @param worldToView
-   * @return all lights in this node and its children
+   * @param worldToView the camera transformation
+   * @return all lights in this node and its children, as new objects in view coordinates
    */
   List<util.Light> getAllLights(Matrix4f worldToView);
 
-  void transformLightsPassedIn(Matrix4f toView, List<Light> listOfLightsTransformed);
-
 }
 
@@ -0,0 +1,276 @@
+package sgraph.Nodes;
+
+import org.joml.Matrix4f;
+import org.joml.Vector4f;
+import sgraph.CompiledScenegraph;
+import sgraph.IScenegraph;
+import sgraph.IScenegraphRenderer;
+import sgraph.MatrixStack;
+import util.Light;
+
+import java.util.Arrays;
+import java.util.Stack;
+
+/**
+ * This node chooses one of its children to draw, depending on how far it is from the camera.
+ * Its children are levels of detail of the same object, the most detailed first. Between
+ * consecutive levels there is a threshold on either the distance of this node from the camera,
+ * or the size of this node on the screen. Only the selected child is drawn; if there are more
+ * thresholds than children, nothing is drawn beyond the last one.
+ *
+ * To avoid popping back and forth when the camera sits near a threshold, the level selected last
+ * is remembered and only left once the threshold has been passed by a margin (the hysteresis, a
+ * fraction of the threshold). A node in a subtree shared by several {@link ReferenceNode}s is
+ * drawn once for each of them, possibly at different distances, so the level is remembered for
+ * each copy: by the outermost reference drawing it when the tree is drawn, for each chain of
+ * nested references, and by the compiled scene graph for each compiled index.
+ *
+ * The levels need not be made by hand: an instance in a scene file with an attribute such as
+ * lod="0.5 0.2" also gets meshes simplified to those fractions of its triangles (see
+ * {@link util.MeshSimplifier}), named after it with -lod1, -lod2 etc. appended.
+ */
+public class LODNode extends GroupNode {
+  /**
+   * The quantity that the thresholds are compared against
+   */
+  public enum Metric {
+    /**
+     * The distance of the origin of this node from the camera. Thresholds increase
+     */
+    DISTANCE,
+    /**
+     * The height on screen, as a fraction of the height of the viewport, of a sphere of the
+     * given radius around the origin of this node. Thresholds decrease
+     */
+    SIZE
+  }
+
+  protected Metric metric;
+
+  /**
+   * thresholds[k] is where level k switches to level k+1
+   */
+  protected float[] thresholds;
+
+  /**
+   * The fraction of a threshold by which it must be passed before the level changes
+   */
+  protected float hysteresis;
+
+  /**
+   * The radius of the object, in the coordinate system of this node, for {@link Metric#SIZE}
+   */
+  protected float radius;
+
+  /**
+   * The level selected last time when not drawn below a reference, kept for the hysteresis
+   */
+  protected int selected;
+
+  /**
+   * Scratch vector, so that selecting a level does not allocate
+   */
+  private final Vector4f scratch;
+
+  public LODNode(IScenegraph graph, String name) {
+    super(graph, name);
+    metric = Metric.DISTANCE;
+    thresholds = new float[0];
+    hysteresis = 0;
+    radius = 1;
+    selected = 0;
+    scratch = new Vector4f();
+  }
+
+  /**
+   * Set the thresholds between levels. For {@link Metric#DISTANCE} they must increase, for
+   * {@link Metric#SIZE} they must decrease
+   *
+   * @param metric     what the thresholds measure
+   * @param thresholds thresholds[k] is where child k switches to child k+1
+   * @param hysteresis the fraction of a threshold by which it must be passed before switching
+   * @throws IllegalArgumentException if the thresholds are not ordered or the hysteresis is
+   *                                  not in [0,1)
+   */
+  public void setThresholds(Metric metric, float[] thresholds, float hysteresis) throws IllegalArgumentException {
+    for (int k = 1; k < thresholds.length; k++) {
+      boolean ordered = (metric == Metric.DISTANCE) ? (thresholds[k] > thresholds[k - 1])
+              : (thresholds[k] < thresholds[k - 1]);
+      if (!ordered) {
+        throw new IllegalArgumentException("Thresholds of " + getName() + " are not in order");
+      }
+    }
+    if ((hysteresis < 0) || (hysteresis >= 1)) {
+      throw new IllegalArgumentException("Hysteresis of " + getName() + " must be in [0,1)");
+    }
+    this.metric = metric;
+    this.thresholds = Arrays.copyOf(thresholds, thresholds.length);
+    this.hysteresis = hysteresis;
+    this.selected = 0;
+  }
+
+  /**
+   * Set the radius of the object, used to compute its size on screen
+   *
+   * @param radius the radius, in the coordinate system of this node
+   */
+  public void setRadius(float radius) {
+    this.radius = radius;
+  }
+
+  public Metric getMetric() {
+    return metric;
+  }
+
+  public float[] getThresholds() {
+    return Arrays.copyOf(thresholds, thresholds.length);
+  }
+
+  public float getHysteresis() {
+    return hysteresis;
+  }
+
+  public float getRadius() {
+    return radius;
+  }
+
+  /**
+   * Choose the level to draw, starting from the level chosen last time for the same copy of
+   * this node
+   *
+   * @param objectToView the transformation from this node to the view coordinate system
+   * @param projection   the projection in use, needed for {@link Metric#SIZE}. If null a
+   *                     vertical field of view of 90 degrees is assumed
+   * @param previous     the level chosen last time, 0 if none was
+   * @return the index of the child to draw, which may be beyond the last child if nothing
+   * should be drawn
+   */
+  public int selectLevel(Matrix4f objectToView, Matrix4f projection, int previous) {
+    //the origin of this node in view coordinates is the translation of the matrix
+    objectToView.transform(scratch.set(0, 0, 0, 1));
+    float x = scratch.x, y = scratch.y, z = scratch.z;
+    float value;
+
+    if (metric == Metric.DISTANCE) {
+      value = (float) Math.sqrt(x * x + y * y + z * z);
+    } else {
+      //the largest scale of the matrix, to scale the radius by
+      float scale = 0;
+      for (int c = 0; c < 3; c++) {
+        objectToView.transform(scratch.set(c == 0 ? 1 : 0, c == 1 ? 1 : 0, c == 2 ? 1 : 0, 0));
+        scale = Math.max(scale, scratch.x * scratch.x + scratch.y * scratch.y + scratch.z * scratch.z);
+      }
+      scale = (float) Math.sqrt(scale);
+
+      float focal = 1;
+      if (projection != null) {
+        projection.transform(scratch.set(0, 1, 0, 0));
+        focal = Math.abs(scratch.y);
+      }
+      value = (z < 0) ? radius * scale * focal / -z : Float.POSITIVE_INFINITY;
+    }
+
+    int level = Math.max(0, Math.min(previous, thresholds.length));
+    while ((level < thresholds.length) && isCoarser(value, thresholds[level], 1 + hysteresis)) {
+      level++;
+    }
+    while ((level > 0) && !isCoarser(value, thresholds[level - 1], 1 - hysteresis)) {
+      level--;
+    }
+    return level;
+  }
+
+  /**
+   * Choose the level to draw when drawing the tree, remembering it for the copy of this node
+   * being drawn
+   */
+  private int selectLevel(Matrix4f objectToView) {
+    int[] copy = ReferenceNode.getLevelOfCopy(this);
+    if (copy == null) {
+      selected = selectLevel(objectToView, getProjection(), selected);
+      return selected;
+    }
+    copy[0] = selectLevel(objectToView, getProjection(), copy[0]);
+    return copy[0];
+  }
+
+  /**
+   * Whether a value is past a threshold (moved by the given factor) towards the coarser levels
+   */
+  private boolean isCoarser(float value, float threshold, float factor) {
+    if (metric == Metric.DISTANCE) {
+      return value > threshold * factor;
+    } else {
+      return value < threshold / factor;
+    }
+  }
+
+  /**
+   * Get the projection of the scene graph this node belongs to, if it has one
+   */
+  private Matrix4f getProjection() {
+    return (scenegraph != null) ? scenegraph.getProjection() : null;
+  }
+
+  /**
+   * Draws only the selected child
+   *
+   * @param context   the generic renderer context {@link sgraph.IScenegraphRenderer}
+   * @param modelView the stack of modelview matrices
+   */
+  @Override
+  public void draw(IScenegraphRenderer context, Stack<Matrix4f> modelView) {
+    int level = selectLevel(modelView.peek());
+    if (level < children.size()) {
+      children.get(level).draw(context, modelView);
+    }
+  }
+
+  /**
+   * Draws only the selected child
+   *
+   * @param context   the generic renderer context {@link sgraph.IScenegraphRenderer}
+   * @param modelView the preallocated stack of modelview matrices
+   */
+  @Override
+  public void draw(IScenegraphRenderer context, MatrixStack modelView) {
+    int level = selectLevel(modelView.peek());
+    if (level < children.size()) {
+      children.get(level).draw(context, modelView);
+    }
+  }
+
+  /**
+   * Compiles itself like a group, and then tells the compiled form to draw only the selected
+   * child
+   *
+   * @param compiled    the compiled scene graph being built
+   * @param parentIndex the index that the parent of this node was compiled to, -1 for the root
+   */
+  @Override
+  public void compile(CompiledScenegraph compiled, int parentIndex) {
+    super.compile(compiled, parentIndex);
+    compiled.setLOD(compiledIndex, this);
+  }
+
+  /**
+   * Makes a deep copy of the subtree rooted at this node, with the same thresholds
+   *
+   * @return a deep copy of the subtree rooted at this node
+   */
+  @Override
+  public INode clone() {
+    LODNode newlod = new LODNode(scenegraph, name);
+    newlod.setThresholds(metric, thresholds, hysteresis);
+    newlod.setRadius(radius);
+
+    for (Light l : listOfLights) {
+      newlod.addLight(l.clone());
+    }
+
+    for (int i = 0; i < children.size(); i++) {
+      newlod.addChild(children.get(i).clone());
+    }
+    return newlod;
+  }
+}
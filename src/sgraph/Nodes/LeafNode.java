@@ -3,12 +3,12 @@ package sgraph.Nodes;
 import com.jogamp.opengl.util.texture.Texture;
 import org.joml.Matrix4f;
 import org.joml.Vector4f;
+import sgraph.CompiledScenegraph;
 import sgraph.IScenegraph;
 import sgraph.IScenegraphRenderer;
+import sgraph.MatrixStack;
 import util.Light;
 
-import java.util.ArrayList;
-import java.util.List;
 import java.util.Stack;
 
 /**
@@ -35,10 +35,16 @@ public class LeafNode extends AbstractNode {
 
   private String texturename;
 
+  /**
+   * Whether this leaf is rasterized into the occlusion buffer to hide what is behind it
+   */
+  protected boolean occluder;
+
   public LeafNode(String instanceOf, IScenegraph graph, String name, String texturename) {
     super(graph, name);
     this.objInstanceName = instanceOf;
     this.texturename = texturename;
+    this.occluder = false;
   }
 
 
@@ -48,22 +54,46 @@ public class LeafNode extends AbstractNode {
   @Override
   public void setMaterial(util.Material mat) {
     material = new util.Material(mat);
+    if (compiledScenegraph != null) {
+      compiledScenegraph.writeMaterial(compiledIndex, material);
+    }
   }
 
+  /**
+   * Compiles itself along with the mesh, material and texture it draws, if any
+   *
+   * @param compiled    the compiled scene graph being built
+   * @param parentIndex the index that the parent of this node was compiled to, -1 for the root
+   */
   @Override
-  public void setTexture(Texture t) throws IllegalArgumentException {
-    this.texture = t;
+  public void compile(CompiledScenegraph compiled, int parentIndex) {
+    super.compile(compiled, parentIndex);
+    if (objInstanceName.length() > 0) {
+      compiled.setLeaf(compiledIndex, objInstanceName, material, texturename);
+      compiled.setOccluder(compiledIndex, occluder);
+    }
+    compiled.endSubtree(compiledIndex);
   }
 
-  @Override
-  public Matrix4f getObjectToViewTransform(Matrix4f accumulator, Matrix4f worldToView) {
+  /**
+   * Mark this leaf as an occluder. Occluders should be large, opaque and closed (e.g. walls
+   * or a room), because everything behind them is skipped when occlusion culling is on.
+   * This takes effect the next time the scene graph is compiled
+   *
+   * @param occluder true if this leaf is an occluder
+   */
+  public void setOccluder(boolean occluder) {
+    this.occluder = occluder;
+    structureChanged();
+  }
 
-    if (this.parent == null) {
-      return new Matrix4f().mul(worldToView).mul(accumulator);
-    }
+  public boolean isOccluder() {
+    return occluder;
+  }
 
-    // M v <- w     M w <- train    M train <- animation    M animation <- transform    M transform <- light
-    return parent.getObjectToViewTransform(accumulator, worldToView);
+  @Override
+  public void setTexture(Texture t) throws IllegalArgumentException {
+    this.texture = t;
   }
 
   /*
@@ -78,6 +108,7 @@ public class LeafNode extends AbstractNode {
     LeafNode newclone = new LeafNode(this.objInstanceName, scenegraph, name, this.texturename);
     newclone.setMaterial(this.getMaterial());
     newclone.setTexture(this.texture);
+    newclone.setOccluder(this.occluder);
 
     for (Light l : listOfLights) {
       newclone.addLight(l.clone());
@@ -100,34 +131,22 @@ public class LeafNode extends AbstractNode {
   @Override
   public void draw(IScenegraphRenderer context, Stack<Matrix4f> modelView) throws IllegalArgumentException {
     if (objInstanceName.length() > 0) {
-      context.drawMesh(objInstanceName, material, modelView.peek(), this.texturename);
+      context.drawMesh(objInstanceName, ReferenceNode.getMaterialOfCopy(this), modelView.peek(), this.texturename);
     }
   }
 
+  /**
+   * Delegates to the scene graph for rendering, exactly like
+   * {@link #draw(IScenegraphRenderer, Stack)}
+   *
+   * @param context   the generic renderer context {@link sgraph.IScenegraphRenderer}
+   * @param modelView the preallocated stack of modelview matrices
+   */
   @Override
-  public List<Light> getAllLightsHelp(List<Light> accLights, List<INode> unvisited, Matrix4f worldToView) {
-    // Transform New Lights in this node
-//        System.out.println("Leaf getAllLights");
-    Matrix4f toView = getObjectToViewTransform(new Matrix4f(), new Matrix4f(worldToView));
-    List<Light> listOfLightsTransformed = new ArrayList<>();
-    for (Light l : listOfLights) {
-      listOfLightsTransformed.add(l.clone());
-    }
-
-    transformLightsPassedIn(toView, listOfLightsTransformed);
-
-    // New Acc
-    List<Light> transformedLights = new ArrayList<>(accLights);
-    transformedLights.addAll(listOfLightsTransformed);
-
-    if (!unvisited.isEmpty()) {
-      unvisited.remove(0);
-    }
-
-    if (unvisited.isEmpty()) {
-      return transformedLights;
+  public void draw(IScenegraphRenderer context, MatrixStack modelView) {
+    if (objInstanceName.length() > 0) {
+      context.drawMesh(objInstanceName, ReferenceNode.getMaterialOfCopy(this), modelView.peek(), this.texturename);
     }
-    return unvisited.get(0).getAllLightsHelp(transformedLights, unvisited, worldToView);
   }
 
 
@@ -0,0 +1,509 @@
+package sgraph.Nodes;
+
+import org.joml.Matrix4f;
+import sgraph.CompiledScenegraph;
+import sgraph.IScenegraph;
+import sgraph.IScenegraphRenderer;
+import sgraph.LightArray;
+import sgraph.MatrixStack;
+import util.Light;
+import util.Material;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Stack;
+
+/**
+ * This node draws a subtree that is shared with the rest of the scene graph, instead of owning
+ * a copy of it. A group with a copyof attribute in the scene XML becomes one of these, so that
+ * any number of copies of (say) a humanoid share its nodes, matrices, materials and lights.
+ * The shared subtree is not a child of this node: its nodes keep their own parent, and are not
+ * found by {@link #getNode(String)} below a reference.
+ *
+ * Like a transform node, a reference places its copy with its own transform and animation
+ * transform. It can also override the transform, the animation transform or the material of
+ * single nodes of the shared subtree, for this copy only. Only the nodes that are actually
+ * overridden are stored. The shared subtree should otherwise be left alone, since a change to it
+ * shows in every copy (except where overridden).
+ *
+ * When the tree is drawn directly, the references being drawn are kept on a stack for each
+ * thread, and the shared nodes look up the transform or material they are drawn with there.
+ * The shared nodes themselves are never changed, so their world transforms are their own. When
+ * the tree is compiled, the shared subtree is compiled once below every reference, and the overrides
+ * are written to that copy.
+ *
+ * A reference also remembers the level last selected by each {@link LODNode} of its copy, for
+ * their hysteresis, since the shared nodes cannot. When references are nested, a nested
+ * reference is drawn once for every copy of the subtree it is in, so the outermost reference
+ * being drawn remembers the levels of each copy, by the chain of references that drew it.
+ */
+public class ReferenceNode extends TransformNode {
+  /**
+   * The root of the shared subtree
+   */
+  protected INode target;
+
+  /**
+   * One override for each node of the shared subtree that this reference overrides
+   */
+  protected List<InstanceOverride> overrides;
+
+  /**
+   * The stack used to gather the lights of the shared subtree, kept so that doing so does not
+   * allocate
+   */
+  private MatrixStack lightStack;
+
+  /**
+   * The levels last selected in the copy drawn when this is the outermost reference
+   */
+  private final Copy copy;
+
+  /**
+   * The references being drawn on each thread
+   */
+  private static final ThreadLocal<Drawing> drawing = new ThreadLocal<Drawing>() {
+    @Override
+    protected Drawing initialValue() {
+      return new Drawing();
+    }
+  };
+
+  public ReferenceNode(IScenegraph graph, String name, INode target) {
+    super(graph, name);
+    this.target = target;
+    overrides = new ArrayList<InstanceOverride>();
+    lightStack = null;
+    copy = new Copy();
+  }
+
+  /**
+   * Get the root of the subtree that this node draws
+   *
+   * @return the root of the shared subtree
+   */
+  public INode getTarget() {
+    return target;
+  }
+
+  /**
+   * Makes another reference to the same subtree, with the same transforms and overrides. The
+   * subtree itself is not copied
+   *
+   * @return the new reference
+   */
+  @Override
+  public INode clone() {
+    ReferenceNode newreference = new ReferenceNode(scenegraph, name, target);
+    copyTransformsTo(newreference);
+    for (Light l : listOfLights) {
+      newreference.addLight(l.clone());
+    }
+    for (InstanceOverride o : overrides) {
+      newreference.overrides.add(o.copy());
+    }
+    return newreference;
+  }
+
+  /**
+   * A reference draws its shared subtree and nothing else
+   *
+   * @throws IllegalArgumentException always
+   */
+  @Override
+  public void addChild(INode child) throws IllegalArgumentException {
+    throw new IllegalArgumentException(getName() + " is a copy of a shared subtree and cannot have children");
+  }
+
+  /**
+   * Override the static transform of a transform node in the shared subtree, for this copy
+   *
+   * @param nodeName the name of the node
+   * @param t        the transform to use instead of its own
+   * @throws IllegalArgumentException if there is no transform node by that name in the subtree
+   */
+  public void setTransform(String nodeName, Matrix4f t) throws IllegalArgumentException {
+    InstanceOverride o = getOverride(nodeName, TransformNode.class);
+    if (o.transform == null) {
+      o.transform = new Matrix4f();
+    }
+    o.transform.set(t);
+    overrideChanged(o);
+  }
+
+  /**
+   * Override the animation transform of a transform node in the shared subtree, for this copy
+   *
+   * @param nodeName the name of the node
+   * @param t        the animation transform to use instead of its own
+   * @throws IllegalArgumentException if there is no transform node by that name in the subtree
+   */
+  public void setAnimationTransform(String nodeName, Matrix4f t) throws IllegalArgumentException {
+    InstanceOverride o = getOverride(nodeName, TransformNode.class);
+    if (o.animation == null) {
+      o.animation = new Matrix4f();
+    }
+    o.animation.set(t);
+    overrideChanged(o);
+  }
+
+  /**
+   * Override the material of a leaf in the shared subtree, for this copy
+   *
+   * @param nodeName the name of the leaf
+   * @param m        the material to draw it with instead of its own
+   * @throws IllegalArgumentException if there is no leaf by that name in the subtree
+   */
+  public void setMaterial(String nodeName, Material m) throws IllegalArgumentException {
+    InstanceOverride o = getOverride(nodeName, LeafNode.class);
+    o.material = new Material(m);
+    overrideChanged(o);
+  }
+
+  /**
+   * Stop overriding anything of a node in the shared subtree
+   *
+   * @param nodeName the name of the node
+   */
+  public void removeOverride(String nodeName) {
+    for (int i = 0; i < overrides.size(); i++) {
+      if (overrides.get(i).node.getName().equals(nodeName)) {
+        overrides.remove(i);
+        structureChanged();
+        return;
+      }
+    }
+  }
+
+  /**
+   * Finds the override of the named node, adding one if there is none yet. Adding one changes
+   * what has to be compiled, so the compiled form is then out of date
+   */
+  private InstanceOverride getOverride(String nodeName, Class<? extends INode> type) throws IllegalArgumentException {
+    for (int i = 0; i < overrides.size(); i++) {
+      if (overrides.get(i).node.getName().equals(nodeName) && type.isInstance(overrides.get(i).node)) {
+        return overrides.get(i);
+      }
+    }
+    INode n = findNode(target, nodeName);
+    if (n == null) {
+      throw new IllegalArgumentException(nodeName + " is not part of the subtree that " + getName() + " is a copy of");
+    }
+    if (!type.isInstance(n)) {
+      throw new IllegalArgumentException(nodeName + " in " + getName() + " is not a " + type.getSimpleName());
+    }
+    InstanceOverride o = new InstanceOverride(n);
+    overrides.add(o);
+    structureChanged();
+    return o;
+  }
+
+  /**
+   * Writes a changed override through to every copy of this node in the compiled scene graph,
+   * if it has been compiled there already
+   */
+  private void overrideChanged(InstanceOverride o) {
+    if ((compiledScenegraph == null) || (o.offset < 0)) {
+      return;
+    }
+    for (int r = compiledIndex; r >= 0; r = compiledScenegraph.getPreviousCopy(r)) {
+      o.apply(compiledScenegraph, r + o.offset);
+    }
+  }
+
+  /**
+   * Writes the override of a node of the shared subtree to one copy of it. The compiled scene
+   * graph calls this when the shared node changes, instead of changing the copy itself
+   *
+   * @param compiled the compiled scene graph
+   * @param index    the index of the copy of the node
+   * @param node     the node
+   */
+  public void applyOverride(CompiledScenegraph compiled, int index, INode node) {
+    InstanceOverride o = findOverride(node);
+    if (o != null) {
+      o.apply(compiled, index);
+    }
+  }
+
+  /**
+   * Finds the override of a node of the shared subtree, or null if this reference does not
+   * override it
+   */
+  private InstanceOverride findOverride(INode node) {
+    for (int i = 0; i < overrides.size(); i++) {
+      if (overrides.get(i).node == node) {
+        return overrides.get(i);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Compiles itself like a transform node, and then a copy of the shared subtree below itself
+   * with the overrides written to it. The copy is laid out the same way below every reference,
+   * so each override remembers how far from the reference its node is
+   *
+   * @param compiled    the compiled scene graph being built
+   * @param parentIndex the index that the parent of this node was compiled to, -1 for the root
+   */
+  @Override
+  public void compile(CompiledScenegraph compiled, int parentIndex) {
+    super.compile(compiled, parentIndex);
+    target.compile(compiled, compiledIndex);
+    compiled.endSubtree(compiledIndex);
+    for (InstanceOverride o : overrides) {
+      o.offset = -1;
+      for (int i = compiledIndex + 1; (i < compiled.size()) && (o.offset < 0); i++) {
+        if (compiled.getNode(i) == o.node) {
+          o.offset = i - compiledIndex;
+        }
+      }
+      if (o.offset >= 0) {
+        compiled.setOverride(compiledIndex + o.offset, this);
+        o.apply(compiled, compiledIndex + o.offset);
+      }
+    }
+  }
+
+  /**
+   * Draws the shared subtree with the transform of this node, with this reference on the stack
+   * of references being drawn so that its overrides are used
+   *
+   * @param context   the generic renderer context {@link sgraph.IScenegraphRenderer}
+   * @param modelView the stack of modelview matrices
+   */
+  @Override
+  public void draw(IScenegraphRenderer context, Stack<Matrix4f> modelView) {
+    modelView.push(new Matrix4f(modelView.peek()));
+    applyLocalTransformOfCopy(modelView.peek());
+    Drawing d = beginCopy();
+    target.draw(context, modelView);
+    endCopy(d);
+    modelView.pop();
+  }
+
+  /**
+   * Draws the shared subtree with the transform of this node, with this reference on the stack
+   * of references being drawn so that its overrides are used
+   *
+   * @param context   the generic renderer context {@link sgraph.IScenegraphRenderer}
+   * @param modelView the preallocated stack of modelview matrices
+   */
+  @Override
+  public void draw(IScenegraphRenderer context, MatrixStack modelView) {
+    applyLocalTransformOfCopy(modelView.push());
+    Drawing d = beginCopy();
+    target.draw(context, modelView);
+    endCopy(d);
+    modelView.pop();
+  }
+
+  /**
+   * Adds its own lights, and then the lights of the shared subtree as placed by this node.
+   * The shared subtree is not added to the list of nodes to visit, since its nodes would use
+   * their own world transforms
+   */
+  @Override
+  public void gatherLights(Matrix4f worldToView, LightArray dest, List<INode> unvisited) {
+    super.gatherLights(worldToView, dest, unvisited);
+    if (lightStack == null) {
+      lightStack = new MatrixStack();
+    }
+    lightStack.reset().set(getWorldTransform());
+    gatherChildLights(lightStack, worldToView, dest);
+  }
+
+  @Override
+  protected void gatherChildLights(MatrixStack objectToWorld, Matrix4f worldToView, LightArray dest) {
+    Drawing d = beginCopy();
+    gatherLights(target, objectToWorld, worldToView, dest);
+    endCopy(d);
+  }
+
+  /**
+   * Get where the level last selected by a level-of-detail node is remembered for the copy of it
+   * being drawn
+   *
+   * @param node the level-of-detail node
+   * @return an array whose only element is the level, or null if no reference is being drawn
+   */
+  static int[] getLevelOfCopy(LODNode node) {
+    Drawing d = drawing.get();
+    if (d.depth == 0) {
+      return null;
+    }
+    return d.copies[d.depth - 1].getLevel(node);
+  }
+
+  /**
+   * Post-multiplies the local transform that a transform node is drawn with in the copy being
+   * drawn: the override of the innermost reference being drawn that overrides it, or else its
+   * own
+   *
+   * @param node the transform node
+   * @param m    the matrix to be modified
+   */
+  static void mulLocalTransformOfCopy(TransformNode node, Matrix4f m) {
+    Drawing d = drawing.get();
+    for (int i = d.depth - 1; i >= 0; i--) {
+      InstanceOverride o = d.references[i].findOverride(node);
+      if ((o != null) && ((o.transform != null) || (o.animation != null))) {
+        m.mul(o.getLocalTransform(d.local));
+        return;
+      }
+    }
+    m.mul(node.getLocalTransform());
+  }
+
+  /**
+   * Get the material that a leaf is drawn with in the copy being drawn: the override of the
+   * innermost reference being drawn that overrides it, or else its own
+   *
+   * @param leaf the leaf
+   * @return the material to draw it with
+   */
+  static Material getMaterialOfCopy(LeafNode leaf) {
+    Drawing d = drawing.get();
+    for (int i = d.depth - 1; i >= 0; i--) {
+      InstanceOverride o = d.references[i].findOverride(leaf);
+      if ((o != null) && (o.material != null)) {
+        return o.material;
+      }
+    }
+    return leaf.material;
+  }
+
+  /**
+   * Pushes this reference on the references being drawn, with the copy it draws: its own if it is the outermost reference being
+   * drawn, otherwise the one nested in the copy of the reference it is drawn within
+   *
+   * @return the references being drawn on this thread
+   */
+  private Drawing beginCopy() {
+    Drawing d = drawing.get();
+    d.push(this, (d.depth == 0) ? copy : d.copies[d.depth - 1].getNested(this));
+    return d;
+  }
+
+  private void endCopy(Drawing d) {
+    d.depth--;
+  }
+
+  /**
+   * The levels last selected in one copy of a shared subtree, by each level-of-detail node in it
+   * and, for each reference nested in it, in the copy that it draws there
+   */
+  private static class Copy {
+    private Map<LODNode, int[]> levels;
+    private Map<ReferenceNode, Copy> nested;
+
+    int[] getLevel(LODNode node) {
+      if (levels == null) {
+        levels = new IdentityHashMap<LODNode, int[]>();
+      }
+      int[] level = levels.get(node);
+      if (level == null) {
+        level = new int[1];
+        levels.put(node, level);
+      }
+      return level;
+    }
+
+    Copy getNested(ReferenceNode reference) {
+      if (nested == null) {
+        nested = new IdentityHashMap<ReferenceNode, Copy>();
+      }
+      Copy c = nested.get(reference);
+      if (c == null) {
+        c = new Copy();
+        nested.put(reference, c);
+      }
+      return c;
+    }
+  }
+
+  /**
+   * The references being drawn on one thread, the outermost first, with the copy that each draws
+   */
+  private static class Drawing {
+    ReferenceNode[] references = new ReferenceNode[4];
+    Copy[] copies = new Copy[4];
+    int depth = 0;
+
+    /**
+     * Where an overridden local transform is combined, so that drawing does not allocate
+     */
+    final Matrix4f local = new Matrix4f();
+
+    void push(ReferenceNode reference, Copy copy) {
+      if (depth == references.length) {
+        references = Arrays.copyOf(references, 2 * depth);
+        copies = Arrays.copyOf(copies, 2 * depth);
+      }
+      references[depth] = reference;
+      copies[depth] = copy;
+      depth++;
+    }
+  }
+
+  /**
+   * What a reference overrides of one node in the shared subtree. Whatever is not overridden
+   * (null) is taken from the node itself
+   */
+  protected static class InstanceOverride {
+    final INode node;
+    Matrix4f transform, animation;
+    Material material;
+
+    /**
+     * How many places after the reference the node was compiled to, -1 if not compiled
+     */
+    int offset;
+
+    /**
+     * The local transform with the overrides applied, written to the compiled scene graph
+     */
+    private final Matrix4f local;
+
+    InstanceOverride(INode node) {
+      this.node = node;
+      transform = animation = null;
+      material = null;
+      offset = -1;
+      local = new Matrix4f();
+    }
+
+    InstanceOverride copy() {
+      InstanceOverride o = new InstanceOverride(node);
+      o.transform = (transform != null) ? new Matrix4f(transform) : null;
+      o.animation = (animation != null) ? new Matrix4f(animation) : null;
+      o.material = (material != null) ? new Material(material) : null;
+      return o;
+    }
+
+    /**
+     * Combines the overridden parts of the local transform with the rest from the node
+     *
+     * @param dest the matrix to combine them in
+     * @return dest
+     */
+    Matrix4f getLocalTransform(Matrix4f dest) {
+      TransformNode t = (TransformNode) node;
+      return dest.set((animation != null) ? animation : t.getAnimationTransform())
+              .mul((transform != null) ? transform : t.getTransform());
+    }
+
+    void apply(CompiledScenegraph compiled, int index) {
+      if ((transform != null) || (animation != null)) {
+        compiled.setLocalTransform(index, getLocalTransform(local));
+      }
+      if (material != null) {
+        compiled.setMaterial(index, material);
+      }
+    }
+  }
+}
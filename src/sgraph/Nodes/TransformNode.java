@@ -1,11 +1,14 @@
 package sgraph.Nodes;
 
 import org.joml.Matrix4f;
+import sgraph.CompiledScenegraph;
 import sgraph.IScenegraph;
 import sgraph.IScenegraphRenderer;
+import sgraph.LightArray;
+import sgraph.MatrixStack;
+import sgraph.TRS;
 import util.Light;
 
-import java.util.ArrayList;
 import java.util.List;
 import java.util.Stack;
 
@@ -14,15 +17,44 @@ import java.util.Stack;
  * can be viewed as changing from its child's coordinate system to its parent's coordinate system
  * This also stores an animation transform that can be tweaked at runtime
  *
+ * Most nodes are never animated, so the animation transform and the product of the two are
+ * only allocated once there is an animation transform; until then the local transform is the
+ * static transform itself. The animation transform can be given either as a matrix or as a
+ * {@link TRS}, which is what animation clips produce. In the latter case its matrix is only
+ * built if someone asks for it, and it is composed with the static transform directly
+ *
  * @author Amit Shesh
  */
 public class TransformNode extends AbstractNode {
     /**
      * Matrices storing the static and animation transformations separately, so that they can be
-     * changed separately
+     * changed separately. The animation transform is null until it is first set or asked for,
+     * which means identity
      */
     protected Matrix4f transform, animation_transform;
 
+    /**
+     * The animation transform as translation, rotation and scale, if it was last set that way,
+     * in which case {@link #animation_transform} is only built from it when out of date
+     */
+    protected TRS animationTRS;
+    protected boolean animationIsTRS;
+    protected boolean animationMatrixDirty;
+
+    /**
+     * The product animation_transform * transform, cached so that it is not recomputed every
+     * frame. It is recomputed only after one of the two changes. It is null while there is no
+     * animation transform
+     */
+    protected Matrix4f localTransform;
+    protected boolean localTransformDirty;
+
+    /**
+     * Set when a transform has been changed as part of a batch, and what depends on it has
+     * not been brought up to date yet
+     */
+    protected boolean transformPending;
+
     /**
      * A reference to its only child
      */
@@ -31,7 +63,13 @@ public class TransformNode extends AbstractNode {
     public TransformNode(IScenegraph graph, String name) {
         super(graph, name);
         this.transform = new Matrix4f();
-        animation_transform = new Matrix4f();
+        animation_transform = null;
+        animationTRS = null;
+        animationIsTRS = false;
+        animationMatrixDirty = false;
+        localTransform = null;
+        localTransformDirty = false;
+        transformPending = false;
         child = null;
     }
 
@@ -51,8 +89,7 @@ public class TransformNode extends AbstractNode {
         }
 
         TransformNode newtransform = new TransformNode(scenegraph, name);
-        newtransform.setTransform(this.transform);
-        newtransform.setAnimationTransform(animation_transform);
+        copyTransformsTo(newtransform);
         for (Light l : listOfLights) {
             newtransform.addLight(l.clone());
         }
@@ -74,13 +111,14 @@ public class TransformNode extends AbstractNode {
      * @param name name of node to be searched
      * @return
      */
-    public INode getNode(String name) {
-        INode n = super.getNode(name);
+    @Override
+    protected INode findNode(String name) {
+        INode n = super.findNode(name);
         if (n != null)
             return n;
 
         if (child != null) {
-            return child.getNode(name);
+            return findNode(child, name);
         }
 
         return null;
@@ -98,6 +136,89 @@ public class TransformNode extends AbstractNode {
             throw new IllegalArgumentException("Transform node already has a child");
         this.child = child;
         this.child.setParent(this);
+        structureChanged();
+    }
+
+    /**
+     * Compiles itself with its local transform, and then its child
+     *
+     * @param compiled    the compiled scene graph being built
+     * @param parentIndex the index that the parent of this node was compiled to, -1 for the root
+     */
+    @Override
+    public void compile(CompiledScenegraph compiled, int parentIndex) {
+        super.compile(compiled, parentIndex);
+        compiled.setLocalTransform(compiledIndex, getLocalTransform());
+        if (child != null) {
+            child.compile(compiled, compiledIndex);
+        }
+        compiled.endSubtree(compiledIndex);
+    }
+
+    /**
+     * Gives a copy of this node the same static and animation transforms
+     *
+     * @param copy the copy
+     */
+    protected void copyTransformsTo(TransformNode copy) {
+        copy.setTransform(transform);
+        if (animationIsTRS) {
+            copy.setAnimationTransform(animationTRS);
+        } else if (animation_transform != null) {
+            copy.setAnimationTransform(animation_transform);
+        }
+    }
+
+    /**
+     * Gets the combined animation and static transform of this node, i.e.
+     * animation_transform * transform. The returned matrix is cached by this node and must not
+     * be modified. If there is no animation transform this is the static transform itself.
+     * When both are affine, as they are unless set otherwise, only their 4x3 parts are
+     * multiplied. Overrides of a {@link ReferenceNode} that shares this node are not included
+     *
+     * @return the transformation from the child's coordinate system to the parent's
+     */
+    public Matrix4f getLocalTransform() {
+        if (!animationIsTRS && (animation_transform == null)) {
+            return transform;
+        }
+        if (localTransform == null) {
+            localTransform = new Matrix4f();
+            localTransformDirty = true;
+        }
+        if (localTransformDirty) {
+            boolean affine = transform.isAffine();
+            if (animationIsTRS && affine) {
+                animationTRS.mul(transform, localTransform);
+            } else if (affine && getAnimationTransform().isAffine()) {
+                localTransform.set(animation_transform).mul4x3(transform);
+            } else {
+                localTransform.set(getAnimationTransform()).mul(transform);
+            }
+            localTransformDirty = false;
+        }
+        return localTransform;
+    }
+
+    @Override
+    protected void applyLocalTransform(Matrix4f m) {
+        m.mul(getLocalTransform());
+    }
+
+    /**
+     * Post-multiplies the local transform of the copy of this node being drawn, which a
+     * {@link ReferenceNode} drawing it may override
+     */
+    @Override
+    protected void applyLocalTransformOfCopy(Matrix4f m) {
+        ReferenceNode.mulLocalTransformOfCopy(this, m);
+    }
+
+    @Override
+    protected void invalidateChildren() {
+        if (child != null) {
+            child.invalidateWorldTransform();
+        }
     }
 
     /**
@@ -114,8 +235,23 @@ public class TransformNode extends AbstractNode {
     @Override
     public void draw(IScenegraphRenderer context, Stack<Matrix4f> modelView) {
         modelView.push(new Matrix4f(modelView.peek()));
-        modelView.peek().mul(animation_transform)
-                .mul(transform);
+        applyLocalTransformOfCopy(modelView.peek());
+        if (child != null)
+            child.draw(context, modelView);
+        modelView.pop();
+    }
+
+    /**
+     * Draws the scene graph rooted at this node, in the same way as
+     * {@link #draw(IScenegraphRenderer, Stack)}. The copy of the top of the stack is made
+     * into a matrix that the stack already owns, so no memory is allocated
+     *
+     * @param context   the generic renderer context {@link sgraph.IScenegraphRenderer}
+     * @param modelView the preallocated stack of modelview matrices
+     */
+    @Override
+    public void draw(IScenegraphRenderer context, MatrixStack modelView) {
+        applyLocalTransformOfCopy(modelView.push());
         if (child != null)
             child.draw(context, modelView);
         modelView.pop();
@@ -128,21 +264,32 @@ public class TransformNode extends AbstractNode {
      * @param mat the animation transform of this node
      */
     public void setAnimationTransform(Matrix4f mat) {
-        animation_transform = new Matrix4f(mat);
+        if (animation_transform == null) {
+            animation_transform = new Matrix4f();
+        }
+        animation_transform.set(mat);
+        animationIsTRS = false;
+        transformChanged();
     }
 
-    @Override
-    public Matrix4f getObjectToViewTransform(Matrix4f accumulator, Matrix4f worldToView) {
+    /**
+     * Sets the animation transform of this node as translation, rotation and scale. Its matrix
+     * is not built unless {@link #getAnimationTransform()} is called
+     *
+     * @param trs the animation transform, which is copied
+     */
+    public void setAnimationTransform(TRS trs) {
+        setAnimationTRS(trs);
+        transformChanged();
+    }
 
-        if (this.parent == null) {
-            return new Matrix4f().mul(worldToView).mul(accumulator);
+    private void setAnimationTRS(TRS trs) {
+        if (animationTRS == null) {
+            animationTRS = new TRS();
         }
-
-        Matrix4f m2 = new Matrix4f()
-                .mul(animation_transform)
-                .mul(transform).mul(accumulator);
-        // M v <- w     M w <- train    M train <- animation    M animation <- transform    M transform <- light
-        return parent.getObjectToViewTransform(m2, worldToView);
+        animationTRS.set(trs);
+        animationIsTRS = true;
+        animationMatrixDirty = true;
     }
 
     /**
@@ -162,15 +309,93 @@ public class TransformNode extends AbstractNode {
      */
     @Override
     public void setTransform(Matrix4f t) throws IllegalArgumentException {
-        this.transform = new Matrix4f(t);
+        this.transform.set(t);
+        transformChanged();
     }
 
     /**
-     * Gets the animation transform of this node
+     * Copies a transform into this node without bringing anything that depends on it up to
+     * date. This is for changes made in a batch: {@link #commitTransform()} must be called once
+     * all the changes to the node in the batch have been made
+     *
+     * @param m         the matrix, 16 floats in column-major order
+     * @param offset    where the matrix starts in m
+     * @param animation true to set the animation transform, false to set the static transform
+     */
+    public void setTransform(float[] m, int offset, boolean animation) {
+        if (!animation) {
+            transform.set(m, offset);
+        } else {
+            if (animation_transform == null) {
+                animation_transform = new Matrix4f();
+            }
+            animation_transform.set(m, offset);
+            animationIsTRS = false;
+        }
+        transformPending = true;
+    }
+
+    /**
+     * Copies an animation transform given as translation, rotation and scale into this node,
+     * in the same way as {@link #setTransform(float[], int, boolean)}
+     *
+     * @param trs    the 10 floats of the transform, laid out as in {@link TRS}
+     * @param offset where they start in trs
+     */
+    public void setAnimationTRS(float[] trs, int offset) {
+        if (animationTRS == null) {
+            animationTRS = new TRS();
+        }
+        animationTRS.set(trs, offset);
+        animationIsTRS = true;
+        animationMatrixDirty = true;
+        transformPending = true;
+    }
+
+    /**
+     * Brings what depends on the transforms of this node up to date after they have been changed
+     * with {@link #setTransform(float[], int, boolean)}. Calling this again before the next
+     * change does nothing
+     *
+     * @return true if there was a change to commit
+     */
+    public boolean commitTransform() {
+        if (!transformPending) {
+            return false;
+        }
+        transformPending = false;
+        transformChanged();
+        return true;
+    }
+
+    /**
+     * Marks the cached local transform as out of date, along with the world transforms of this
+     * node and everything below it, and writes the new local transform through to the compiled
+     * scene graph if there is one
+     */
+    protected void transformChanged() {
+        localTransformDirty = true;
+        invalidateWorldTransform();
+        if (compiledScenegraph != null) {
+            compiledScenegraph.writeLocalTransform(compiledIndex, getLocalTransform());
+        }
+    }
+
+    /**
+     * Gets the animation transform of this node, building its matrix if it was set as
+     * translation, rotation and scale
      *
      * @return the animation transform of this node
      */
     public Matrix4f getAnimationTransform() {
+        if (animation_transform == null) {
+            animation_transform = new Matrix4f();
+            animationMatrixDirty = animationIsTRS;
+        }
+        if (animationIsTRS && animationMatrixDirty) {
+            animationTRS.get(animation_transform);
+            animationMatrixDirty = false;
+        }
         return animation_transform;
     }
 
@@ -188,30 +413,16 @@ public class TransformNode extends AbstractNode {
     }
 
     @Override
-    public List<Light> getAllLightsHelp(List<Light> accLights, List<INode> unvisited, Matrix4f worldToView) {
-        // Transform New Lights in this node
-        Matrix4f toView = getObjectToViewTransform(new Matrix4f(), new Matrix4f(worldToView));
-        List<Light> listOfLightsTransformed = new ArrayList<>();
-
-        for (Light l : listOfLights) {
-            listOfLightsTransformed.add(l.clone());
-        }
-
-        transformLightsPassedIn(toView, listOfLightsTransformed);
-
-        // New Acc
-        List<Light> transformedLights = new ArrayList<>(accLights);
-        transformedLights.addAll(listOfLightsTransformed);
-
-        if (!unvisited.isEmpty()) {
-            unvisited.remove(0);
+    protected void gatherChildLights(MatrixStack objectToWorld, Matrix4f worldToView, LightArray dest) {
+        if (child != null) {
+            gatherLights(child, objectToWorld, worldToView, dest);
         }
+    }
 
-        if (unvisited.isEmpty()) {
-            return transformedLights;
+    @Override
+    protected void addChildrenTo(List<INode> nodes) {
+        if (child != null) {
+            nodes.add(child);
         }
-
-        unvisited.add(child);
-        return unvisited.get(0).getAllLightsHelp(transformedLights, unvisited, worldToView);
     }
 }
@@ -0,0 +1,387 @@
+package sgraph;
+
+import org.joml.Matrix4f;
+import org.joml.Vector4f;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A small depth buffer that is rendered entirely on the CPU, used to find out if parts of the
+ * scene are hidden behind large occluders before they are sent to OpenGL.
+ *
+ * Each frame, the triangles of the occluders are transformed to the screen and binned into
+ * square tiles. The tiles are then rasterized independently (in parallel if a fork/join pool
+ * is given), each keeping the nearest depth per pixel. After that, a bounding box can be tested
+ * against the buffer: it is occluded if every pixel it covers on screen already has something
+ * nearer than the nearest point of the box.
+ *
+ * The buffer is conservative, so that nothing visible is ever reported as occluded: a pixel
+ * only receives depth from a triangle that covers it completely, and the depth written is the
+ * farthest depth of the triangle within that pixel. Triangles that cross the near plane are
+ * left out, and boxes that cross it are always visible.
+ */
+public class OcclusionBuffer
+{
+    /**
+     * The width and height of tiles, in pixels
+     */
+    public static final int TILE_SIZE = 32;
+
+    /**
+     * The smallest w a vertex may have to be considered in front of the camera
+     */
+    private static final float NEAR_W = 1e-4f;
+
+    private final int width,height;
+    private final int tilesX,tilesY;
+
+    /**
+     * Depth of each pixel, row by row, as normalized device z mapped to [0,1]. 1 is far
+     */
+    private final float[] depth;
+
+    /**
+     * Screen-space triangles of this frame, 9 floats each: (x,y,z) of the three vertices
+     */
+    private float[] triangles;
+    private int triangleCount;
+
+    /**
+     * For each tile, the indices of the triangles that overlap it
+     */
+    private int[][] bins;
+    private int[] binSizes;
+
+    /**
+     * The pool to rasterize tiles on, null to rasterize them sequentially
+     */
+    private ForkJoinPool pool;
+
+    /**
+     * The combined projection and camera transformation of this frame
+     */
+    private final Matrix4f viewProjection;
+
+    /**
+     * Scratch storage used while transforming occluders and testing boxes
+     */
+    private final Matrix4f toClip;
+    private final Vector4f corner;
+    private float[] screen;
+
+    public OcclusionBuffer(int width,int height)
+    {
+        this(width,height,null);
+    }
+
+    /**
+     * Create an occlusion buffer
+     * @param width the width of the buffer in pixels. A fraction of the window's width is enough
+     * @param height the height of the buffer in pixels
+     * @param pool the pool used to rasterize tiles in parallel, or null to rasterize sequentially
+     */
+    public OcclusionBuffer(int width,int height,ForkJoinPool pool)
+    {
+        if ((width<=0) || (height<=0))
+            throw new IllegalArgumentException("Occlusion buffer must have a positive size");
+        this.width = width;
+        this.height = height;
+        this.pool = pool;
+        tilesX = (width+TILE_SIZE-1)/TILE_SIZE;
+        tilesY = (height+TILE_SIZE-1)/TILE_SIZE;
+        depth = new float[width*height];
+        triangles = new float[9*256];
+        triangleCount = 0;
+        bins = new int[tilesX*tilesY][];
+        for (int t=0;t<bins.length;t++)
+        {
+            bins[t] = new int[64];
+        }
+        binSizes = new int[tilesX*tilesY];
+        viewProjection = new Matrix4f();
+        toClip = new Matrix4f();
+        corner = new Vector4f();
+        screen = new float[3*256];
+        Arrays.fill(depth,1.0f);
+    }
+
+    public int getWidth()
+    {
+        return width;
+    }
+
+    public int getHeight()
+    {
+        return height;
+    }
+
+    /**
+     * Get the depth stored at a pixel, mostly to inspect the buffer
+     * @param x the column of the pixel, 0 at the left
+     * @param y the row of the pixel, 0 at the bottom
+     * @return the depth in [0,1], 1 if nothing was rasterized there
+     */
+    public float getDepth(int x,int y)
+    {
+        return depth[y*width+x];
+    }
+
+    /**
+     * Start a new frame: clear the buffer and forget all occluders
+     * @param viewProjection the projection multiplied by the camera transformation
+     */
+    public void begin(Matrix4f viewProjection)
+    {
+        this.viewProjection.set(viewProjection);
+        Arrays.fill(depth,1.0f);
+        Arrays.fill(binSizes,0);
+        triangleCount = 0;
+    }
+
+    /**
+     * Add a triangle mesh as an occluder for this frame. Its triangles are transformed to the
+     * screen and binned, but not rasterized until {@link #rasterize()}
+     * @param positions the vertex positions of the mesh, 4 floats per vertex
+     * @param indices the vertex indices, 3 per triangle
+     * @param world the transformation of the mesh to the world coordinate system
+     */
+    public void addOccluder(float[] positions,int[] indices,Matrix4f world)
+    {
+        int vertexCount = positions.length/4;
+        if (screen.length < 3*vertexCount)
+        {
+            screen = new float[3*vertexCount];
+        }
+        toClip.set(viewProjection).mul(world);
+
+        //project every vertex once. Vertices behind the near plane are marked with NaN
+        for (int v=0;v<vertexCount;v++)
+        {
+            corner.set(positions[4*v],positions[4*v+1],positions[4*v+2],1.0f);
+            toClip.transform(corner);
+            if (corner.w < NEAR_W)
+            {
+                screen[3*v] = Float.NaN;
+                continue;
+            }
+            float invW = 1.0f/corner.w;
+            screen[3*v] = (corner.x*invW*0.5f+0.5f)*width;
+            screen[3*v+1] = (corner.y*invW*0.5f+0.5f)*height;
+            screen[3*v+2] = corner.z*invW*0.5f+0.5f;
+        }
+
+        for (int t=0;t+2<indices.length;t+=3)
+        {
+            int a = 3*indices[t],b = 3*indices[t+1],c = 3*indices[t+2];
+            if (Float.isNaN(screen[a]) || Float.isNaN(screen[b]) || Float.isNaN(screen[c]))
+                continue;
+            addTriangle(screen[a],screen[a+1],screen[a+2],
+                    screen[b],screen[b+1],screen[b+2],
+                    screen[c],screen[c+1],screen[c+2]);
+        }
+    }
+
+    /**
+     * Store a screen-space triangle and add it to the bins of all tiles its bounding box
+     * overlaps
+     */
+    private void addTriangle(float x0,float y0,float z0,float x1,float y1,float z1,float x2,float y2,float z2)
+    {
+        float minX = Math.min(x0,Math.min(x1,x2)),maxX = Math.max(x0,Math.max(x1,x2));
+        float minY = Math.min(y0,Math.min(y1,y2)),maxY = Math.max(y0,Math.max(y1,y2));
+        if ((maxX<0) || (maxY<0) || (minX>=width) || (minY>=height))
+            return;
+        if (Math.max(z0,Math.max(z1,z2)) < 0)
+            return;
+
+        if (9*(triangleCount+1) > triangles.length)
+        {
+            triangles = Arrays.copyOf(triangles,2*triangles.length);
+        }
+        int o = 9*triangleCount;
+        triangles[o] = x0; triangles[o+1] = y0; triangles[o+2] = z0;
+        triangles[o+3] = x1; triangles[o+4] = y1; triangles[o+5] = z1;
+        triangles[o+6] = x2; triangles[o+7] = y2; triangles[o+8] = z2;
+
+        int tx0 = clamp((int)minX/TILE_SIZE,0,tilesX-1),tx1 = clamp((int)maxX/TILE_SIZE,0,tilesX-1);
+        int ty0 = clamp((int)minY/TILE_SIZE,0,tilesY-1),ty1 = clamp((int)maxY/TILE_SIZE,0,tilesY-1);
+        for (int ty=ty0;ty<=ty1;ty++)
+        {
+            for (int tx=tx0;tx<=tx1;tx++)
+            {
+                int tile = ty*tilesX+tx;
+                if (binSizes[tile] == bins[tile].length)
+                {
+                    bins[tile] = Arrays.copyOf(bins[tile],2*bins[tile].length);
+                }
+                bins[tile][binSizes[tile]++] = triangleCount;
+            }
+        }
+        triangleCount++;
+    }
+
+    /**
+     * Rasterize all the occluders added since {@link #begin}. Each tile only touches its own
+     * pixels, so tiles are rasterized in parallel if there is a pool
+     */
+    public void rasterize()
+    {
+        if (triangleCount == 0)
+            return;
+        if (pool != null)
+        {
+            pool.invoke(new RasterizeTask(0,bins.length));
+        }
+        else
+        {
+            for (int tile=0;tile<bins.length;tile++)
+            {
+                rasterizeTile(tile);
+            }
+        }
+    }
+
+    /**
+     * Rasterizes a range of tiles, splitting it in halves until a single tile is left
+     */
+    private class RasterizeTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final int start,end;
+
+        RasterizeTask(int start,int end)
+        {
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (end-start == 1)
+            {
+                rasterizeTile(start);
+                return;
+            }
+            int mid = (start+end)/2;
+            invokeAll(new RasterizeTask(start,mid),new RasterizeTask(mid,end));
+        }
+    }
+
+    /**
+     * Rasterize the triangles binned into one tile, clipped to that tile
+     * @param tile the index of the tile
+     */
+    private void rasterizeTile(int tile)
+    {
+        int tileX0 = (tile%tilesX)*TILE_SIZE,tileY0 = (tile/tilesX)*TILE_SIZE;
+        int tileX1 = Math.min(tileX0+TILE_SIZE,width),tileY1 = Math.min(tileY0+TILE_SIZE,height);
+
+        for (int k=0;k<binSizes[tile];k++)
+        {
+            int o = 9*bins[tile][k];
+            float x0 = triangles[o],y0 = triangles[o+1],z0 = triangles[o+2];
+            float x1 = triangles[o+3],y1 = triangles[o+4],z1 = triangles[o+5];
+            float x2 = triangles[o+6],y2 = triangles[o+7],z2 = triangles[o+8];
+
+            float area = (x1-x0)*(y2-y0)-(x2-x0)*(y1-y0);
+            if (Math.abs(area) < 1e-8f)
+                continue;
+            //make the edge functions positive inside, whatever the winding
+            float sign = (area>0) ? 1 : -1;
+
+            //edge functions e(x,y) = a*x + b*y + c, for the edges opposite each vertex
+            float a0 = sign*(y1-y2),b0 = sign*(x2-x1),c0 = sign*(x1*y2-x2*y1);
+            float a1 = sign*(y2-y0),b1 = sign*(x0-x2),c1 = sign*(x2*y0-x0*y2);
+            float a2 = sign*(y0-y1),b2 = sign*(x1-x0),c2 = sign*(x0*y1-x1*y0);
+
+            //a pixel is completely inside an edge if the edge function at its center is at
+            //least this much, which is its smallest value over the pixel
+            float r0 = 0.5f*(Math.abs(a0)+Math.abs(b0));
+            float r1 = 0.5f*(Math.abs(a1)+Math.abs(b1));
+            float r2 = 0.5f*(Math.abs(a2)+Math.abs(b2));
+
+            //depth as a plane over the screen, and the most it can increase within a pixel
+            float invArea = 1.0f/(sign*area);
+            float dzdx = (a0*z0+a1*z1+a2*z2)*invArea;
+            float dzdy = (b0*z0+b1*z1+b2*z2)*invArea;
+            float dzc = (c0*z0+c1*z1+c2*z2)*invArea;
+            float dzPixel = 0.5f*(Math.abs(dzdx)+Math.abs(dzdy));
+
+            int px0 = Math.max(tileX0,(int)Math.floor(Math.min(x0,Math.min(x1,x2))));
+            int px1 = Math.min(tileX1-1,(int)Math.ceil(Math.max(x0,Math.max(x1,x2))));
+            int py0 = Math.max(tileY0,(int)Math.floor(Math.min(y0,Math.min(y1,y2))));
+            int py1 = Math.min(tileY1-1,(int)Math.ceil(Math.max(y0,Math.max(y1,y2))));
+
+            for (int py=py0;py<=py1;py++)
+            {
+                float cy = py+0.5f;
+                int row = py*width;
+                for (int px=px0;px<=px1;px++)
+                {
+                    float cx = px+0.5f;
+                    if ((a0*cx+b0*cy+c0 >= r0) && (a1*cx+b1*cy+c1 >= r1) && (a2*cx+b2*cy+c2 >= r2))
+                    {
+                        float z = dzdx*cx+dzdy*cy+dzc+dzPixel;
+                        if (z < depth[row+px])
+                        {
+                            depth[row+px] = z;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Test whether a world-space box is hidden behind the occluders rasterized this frame
+     * @return true if the box is certainly hidden, false if it may be visible
+     */
+    public boolean isOccluded(float minX,float minY,float minZ,float maxX,float maxY,float maxZ)
+    {
+        float sx0 = Float.POSITIVE_INFINITY,sy0 = Float.POSITIVE_INFINITY;
+        float sx1 = Float.NEGATIVE_INFINITY,sy1 = Float.NEGATIVE_INFINITY;
+        float nearest = Float.POSITIVE_INFINITY;
+
+        for (int c=0;c<8;c++)
+        {
+            corner.set(((c&1)==0) ? minX : maxX,((c&2)==0) ? minY : maxY,((c&4)==0) ? minZ : maxZ,1.0f);
+            viewProjection.transform(corner);
+            if (corner.w < NEAR_W)
+                return false;
+            float invW = 1.0f/corner.w;
+            float x = (corner.x*invW*0.5f+0.5f)*width;
+            float y = (corner.y*invW*0.5f+0.5f)*height;
+            float z = corner.z*invW*0.5f+0.5f;
+            sx0 = Math.min(sx0,x);
+            sx1 = Math.max(sx1,x);
+            sy0 = Math.min(sy0,y);
+            sy1 = Math.max(sy1,y);
+            nearest = Math.min(nearest,z);
+        }
+
+        int px0 = clamp((int)Math.floor(sx0),0,width-1),px1 = clamp((int)Math.floor(sx1),0,width-1);
+        int py0 = clamp((int)Math.floor(sy0),0,height-1),py1 = clamp((int)Math.floor(sy1),0,height-1);
+        if ((sx1<0) || (sy1<0) || (sx0>=width) || (sy0>=height))
+            return false;
+
+        for (int py=py0;py<=py1;py++)
+        {
+            int row = py*width;
+            for (int px=px0;px<=px1;px++)
+            {
+                if (depth[row+px] >= nearest)
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    private static int clamp(int v,int min,int max)
+    {
+        return Math.max(min,Math.min(max,v));
+    }
+}
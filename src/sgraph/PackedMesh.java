@@ -0,0 +1,298 @@
+package sgraph;
+
+import com.jogamp.opengl.GL;
+import org.joml.Vector4f;
+import util.PolygonMesh;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * A mesh packed into a compact vertex format for the GPU. Each vertex takes 16 bytes, with its
+ * attributes interleaved, instead of the 48 bytes of three separate arrays of vec4s:
+ * <ul>
+ *     <li>the position as 4 unsigned shorts (the last unused), normalized to the bounding box
+ *     of the mesh. The shader maps it back with {@link #getPositionOffset()} and
+ *     {@link #getPositionScale()}</li>
+ *     <li>the normal as 2 signed normalized shorts, in an octahedral encoding: the unit sphere
+ *     is projected onto an octahedron, whose lower half is folded over the upper half into a
+ *     square</li>
+ *     <li>the texture coordinates (s,t) as 2 half floats, so that they can go outside 0 to 1</li>
+ * </ul>
+ * The indices are unsigned shorts if there are few enough vertices, and unsigned ints
+ * otherwise. The shaders in this project decode this format when their uniform
+ * packedVertices is set.
+ */
+public class PackedMesh
+{
+    public static final int BYTES_PER_VERTEX = 16;
+    public static final int POSITION_OFFSET = 0;
+    public static final int NORMAL_OFFSET = 8;
+    public static final int TEXCOORD_OFFSET = 12;
+
+    /**
+     * The largest number of vertices whose indices fit in unsigned shorts
+     */
+    public static final int MAX_SHORT_INDEXED_VERTICES = 65536;
+
+    private static final float UNSIGNED_SHORT_MAX = 65535;
+    private static final float SHORT_MAX = 32767;
+
+    private final int vertexCount;
+    private final ByteBuffer vertices;
+    private final Buffer indices;
+    private final int indexCount,indexType;
+    private final float[] positionOffset,positionScale;
+
+    /**
+     * Pack a mesh. Vertices without a normal or texture coordinates get zeros
+     * @param mesh the mesh
+     */
+    public PackedMesh(PolygonMesh mesh)
+    {
+        vertexCount = mesh.getVertexCount();
+        FloatBuffer positions = mesh.getVertexPositions();
+        FloatBuffer normals = mesh.getVertexNormals();
+        FloatBuffer texcoords = mesh.getTexCoords();
+
+        Vector4f min = mesh.getMinimumBounds(),max = mesh.getMaximumBounds();
+        positionOffset = new float[] {min.x,min.y,min.z};
+        positionScale = new float[] {max.x-min.x,max.y-min.y,max.z-min.z};
+
+        vertices = ByteBuffer.allocate(BYTES_PER_VERTEX*vertexCount).order(ByteOrder.nativeOrder());
+        for (int i=0;i<vertexCount;i++)
+        {
+            int o = BYTES_PER_VERTEX*i;
+            for (int c=0;c<3;c++)
+            {
+                float t = (positionScale[c] > 0) ? (positions.get(4*i+c)-positionOffset[c])/positionScale[c] : 0;
+                vertices.putShort(o+POSITION_OFFSET+2*c,(short)Math.round(clamp(t,0,1)*UNSIGNED_SHORT_MAX));
+            }
+            vertices.putShort(o+POSITION_OFFSET+6,(short)0);
+
+            if (4*i+2 < normals.limit())
+            {
+                encodeNormal(normals.get(4*i),normals.get(4*i+1),normals.get(4*i+2),vertices,o+NORMAL_OFFSET);
+            }
+            if (4*i+1 < texcoords.limit())
+            {
+                vertices.putShort(o+TEXCOORD_OFFSET,toHalf(texcoords.get(4*i)));
+                vertices.putShort(o+TEXCOORD_OFFSET+2,toHalf(texcoords.get(4*i+1)));
+            }
+        }
+
+        IntBuffer primitives = mesh.getPrimitives();
+        indexCount = primitives.remaining();
+        if (vertexCount <= MAX_SHORT_INDEXED_VERTICES)
+        {
+            short[] s = new short[indexCount];
+            for (int i=0;i<indexCount;i++)
+            {
+                s[i] = (short)primitives.get(i);
+            }
+            indices = ShortBuffer.wrap(s);
+            indexType = GL.GL_UNSIGNED_SHORT;
+        }
+        else
+        {
+            indices = primitives;
+            indexType = GL.GL_UNSIGNED_INT;
+        }
+    }
+
+    public int getVertexCount()
+    {
+        return vertexCount;
+    }
+
+    /**
+     * Get the interleaved vertices, {@link #BYTES_PER_VERTEX} bytes each in the native byte order
+     */
+    public ByteBuffer getVertices()
+    {
+        return vertices;
+    }
+
+    /**
+     * Get the indices, a {@link ShortBuffer} or an {@link IntBuffer} depending on
+     * {@link #getIndexType()}
+     */
+    public Buffer getIndices()
+    {
+        return indices;
+    }
+
+    public int getIndexCount()
+    {
+        return indexCount;
+    }
+
+    /**
+     * Get the type of the indices, GL_UNSIGNED_SHORT or GL_UNSIGNED_INT
+     */
+    public int getIndexType()
+    {
+        return indexType;
+    }
+
+    public int getIndexSize()
+    {
+        return (indexType == GL.GL_UNSIGNED_SHORT) ? 2 : 4;
+    }
+
+    /**
+     * Get the corner of the bounding box, which a packed position of 0 stands for
+     */
+    public float[] getPositionOffset()
+    {
+        return positionOffset;
+    }
+
+    /**
+     * Get the size of the bounding box, which a packed position of 1 stands for
+     */
+    public float[] getPositionScale()
+    {
+        return positionScale;
+    }
+
+    /**
+     * Unpack the position of a vertex, as the shader does
+     * @param i the vertex
+     * @param dest the vector to store the position in
+     * @return dest
+     */
+    public Vector4f getPosition(int i,Vector4f dest)
+    {
+        int o = BYTES_PER_VERTEX*i+POSITION_OFFSET;
+        return dest.set(positionOffset[0] + positionScale[0]*(vertices.getShort(o)&0xffff)/UNSIGNED_SHORT_MAX,
+                positionOffset[1] + positionScale[1]*(vertices.getShort(o+2)&0xffff)/UNSIGNED_SHORT_MAX,
+                positionOffset[2] + positionScale[2]*(vertices.getShort(o+4)&0xffff)/UNSIGNED_SHORT_MAX,
+                1);
+    }
+
+    /**
+     * Unpack the normal of a vertex, as the shader does
+     * @param i the vertex
+     * @param dest the vector to store the normal in
+     * @return dest
+     */
+    public Vector4f getNormal(int i,Vector4f dest)
+    {
+        int o = BYTES_PER_VERTEX*i+NORMAL_OFFSET;
+        float x = Math.max(vertices.getShort(o)/SHORT_MAX,-1);
+        float y = Math.max(vertices.getShort(o+2)/SHORT_MAX,-1);
+        float z = 1 - Math.abs(x) - Math.abs(y);
+        if (z < 0)
+        {
+            float fx = (1 - Math.abs(y))*Math.signum(x);
+            y = (1 - Math.abs(x))*Math.signum(y);
+            x = fx;
+        }
+        float length = (float)Math.sqrt(x*x + y*y + z*z);
+        return dest.set(x/length,y/length,z/length,0);
+    }
+
+    /**
+     * Unpack the texture coordinates of a vertex
+     * @param i the vertex
+     * @param dest the vector to store them in
+     * @return dest
+     */
+    public Vector4f getTexCoord(int i,Vector4f dest)
+    {
+        int o = BYTES_PER_VERTEX*i+TEXCOORD_OFFSET;
+        return dest.set(fromHalf(vertices.getShort(o)),fromHalf(vertices.getShort(o+2)),0,1);
+    }
+
+    /**
+     * Write a normal as 2 signed normalized shorts in the octahedral encoding
+     */
+    static void encodeNormal(float x,float y,float z,ByteBuffer dest,int offset)
+    {
+        float sum = Math.abs(x) + Math.abs(y) + Math.abs(z);
+        if (sum == 0)
+        {
+            dest.putShort(offset,(short)0);
+            dest.putShort(offset+2,(short)0);
+            return;
+        }
+        float u = x/sum,v = y/sum;
+        if (z < 0)
+        {
+            //fold the lower half over the diagonals
+            float fu = (1 - Math.abs(v))*(u >= 0 ? 1 : -1);
+            v = (1 - Math.abs(u))*(v >= 0 ? 1 : -1);
+            u = fu;
+        }
+        dest.putShort(offset,(short)Math.round(clamp(u,-1,1)*SHORT_MAX));
+        dest.putShort(offset+2,(short)Math.round(clamp(v,-1,1)*SHORT_MAX));
+    }
+
+    /**
+     * Convert a float to a half float (1 sign bit, 5 exponent bits, 10 mantissa bits), rounding
+     * to nearest. Values too big become infinity, and values too small become 0
+     */
+    static short toHalf(float f)
+    {
+        int bits = Float.floatToIntBits(f);
+        int sign = (bits >>> 16) & 0x8000;
+        int exponent = ((bits >>> 23) & 0xff) - 127 + 15;
+        int mantissa = bits & 0x7fffff;
+
+        if (exponent >= 0x1f)
+        {
+            //too big, infinity or NaN
+            boolean nan = (((bits >>> 23) & 0xff) == 0xff) && (mantissa != 0);
+            return (short)(sign | 0x7c00 | (nan ? 0x200 : 0));
+        }
+        if (exponent <= 0)
+        {
+            //subnormal, or too small
+            if (exponent < -10)
+                return (short)sign;
+            mantissa |= 0x800000;
+            int shift = 14 - exponent;
+            int half = mantissa >> shift;
+            if (((mantissa >> (shift-1)) & 1) != 0)
+                half++;
+            return (short)(sign | half);
+        }
+        int half = sign | (exponent << 10) | (mantissa >> 13);
+        if ((mantissa & 0x1000) != 0)
+        {
+            //round up; a carry into the exponent is still right
+            half++;
+        }
+        return (short)half;
+    }
+
+    /**
+     * Convert a half float back to a float
+     */
+    static float fromHalf(short h)
+    {
+        int sign = (h & 0x8000) << 16;
+        int exponent = (h >>> 10) & 0x1f;
+        int mantissa = h & 0x3ff;
+        if (exponent == 0)
+        {
+            float value = mantissa/1024f/16384f;
+            return (sign != 0) ? -value : value;
+        }
+        if (exponent == 0x1f)
+        {
+            return Float.intBitsToFloat(sign | 0x7f800000 | (mantissa << 13));
+        }
+        return Float.intBitsToFloat(sign | ((exponent - 15 + 127) << 23) | (mantissa << 13));
+    }
+
+    private static float clamp(float x,float min,float max)
+    {
+        return Math.max(min,Math.min(max,x));
+    }
+}
@@ -0,0 +1,237 @@
+package sgraph;
+
+import org.joml.Matrix4f;
+import sgraph.Nodes.INode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Animates transform nodes with formulas rather than keys. The animation transform is made of
+ * translations, rotations and scales, applied in the order they were added just like in the set
+ * element of a transform, whose amounts are {@link Expression}s. The same formulas drive any
+ * number of target nodes, each with its own values of the parameters. In the scene XML:
+ * <pre>
+ * &lt;procedural name="swing" parameters="phase amplitude"&gt;
+ *     &lt;rotate angle="amplitude*sin(rad(t*4 + phase))" axis="0 1 0"&gt;&lt;/rotate&gt;
+ *     &lt;target node="leg0" phase="0" amplitude="10"&gt;&lt;/target&gt;
+ *     &lt;target node="leg1" phase="90" amplitude="10"&gt;&lt;/target&gt;
+ * &lt;/procedural&gt;
+ * </pre>
+ * Besides the parameters, the expressions can use t, the time given to
+ * {@link IScenegraph#animate(float)}, and frame, the time animated so far, which goes up with t
+ * but carries on when t wraps around at {@link Animator#TIME_PERIOD}. It counts frames at one
+ * per unit of time, however often the scene graph is animated. Angles are in degrees, as
+ * elsewhere in the scene XML.
+ *
+ * The expressions are compiled once, when they are added. Each target keeps its own array of
+ * variable values, so animating does not allocate.
+ */
+public class ProceduralAnimation
+{
+    private static final int TRANSLATE = 0,ROTATE = 1,SCALE = 2;
+
+    private final String name;
+    private final List<String> variables;
+
+    /**
+     * The operations, with 3 expressions each (the angle and two unused nulls for a rotation)
+     * and the axis of each rotation
+     */
+    private int[] operations;
+    private Expression[] amounts;
+    private float[] axes;
+    private int operationCount;
+
+    private List<String> targets;
+    private int[] handles;
+    private double[][] values;
+
+    private final Matrix4f transform;
+
+    /**
+     * @param name the name of this animation
+     * @param parameters the names of the parameters that each target gives a value to
+     */
+    public ProceduralAnimation(String name,List<String> parameters)
+    {
+        this.name = name;
+        variables = new ArrayList<String>();
+        variables.add("t");
+        variables.add("frame");
+        for (String p:parameters)
+        {
+            if (variables.contains(p))
+                throw new IllegalArgumentException("Parameter "+p+" of "+name+" is declared twice or is reserved");
+            variables.add(p);
+        }
+        operations = new int[4];
+        amounts = new Expression[12];
+        axes = new float[12];
+        operationCount = 0;
+        targets = new ArrayList<String>();
+        handles = new int[0];
+        values = new double[0][];
+        transform = new Matrix4f();
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * Get the names of the parameters of this animation
+     */
+    public List<String> getParameters()
+    {
+        return variables.subList(2,variables.size());
+    }
+
+    private void addOperation(int operation,Expression x,Expression y,Expression z,float ax,float ay,float az)
+    {
+        if (operationCount == operations.length)
+        {
+            operations = Arrays.copyOf(operations,2*operationCount);
+            amounts = Arrays.copyOf(amounts,6*operationCount);
+            axes = Arrays.copyOf(axes,6*operationCount);
+        }
+        int o = 3*operationCount;
+        operations[operationCount++] = operation;
+        amounts[o] = x;
+        amounts[o+1] = y;
+        amounts[o+2] = z;
+        axes[o] = ax;
+        axes[o+1] = ay;
+        axes[o+2] = az;
+    }
+
+    /**
+     * Append a translation
+     * @throws IllegalArgumentException if an expression cannot be compiled
+     */
+    public void addTranslate(String x,String y,String z) throws IllegalArgumentException
+    {
+        addOperation(TRANSLATE,Expression.compile(x,variables),Expression.compile(y,variables),Expression.compile(z,variables),0,0,0);
+    }
+
+    /**
+     * Append a rotation about a fixed axis
+     * @param angle the angle, in degrees
+     * @throws IllegalArgumentException if the expression cannot be compiled
+     */
+    public void addRotate(String angle,float ax,float ay,float az) throws IllegalArgumentException
+    {
+        addOperation(ROTATE,Expression.compile(angle,variables),null,null,ax,ay,az);
+    }
+
+    /**
+     * Append a scale
+     * @throws IllegalArgumentException if an expression cannot be compiled
+     */
+    public void addScale(String x,String y,String z) throws IllegalArgumentException
+    {
+        addOperation(SCALE,Expression.compile(x,variables),Expression.compile(y,variables),Expression.compile(z,variables),0,0,0);
+    }
+
+    /**
+     * Add a node for this animation to drive
+     * @param node the name of the node
+     * @param parameters the values of the parameters for this node. Parameters not given are 0
+     * @throws IllegalArgumentException if a value is given for an undeclared parameter
+     */
+    public void addTarget(String node,Map<String,Double> parameters) throws IllegalArgumentException
+    {
+        double[] v = new double[variables.size()];
+        for (Map.Entry<String,Double> p:parameters.entrySet())
+        {
+            int index = variables.indexOf(p.getKey());
+            if (index < 2)
+                throw new IllegalArgumentException(p.getKey()+" is not a parameter of "+name);
+            v[index] = p.getValue();
+        }
+        targets.add(node);
+        handles = Arrays.copyOf(handles,targets.size());
+        handles[handles.length-1] = NodeRegistry.NO_HANDLE;
+        values = Arrays.copyOf(values,targets.size());
+        values[values.length-1] = v;
+    }
+
+    public List<String> getTargets()
+    {
+        return targets;
+    }
+
+    /**
+     * Make a copy of this animation whose targets have the given prefix added to their names.
+     * The compiled expressions are shared
+     * @param prefix the prefix
+     * @return the copy
+     */
+    public ProceduralAnimation copyWithPrefix(String prefix)
+    {
+        ProceduralAnimation c = new ProceduralAnimation(prefix+name,getParameters());
+        c.operations = Arrays.copyOf(operations,operations.length);
+        c.amounts = Arrays.copyOf(amounts,amounts.length);
+        c.axes = Arrays.copyOf(axes,axes.length);
+        c.operationCount = operationCount;
+        for (int i=0;i<targets.size();i++)
+        {
+            c.targets.add(prefix+targets.get(i));
+        }
+        c.handles = new int[targets.size()];
+        Arrays.fill(c.handles,NodeRegistry.NO_HANDLE);
+        c.values = new double[targets.size()][];
+        for (int i=0;i<targets.size();i++)
+        {
+            c.values[i] = Arrays.copyOf(values[i],values[i].length);
+        }
+        return c;
+    }
+
+    /**
+     * Compute the animation transform of every target and record it in a batch. Targets are
+     * identified by their handles, which are looked up again only if they have gone stale
+     * @param scenegraph the scene graph that the targets are part of
+     * @param time the time
+     * @param frame the time animated so far, without wrapping around
+     * @param batch the batch to record the animation transforms in
+     */
+    public void apply(IScenegraph scenegraph,float time,float frame,TransformBatch batch)
+    {
+        for (int i=0;i<handles.length;i++)
+        {
+            INode node = scenegraph.getNode(handles[i]);
+            if (node == null)
+            {
+                handles[i] = scenegraph.getNodeHandle(targets.get(i));
+                node = scenegraph.getNode(handles[i]);
+                if (node == null)
+                    continue;
+            }
+            double[] v = values[i];
+            v[0] = time;
+            v[1] = frame;
+            transform.identity();
+            for (int k=0;k<operationCount;k++)
+            {
+                int o = 3*k;
+                switch (operations[k])
+                {
+                    case TRANSLATE:
+                        transform.translate((float)amounts[o].evaluate(v),(float)amounts[o+1].evaluate(v),(float)amounts[o+2].evaluate(v));
+                        break;
+                    case ROTATE:
+                        transform.rotate((float)Math.toRadians(amounts[o].evaluate(v)),axes[o],axes[o+1],axes[o+2]);
+                        break;
+                    case SCALE:
+                        transform.scale((float)amounts[o].evaluate(v),(float)amounts[o+1].evaluate(v),(float)amounts[o+2].evaluate(v));
+                        break;
+                }
+            }
+            batch.setAnimationTransform(handles[i],transform);
+        }
+    }
+}
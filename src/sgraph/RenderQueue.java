@@ -0,0 +1,224 @@
+package sgraph;
+
+import org.joml.Matrix4f;
+import util.Material;
+
+import java.util.Arrays;
+
+/**
+ * A queue of meshes to draw, which can be sorted so that meshes sharing the same GL state are
+ * drawn one after the other. Each item has a 64-bit sort key that packs, from the most to the
+ * least significant bits:
+ * <ul>
+ * <li>the shader program (4 bits)</li>
+ * <li>the texture (12 bits)</li>
+ * <li>the mesh (16 bits)</li>
+ * <li>the material (16 bits)</li>
+ * <li>the distance from the camera (16 bits), so that items with the same state are drawn
+ * front to back</li>
+ * </ul>
+ * Sorting by this key puts the most expensive state changes (program, then texture) on the
+ * outside, so each of them happens as rarely as possible. The keys are sorted with a radix sort
+ * into preallocated arrays, so a frame does not allocate any memory once the queue has grown
+ * to the size of the scene.
+ */
+public class RenderQueue
+{
+    private static final int DIGIT_BITS = 8;
+    private static final int DIGIT_VALUES = 1<<DIGIT_BITS;
+
+    /**
+     * The mesh, texture and material id, material and modelview matrix (16 floats) of each
+     * item, in the order they were added
+     */
+    private int[] meshIds,textureIds,materialIds;
+    private Material[] materials;
+    private float[] modelviews;
+    private int size;
+
+    /**
+     * The sort keys and the indices of the items. After {@link #sort()} they are in sorted
+     * order. The scratch arrays are used by the sort, which swaps them with these
+     */
+    private long[] keys,keyScratch;
+    private int[] order,orderScratch;
+    private final int[] counts;
+
+    public RenderQueue()
+    {
+        this(256);
+    }
+
+    public RenderQueue(int initialCapacity)
+    {
+        initialCapacity = Math.max(1,initialCapacity);
+        meshIds = new int[initialCapacity];
+        textureIds = new int[initialCapacity];
+        materialIds = new int[initialCapacity];
+        materials = new Material[initialCapacity];
+        modelviews = new float[16*initialCapacity];
+        keys = new long[initialCapacity];
+        keyScratch = new long[initialCapacity];
+        order = new int[initialCapacity];
+        orderScratch = new int[initialCapacity];
+        counts = new int[DIGIT_VALUES];
+        size = 0;
+    }
+
+    /**
+     * Pack a sort key. Ids larger than their field are wrapped, which only makes the order less
+     * effective, never wrong
+     * @param program the id of the shader program
+     * @param texture the id of the texture
+     * @param mesh the id of the mesh
+     * @param material the id of the material
+     * @param viewDepth the distance of the item in front of the camera
+     * @return the sort key
+     */
+    public static long makeKey(int program,int texture,int mesh,int material,float viewDepth)
+    {
+        //the bits of a non-negative float increase with its value, so their top half is a
+        //coarse (logarithmic) depth that sorts correctly
+        int depth = Float.floatToIntBits(Math.max(viewDepth,0.0f))>>>16;
+        return ((long)(program & 0xF)<<60)
+                | ((long)(texture & 0xFFF)<<48)
+                | ((long)(mesh & 0xFFFF)<<32)
+                | ((long)(material & 0xFFFF)<<16)
+                | (long)(depth & 0xFFFF);
+    }
+
+    /**
+     * Add an item to the end of the queue
+     * @param key its sort key, see {@link #makeKey}
+     * @param meshId the id of the mesh to draw
+     * @param textureId the id of the texture to draw it with
+     * @param materialId the id of its material
+     * @param material its material
+     * @param modelview its modelview matrix, which is copied
+     */
+    public void add(long key,int meshId,int textureId,int materialId,Material material,Matrix4f modelview)
+    {
+        if (size == keys.length)
+        {
+            grow();
+        }
+        keys[size] = key;
+        order[size] = size;
+        meshIds[size] = meshId;
+        textureIds[size] = textureId;
+        materialIds[size] = materialId;
+        materials[size] = material;
+        modelview.get(modelviews,16*size);
+        size++;
+    }
+
+    /**
+     * Sort the items by key, with a least-significant-digit radix sort on 8-bit digits. Items
+     * with equal keys stay in the order they were added. Digits that are the same in all keys
+     * (e.g. the program, when there is only one) are skipped
+     */
+    public void sort()
+    {
+        for (int shift=0;shift<64;shift+=DIGIT_BITS)
+        {
+            Arrays.fill(counts,0);
+            for (int i=0;i<size;i++)
+            {
+                counts[(int)(keys[i]>>>shift) & (DIGIT_VALUES-1)]++;
+            }
+            if ((size == 0) || (counts[(int)(keys[0]>>>shift) & (DIGIT_VALUES-1)] == size))
+                continue;
+
+            //turn the counts into the position of the first item with each digit
+            int start = 0;
+            for (int d=0;d<DIGIT_VALUES;d++)
+            {
+                int c = counts[d];
+                counts[d] = start;
+                start += c;
+            }
+            for (int i=0;i<size;i++)
+            {
+                int p = counts[(int)(keys[i]>>>shift) & (DIGIT_VALUES-1)]++;
+                keyScratch[p] = keys[i];
+                orderScratch[p] = order[i];
+            }
+
+            long[] k = keys;
+            keys = keyScratch;
+            keyScratch = k;
+            int[] o = order;
+            order = orderScratch;
+            orderScratch = o;
+        }
+    }
+
+    /**
+     * Remove all items, keeping the storage for the next frame
+     */
+    public void clear()
+    {
+        Arrays.fill(materials,0,size,null);
+        size = 0;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    /*
+     * The following get the properties of the k-th item in sorted order (or in the order they
+     * were added, if the queue has not been sorted since)
+     */
+
+    public long getKey(int k)
+    {
+        return keys[k];
+    }
+
+    public int getMeshId(int k)
+    {
+        return meshIds[order[k]];
+    }
+
+    public int getTextureId(int k)
+    {
+        return textureIds[order[k]];
+    }
+
+    public int getMaterialId(int k)
+    {
+        return materialIds[order[k]];
+    }
+
+    public Material getMaterial(int k)
+    {
+        return materials[order[k]];
+    }
+
+    /**
+     * Get the modelview matrix of the k-th item
+     * @param k the position of the item
+     * @param dest the matrix to store it in
+     * @return dest
+     */
+    public Matrix4f getModelview(int k,Matrix4f dest)
+    {
+        return dest.set(modelviews,16*order[k]);
+    }
+
+    private void grow()
+    {
+        int n = 2*keys.length;
+        meshIds = Arrays.copyOf(meshIds,n);
+        textureIds = Arrays.copyOf(textureIds,n);
+        materialIds = Arrays.copyOf(materialIds,n);
+        materials = Arrays.copyOf(materials,n);
+        modelviews = Arrays.copyOf(modelviews,16*n);
+        keys = Arrays.copyOf(keys,n);
+        order = Arrays.copyOf(order,n);
+        keyScratch = new long[n];
+        orderScratch = new int[n];
+    }
+}
@@ -0,0 +1,232 @@
+package sgraph;
+
+import org.joml.Matrix3f;
+import org.joml.Matrix4f;
+import org.joml.Quaternionf;
+import util.Material;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The state of a compiled scene graph that changes from frame to frame and is needed to draw
+ * it: the world transform and bounding box of every node, and the material of every leaf. A
+ * {@link CompiledScenegraph} copies this state into a snapshot when it is published, and draws
+ * from the latest published snapshot, so that the thread that animates the scene can work on
+ * the next frame while another thread draws this one. Everything else needed to draw (the
+ * layout of the nodes, meshes, textures) does not change until the scene is compiled again.
+ *
+ * Each snapshot also records the simulation time of its state, so that a frame can be drawn
+ * at a time between two snapshots with the world transforms interpolated between them (see
+ * {@link #interpolate}).
+ */
+public class SceneSnapshot
+{
+    /**
+     * The number of the frame this is a copy of, 0 if it has never been published
+     */
+    protected long frame;
+
+    /**
+     * The simulation time of the state this is a copy of
+     */
+    protected double time;
+
+    /**
+     * The number of nodes, and their world transforms and bounds, laid out as in
+     * {@link CompiledScenegraph}
+     */
+    protected int size;
+    protected float[] world,bounds;
+
+    /**
+     * The material of each node that draws a mesh, as an index into {@link #materials}
+     */
+    protected int[] materialId;
+    protected List<Material> materials;
+
+    /**
+     * Scratch space for interpolating, used only by the thread that draws
+     */
+    private Matrix3f from3,to3,rotation,matrix;
+    private Quaternionf delta,partial;
+    private float[] scratch;
+
+    public SceneSnapshot()
+    {
+        frame = 0;
+        time = 0;
+        size = 0;
+        world = new float[0];
+        bounds = new float[0];
+        materialId = new int[0];
+        materials = new ArrayList<Material>();
+        from3 = new Matrix3f();
+        to3 = new Matrix3f();
+        rotation = new Matrix3f();
+        matrix = new Matrix3f();
+        delta = new Quaternionf();
+        partial = new Quaternionf();
+        scratch = new float[16];
+    }
+
+    /**
+     * Copy the state of a compiled scene graph, growing the arrays if needed. Once they are big
+     * enough copying does not allocate
+     * @param compiled the scene graph, whose world transforms must be up to date
+     * @param frame the number of the frame
+     * @param time the simulation time of the state
+     */
+    void copyFrom(CompiledScenegraph compiled,long frame,double time)
+    {
+        int n = compiled.size;
+        if (world.length < 16*n)
+        {
+            world = new float[16*n];
+            bounds = new float[6*n];
+            materialId = new int[n];
+        }
+        System.arraycopy(compiled.world,0,world,0,16*n);
+        System.arraycopy(compiled.bounds,0,bounds,0,6*n);
+        System.arraycopy(compiled.materialId,0,materialId,0,n);
+
+        List<Material> source = compiled.materials;
+        for (int k=0;k<source.size();k++)
+        {
+            if (k < materials.size())
+            {
+                materials.set(k,source.get(k));
+            }
+            else
+            {
+                materials.add(source.get(k));
+            }
+        }
+        while (materials.size() > source.size())
+        {
+            materials.remove(materials.size()-1);
+        }
+        size = n;
+        this.frame = frame;
+        this.time = time;
+    }
+
+    /**
+     * Make this snapshot use the arrays of a compiled scene graph itself instead of copies, for
+     * drawing it on the thread that updates it
+     * @param compiled the scene graph
+     */
+    void share(CompiledScenegraph compiled)
+    {
+        size = compiled.size;
+        world = compiled.world;
+        bounds = compiled.bounds;
+        materialId = compiled.materialId;
+        materials = compiled.materials;
+        frame = 0;
+    }
+
+    /**
+     * Get the number of the frame this is a copy of
+     * @return the frame, 0 if this snapshot has never been published
+     */
+    public long getFrame()
+    {
+        return frame;
+    }
+
+    /**
+     * Get the simulation time of the state this is a copy of
+     */
+    public double getTime()
+    {
+        return time;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Get the world transformation of a node in this frame
+     * @param index the index the node was compiled to
+     * @param dest the matrix to store the transformation in
+     * @return dest
+     */
+    public Matrix4f getWorldTransform(int index,Matrix4f dest)
+    {
+        return dest.set(world,16*index);
+    }
+
+    /**
+     * Get the world transformation of a node part of the way from an earlier snapshot to this
+     * one. Blending the matrices directly would shrink whatever turns in between, so the
+     * rotation that takes the earlier 3x3 part to this one is found and applied gradually
+     * instead, and only what is left over after it (scale and shear) is blended. The
+     * translation is blended directly. If either matrix is singular, or one is mirrored and the
+     * other not, every element is blended. Both snapshots must be of the same compiled form, and
+     * the transforms affine
+     * @param from the earlier snapshot
+     * @param index the index the node was compiled to
+     * @param t how far to go from the earlier snapshot (0) to this one (1)
+     * @param dest the matrix to store the transformation in
+     * @return dest
+     */
+    public Matrix4f interpolate(SceneSnapshot from,int index,float t,Matrix4f dest)
+    {
+        float[] a = from.world,b = world;
+        int o = 16*index;
+        set3(from3,a,o);
+        set3(to3,b,o);
+        float det = from3.determinant();
+        if ((Math.abs(det) < 1e-12f) || ((det > 0) != (to3.determinant() > 0)))
+        {
+            //no rotation between them: blend every element
+            for (int k=0;k<16;k++)
+            {
+                scratch[k] = a[o+k] + t*(b[o+k]-a[o+k]);
+            }
+            return dest.set(scratch);
+        }
+
+        //the rotation part of what takes from3 to to3, and then to3 without that rotation
+        rotation.set(to3).mul(matrix.set(from3).invert());
+        delta.setFromUnnormalized(rotation);
+        rotation.set(delta).transpose().mul(to3);
+        lerp3(from3,rotation,t,rotation);
+
+        partial.identity().slerp(delta,t);
+        matrix.set(partial).mul(rotation);
+        return dest.set(matrix)
+                .setTranslation(a[o+12] + t*(b[o+12]-a[o+12]),
+                        a[o+13] + t*(b[o+13]-a[o+13]),
+                        a[o+14] + t*(b[o+14]-a[o+14]));
+    }
+
+    private static void lerp3(Matrix3f a,Matrix3f b,float t,Matrix3f dest)
+    {
+        dest.m00 = a.m00 + t*(b.m00-a.m00);
+        dest.m01 = a.m01 + t*(b.m01-a.m01);
+        dest.m02 = a.m02 + t*(b.m02-a.m02);
+        dest.m10 = a.m10 + t*(b.m10-a.m10);
+        dest.m11 = a.m11 + t*(b.m11-a.m11);
+        dest.m12 = a.m12 + t*(b.m12-a.m12);
+        dest.m20 = a.m20 + t*(b.m20-a.m20);
+        dest.m21 = a.m21 + t*(b.m21-a.m21);
+        dest.m22 = a.m22 + t*(b.m22-a.m22);
+    }
+
+    private static void set3(Matrix3f m,float[] a,int o)
+    {
+        m.m00 = a[o];
+        m.m01 = a[o+1];
+        m.m02 = a[o+2];
+        m.m10 = a[o+4];
+        m.m11 = a[o+5];
+        m.m12 = a[o+6];
+        m.m20 = a[o+8];
+        m.m21 = a[o+9];
+        m.m22 = a[o+10];
+    }
+}
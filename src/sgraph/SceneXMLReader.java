@@ -6,7 +6,9 @@ import org.xml.sax.SAXException;
 import org.xml.sax.helpers.DefaultHandler;
 import sgraph.Nodes.GroupNode;
 import sgraph.Nodes.INode;
+import sgraph.Nodes.LODNode;
 import sgraph.Nodes.LeafNode;
+import sgraph.Nodes.ReferenceNode;
 import sgraph.Nodes.TransformNode;
 import util.TextureImage;
 
@@ -14,10 +16,20 @@ import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Scanner;
 import java.util.Stack;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 
 /**
@@ -53,6 +65,29 @@ class MyHandler extends DefaultHandler
     private util.Material material;
     private util.Light light;
     private Map<String,INode> subgraph;
+    private AnimationClip clip;
+    private AnimationChannel channel;
+    private float keyTime;
+    private ProceduralAnimation procedural;
+    private String overrideNode;
+    private List<String> meshNames;
+    private List<Future<util.PolygonMesh[]>> meshes;
+
+    /**
+     * Reads, optimizes and simplifies the meshes of instances, one mesh per thread. Its threads
+     * are daemons, so that they do not keep the program running
+     */
+    private static final ExecutorService MESH_LOADER = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(),new ThreadFactory()
+            {
+                @Override
+                public Thread newThread(Runnable r)
+                {
+                    Thread t = new Thread(r,"Mesh loader");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
 
     public IScenegraph getScenegraph()
     {
@@ -71,10 +106,37 @@ class MyHandler extends DefaultHandler
         transform = new Matrix4f();
         material = new util.Material();
         light = new util.Light();
+        clip = null;
+        channel = null;
+        procedural = null;
+        overrideNode = null;
+        meshNames = new ArrayList<String>();
+        meshes = new ArrayList<Future<util.PolygonMesh[]>>();
     }
 
     public void endDocument() throws SAXException
     {
+        for (int i=0;i<meshes.size();i++)
+        {
+            util.PolygonMesh[] levels;
+            try
+            {
+                levels = meshes.get(i).get();
+            }
+            catch (ExecutionException e)
+            {
+                throw new SAXException("Mesh "+meshNames.get(i)+" could not be loaded: "+e.getCause());
+            }
+            catch (InterruptedException e)
+            {
+                throw new SAXException("Interrupted while loading mesh "+meshNames.get(i));
+            }
+            scenegraph.addPolygonMesh(meshNames.get(i),levels[0]);
+            for (int l=1;l<levels.length;l++)
+            {
+                scenegraph.addPolygonMesh(meshNames.get(i)+"-lod"+l,levels[l]);
+            }
+        }
     }
 
     public void startElement(String uri,String localName,String qName,Attributes attributes) throws SAXException
@@ -104,8 +166,11 @@ class MyHandler extends DefaultHandler
                 }
                 if ((copyof.length()>0) && (subgraph.containsKey(copyof)))
                 {
-                    node = subgraph.get(copyof).clone();
-                    node.setName(name);
+                    //share the subtree instead of copying it
+                    INode shared = subgraph.get(copyof);
+                    if (stackNodes.contains(shared))
+                        throw new SAXException(name+" cannot be a copy of "+copyof+", which contains it");
+                    node = new ReferenceNode(scenegraph,name,shared);
                 }
                 else if (fromfile.length()>0)
                 {
@@ -121,6 +186,14 @@ class MyHandler extends DefaultHandler
                     {
                         scenegraph.addPolygonMesh(s.getKey(),s.getValue());
                     }
+                    for (AnimationClip c:tempsg.getAnimations())
+                    {
+                        scenegraph.addAnimation(c.copyWithPrefix(name+"-"));
+                    }
+                    for (ProceduralAnimation p:tempsg.getProceduralAnimations())
+                    {
+                        scenegraph.addProceduralAnimation(p.copyWithPrefix(name+"-"));
+                    }
                     //rename all the nodes in tempsg to prepend with the name of the group node
                     Map<String,INode> nodes = tempsg.getNodes();
                     for (Map.Entry<String,INode> s:nodes.entrySet())
@@ -145,6 +218,53 @@ class MyHandler extends DefaultHandler
                 subgraph.put(stackNodes.peek().getName(),stackNodes.peek());
             }
             break;
+            case "lod":
+            {
+                String name = "";
+                String metric = "distance";
+                String thresholds = "";
+                float hysteresis = 0.1f;
+                float radius = 1;
+                for (int i=0;i<attributes.getLength();i++)
+                {
+                    if (attributes.getQName(i).equals("name"))
+                        name = attributes.getValue(i);
+                    else if (attributes.getQName(i).equals("metric"))
+                        metric = attributes.getValue(i);
+                    else if (attributes.getQName(i).equals("thresholds"))
+                        thresholds = attributes.getValue(i);
+                    else if (attributes.getQName(i).equals("hysteresis"))
+                        hysteresis = Float.parseFloat(attributes.getValue(i));
+                    else if (attributes.getQName(i).equals("radius"))
+                        radius = Float.parseFloat(attributes.getValue(i));
+                }
+                String[] parts = thresholds.trim().split("\\s+");
+                float[] values = new float[thresholds.trim().length()>0 ? parts.length : 0];
+                for (int i=0;i<values.length;i++)
+                {
+                    values[i] = Float.parseFloat(parts[i]);
+                }
+                LODNode lod = new LODNode(scenegraph,name);
+                try
+                {
+                    if (metric.equals("distance"))
+                        lod.setThresholds(LODNode.Metric.DISTANCE,values,hysteresis);
+                    else if (metric.equals("size"))
+                        lod.setThresholds(LODNode.Metric.SIZE,values,hysteresis);
+                    else
+                        throw new IllegalArgumentException("Unknown level of detail metric: "+metric);
+                    lod.setRadius(radius);
+                    stackNodes.peek().addChild(lod);
+                }
+                catch (IllegalArgumentException e)
+                {
+                    throw new SAXException(e.getMessage());
+                }
+                node = lod;
+                stackNodes.push(node);
+                subgraph.put(stackNodes.peek().getName(),stackNodes.peek());
+            }
+            break;
             case "transform":
             {
                 String name = "";
@@ -172,6 +292,7 @@ class MyHandler extends DefaultHandler
                 String name = "";
                 String objectname ="";
                 String texturename = "";
+                boolean occluder = false;
                 for (int i=0;i<attributes.getLength();i++)
                 {
                     if (attributes.getQName(i).equals("name"))
@@ -185,11 +306,17 @@ class MyHandler extends DefaultHandler
                     {
                         texturename = attributes.getValue(i);
                     }
+                    else if (attributes.getQName(i).equals("occluder"))
+                    {
+                        occluder = Boolean.parseBoolean(attributes.getValue(i));
+                    }
                 }
                 if (objectname.length()>0)
                 {
 
-                    node = new LeafNode(objectname,scenegraph,name,texturename);
+                    LeafNode leaf = new LeafNode(objectname,scenegraph,name,texturename);
+                    leaf.setOccluder(occluder);
+                    node = leaf;
                     try
                     {
                         stackNodes.peek().addChild(node);
@@ -207,6 +334,7 @@ class MyHandler extends DefaultHandler
             {
                 String name = "";
                 String path = "";
+                String lod = "";
                 for (int i=0;i<attributes.getLength();i++)
                 {
                     if (attributes.getQName(i).equals("name"))
@@ -219,16 +347,197 @@ class MyHandler extends DefaultHandler
                         if (!path.endsWith(".obj"))
                             path = path + ".obj";
                     }
+                    else if (attributes.getQName(i).equals("lod"))
+                    {
+                        lod = attributes.getValue(i);
+                    }
                 }
                 if ((name.length()>0) && (path.length()>0))
                 {
-                    util.PolygonMesh mesh=null;
-                    mesh = util.ObjImporter.importFile(getClass().getClassLoader().getResourceAsStream(path), false);
-                    scenegraph.addPolygonMesh(name,mesh);
+                    String[] parts = lod.trim().split("\\s+");
+                    final float[] ratios = new float[lod.trim().length()>0 ? parts.length : 0];
+                    for (int i=0;i<ratios.length;i++)
+                    {
+                        ratios[i] = Float.parseFloat(parts[i]);
+                    }
+                    final InputStream in = getClass().getClassLoader().getResourceAsStream(path);
+                    if (in == null)
+                        throw new SAXException("Mesh "+name+" could not be loaded: "+path+" not found");
+                    //read the mesh and simplify it on another thread, to be added at the end
+                    meshNames.add(name);
+                    meshes.add(MESH_LOADER.submit(new Callable<util.PolygonMesh[]>()
+                    {
+                        @Override
+                        public util.PolygonMesh[] call() throws IllegalArgumentException,IOException
+                        {
+                            util.PolygonMesh mesh;
+                            try
+                            {
+                                mesh = util.ObjImporter.importFile(in, false, true);
+                            }
+                            finally
+                            {
+                                in.close();
+                            }
+                            util.PolygonMesh[] levels = util.MeshSimplifier.simplify(mesh,ratios);
+                            util.PolygonMesh[] all = new util.PolygonMesh[levels.length+1];
+                            all[0] = mesh;
+                            System.arraycopy(levels,0,all,1,levels.length);
+                            return all;
+                        }
+                    }));
                 }
 
             }
             break;
+            case "animation":
+            {
+                String name = "";
+                float duration = -1;
+                boolean loop = true;
+                for (int i=0;i<attributes.getLength();i++)
+                {
+                    if (attributes.getQName(i).equals("name"))
+                        name = attributes.getValue(i);
+                    else if (attributes.getQName(i).equals("duration"))
+                        duration = Float.parseFloat(attributes.getValue(i));
+                    else if (attributes.getQName(i).equals("loop"))
+                        loop = Boolean.parseBoolean(attributes.getValue(i));
+                }
+                clip = new AnimationClip(name);
+                clip.setDuration(duration);
+                clip.setLoop(loop);
+            }
+            break;
+            case "channel":
+            {
+                String nodename = "";
+                for (int i=0;i<attributes.getLength();i++)
+                {
+                    if (attributes.getQName(i).equals("node"))
+                        nodename = attributes.getValue(i);
+                }
+                if ((clip == null) || (nodename.length()==0))
+                    throw new SAXException("A channel must be inside an animation and name its node");
+                channel = new AnimationChannel(nodename);
+            }
+            break;
+            case "key":
+            {
+                if (channel == null)
+                    throw new SAXException("A key must be inside a channel");
+                keyTime = 0;
+                for (int i=0;i<attributes.getLength();i++)
+                {
+                    if (attributes.getQName(i).equals("time"))
+                        keyTime = Float.parseFloat(attributes.getValue(i));
+                }
+                transform.identity();
+            }
+            break;
+            case "procedural":
+            {
+                String name = "";
+                String parameters = "";
+                for (int i=0;i<attributes.getLength();i++)
+                {
+                    if (attributes.getQName(i).equals("name"))
+                        name = attributes.getValue(i);
+                    else if (attributes.getQName(i).equals("parameters"))
+                        parameters = attributes.getValue(i);
+                }
+                try
+                {
+                    procedural = new ProceduralAnimation(name,
+                            (parameters.trim().length()>0) ? Arrays.asList(parameters.trim().split("\\s+")) : new ArrayList<String>());
+                }
+                catch (IllegalArgumentException e)
+                {
+                    throw new SAXException(e.getMessage());
+                }
+            }
+            break;
+            case "target":
+            {
+                if (procedural == null)
+                    throw new SAXException("A target must be inside a procedural animation");
+                String nodename = "";
+                Map<String,Double> parameters = new TreeMap<String,Double>();
+                for (int i=0;i<attributes.getLength();i++)
+                {
+                    if (attributes.getQName(i).equals("node"))
+                        nodename = attributes.getValue(i);
+                    else
+                        parameters.put(attributes.getQName(i),Double.parseDouble(attributes.getValue(i)));
+                }
+                try
+                {
+                    procedural.addTarget(nodename,parameters);
+                }
+                catch (IllegalArgumentException e)
+                {
+                    throw new SAXException(e.getMessage());
+                }
+            }
+            break;
+            case "translate":
+            case "rotate":
+            case "scale":
+            {
+                //inside a procedural animation these have expressions as attributes, otherwise
+                //their numbers are read when they end
+                if (procedural == null)
+                    break;
+                Map<String,String> values = new TreeMap<String,String>();
+                for (int i=0;i<attributes.getLength();i++)
+                {
+                    values.put(attributes.getQName(i),attributes.getValue(i));
+                }
+                String none = qName.equals("scale") ? "1" : "0";
+                try
+                {
+                    if (qName.equals("rotate"))
+                    {
+                        Scanner axis = new Scanner(values.containsKey("axis") ? values.get("axis") : "");
+                        procedural.addRotate(values.containsKey("angle") ? values.get("angle") : "0",
+                                axis.nextFloat(),axis.nextFloat(),axis.nextFloat());
+                    }
+                    else
+                    {
+                        String x = values.containsKey("x") ? values.get("x") : none;
+                        String y = values.containsKey("y") ? values.get("y") : none;
+                        String z = values.containsKey("z") ? values.get("z") : none;
+                        if (qName.equals("translate"))
+                            procedural.addTranslate(x,y,z);
+                        else
+                            procedural.addScale(x,y,z);
+                    }
+                }
+                catch (IllegalArgumentException e)
+                {
+                    throw new SAXException(e.getMessage());
+                }
+                catch (NoSuchElementException e)
+                {
+                    throw new SAXException("A procedural rotation needs an axis");
+                }
+            }
+            break;
+            case "override":
+            {
+                //overrides a node of the subtree shared by the enclosing copy, with the set and
+                //material elements inside it
+                if (!(stackNodes.peek() instanceof ReferenceNode))
+                    throw new SAXException("An override must be inside a group that is a copy");
+                overrideNode = "";
+                for (int i=0;i<attributes.getLength();i++)
+                {
+                    if (attributes.getQName(i).equals("node"))
+                        overrideNode = attributes.getValue(i);
+                }
+                transform.identity();
+            }
+            break;
             case "image":{
                 String name = "";
                 String path = "";
@@ -282,30 +591,100 @@ class MyHandler extends DefaultHandler
                     scenegraph.makeScenegraph(stackNodes.peek());
                 else
                     throw new SAXException("Invalid scene file");
+                //every animated node must exist by now, and be able to take an animation transform
+                for (AnimationClip c:scenegraph.getAnimations())
+                {
+                    for (AnimationChannel ch:c.getChannels())
+                    {
+                        if (!(scenegraph.getNode(ch.getNodeName()) instanceof TransformNode))
+                            throw new SAXException("Animation "+c.getName()+" animates "+ch.getNodeName()+", which is not a transform node");
+                    }
+                }
+                for (ProceduralAnimation p:scenegraph.getProceduralAnimations())
+                {
+                    for (String target:p.getTargets())
+                    {
+                        if (!(scenegraph.getNode(target) instanceof TransformNode))
+                            throw new SAXException("Animation "+p.getName()+" animates "+target+", which is not a transform node");
+                    }
+                }
+                break;
+            case "key":
+                try
+                {
+                    channel.addKey(keyTime,transform);
+                }
+                catch (IllegalArgumentException e)
+                {
+                    throw new SAXException(e.getMessage());
+                }
+                transform.identity();
+                break;
+            case "channel":
+                clip.addChannel(channel);
+                channel = null;
+                break;
+            case "animation":
+                scenegraph.addAnimation(clip);
+                clip = null;
+                break;
+            case "procedural":
+                scenegraph.addProceduralAnimation(procedural);
+                procedural = null;
                 break;
             case "group":
+            case "lod":
             case "transform":
             case "object":
                 stackNodes.pop();
                 break;
+            case "override":
+                overrideNode = null;
+                break;
             case "set":
-                stackNodes.peek().setTransform(transform);
+                try
+                {
+                    if (overrideNode != null)
+                        ((ReferenceNode)stackNodes.peek()).setTransform(overrideNode,transform);
+                    else
+                        stackNodes.peek().setTransform(transform);
+                }
+                catch (IllegalArgumentException e)
+                {
+                    throw new SAXException(e.getMessage());
+                }
                 transform.identity();
                 break;
             case "scale":
+                if (procedural != null)
+                    break;
                 sc = new Scanner(data);
                 transform.scale(sc.nextFloat(),sc.nextFloat(),sc.nextFloat());
                 break;
             case "rotate":
+                if (procedural != null)
+                    break;
                 sc = new Scanner(data);
                 transform.rotate((float) Math.toRadians(sc.nextFloat()), sc.nextFloat(), sc.nextFloat(), sc.nextFloat());
                 break;
             case "translate":
+                if (procedural != null)
+                    break;
                 sc = new Scanner(data);
                 transform.translate(sc.nextFloat(),sc.nextFloat(),sc.nextFloat());
                 break;
             case "material":
-                stackNodes.peek().setMaterial(material);
+                try
+                {
+                    if (overrideNode != null)
+                        ((ReferenceNode)stackNodes.peek()).setMaterial(overrideNode,material);
+                    else
+                        stackNodes.peek().setMaterial(material);
+                }
+                catch (IllegalArgumentException e)
+                {
+                    throw new SAXException(e.getMessage());
+                }
                 // wipe out the data stored in light and material
                 material = new util.Material();
                 light = new util.Light();
@@ -387,6 +766,10 @@ class MyHandler extends DefaultHandler
                 sc = new Scanner(data);
                 light.setSpotDirection(sc.nextFloat(), sc.nextFloat(), sc.nextFloat());
                 break;
+            case "range":
+                sc = new Scanner(data);
+                light.setRange(sc.nextFloat());
+                break;
         }
 
 
@@ -2,11 +2,13 @@ package sgraph;
 
 import org.joml.Matrix4f;
 import sgraph.Nodes.INode;
+import sgraph.Nodes.TransformNode;
 import util.Light;
 import util.PolygonMesh;
 import util.TextureImage;
 
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * A specific implementation of this scene graph. This implementation is still independent
@@ -31,9 +33,10 @@ public class Scenegraph implements IScenegraph
     protected Map<String, util.TextureImage> textureImages;
 
     /**
-     * A map to store the (name,node) pairs. A map is chosen for efficient search
+     * The named nodes, which hands out handles to them so that they can be reached without a
+     * search
      */
-    protected Map<String,INode> nodes;
+    protected NodeRegistry nodes;
 
     /**
      * The associated renderer for this scene graph. This must be set before attempting to
@@ -41,13 +44,80 @@ public class Scenegraph implements IScenegraph
      */
     protected IScenegraphRenderer renderer;
 
+    /**
+     * The compiled form of the tree, or null if this scene graph has not been compiled. Once
+     * frames are published, only the thread that updates the scene uses it
+     */
+    protected CompiledScenegraph compiled;
+
+    /**
+     * The pool and threshold used to update world transforms in parallel. They are kept here
+     * so that they also apply after the tree has been compiled again
+     */
+    protected ForkJoinPool transformUpdatePool;
+    protected int transformUpdateThreshold;
+
+    /**
+     * The projection used for view-frustum culling (null if culling is off), and the counts
+     * of the last frame drawn. The projection is replaced rather than changed, so that the
+     * thread that draws can read it while another one sets it
+     */
+    protected volatile Matrix4f projection;
+    protected FrameStatistics frameStatistics;
+
+    /**
+     * The buffer used for occlusion culling, null if it is off. It and the projection are
+     * handed to the compiled form that is drawn just before drawing it, on the thread that
+     * draws, so that they never change during a frame or miss a compiled form made later
+     */
+    protected volatile OcclusionBuffer occlusionBuffer;
+
+    /**
+     * Plays the keyframe animation clips of this scene graph
+     */
+    protected Animator animator;
+
+    /**
+     * The batch handed out by {@link #beginBatch()}, and the one that each call to
+     * {@link #animate} records its changes in. Both are kept so that they do not allocate
+     */
+    private TransformBatch batch,animationBatch;
+
+    /**
+     * The node of each change of the batch being committed, looked up once
+     */
+    private TransformNode[] batchNodes;
+
+    /**
+     * The compiled form whose snapshots are drawn, set when a frame is first published. It is
+     * written by the thread that publishes and read by the one that draws
+     */
+    private volatile CompiledScenegraph published;
+
+    /**
+     * The simulation time to draw published frames at, set by the thread that draws
+     */
+    private double drawTime;
 
     public Scenegraph()
     {
         root = null;
         meshes = new TreeMap<String,util.PolygonMesh>();
-        nodes = new TreeMap<String,INode>();
+        nodes = new NodeRegistry();
+        animatedNodesVersion = -1;
+        animation = new Matrix4f();
         textureImages = new TreeMap<String, TextureImage>();
+        transformUpdatePool = null;
+        transformUpdateThreshold = CompiledScenegraph.DEFAULT_PARALLEL_THRESHOLD;
+        projection = null;
+        frameStatistics = new FrameStatistics();
+        occlusionBuffer = null;
+        animator = new Animator(this);
+        batch = new TransformBatch();
+        animationBatch = new TransformBatch();
+        batchNodes = new TransformNode[0];
+        published = null;
+        drawTime = Double.NaN;
     }
 
     public void dispose()
@@ -65,6 +135,7 @@ public class Scenegraph implements IScenegraph
     @Override
     public void setRenderer(IScenegraphRenderer renderer) throws Exception {
         this.renderer = renderer;
+        this.renderer.setProjection(projection);
         List<Light> lol = this.getRoot().getAllLights(new Matrix4f());
         this.renderer.addLights(lol);
 
@@ -94,7 +165,69 @@ public class Scenegraph implements IScenegraph
     {
         this.root = root;
         this.root.setScenegraph(this);
+        if (compiled != null)
+        {
+            compile();
+        }
+    }
 
+    /**
+     * Compile the tree into a {@link CompiledScenegraph}, which is used for drawing from now on
+     */
+    @Override
+    public void compile()
+    {
+        if (root != null)
+        {
+            compiled = CompiledScenegraph.compile(root,meshes);
+            compiled.setParallelUpdate(transformUpdatePool,transformUpdateThreshold);
+            compiled.setFrameStatistics(frameStatistics);
+        }
+    }
+
+    /**
+     * Set the projection used to cull parts of the compiled scene graph that are outside the
+     * view frustum, and to cluster lights in the renderer
+     * @param projection the projection matrix, or null to disable culling
+     */
+    @Override
+    public void setProjection(Matrix4f projection)
+    {
+        this.projection = (projection!=null) ? new Matrix4f(projection) : null;
+        if (renderer != null)
+        {
+            renderer.setProjection(this.projection);
+        }
+    }
+
+    @Override
+    public Matrix4f getProjection()
+    {
+        return projection;
+    }
+
+    @Override
+    public void setOcclusionBuffer(OcclusionBuffer occlusion)
+    {
+        this.occlusionBuffer = occlusion;
+    }
+
+    @Override
+    public FrameStatistics getFrameStatistics()
+    {
+        return frameStatistics;
+    }
+
+    @Override
+    public void setParallelTransformUpdate(ForkJoinPool pool,int threshold)
+    {
+        transformUpdatePool = pool;
+        transformUpdateThreshold = threshold;
+        animator.setParallelUpdate(pool,Animator.DEFAULT_PARALLEL_THRESHOLD);
+        if (compiled != null)
+        {
+            compiled.setParallelUpdate(pool,threshold);
+        }
     }
 
     /**
@@ -112,6 +245,42 @@ public class Scenegraph implements IScenegraph
         }
     }
 
+    /**
+     * Draw this scene graph with a preallocated modelview stack. It delegates this operation
+     * to the renderer, passing it the compiled form if this scene graph has been compiled.
+     * Once a frame has been published, the compiled form that was published is drawn from its
+     * latest snapshot, and is never compiled again here
+     * @param modelView
+     */
+    @Override
+    public void draw(MatrixStack modelView) {
+        if ((root!=null) && (renderer!=null))
+        {
+            CompiledScenegraph frame = published;
+            if (frame != null)
+            {
+                frame.setDrawTime(drawTime);
+                frame.setProjection(projection);
+                frame.setOcclusionBuffer(occlusionBuffer);
+                renderer.draw(frame,modelView);
+            }
+            else if (compiled != null)
+            {
+                if (compiled.isStale())
+                {
+                    compile();
+                }
+                compiled.setProjection(projection);
+                compiled.setOcclusionBuffer(occlusionBuffer);
+                renderer.draw(compiled,modelView);
+            }
+            else
+            {
+                renderer.draw(root,modelView);
+            }
+        }
+    }
+
 
     @Override
     public void addPolygonMesh(String name,util.PolygonMesh mesh)
@@ -125,26 +294,59 @@ public class Scenegraph implements IScenegraph
     }
 
     boolean trainTransformFlag = true;
+    private float lastTrainTime = 0;
+
+    /**
+     * The handles of the nodes animated by {@link #animate}, resolved once from their names.
+     * They are resolved again only if the registry has changed since
+     */
+    private int trainHandle,spiderAHandle,spiderBHandle;
+    private int animatedNodesVersion;
+    private boolean hasAnimatedNodes;
+
+    /**
+     * Scratch matrix for the animation transforms, which the batch copies
+     */
+    private Matrix4f animation;
+
+    private void resolveAnimatedNodes()
+    {
+        trainHandle = nodes.getHandle("train-transform");
+        spiderAHandle = nodes.getHandle("spiderA-transform");
+        spiderBHandle = nodes.getHandle("spiderB-transform");
+        hasAnimatedNodes = (trainHandle != NodeRegistry.NO_HANDLE)
+                && (spiderAHandle != NodeRegistry.NO_HANDLE)
+                && (spiderBHandle != NodeRegistry.NO_HANDLE);
+        animatedNodesVersion = nodes.getVersion();
+    }
 
     // given time from 0 - 360
     @Override
     public void animate(float time) {
+        animationBatch.clear();
+        animator.update(time,animationBatch);
+
+        // the motion below is specific to the two-spiders scene
+        if (animatedNodesVersion != nodes.getVersion()) {
+            resolveAnimatedNodes();
+        }
+        if (!hasAnimatedNodes) {
+            commit(animationBatch);
+            return;
+        }
 
         float radius = 300f;
         //////////////////////////////////////
         // for test head part light
+        // the train turns around every time the time wraps around, whatever steps it comes in
+        if (time < lastTrainTime) {
+            trainTransformFlag = !trainTransformFlag;
+        }
+        lastTrainTime = time;
         if (trainTransformFlag) {
-            if (time * 2 == 718) {
-                trainTransformFlag = false;
-            }
-            nodes.get("train-transform").setAnimationTransform(
-                new Matrix4f().translate(time * 2, 0, 0));
+            animationBatch.setAnimationTransform(trainHandle, animation.translation(time * 2, 0, 0));
         } else {
-            if (time * 2 == 718) {
-                trainTransformFlag = true;
-            }
-            nodes.get("train-transform").setAnimationTransform(
-                    new Matrix4f().translate(720 - time * 2, 0, 0));
+            animationBatch.setAnimationTransform(trainHandle, animation.translation(720 - time * 2, 0, 0));
         }
 
 //        nodes.get("train-transform").setAnimationTransform(
@@ -156,12 +358,12 @@ public class Scenegraph implements IScenegraph
 
         float offset = (float) (Math.PI / 2);
 
-        nodes.get("spiderB-transform").setAnimationTransform(new Matrix4f()
+        animationBatch.setAnimationTransform(spiderBHandle, animation.identity()
                 .rotate((float) Math.toRadians(time) + offset, 0, 1, 0)
                 .translate(radius, 0, 0)
                 .rotate((float) Math.toRadians(-90), 0, 1, 0));
 
-        nodes.get("spiderA-transform").setAnimationTransform(new Matrix4f()
+        animationBatch.setAnimationTransform(spiderAHandle, animation.identity()
                 .rotate((float) Math.toRadians(time), 0, 1, 0)
                 .translate(radius, 0, 0)
                 .rotate((float) Math.toRadians(-90), 0, 1, 0));
@@ -169,76 +371,146 @@ public class Scenegraph implements IScenegraph
 //        for(INode n : nodes.values())
 //            System.out.println(n.getName());
 
-        animateSpiderLegs();
+        commit(animationBatch);
+    }
 
+    @Override
+    public void addAnimation(AnimationClip clip) {
+        animator.addClip(clip);
+    }
 
+    @Override
+    public List<AnimationClip> getAnimations() {
+        return new ArrayList<AnimationClip>(animator.getClips());
     }
 
-    // Current time count
-    int count = 0;
+    @Override
+    public void addProceduralAnimation(ProceduralAnimation animation) {
+        animator.addProcedural(animation);
+    }
 
-    // Maximum time count before returning to 0
-    int loopLimit = 100;
+    @Override
+    public List<ProceduralAnimation> getProceduralAnimations() {
+        return new ArrayList<ProceduralAnimation>(animator.getProcedurals());
+    }
 
-    // Time offset betwen each leg of rows
-    int offset = 20;
+    @Override
+    public void addNode(String name, INode node) {
+        nodes.add(name,node);
+    }
+
+    @Override
+    public int getNodeHandle(String name) {
+        return nodes.getHandle(name);
+    }
+
+    @Override
+    public INode getNode(int handle) {
+        return nodes.get(handle);
+    }
+
+    @Override
+    public INode getNode(String name) {
+        return nodes.get(name);
+    }
+
+    @Override
+    public void setAnimationTransform(int handle, Matrix4f transform) throws IllegalArgumentException {
+        INode node = nodes.get(handle);
+        if (node == null)
+            throw new IllegalArgumentException("No node with handle " + handle);
+        node.setAnimationTransform(transform);
+    }
+
+    @Override
+    public TransformBatch beginBatch() {
+        batch.clear();
+        return batch;
+    }
 
     /**
-     * Animate the movement of spider legs
+     * Checks every change first, so that either all of them are made or none. Then the new
+     * transforms are copied into all the nodes, and only after that does each changed node
+     * bring its dependents up to date, once. Finally the compiled scene graph, if any, updates
+     * its world transforms and refits its bounds
      */
-    private void animateSpiderLegs() {
-
-        count++;
-        // Animation Percentages from 0 to 1.
-        float row0_percentage = (count % loopLimit) / (float) loopLimit;
-        float row1_percentage = ((count + offset) % loopLimit) / (float) loopLimit;
-        float row2_percentage = ((count + offset * 2) % loopLimit) / (float) loopLimit;
-        float row3_percentage = ((count + offset * 3) % loopLimit) / (float) loopLimit;
-        // Using equation: rotationAmount = 1/8 * sin(theta * 360 - 180)
-        // Both spiders' Left Side
-        nodes.get("spiderA-root-legLeft0").setAnimationTransform(new Matrix4f()
-                .rotate((float) Math.sin(Math.toRadians(row0_percentage * 360 - 180)) / 8f, 0, 1, 0));
-        nodes.get("spiderA-root-legLeft1").setAnimationTransform(new Matrix4f()
-                .rotate((float) Math.sin(Math.toRadians(row1_percentage * 360 - 180)) / 8f, 0, 1, 0));
-        nodes.get("spiderA-root-legLeft2").setAnimationTransform(new Matrix4f()
-                .rotate((float) Math.sin(Math.toRadians(row2_percentage * 360 - 180)) / 8f, 0, 1, 0));
-        nodes.get("spiderA-root-legLeft3").setAnimationTransform(new Matrix4f()
-                .rotate((float) Math.sin(Math.toRadians(row3_percentage * 360 - 180)) / 8f, 0, 1, 0));
-
-        nodes.get("spiderB-root-legLeft0").setAnimationTransform(new Matrix4f()
-                .rotate((float) Math.sin(Math.toRadians(row0_percentage * 360 - 180)) / 8f, 0, 1, 0));
-        nodes.get("spiderB-root-legLeft1").setAnimationTransform(new Matrix4f()
-                .rotate((float) Math.sin(Math.toRadians(row1_percentage * 360 - 180)) / 8f, 0, 1, 0));
-        nodes.get("spiderB-root-legLeft2").setAnimationTransform(new Matrix4f()
-                .rotate((float) Math.sin(Math.toRadians(row2_percentage * 360 - 180)) / 8f, 0, 1, 0));
-        nodes.get("spiderB-root-legLeft3").setAnimationTransform(new Matrix4f()
-                .rotate((float) Math.sin(Math.toRadians(row3_percentage * 360 - 180)) / 8f, 0, 1, 0));
-
-        // Both spiders' Right side
-        nodes.get("spiderA-root-legRight0").setAnimationTransform(new Matrix4f()
-                .rotate((float) Math.sin(Math.toRadians(row0_percentage * 360 - 180)) / 8f, 0, 1, 0));
-        nodes.get("spiderA-root-legRight1").setAnimationTransform(new Matrix4f()
-                .rotate((float) Math.sin(Math.toRadians(row1_percentage * 360 - 180)) / 8f, 0, 1, 0));
-        nodes.get("spiderA-root-legRight2").setAnimationTransform(new Matrix4f()
-                .rotate((float) Math.sin(Math.toRadians(row2_percentage * 360 - 180)) / 8f, 0, 1, 0));
-        nodes.get("spiderA-root-legLeft3").setAnimationTransform(new Matrix4f()
-                .rotate((float) Math.sin(Math.toRadians(row3_percentage * 360 - 180)) / 8f, 0, 1, 0));
-
-        nodes.get("spiderB-root-legRight0").setAnimationTransform(new Matrix4f()
-                .rotate((float) Math.sin(Math.toRadians(row0_percentage * 360 - 180)) / 8f, 0, 1, 0));
-        nodes.get("spiderB-root-legRight1").setAnimationTransform(new Matrix4f()
-                .rotate((float) Math.sin(Math.toRadians(row1_percentage * 360 - 180)) / 8f, 0, 1, 0));
-        nodes.get("spiderB-root-legRight2").setAnimationTransform(new Matrix4f()
-                .rotate((float) Math.sin(Math.toRadians(row2_percentage * 360 - 180)) / 8f, 0, 1, 0));
-        nodes.get("spiderB-root-legRight3").setAnimationTransform(new Matrix4f()
-                .rotate((float) Math.sin(Math.toRadians(row3_percentage * 360 - 180)) / 8f, 0, 1, 0));
+    @Override
+    public void commit(TransformBatch batch) throws IllegalArgumentException {
+        if (batchNodes.length < batch.size()) {
+            batchNodes = new TransformNode[Math.max(batch.size(), 2 * batchNodes.length)];
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            batchNodes[i] = null;
+            int handle = batch.getHandle(i);
+            if (handle == NodeRegistry.NO_HANDLE)
+                continue;
+            INode node = nodes.get(handle);
+            if (node == null)
+                throw new IllegalArgumentException("No node with handle " + handle);
+            if (!(node instanceof TransformNode))
+                throw new IllegalArgumentException(node.getName() + " is not a transform node");
+            batchNodes[i] = (TransformNode) node;
+        }
+
+        float[] matrices = batch.getMatrices();
+        for (int i = 0; i < batch.size(); i++) {
+            if (batchNodes[i] != null) {
+                if (batch.isTRS(i)) {
+                    batchNodes[i].setAnimationTRS(matrices, 16 * i);
+                } else {
+                    batchNodes[i].setTransform(matrices, 16 * i, batch.isAnimation(i));
+                }
+            }
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            if (batchNodes[i] != null) {
+                batchNodes[i].commitTransform();
+                batchNodes[i] = null;
+            }
+        }
+        batch.clear();
+
+        if ((compiled != null) && !compiled.isStale()) {
+            compiled.updateWorldTransforms();
+        }
     }
 
+
     @Override
-    public void addNode(String name, INode node) {
-        nodes.put(name,node);
+    public void publish(double time) {
+        if (root == null)
+            return;
+        if ((compiled == null) || compiled.isStale()) {
+            compile();
+        }
+        compiled.publish(time);
+        published = compiled;
+    }
+
+    @Override
+    public void setDrawTime(double time) {
+        drawTime = time;
     }
 
+    /**
+     * Once a frame has been published, the world transform is read from the published frames
+     * only, since the tree belongs to the thread that updates it. Before that, nothing updates
+     * the tree on another thread, so it is read from the tree
+     */
+    @Override
+    public Matrix4f getWorldTransform(int handle, Matrix4f dest) throws IllegalArgumentException {
+        INode node = nodes.get(handle);
+        if (node == null)
+            throw new IllegalArgumentException("No node with handle " + handle);
+        CompiledScenegraph frame = published;
+        if (frame == null)
+            return dest.set(node.getWorldTransform());
+        int index = frame.indexOf(node);
+        if (index < 0)
+            throw new IllegalArgumentException(node.getName() + " is not part of the published frame");
+        frame.setDrawTime(drawTime);
+        return frame.getDrawnWorldTransform(index, dest);
+    }
 
     @Override
     public INode getRoot() {
@@ -255,9 +527,7 @@ public class Scenegraph implements IScenegraph
 
     @Override
     public Map<String, INode> getNodes() {
-        Map<String,INode> nodes = new TreeMap<String,INode>();
-        nodes.putAll(this.nodes);
-        return nodes;
+        return nodes.copyTo(new TreeMap<String,INode>());
     }
 
 
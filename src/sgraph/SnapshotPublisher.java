@@ -0,0 +1,128 @@
+package sgraph;
+
+import org.joml.Matrix4f;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Hands the frames of a {@link CompiledScenegraph} from the thread that updates it to the
+ * thread that draws it, as {@link SceneSnapshot}s. The snapshots take turns: one being written,
+ * the latest published one, and the two latest that drawing has taken, which it interpolates
+ * between if a time to draw at is set. Each side swaps a snapshot of its own for the latest
+ * published one with a single atomic exchange, so neither ever waits for the other.
+ *
+ * Until the first frame is published, drawing uses a snapshot that shares the arrays of the
+ * compiled scene graph itself, and must then be done on the thread that updates it.
+ */
+class SnapshotPublisher
+{
+    /**
+     * The snapshot being written by the updating thread, the latest one taken for drawing and
+     * the one taken before it, and the latest published one between the two sides. The number
+     * of frames published so far
+     */
+    private SceneSnapshot writing,reading,previous;
+    private final AtomicReference<SceneSnapshot> latest;
+    private long publishedFrames;
+
+    /**
+     * The snapshot drawn from in the current frame: either {@link #reading}, or {@link #live}
+     * which shares the arrays of the compiled scene graph
+     */
+    private SceneSnapshot view;
+    private final SceneSnapshot live;
+
+    /**
+     * The simulation time to draw at, NaN to draw the latest snapshot as it is, and how far
+     * from {@link #previous} to {@link #reading} that is for the current frame
+     */
+    private double drawTime;
+    private float interpolation;
+
+    SnapshotPublisher()
+    {
+        writing = new SceneSnapshot();
+        reading = new SceneSnapshot();
+        previous = new SceneSnapshot();
+        latest = new AtomicReference<SceneSnapshot>(new SceneSnapshot());
+        publishedFrames = 0;
+        live = new SceneSnapshot();
+        view = live;
+        drawTime = Double.NaN;
+        interpolation = 1;
+    }
+
+    /**
+     * Copy the state of a compiled scene graph into a snapshot, and exchange it for the latest
+     * published one. Only the thread that updates the scene may call this
+     * @param compiled the scene graph, whose world transforms must be up to date
+     * @param time the simulation time of this state
+     */
+    void publish(CompiledScenegraph compiled,double time)
+    {
+        writing.copyFrom(compiled,++publishedFrames,time);
+        writing = latest.getAndSet(writing);
+    }
+
+    /**
+     * Take the snapshot to draw the current frame from: the latest published one if there is
+     * one newer than the last drawn, the last drawn one otherwise, or the arrays of the compiled
+     * scene graph (brought up to date) if nothing has been published. The snapshot drawn before
+     * a newer one is kept to interpolate from. Only the thread that draws may call this
+     * @param compiled the scene graph
+     * @return the snapshot, which stays valid until this is called again
+     */
+    SceneSnapshot acquire(CompiledScenegraph compiled)
+    {
+        if (latest.get().frame > reading.frame)
+        {
+            SceneSnapshot free = previous;
+            previous = reading;
+            reading = latest.getAndSet(free);
+        }
+        interpolation = 1;
+        if (reading.frame > 0)
+        {
+            if (!Double.isNaN(drawTime) && (previous.frame > 0) && (reading.time > previous.time))
+            {
+                double t = (drawTime-previous.time)/(reading.time-previous.time);
+                interpolation = (float)Math.max(0,Math.min(t,1));
+            }
+            view = reading;
+        }
+        else
+        {
+            compiled.updateWorldTransforms();
+            live.share(compiled);
+            view = live;
+        }
+        return view;
+    }
+
+    /**
+     * Set the simulation time to draw published snapshots at. Only the thread that draws may
+     * call this
+     * @param time the time, in the units given to {@link #publish}, or NaN to always draw the
+     *             latest snapshot as it is
+     */
+    void setDrawTime(double time)
+    {
+        drawTime = time;
+    }
+
+    /**
+     * Get the world transformation of a node in the current frame, interpolated to the draw
+     * time
+     * @param index the index of the node
+     * @param dest the matrix to store the transformation in
+     * @return dest
+     */
+    Matrix4f getWorldTransform(int index,Matrix4f dest)
+    {
+        if (interpolation < 1)
+        {
+            return view.interpolate(previous,index,interpolation,dest);
+        }
+        return view.getWorldTransform(index,dest);
+    }
+}
@@ -0,0 +1,139 @@
+package sgraph;
+
+import org.joml.Matrix4f;
+
+/**
+ * A transformation made of a translation, a rotation (a unit quaternion) and a scale along each
+ * axis, applied in the order T*R*S. This takes 10 floats instead of the 16 of a matrix, and is
+ * what animations produce: a node animated this way only builds a matrix when one is needed,
+ * and composes it with its static transform directly (see {@link #mul(Matrix4f, Matrix4f)}).
+ *
+ * In float arrays it is laid out as translation (3), rotation (x, y, z, w) and scale (3), as in
+ * {@link AnimationChannel}.
+ */
+public class TRS
+{
+    public static final int FLOATS = 10;
+
+    public float tx,ty,tz;
+    public float qx,qy,qz,qw;
+    public float sx,sy,sz;
+
+    public TRS()
+    {
+        identity();
+    }
+
+    public TRS(TRS other)
+    {
+        set(other);
+    }
+
+    public TRS identity()
+    {
+        return set(0,0,0,0,0,0,1,1,1,1);
+    }
+
+    public TRS set(float tx,float ty,float tz,float qx,float qy,float qz,float qw,float sx,float sy,float sz)
+    {
+        this.tx = tx;
+        this.ty = ty;
+        this.tz = tz;
+        this.qx = qx;
+        this.qy = qy;
+        this.qz = qz;
+        this.qw = qw;
+        this.sx = sx;
+        this.sy = sy;
+        this.sz = sz;
+        return this;
+    }
+
+    public TRS set(TRS other)
+    {
+        return set(other.tx,other.ty,other.tz,other.qx,other.qy,other.qz,other.qw,other.sx,other.sy,other.sz);
+    }
+
+    /**
+     * Read this transformation from an array
+     * @param a the array
+     * @param offset where the 10 floats start
+     * @return this
+     */
+    public TRS set(float[] a,int offset)
+    {
+        return set(a[offset],a[offset+1],a[offset+2],a[offset+3],a[offset+4],a[offset+5],a[offset+6],
+                a[offset+7],a[offset+8],a[offset+9]);
+    }
+
+    /**
+     * Write this transformation to an array
+     * @param a the array
+     * @param offset where to write the 10 floats
+     */
+    public void get(float[] a,int offset)
+    {
+        a[offset] = tx;
+        a[offset+1] = ty;
+        a[offset+2] = tz;
+        a[offset+3] = qx;
+        a[offset+4] = qy;
+        a[offset+5] = qz;
+        a[offset+6] = qw;
+        a[offset+7] = sx;
+        a[offset+8] = sy;
+        a[offset+9] = sz;
+    }
+
+    /**
+     * Build the matrix of this transformation
+     * @param dest the matrix to store it in
+     * @return dest
+     */
+    public Matrix4f get(Matrix4f dest)
+    {
+        return dest.translationRotateScale(tx,ty,tz,qx,qy,qz,qw,sx,sy,sz);
+    }
+
+    /**
+     * Compute this * right, for an affine matrix right, without building the matrix of this
+     * transformation first. Only the upper 3x3 part and the translation are computed, since the
+     * last row of the product of two affine matrices is always (0,0,0,1)
+     * @param right the affine matrix to multiply by
+     * @param dest the matrix to store the product in. It may be right
+     * @return dest
+     */
+    public Matrix4f mul(Matrix4f right,Matrix4f dest)
+    {
+        //the columns of R*S
+        float xx = qx*qx,yy = qy*qy,zz = qz*qz;
+        float xy = qx*qy,xz = qx*qz,yz = qy*qz;
+        float wx = qw*qx,wy = qw*qy,wz = qw*qz;
+        float a00 = sx*(1-2*(yy+zz)),a01 = sx*2*(xy+wz),a02 = sx*2*(xz-wy);
+        float a10 = sy*2*(xy-wz),a11 = sy*(1-2*(xx+zz)),a12 = sy*2*(yz+wx);
+        float a20 = sz*2*(xz+wy),a21 = sz*2*(yz-wx),a22 = sz*(1-2*(xx+yy));
+
+        float r00 = right.m00,r01 = right.m01,r02 = right.m02;
+        float r10 = right.m10,r11 = right.m11,r12 = right.m12;
+        float r20 = right.m20,r21 = right.m21,r22 = right.m22;
+        float r30 = right.m30,r31 = right.m31,r32 = right.m32;
+
+        dest.m00 = a00*r00 + a10*r01 + a20*r02;
+        dest.m01 = a01*r00 + a11*r01 + a21*r02;
+        dest.m02 = a02*r00 + a12*r01 + a22*r02;
+        dest.m03 = 0;
+        dest.m10 = a00*r10 + a10*r11 + a20*r12;
+        dest.m11 = a01*r10 + a11*r11 + a21*r12;
+        dest.m12 = a02*r10 + a12*r11 + a22*r12;
+        dest.m13 = 0;
+        dest.m20 = a00*r20 + a10*r21 + a20*r22;
+        dest.m21 = a01*r20 + a11*r21 + a21*r22;
+        dest.m22 = a02*r20 + a12*r21 + a22*r22;
+        dest.m23 = 0;
+        dest.m30 = a00*r30 + a10*r31 + a20*r32 + tx;
+        dest.m31 = a01*r30 + a11*r31 + a21*r32 + ty;
+        dest.m32 = a02*r30 + a12*r31 + a22*r32 + tz;
+        dest.m33 = 1;
+        return dest;
+    }
+}
@@ -0,0 +1,186 @@
+package sgraph;
+
+import org.joml.Matrix4f;
+
+import java.util.Arrays;
+
+/**
+ * A set of changes to the transforms and animation transforms of nodes, recorded now and
+ * applied together by {@link IScenegraph#commit(TransformBatch)}. The matrices are copied into
+ * one preallocated array as they are recorded, so recording does not allocate once the batch
+ * has grown to the number of changes made each frame.
+ *
+ * Committing writes all the changes into the nodes first, and only then brings what depends on
+ * them up to date: each changed node does so once, however many times it was changed in the
+ * batch, and the world transforms and bounds of the compiled scene graph are refitted once for
+ * the whole batch. Nodes are given by their handles (see {@link IScenegraph#getNodeHandle}).
+ *
+ * Changes can also be recorded into slots reserved in advance with {@link #reserve(int)}. Each
+ * slot can then be filled by a different thread, as long as no two threads fill the same slot.
+ *
+ * An animation transform can also be recorded as a {@link TRS}, which takes the first 10 of the
+ * 16 floats of its slot and is passed on to the node as it is, without building a matrix.
+ */
+public class TransformBatch
+{
+    /**
+     * The node, and whether the animation transform or the static transform is changed, of each
+     * change. Slots whose handle is {@link NodeRegistry#NO_HANDLE} are skipped
+     */
+    private int[] handles;
+    private boolean[] animation;
+
+    /**
+     * Whether each change is a {@link TRS} rather than a matrix
+     */
+    private boolean[] trs;
+
+    /**
+     * The matrix of each change, 16 floats in column-major order
+     */
+    private float[] matrices;
+    private int size;
+
+    public TransformBatch()
+    {
+        this(64);
+    }
+
+    /**
+     * @param initialCapacity the number of changes to make room for
+     */
+    public TransformBatch(int initialCapacity)
+    {
+        initialCapacity = Math.max(1,initialCapacity);
+        handles = new int[initialCapacity];
+        animation = new boolean[initialCapacity];
+        trs = new boolean[initialCapacity];
+        matrices = new float[16*initialCapacity];
+        size = 0;
+    }
+
+    /**
+     * Record a change to the static transform of a node
+     * @param handle the handle of the node
+     * @param transform the new transform, which is copied
+     */
+    public void setTransform(int handle,Matrix4f transform)
+    {
+        set(reserve(1),handle,false,transform);
+    }
+
+    /**
+     * Record a change to the animation transform of a node
+     * @param handle the handle of the node
+     * @param transform the new animation transform, which is copied
+     */
+    public void setAnimationTransform(int handle,Matrix4f transform)
+    {
+        set(reserve(1),handle,true,transform);
+    }
+
+    /**
+     * Record a change to the animation transform of a node, as translation, rotation and scale
+     * @param handle the handle of the node
+     * @param transform the new animation transform, which is copied
+     */
+    public void setAnimationTransform(int handle,TRS transform)
+    {
+        set(reserve(1),handle,transform);
+    }
+
+    /**
+     * Make room for a number of changes, to be filled in later with
+     * {@link #set(int, int, boolean, Matrix4f)}. Slots that are not filled in are skipped
+     * @param count the number of changes
+     * @return the slot of the first of them
+     */
+    public int reserve(int count)
+    {
+        if (size+count > handles.length)
+        {
+            int n = Math.max(size+count,2*handles.length);
+            handles = Arrays.copyOf(handles,n);
+            animation = Arrays.copyOf(animation,n);
+            trs = Arrays.copyOf(trs,n);
+            matrices = Arrays.copyOf(matrices,16*n);
+        }
+        Arrays.fill(handles,size,size+count,NodeRegistry.NO_HANDLE);
+        int first = size;
+        size += count;
+        return first;
+    }
+
+    /**
+     * Fill in a reserved slot
+     * @param slot the slot
+     * @param handle the handle of the node, or {@link NodeRegistry#NO_HANDLE} to skip the slot
+     * @param animation true to change the animation transform, false for the static transform
+     * @param transform the new transform, which is copied
+     */
+    public void set(int slot,int handle,boolean animation,Matrix4f transform)
+    {
+        handles[slot] = handle;
+        this.animation[slot] = animation;
+        trs[slot] = false;
+        transform.get(matrices,16*slot);
+    }
+
+    /**
+     * Fill in a reserved slot with a change to an animation transform, given as translation,
+     * rotation and scale
+     * @param slot the slot
+     * @param handle the handle of the node, or {@link NodeRegistry#NO_HANDLE} to skip the slot
+     * @param transform the new animation transform, which is copied
+     */
+    public void set(int slot,int handle,TRS transform)
+    {
+        handles[slot] = handle;
+        animation[slot] = true;
+        trs[slot] = true;
+        transform.get(matrices,16*slot);
+    }
+
+    /**
+     * Get the number of changes (and reserved slots) recorded
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    public int getHandle(int slot)
+    {
+        return handles[slot];
+    }
+
+    public boolean isAnimation(int slot)
+    {
+        return animation[slot];
+    }
+
+    /**
+     * Whether a change is a {@link TRS}, whose 10 floats start where its matrix would
+     */
+    public boolean isTRS(int slot)
+    {
+        return trs[slot];
+    }
+
+    /**
+     * Get the matrices of all changes, 16 floats each starting at 16*slot (or a {@link TRS} in
+     * the first 10 of them, see {@link #isTRS(int)}). This is the array itself, not a copy
+     */
+    public float[] getMatrices()
+    {
+        return matrices;
+    }
+
+    /**
+     * Forget all changes, keeping the storage
+     */
+    public void clear()
+    {
+        size = 0;
+    }
+}
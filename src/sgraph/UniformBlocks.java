@@ -0,0 +1,97 @@
+package sgraph;
+
+import org.joml.Matrix4f;
+import util.Material;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The std140 layout of the uniform blocks that the shaders read their per-draw and per-frame
+ * data from, and the functions that pack that data into a buffer. The blocks are:
+ * <pre>
+ * layout(std140) uniform DrawData
+ * {
+ *     mat4 modelview;          //offset 0
+ *     mat4 normalmatrix;       //offset 64
+ *     vec4 materialAmbient;    //offset 128
+ *     vec4 materialDiffuse;    //offset 144
+ *     vec4 materialSpecular;   //offset 160, shininess in w
+ * };
+ *
+ * layout(std140) uniform LightData
+ * {
+ *     ivec4 clusterGrid;       //offset 0: clusters along x, y and z, number of global lights in w
+ *     vec4 clusterDepth;       //offset 16: scale in x and bias in y, from log(view depth) to slice
+ * };
+ * </pre>
+ * The lights themselves, and the lights of each cluster, are too many for a uniform block and
+ * are read from texture buffers instead (see {@link LightClusters}).
+ */
+public final class UniformBlocks
+{
+    public static final String DRAW_DATA = "DrawData";
+    public static final String LIGHT_DATA = "LightData";
+
+    /**
+     * The binding points the blocks are attached to
+     */
+    public static final int DRAW_DATA_BINDING = 0;
+    public static final int LIGHT_DATA_BINDING = 1;
+
+    /**
+     * The size in bytes of each block
+     */
+    public static final int DRAW_DATA_SIZE = 176;
+    public static final int LIGHT_DATA_SIZE = 32;
+
+    private UniformBlocks()
+    {
+    }
+
+    /**
+     * Round a size up to a multiple of an alignment
+     * @param size the size
+     * @param alignment the alignment, which must be positive
+     * @return the smallest multiple of alignment that is at least size
+     */
+    public static int align(int size,int alignment)
+    {
+        return ((size + alignment - 1)/alignment)*alignment;
+    }
+
+    /**
+     * Write the DrawData of one mesh
+     * @param dest the buffer to write into, in native byte order. Its position is unchanged
+     * @param offset the offset of the block in dest, in bytes
+     * @param modelview the modelview matrix of the mesh
+     * @param normalMatrix the matrix to transform its normals with
+     * @param material its material
+     */
+    public static void putDrawData(ByteBuffer dest,int offset,Matrix4f modelview,Matrix4f normalMatrix,Material material)
+    {
+        modelview.get(offset,dest);
+        normalMatrix.get(offset+64,dest);
+        material.getAmbient().get(offset+128,dest);
+        material.getDiffuse().get(offset+144,dest);
+        material.getSpecular().get(offset+160,dest);
+        dest.putFloat(offset+172,material.getShininess());
+    }
+
+    /**
+     * Write the LightData of a frame
+     * @param dest the buffer to write into, in native byte order. Its position is unchanged
+     * @param offset the offset of the block in dest, in bytes
+     * @param clusters the clusters the lights of the frame were assigned to
+     */
+    public static void putLightData(ByteBuffer dest,int offset,LightClusters clusters)
+    {
+        dest.putInt(offset,clusters.getGridX());
+        dest.putInt(offset+4,clusters.getGridY());
+        dest.putInt(offset+8,clusters.getGridZ());
+        dest.putInt(offset+12,clusters.getGlobalCount());
+        dest.putFloat(offset+16,clusters.getDepthScale());
+        dest.putFloat(offset+20,clusters.getDepthBias());
+        dest.putFloat(offset+24,0);
+        dest.putFloat(offset+28,0);
+    }
+}
@@ -10,10 +10,26 @@ uniform mat4 projection;
 uniform mat4 modelview;
 uniform mat4 normalmatrix;
 uniform mat4 texturematrix;
+
+/* packed vertices (see sgraph.PackedMesh): the position normalized to the bounding box of the
+   mesh, the normal in an octahedral encoding and the texture coordinates as half floats */
+uniform int packedVertices;
+uniform vec3 positionOffset;
+uniform vec3 positionScale;
 out vec3 fNormal;
 out vec4 fPosition;
 out vec4 fTexCoord;
 
+vec3 octahedralDecode(vec2 e)
+{
+    vec3 n = vec3(e.x,e.y,1.0-abs(e.x)-abs(e.y));
+    if (n.z<0.0)
+    {
+        n.xy = (1.0-abs(n.yx))*sign(n.xy);
+    }
+    return normalize(n);
+}
+
 void main()
 {
     vec3 lightVec,viewVec,reflectVec;
@@ -21,11 +37,23 @@ void main()
     vec3 ambient,diffuse,specular;
     float nDotL,rDotV;
 
-    fPosition = modelview * vec4(vPosition.xyzw);
+    vec4 position,normal;
+    if (packedVertices!=0)
+    {
+        position = vec4(positionOffset + vPosition.xyz*positionScale,1);
+        normal = vec4(octahedralDecode(vNormal.xy),0);
+    }
+    else
+    {
+        position = vPosition;
+        normal = vNormal;
+    }
+
+    fPosition = modelview * position;
     gl_Position = projection * fPosition;
 
 
-    vec4 tNormal = normalmatrix * vNormal;
+    vec4 tNormal = normalmatrix * normal;
     fNormal = normalize(tNormal.xyz);
 
     fTexCoord = texturematrix * vec4(vTexCoord.s,vTexCoord.t,0,1);
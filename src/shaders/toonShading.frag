@@ -16,6 +16,7 @@ struct LightProperties
     vec4 position;
     vec4 spotDirection;
     float spotCutoff;
+    float range;
 };
 
 
@@ -23,12 +24,35 @@ struct LightProperties
 in vec3 fNormal;
 in vec4 fPosition;
 in vec4 fTexCoord;
+flat in vec3 fAmbient;
+flat in vec3 fDiffuse;
+flat in vec4 fSpecular; //shininess in w
 
-const int MAXLIGHTS = 10;
+/* the lights of the frame, split into clusters of the view frustum (see sgraph.LightClusters) */
+layout(std140) uniform LightData
+{
+    ivec4 clusterGrid;  //clusters along x, y and z, number of global lights in w
+    vec4 clusterDepth;  //scale and bias from log(view depth) to slice
+};
+uniform samplerBuffer lightTexels;    //6 texels per light, see sgraph.LightArray
+uniform usamplerBuffer clusters;      //offset and count of the lights of each cluster
+uniform usamplerBuffer lightIndices;  //the global lights, then the lights of each cluster
+uniform mat4 projection;
 
-uniform MaterialProperties material;
-uniform LightProperties light[MAXLIGHTS];
-uniform int numLights;
+LightProperties fetchLight(int i)
+{
+    LightProperties l;
+    vec4 extra = texelFetch(lightTexels,6*i+5);
+
+    l.ambient = texelFetch(lightTexels,6*i).xyz;
+    l.diffuse = texelFetch(lightTexels,6*i+1).xyz;
+    l.specular = texelFetch(lightTexels,6*i+2).xyz;
+    l.position = texelFetch(lightTexels,6*i+3);
+    l.spotDirection = texelFetch(lightTexels,6*i+4);
+    l.spotCutoff = extra.x;
+    l.range = extra.y;
+    return l;
+}
 
 /* texture */
 uniform sampler2D image;
@@ -42,6 +66,7 @@ void main()
     vec3 normalView;
     vec3 ambient,diffuse,specular;
     float nDotL,rDotV;
+    MaterialProperties material = MaterialProperties(fAmbient,fDiffuse,fSpecular.xyz,fSpecular.w);
     float intensity;
     float k;
 
@@ -51,12 +76,32 @@ void main()
     viewVec = -fPosition.xyz;
     viewVec = normalize(viewVec);
 
-    for (int i=0;i<numLights;i++)
+    //find the cluster of this fragment
+    vec4 clip = projection * fPosition;
+    ivec3 cell;
+    cell.xy = clamp(ivec2(floor((0.5*clip.xy/clip.w + 0.5)*vec2(clusterGrid.xy))),ivec2(0),clusterGrid.xy-1);
+    cell.z = clamp(int(floor(log(max(-fPosition.z,1e-6))*clusterDepth.x + clusterDepth.y)),0,clusterGrid.z-1);
+    uvec2 cluster = texelFetch(clusters,(cell.z*clusterGrid.y + cell.y)*clusterGrid.x + cell.x).xy;
+    int numLights = clusterGrid.w + int(cluster.y);
+
+    for (int n=0;n<numLights;n++)
     {
-        if (light[i].position.w!=0)
-            lightVec = normalize(light[i].position.xyz - fPosition.xyz);
+        int index = (n<clusterGrid.w) ? n : int(cluster.x) + n - clusterGrid.w;
+        LightProperties light = fetchLight(int(texelFetch(lightIndices,index).x));
+
+        //lights with a range fade out smoothly towards it
+        float attenuation = 1;
+        if ((light.range>0) && (light.position.w!=0))
+        {
+            float q = length(light.position.xyz - fPosition.xyz)/light.range;
+            attenuation = clamp(1 - q*q*q*q,0,1);
+            attenuation *= attenuation;
+        }
+
+        if (light.position.w!=0)
+            lightVec = normalize(light.position.xyz - fPosition.xyz);
         else
-            lightVec = normalize(-light[i].position.xyz);
+            lightVec = normalize(-light.position.xyz);
 
         vec3 tNormal = fNormal;
         nDotL = dot(normalView,lightVec);
@@ -64,8 +109,8 @@ void main()
 
         int s = 1;
 
-        if (light[i].position.w!=0){
-            if (dot(-lightVec,normalize(light[i].spotDirection.xyz)) > light[i].spotCutoff)
+        if (light.position.w!=0){
+            if (dot(-lightVec,normalize(light.spotDirection.xyz)) > light.spotCutoff)
                s = 1;
             else
                s = 0;
@@ -76,10 +121,10 @@ void main()
 
         rDotV = max(dot(reflectVec,viewVec),0.0);
 
-        ambient = material.ambient * light[i].ambient;
-        diffuse = material.diffuse * light[i].diffuse * max(nDotL,0);
+        ambient = material.ambient * light.ambient;
+        diffuse = material.diffuse * light.diffuse * max(nDotL,0);
         if (nDotL>0)
-            specular = material.specular * light[i].specular * pow(rDotV,material.shininess);
+            specular = material.specular * light.specular * pow(rDotV,material.shininess);
         else
             specular = vec3(0,0,0);
 
@@ -113,7 +158,7 @@ void main()
             		}
             		}
 
-        fColor = fColor + s * k * (vec4(ambient+diffuse+specular,1.0));
+        fColor = fColor + s * k * attenuation * (vec4(ambient+diffuse+specular,1.0));
     }
 //    fColor *= texture(image,fTexCoord.st);
 
@@ -6,13 +6,49 @@ layout(location=0) in vec4 vPosition;
 layout(location=1) in vec4 vNormal;
 layout(location=2) in vec4 vTexCoord;
 
+/* per-instance attributes, used instead of the uniforms when drawing instanced */
+layout(location=3) in mat4 iModelview;
+layout(location=7) in mat4 iNormalMatrix;
+layout(location=11) in vec4 iAmbient;
+layout(location=12) in vec4 iDiffuse;
+layout(location=13) in vec4 iSpecular; //shininess in w
+
+/* per-draw data, bound as a range of a uniform buffer (see sgraph.UniformBlocks) */
+layout(std140) uniform DrawData
+{
+    mat4 modelview;
+    mat4 normalmatrix;
+    vec4 materialAmbient;
+    vec4 materialDiffuse;
+    vec4 materialSpecular; //shininess in w
+};
+
 uniform mat4 projection;
-uniform mat4 modelview;
-uniform mat4 normalmatrix;
 uniform mat4 texturematrix;
+uniform int instanced;
+
+/* packed vertices (see sgraph.PackedMesh): the position normalized to the bounding box of the
+   mesh, the normal in an octahedral encoding and the texture coordinates as half floats */
+uniform int packedVertices;
+uniform vec3 positionOffset;
+uniform vec3 positionScale;
+
 out vec3 fNormal;
 out vec4 fPosition;
 out vec4 fTexCoord;
+flat out vec3 fAmbient;
+flat out vec3 fDiffuse;
+flat out vec4 fSpecular; //shininess in w
+
+vec3 octahedralDecode(vec2 e)
+{
+    vec3 n = vec3(e.x,e.y,1.0-abs(e.x)-abs(e.y));
+    if (n.z<0.0)
+    {
+        n.xy = (1.0-abs(n.yx))*sign(n.xy);
+    }
+    return normalize(n);
+}
 
 void main()
 {
@@ -21,11 +57,42 @@ void main()
     vec3 ambient,diffuse,specular;
     float nDotL,rDotV;
 
-    fPosition = modelview * vec4(vPosition.xyzw);
+    mat4 mv,nm;
+
+    if (instanced!=0)
+    {
+        mv = iModelview;
+        nm = iNormalMatrix;
+        fAmbient = iAmbient.xyz;
+        fDiffuse = iDiffuse.xyz;
+        fSpecular = iSpecular;
+    }
+    else
+    {
+        mv = modelview;
+        nm = normalmatrix;
+        fAmbient = materialAmbient.xyz;
+        fDiffuse = materialDiffuse.xyz;
+        fSpecular = materialSpecular;
+    }
+
+    vec4 position,normal;
+    if (packedVertices!=0)
+    {
+        position = vec4(positionOffset + vPosition.xyz*positionScale,1);
+        normal = vec4(octahedralDecode(vNormal.xy),0);
+    }
+    else
+    {
+        position = vPosition;
+        normal = vNormal;
+    }
+
+    fPosition = mv * position;
     gl_Position = projection * fPosition;
 
 
-    vec4 tNormal = normalmatrix * vNormal;
+    vec4 tNormal = nm * normal;
     fNormal = normalize(tNormal.xyz);
 
     fTexCoord = texturematrix * vec4(vTexCoord.s,vTexCoord.t,0,1);
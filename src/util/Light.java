@@ -10,6 +10,7 @@ public class Light {
     private Vector3f ambient, diffuse, specular;
     private Vector4f position, spotDirection;
     private float spotCutoff;
+    private float range;
 
     public Light() {
         ambient = new Vector3f(0, 0, 0);
@@ -19,6 +20,7 @@ public class Light {
         position = new Vector4f(0, 0, 0, 1);
         spotDirection = new Vector4f(0, 0, 0, 0);
         spotCutoff = 0.0f;
+        range = 0.0f;
     }
 
     public void setAmbient(float r, float g, float b) {
@@ -53,6 +55,15 @@ public class Light {
         spotCutoff = cutoff;
     }
 
+    /**
+     * Set the distance beyond which this light has no effect. Its contribution fades out
+     * smoothly towards that distance. A range of 0 (the default) means the light reaches
+     * everywhere
+     */
+    public void setRange(float range) {
+        this.range = range;
+    }
+
     ////////////////////////////////////////////////////////////////////////
     public void setAmbient(Vector3f amb) {
         ambient = new Vector3f(amb);
@@ -96,6 +107,34 @@ public class Light {
         return spotCutoff;
     }
 
+    public float getRange() {
+        return range;
+    }
+
+    /*
+     * The following copy a property into the given vector instead of allocating a new one
+     */
+
+    public Vector3f getAmbient(Vector3f dest) {
+        return dest.set(ambient);
+    }
+
+    public Vector3f getDiffuse(Vector3f dest) {
+        return dest.set(diffuse);
+    }
+
+    public Vector3f getSpecular(Vector3f dest) {
+        return dest.set(specular);
+    }
+
+    public Vector4f getPosition(Vector4f dest) {
+        return dest.set(position);
+    }
+
+    public Vector4f getSpotDirection(Vector4f dest) {
+        return dest.set(spotDirection);
+    }
+
     @Override
     public Light clone() {
         Light l = new Light();
@@ -105,6 +144,7 @@ public class Light {
         l.setPosition(this.getPosition());
         l.setSpotDirection(this.getSpotDirection());
         l.setSpotCutoff(this.getSpotCutoff());
+        l.setRange(this.getRange());
         return l;
     }
 
@@ -0,0 +1,553 @@
+package util;
+
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Reorders the triangles and vertices of a triangle mesh so that it is faster to draw, without
+ * changing what is drawn. There are three steps, each of which can also be used alone:
+ * <ol>
+ *     <li>{@link #optimizeVertexCache}: orders the triangles so that the GPU's cache of
+ *     transformed vertices is hit as often as possible, with the Tipsify algorithm (Sander,
+ *     Nehab and Barczak, "Fast Triangle Reordering for Vertex Locality and Reduced Overdraw",
+ *     2007). It fans around one vertex at a time, moving on to a vertex whose triangles are
+ *     likely to still be in the cache</li>
+ *     <li>{@link #optimizeOverdraw}: splits that order into clusters wherever the cache starts
+ *     over anyway, and where it can be split without losing much, and then draws the clusters
+ *     that face outwards first, so that they hide more of the rest</li>
+ *     <li>{@link #optimizeVertexFetch}: numbers the vertices in the order they are first used,
+ *     so that vertex data is read from memory in order</li>
+ * </ol>
+ * How good an order is for the cache is measured by the ACMR (average cache miss ratio): the
+ * number of vertices transformed per triangle, with a FIFO cache of a given size. It is 3 in the
+ * worst case, and about 0.5 to 0.7 for a good order of a large closed mesh.
+ *
+ * Running this class reports the ACMR of OBJ files before and after optimizing them.
+ */
+public class MeshOptimizer
+{
+    /**
+     * The cache size to optimize for. Tipsify does well when this is a little smaller than the
+     * actual cache
+     */
+    public static final int DEFAULT_CACHE_SIZE = 16;
+
+    /**
+     * How much worse than its cluster's ACMR a split of a cluster may be, for overdraw
+     */
+    public static final float DEFAULT_OVERDRAW_THRESHOLD = 1.05f;
+
+    /**
+     * The ACMR and ATVR (vertices transformed per vertex) of a mesh before and after optimizing
+     */
+    public static class Statistics
+    {
+        public final int cacheSize;
+        public final float acmrBefore,acmrAfter,atvrBefore,atvrAfter;
+
+        Statistics(int cacheSize,float acmrBefore,float acmrAfter,float atvrBefore,float atvrAfter)
+        {
+            this.cacheSize = cacheSize;
+            this.acmrBefore = acmrBefore;
+            this.acmrAfter = acmrAfter;
+            this.atvrBefore = atvrBefore;
+            this.atvrAfter = atvrAfter;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("ACMR %.3f -> %.3f, ATVR %.3f -> %.3f (FIFO cache of %d)",
+                    acmrBefore,acmrAfter,atvrBefore,atvrAfter,cacheSize);
+        }
+    }
+
+    /**
+     * Optimize a triangle mesh in place with all three steps, for the default cache size
+     * @param mesh the mesh, whose primitives must be triangles
+     * @return the statistics of the mesh before and after
+     * @throws IllegalArgumentException if the primitives are not triangles
+     */
+    public static Statistics optimize(PolygonMesh mesh) throws IllegalArgumentException
+    {
+        return optimize(mesh,DEFAULT_CACHE_SIZE,DEFAULT_OVERDRAW_THRESHOLD);
+    }
+
+    /**
+     * Optimize a triangle mesh in place with all three steps
+     * @param mesh the mesh, whose primitives must be triangles
+     * @param cacheSize the size of the vertex cache to optimize for
+     * @param threshold how much the ACMR may grow for the sake of overdraw, e.g. 1.05
+     * @return the statistics of the mesh before and after
+     * @throws IllegalArgumentException if the primitives are not triangles
+     */
+    public static Statistics optimize(PolygonMesh mesh,int cacheSize,float threshold) throws IllegalArgumentException
+    {
+        if ((mesh.getPrimitiveSize() != 3) || (mesh.primitives.length%3 != 0))
+            throw new IllegalArgumentException("Only meshes of triangles can be optimized");
+        int vertexCount = mesh.getVertexCount();
+        int[] indices = mesh.primitives;
+        float acmr = acmr(indices,cacheSize),atvr = atvr(indices,vertexCount,cacheSize);
+
+        indices = optimizeVertexCache(indices,vertexCount,cacheSize);
+        indices = optimizeOverdraw(indices,mesh.positions,cacheSize,threshold);
+        mesh.setPrimitives(indices);
+        optimizeVertexFetch(mesh);
+
+        return new Statistics(cacheSize,acmr,acmr(mesh.primitives,cacheSize),
+                atvr,atvr(mesh.primitives,vertexCount,cacheSize));
+    }
+
+    /**
+     * Compute the average cache miss ratio of a list of triangles: the number of vertices that
+     * are not in a FIFO cache when a triangle is drawn, per triangle
+     * @param indices 3 vertex indices per triangle
+     * @param cacheSize the size of the cache
+     * @return the ACMR, from 0 to 3
+     */
+    public static float acmr(int[] indices,int cacheSize)
+    {
+        if (indices.length == 0)
+            return 0;
+        return 3f*misses(indices,cacheSize)/indices.length;
+    }
+
+    /**
+     * Compute the average transform to vertex ratio of a list of triangles: the number of
+     * vertices that are not in a FIFO cache when a triangle is drawn, per vertex used
+     * @param indices 3 vertex indices per triangle
+     * @param vertexCount the number of vertices
+     * @param cacheSize the size of the cache
+     * @return the ATVR, 1 at best
+     */
+    public static float atvr(int[] indices,int vertexCount,int cacheSize)
+    {
+        boolean[] used = new boolean[vertexCount];
+        int count = 0;
+        for (int index:indices)
+        {
+            if (!used[index])
+            {
+                used[index] = true;
+                count++;
+            }
+        }
+        return (count > 0) ? (float)misses(indices,cacheSize)/count : 0;
+    }
+
+    private static int misses(int[] indices,int cacheSize)
+    {
+        FifoCache cache = new FifoCache(maxIndex(indices)+1,cacheSize);
+        int misses = 0;
+        for (int index:indices)
+        {
+            if (cache.access(index))
+                misses++;
+        }
+        return misses;
+    }
+
+    /**
+     * Order triangles for a vertex cache with the Tipsify algorithm
+     * @param indices 3 vertex indices per triangle
+     * @param vertexCount the number of vertices
+     * @param cacheSize the size of the cache
+     * @return the same triangles in a new order, in a new array
+     */
+    public static int[] optimizeVertexCache(int[] indices,int vertexCount,int cacheSize)
+    {
+        int triangleCount = indices.length/3;
+
+        //the triangles around each vertex, and how many of them are yet to be emitted
+        int[] live = new int[vertexCount];
+        for (int index:indices)
+        {
+            live[index]++;
+        }
+        int[] first = new int[vertexCount+1];
+        for (int v=0;v<vertexCount;v++)
+        {
+            first[v+1] = first[v]+live[v];
+        }
+        int[] adjacent = new int[indices.length];
+        int[] fill = Arrays.copyOf(first,vertexCount);
+        for (int t=0;t<triangleCount;t++)
+        {
+            for (int k=0;k<3;k++)
+            {
+                adjacent[fill[indices[3*t+k]]++] = t;
+            }
+        }
+
+        //when each vertex last entered the cache, on a clock that ticks once per cache entry
+        int[] timestamp = new int[vertexCount];
+        int time = cacheSize+1;
+        boolean[] emitted = new boolean[triangleCount];
+
+        //vertices of emitted triangles, to fall back to at dead ends
+        int[] deadEnd = new int[indices.length];
+        int deadEndSize = 0;
+        int[] candidates = new int[3*maxValence(first)];
+        int cursor = 0;
+
+        int[] result = new int[indices.length];
+        int out = 0;
+
+        int fan = 0;
+        while ((fan < vertexCount) && (live[fan] == 0))
+        {
+            fan++;
+        }
+        if (fan == vertexCount)
+            return result;
+
+        while (fan >= 0)
+        {
+            int candidateCount = 0;
+            for (int a=first[fan];a<first[fan+1];a++)
+            {
+                int t = adjacent[a];
+                if (emitted[t])
+                    continue;
+                for (int k=0;k<3;k++)
+                {
+                    int v = indices[3*t+k];
+                    result[out++] = v;
+                    deadEnd[deadEndSize++] = v;
+                    candidates[candidateCount++] = v;
+                    live[v]--;
+                    if (time-timestamp[v] > cacheSize)
+                    {
+                        timestamp[v] = time++;
+                    }
+                }
+                emitted[t] = true;
+            }
+
+            //the next fan is the candidate that will still be in the cache once all its
+            //remaining triangles are drawn, and that entered the cache earliest
+            int next = -1,best = -1;
+            for (int c=0;c<candidateCount;c++)
+            {
+                int v = candidates[c];
+                if (live[v] > 0)
+                {
+                    int priority = 0;
+                    if (time-timestamp[v] + 2*live[v] <= cacheSize)
+                    {
+                        priority = time-timestamp[v];
+                    }
+                    if (priority > best)
+                    {
+                        best = priority;
+                        next = v;
+                    }
+                }
+            }
+            if (next < 0)
+            {
+                //dead end: go back to a recent vertex with triangles left, or else the next one
+                while ((deadEndSize > 0) && (next < 0))
+                {
+                    int v = deadEnd[--deadEndSize];
+                    if (live[v] > 0)
+                        next = v;
+                }
+                while ((next < 0) && (cursor < vertexCount))
+                {
+                    if (live[cursor] > 0)
+                        next = cursor;
+                    cursor++;
+                }
+            }
+            fan = next;
+        }
+        return result;
+    }
+
+    private static int maxValence(int[] first)
+    {
+        int max = 0;
+        for (int v=0;v+1<first.length;v++)
+        {
+            max = Math.max(max,first[v+1]-first[v]);
+        }
+        return max;
+    }
+
+    /**
+     * Reorder triangles already ordered for a vertex cache to reduce overdraw. The order is
+     * split into clusters where the cache starts over (a triangle none of whose vertices is in
+     * the cache), and those are split further wherever the ACMR so far is within the threshold
+     * of the ACMR of the whole cluster. The clusters are then sorted so that those facing away
+     * from the center of the mesh come first, since they are the most likely to hide others
+     * @param indices 3 vertex indices per triangle
+     * @param positions 4 floats per vertex
+     * @param cacheSize the size of the cache
+     * @param threshold how much the ACMR of a split may exceed that of its cluster, e.g. 1.05
+     * @return the same triangles in a new order, in a new array
+     */
+    public static int[] optimizeOverdraw(int[] indices,float[] positions,int cacheSize,float threshold)
+    {
+        int triangleCount = indices.length/3;
+        if (triangleCount == 0)
+            return new int[0];
+        FifoCache cache = new FifoCache(maxIndex(indices)+1,cacheSize);
+
+        //hard boundaries, where the cache starts over
+        int[] hard = new int[triangleCount+1];
+        int hardCount = 0;
+        for (int t=0;t<triangleCount;t++)
+        {
+            int misses = 0;
+            for (int k=0;k<3;k++)
+            {
+                if (cache.access(indices[3*t+k]))
+                    misses++;
+            }
+            if ((misses == 3) || (t == 0))
+            {
+                hard[hardCount++] = t;
+            }
+        }
+        hard[hardCount] = triangleCount;
+
+        //soft boundaries within each of them
+        int[] clusters = new int[triangleCount+1];
+        int clusterCount = 0;
+        for (int h=0;h<hardCount;h++)
+        {
+            int start = hard[h],end = hard[h+1];
+            cache.clear();
+            int clusterMisses = 0;
+            for (int i=3*start;i<3*end;i++)
+            {
+                if (cache.access(indices[i]))
+                    clusterMisses++;
+            }
+            float limit = threshold*clusterMisses/(end-start);
+
+            cache.clear();
+            int misses = 0,splitStart = start;
+            clusters[clusterCount++] = start;
+            for (int t=start;t<end;t++)
+            {
+                for (int k=0;k<3;k++)
+                {
+                    if (cache.access(indices[3*t+k]))
+                        misses++;
+                }
+                if ((t+1 < end) && ((float)misses/(t+1-splitStart) <= limit))
+                {
+                    clusters[clusterCount++] = t+1;
+                    splitStart = t+1;
+                    misses = 0;
+                    cache.clear();
+                }
+            }
+        }
+        clusters[clusterCount] = triangleCount;
+
+        //the area weighted centroid of the mesh, and of each cluster with its normal
+        float[] cluster = new float[6*clusterCount];
+        double mx = 0,my = 0,mz = 0,area = 0;
+        for (int c=0;c<clusterCount;c++)
+        {
+            double cx = 0,cy = 0,cz = 0,nx = 0,ny = 0,nz = 0,clusterArea = 0;
+            for (int t=clusters[c];t<clusters[c+1];t++)
+            {
+                int a = 4*indices[3*t],b = 4*indices[3*t+1],d = 4*indices[3*t+2];
+                double ux = positions[b]-positions[a],uy = positions[b+1]-positions[a+1],uz = positions[b+2]-positions[a+2];
+                double vx = positions[d]-positions[a],vy = positions[d+1]-positions[a+1],vz = positions[d+2]-positions[a+2];
+                double x = uy*vz-uz*vy,y = uz*vx-ux*vz,z = ux*vy-uy*vx;
+                double w = 0.5*Math.sqrt(x*x + y*y + z*z);
+                cx += w*(positions[a]+positions[b]+positions[d])/3;
+                cy += w*(positions[a+1]+positions[b+1]+positions[d+1])/3;
+                cz += w*(positions[a+2]+positions[b+2]+positions[d+2])/3;
+                nx += x;
+                ny += y;
+                nz += z;
+                clusterArea += w;
+            }
+            mx += cx;
+            my += cy;
+            mz += cz;
+            area += clusterArea;
+            double n = Math.sqrt(nx*nx + ny*ny + nz*nz);
+            double inverse = (clusterArea > 0) ? 1/clusterArea : 0;
+            cluster[6*c] = (float)(cx*inverse);
+            cluster[6*c+1] = (float)(cy*inverse);
+            cluster[6*c+2] = (float)(cz*inverse);
+            cluster[6*c+3] = (n > 0) ? (float)(nx/n) : 0;
+            cluster[6*c+4] = (n > 0) ? (float)(ny/n) : 0;
+            cluster[6*c+5] = (n > 0) ? (float)(nz/n) : 0;
+        }
+        if (area > 0)
+        {
+            mx /= area;
+            my /= area;
+            mz /= area;
+        }
+
+        //sort the clusters by how much they face away from the center, most first
+        long[] keys = new long[clusterCount];
+        for (int c=0;c<clusterCount;c++)
+        {
+            float facing = (float)((cluster[6*c]-mx)*cluster[6*c+3] + (cluster[6*c+1]-my)*cluster[6*c+4]
+                    + (cluster[6*c+2]-mz)*cluster[6*c+5]);
+            keys[c] = ((long)descendingKey(facing) << 32) | c;
+        }
+        Arrays.sort(keys);
+
+        int[] result = new int[indices.length];
+        int out = 0;
+        for (long key:keys)
+        {
+            int c = (int)key;
+            System.arraycopy(indices,3*clusters[c],result,out,3*(clusters[c+1]-clusters[c]));
+            out += 3*(clusters[c+1]-clusters[c]);
+        }
+        return result;
+    }
+
+    /**
+     * Map a float to an int that sorts in the opposite order, as a signed int
+     */
+    private static int descendingKey(float f)
+    {
+        int bits = Float.floatToIntBits(f);
+        //negative floats order backwards as ints, so flip all but their sign
+        return ~(bits ^ ((bits >> 31) & 0x7fffffff));
+    }
+
+    /**
+     * Number the vertices of a mesh in the order in which its primitives first use them, and
+     * move their positions, normals and texture coordinates to match. Vertices that are not
+     * used go last. If there are normals or texture coordinates but not one per vertex, they
+     * cannot be kept with their vertices, so the mesh is left as it is
+     * @param mesh the mesh
+     * @return for each old vertex index, the new one
+     */
+    public static int[] optimizeVertexFetch(PolygonMesh mesh)
+    {
+        int vertexCount = mesh.getVertexCount();
+        int[] remap = new int[vertexCount];
+        if (((mesh.normals.length != 0) && (mesh.normals.length != 4*vertexCount))
+                || ((mesh.texcoords.length != 0) && (mesh.texcoords.length != 4*vertexCount)))
+        {
+            for (int v=0;v<vertexCount;v++)
+            {
+                remap[v] = v;
+            }
+            return remap;
+        }
+        Arrays.fill(remap,-1);
+        int next = 0;
+        for (int index:mesh.primitives)
+        {
+            if (remap[index] < 0)
+                remap[index] = next++;
+        }
+        for (int v=0;v<vertexCount;v++)
+        {
+            if (remap[v] < 0)
+                remap[v] = next++;
+        }
+
+        int[] indices = new int[mesh.primitives.length];
+        for (int i=0;i<indices.length;i++)
+        {
+            indices[i] = remap[mesh.primitives[i]];
+        }
+        mesh.setPrimitives(indices);
+        mesh.positions = remap(mesh.positions,remap);
+        mesh.normals = remap(mesh.normals,remap);
+        mesh.texcoords = remap(mesh.texcoords,remap);
+        return remap;
+    }
+
+    private static float[] remap(float[] data,int[] remap)
+    {
+        if (data.length == 0)
+            return data;
+        float[] result = new float[data.length];
+        for (int v=0;v<remap.length;v++)
+        {
+            System.arraycopy(data,4*v,result,4*remap[v],4);
+        }
+        return result;
+    }
+
+    private static int maxIndex(int[] indices)
+    {
+        int max = -1;
+        for (int index:indices)
+        {
+            max = Math.max(max,index);
+        }
+        return max;
+    }
+
+    /**
+     * A FIFO cache of vertex indices, as used to estimate the ACMR. A vertex is in the cache if
+     * fewer than size vertices have entered it since, so clearing it just moves the clock on
+     */
+    private static class FifoCache
+    {
+        private final int size;
+        private final int[] enteredAt;
+        private int time;
+
+        FifoCache(int vertexCount,int size)
+        {
+            this.size = size;
+            enteredAt = new int[vertexCount];
+            Arrays.fill(enteredAt,-size);
+            time = 0;
+        }
+
+        /**
+         * Look up a vertex, adding it if it is not there
+         * @return true if it was a miss
+         */
+        boolean access(int v)
+        {
+            if (time-enteredAt[v] < size)
+                return false;
+            enteredAt[v] = ++time;
+            return true;
+        }
+
+        void clear()
+        {
+            time += size;
+        }
+    }
+
+    /**
+     * Report the ACMR of OBJ files before and after optimizing them
+     * @param args the paths of the files, optionally preceded by -cache followed by the size
+     *             of the cache
+     * @throws Exception if a file cannot be read
+     */
+    public static void main(String[] args) throws Exception
+    {
+        int cacheSize = DEFAULT_CACHE_SIZE;
+        for (int i=0;i<args.length;i++)
+        {
+            if (args[i].equals("-cache") && (i+1 < args.length))
+            {
+                cacheSize = Integer.parseInt(args[++i]);
+                continue;
+            }
+            InputStream in = new FileInputStream(args[i]);
+            PolygonMesh mesh = ObjImporter.importFile(in,false);
+            in.close();
+            long start = System.nanoTime();
+            Statistics s = optimize(mesh,cacheSize,DEFAULT_OVERDRAW_THRESHOLD);
+            System.out.printf("%s: %d triangles, %s, %.1f ms%n",args[i],mesh.getPrimitiveCount()/3,s,
+                    (System.nanoTime()-start)/1e6);
+        }
+    }
+}
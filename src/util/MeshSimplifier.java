@@ -0,0 +1,561 @@
+package util;
+
+import java.util.Arrays;
+
+/**
+ * Makes lower-detail versions of a triangle mesh, by collapsing edges in the order of the
+ * quadric error metric (Garland and Heckbert, "Surface Simplification Using Quadric Error
+ * Metrics", 1997). Each group of vertices at the same position keeps the sum of the squared
+ * distances to the planes of the triangles that have been merged into it, as a quadric, and an
+ * edge costs as much as the quadrics of its ends say moving one end onto the other does.
+ *
+ * An edge is always collapsed onto one of its ends, so the vertex that is kept keeps its own
+ * normal and texture coordinates, and no new vertices are made up. Which collapses are allowed
+ * depends on the vertex that moves:
+ * <ul>
+ *     <li>a vertex inside the surface may move onto any neighbor</li>
+ *     <li>a vertex on the border of an open mesh may only move along the border</li>
+ *     <li>a vertex on a seam, where two vertices share a position but not their normals or
+ *     texture coordinates, may only move along the seam, and only together with its twin on
+ *     the other side, so that the seam stays closed and each side keeps its attributes</li>
+ *     <li>a vertex shared by more than two sides of a seam does not move</li>
+ * </ul>
+ * A collapse is also refused if it would turn a triangle around by more than about 75 degrees,
+ * which keeps the normals of the vertices in line with the surface, or would make the surface
+ * fold onto itself.
+ *
+ * Collapses are made in passes: each pass sorts the edges by cost, and makes the cheapest
+ * collapses whose neighborhoods no earlier collapse of the pass has touched.
+ */
+public class MeshSimplifier
+{
+    /**
+     * The smallest cosine of the angle a triangle may turn by in a collapse
+     */
+    private static final float MIN_TURN_COSINE = 0.25f;
+
+    /**
+     * How much the planes along borders weigh, per squared length of their edge, against the
+     * planes of triangles, per area
+     */
+    private static final double BORDER_WEIGHT = 10;
+
+    private static final byte MANIFOLD = 0,BORDER = 1,SEAM = 2,LOCKED = 3;
+
+    /**
+     * Simplify a triangle mesh. The mesh is not changed
+     * @param mesh the mesh, whose primitives must be triangles
+     * @param ratio the fraction of its triangles to keep, from 0 to 1
+     * @return a new mesh, with its triangles and vertices ordered with {@link MeshOptimizer}
+     * @throws IllegalArgumentException if the primitives are not triangles, or the ratio is
+     * not from 0 to 1
+     */
+    public static PolygonMesh simplify(PolygonMesh mesh,float ratio) throws IllegalArgumentException
+    {
+        return simplify(mesh,new float[] {ratio})[0];
+    }
+
+    /**
+     * Make a chain of levels of detail of a triangle mesh. Each level is simplified from the one
+     * before it, which is faster than starting from the mesh every time. The mesh is not changed
+     * @param mesh the mesh, whose primitives must be triangles
+     * @param ratios the fraction of the triangles of the mesh to keep in each level, from 0 to 1
+     *               and decreasing
+     * @return the levels, each a new mesh ordered with {@link MeshOptimizer}. A level may have
+     * more triangles than asked for, if no more edges can be collapsed
+     * @throws IllegalArgumentException if the primitives are not triangles, or the ratios are
+     * not from 0 to 1 and decreasing
+     */
+    public static PolygonMesh[] simplify(PolygonMesh mesh,float[] ratios) throws IllegalArgumentException
+    {
+        if ((mesh.getPrimitiveSize() != 3) || (mesh.primitives.length%3 != 0))
+            throw new IllegalArgumentException("Only meshes of triangles can be simplified");
+        for (int i=0;i<ratios.length;i++)
+        {
+            if (!((ratios[i] >= 0) && (ratios[i] <= 1)))
+                throw new IllegalArgumentException("The ratio "+ratios[i]+" is not from 0 to 1");
+            if ((i > 0) && (ratios[i] > ratios[i-1]))
+                throw new IllegalArgumentException("The ratios "+ratios[i-1]+" and "+ratios[i]+" are not decreasing");
+        }
+
+        int triangleCount = mesh.primitives.length/3;
+        PolygonMesh[] levels = new PolygonMesh[ratios.length];
+        int[] indices = mesh.primitives;
+        for (int i=0;i<ratios.length;i++)
+        {
+            indices = simplify(indices,mesh.positions,Math.round(ratios[i]*triangleCount));
+            levels[i] = compact(mesh,indices);
+            MeshOptimizer.optimize(levels[i]);
+        }
+        return levels;
+    }
+
+    /**
+     * Simplify a list of triangles
+     * @param indices 3 vertex indices per triangle
+     * @param positions 4 floats per vertex
+     * @param targetCount the number of triangles to stop at
+     * @return the triangles left, in a new array. They use the same vertices
+     */
+    public static int[] simplify(int[] indices,float[] positions,int targetCount)
+    {
+        int vertexCount = positions.length/4;
+        int[] weld = weld(positions,vertexCount);
+        int[] twin = new int[vertexCount];
+        int[] classSize = new int[vertexCount];
+        Arrays.fill(twin,-1);
+        for (int v=0;v<vertexCount;v++)
+        {
+            classSize[weld[v]]++;
+        }
+        for (int v=0;v<vertexCount;v++)
+        {
+            if ((weld[v] != v) && (classSize[weld[v]] == 2))
+            {
+                twin[v] = weld[v];
+                twin[weld[v]] = v;
+            }
+        }
+
+        int count = indices.length - indices.length%3;
+        long[] edges = new long[count];
+        int[] edgeTriangles = new int[count];
+        int edgeCount = edges(indices,count,edges,edgeTriangles);
+        double[] quadrics = new double[10*vertexCount];
+        for (int i=0;i<count;i+=3)
+        {
+            addTriangleQuadric(quadrics,weld,positions,indices[i],indices[i+1],indices[i+2]);
+            for (int k=0;k<3;k++)
+            {
+                int a = indices[i+k],b = indices[i+(k+1)%3],c = indices[i+(k+2)%3];
+                if (edgeTriangles(edgeKey(a,b),edges,edgeCount,edgeTriangles) == 1)
+                    addBorderQuadric(quadrics,weld,positions,a,b,c);
+            }
+        }
+
+        int[] result = Arrays.copyOf(indices,count);
+        int[] remap = new int[vertexCount];
+        byte[] kind = new byte[vertexCount];
+        boolean[] touched = new boolean[vertexCount];
+        int[] stamp = new int[vertexCount];
+        int[] time = new int[1];
+        while (count/3 > targetCount)
+        {
+            //the triangles around each vertex
+            int[] first = new int[vertexCount+1];
+            for (int i=0;i<count;i++)
+            {
+                first[result[i]+1]++;
+            }
+            for (int v=0;v<vertexCount;v++)
+            {
+                first[v+1] += first[v];
+            }
+            int[] around = new int[count];
+            int[] fill = Arrays.copyOf(first,vertexCount);
+            for (int i=0;i<count;i++)
+            {
+                around[fill[result[i]]++] = i/3;
+            }
+
+            edgeCount = edges(result,count,edges,edgeTriangles);
+
+            Arrays.fill(kind,MANIFOLD);
+            for (int e=0;e<edgeCount;e++)
+            {
+                if (edgeTriangles[e] == 1)
+                {
+                    kind[(int)(edges[e] >>> 32)] = BORDER;
+                    kind[(int)edges[e]] = BORDER;
+                }
+            }
+            for (int v=0;v<vertexCount;v++)
+            {
+                if (classSize[weld[v]] > 2)
+                    kind[v] = LOCKED;
+                else if (classSize[weld[v]] == 2)
+                    kind[v] = (kind[v] == BORDER) ? SEAM : LOCKED;
+            }
+
+            //the cheapest allowed direction of each edge, sorted by cost
+            long[] order = new long[edgeCount];
+            int[] from = new int[edgeCount];
+            int[] to = new int[edgeCount];
+            int candidates = 0;
+            for (int e=0;e<edgeCount;e++)
+            {
+                int a = (int)(edges[e] >>> 32),b = (int)edges[e];
+                boolean border = edgeTriangles[e] == 1;
+                float costAB = allowed(a,b,border,kind,classSize,weld,twin,edges,edgeCount,edgeTriangles)
+                        ? cost(quadrics,weld,positions,a,b) : Float.POSITIVE_INFINITY;
+                float costBA = allowed(b,a,border,kind,classSize,weld,twin,edges,edgeCount,edgeTriangles)
+                        ? cost(quadrics,weld,positions,b,a) : Float.POSITIVE_INFINITY;
+                float cost = Math.min(costAB,costBA);
+                if (cost == Float.POSITIVE_INFINITY)
+                    continue;
+                from[candidates] = (costAB <= costBA) ? a : b;
+                to[candidates] = (costAB <= costBA) ? b : a;
+                //costs are not negative, so their bits sort in the same order
+                order[candidates] = ((long)Float.floatToIntBits(cost) << 32) | candidates;
+                candidates++;
+            }
+            Arrays.sort(order,0,candidates);
+
+            for (int v=0;v<vertexCount;v++)
+            {
+                remap[v] = v;
+            }
+            Arrays.fill(touched,false);
+            int goal = count/3 - targetCount;
+            int removed = 0;
+            for (int c=0;(c<candidates) && (removed<goal);c++)
+            {
+                int i = (int)order[c];
+                int u = from[i],v = to[i];
+                boolean seam = kind[u] == SEAM;
+                if (touched[u] || touched[v] || (seam && (touched[twin[u]] || touched[twin[v]])))
+                    continue;
+                if (!canCollapse(u,v,result,first,around,positions,stamp,time)
+                        || (seam && !canCollapse(twin[u],twin[v],result,first,around,positions,stamp,time)))
+                    continue;
+
+                removed += collapse(u,v,result,first,around,remap,touched);
+                if (seam)
+                    removed += collapse(twin[u],twin[v],result,first,around,remap,touched);
+                double[] q = quadrics;
+                int qu = 10*weld[u],qv = 10*weld[v];
+                for (int k=0;k<10;k++)
+                {
+                    q[qv+k] += q[qu+k];
+                }
+            }
+            if (removed == 0)
+                break;
+
+            int next = 0;
+            for (int i=0;i<count;i+=3)
+            {
+                int a = remap[result[i]],b = remap[result[i+1]],c = remap[result[i+2]];
+                if ((a != b) && (b != c) && (c != a))
+                {
+                    result[next++] = a;
+                    result[next++] = b;
+                    result[next++] = c;
+                }
+            }
+            count = next;
+        }
+        return Arrays.copyOf(result,count);
+    }
+
+    /**
+     * Find the vertices that share a position
+     * @return for each vertex, the first vertex at its position
+     */
+    private static int[] weld(float[] positions,int vertexCount)
+    {
+        int[] weld = new int[vertexCount];
+        int size = Integer.highestOneBit(Math.max(1,2*vertexCount))*2;
+        int[] table = new int[size];
+        Arrays.fill(table,-1);
+        for (int v=0;v<vertexCount;v++)
+        {
+            int h = 17;
+            for (int c=0;c<3;c++)
+            {
+                //+0 so that -0 and 0 hash the same
+                h = 31*h + Float.floatToIntBits(positions[4*v+c]+0f);
+            }
+            h ^= h >>> 16;
+            int slot = h & (size-1);
+            while ((table[slot] >= 0) && !samePosition(positions,table[slot],v))
+            {
+                slot = (slot+1) & (size-1);
+            }
+            if (table[slot] < 0)
+                table[slot] = v;
+            weld[v] = table[slot];
+        }
+        return weld;
+    }
+
+    private static boolean samePosition(float[] positions,int a,int b)
+    {
+        return (positions[4*a] == positions[4*b]) && (positions[4*a+1] == positions[4*b+1])
+                && (positions[4*a+2] == positions[4*b+2]);
+    }
+
+    /**
+     * Find the edges of a list of triangles, and how many triangles each one has
+     * @param indices 3 vertex indices per triangle
+     * @param count the number of indices to use
+     * @param edges where to store the edges, sorted, as keys made by {@link #edgeKey}
+     * @param edgeTriangles where to store the number of triangles of each edge
+     * @return the number of edges
+     */
+    private static int edges(int[] indices,int count,long[] edges,int[] edgeTriangles)
+    {
+        for (int i=0;i<count;i+=3)
+        {
+            for (int k=0;k<3;k++)
+            {
+                edges[i+k] = edgeKey(indices[i+k],indices[i+(k+1)%3]);
+            }
+        }
+        Arrays.sort(edges,0,count);
+        int edgeCount = 0;
+        for (int i=0;i<count;i++)
+        {
+            if ((edgeCount > 0) && (edges[edgeCount-1] == edges[i]))
+            {
+                edgeTriangles[edgeCount-1]++;
+            }
+            else
+            {
+                edges[edgeCount] = edges[i];
+                edgeTriangles[edgeCount++] = 1;
+            }
+        }
+        return edgeCount;
+    }
+
+    private static long edgeKey(int a,int b)
+    {
+        return ((long)Math.min(a,b) << 32) | Math.max(a,b);
+    }
+
+    private static int edgeTriangles(long key,long[] edges,int edgeCount,int[] edgeTriangles)
+    {
+        int e = Arrays.binarySearch(edges,0,edgeCount,key);
+        return (e >= 0) ? edgeTriangles[e] : 0;
+    }
+
+    /**
+     * Whether the kinds of the vertices allow u to be moved onto v
+     */
+    private static boolean allowed(int u,int v,boolean border,byte[] kind,int[] classSize,int[] weld,int[] twin,
+                                   long[] edges,int edgeCount,int[] edgeTriangles)
+    {
+        switch (kind[u])
+        {
+            case MANIFOLD:
+                return true;
+            case BORDER:
+                //moving onto a seam would give the other side of the seam the wrong attributes
+                return border && (classSize[weld[v]] == 1);
+            case SEAM:
+                return border && (kind[v] == SEAM) && (twin[v] != twin[u])
+                        && (edgeTriangles(edgeKey(twin[u],twin[v]),edges,edgeCount,edgeTriangles) == 1);
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Add the quadric of the plane of a triangle, weighted by its area, to each of its corners
+     */
+    private static void addTriangleQuadric(double[] quadrics,int[] weld,float[] positions,int a,int b,int c)
+    {
+        double ux = positions[4*b]-positions[4*a],uy = positions[4*b+1]-positions[4*a+1],uz = positions[4*b+2]-positions[4*a+2];
+        double vx = positions[4*c]-positions[4*a],vy = positions[4*c+1]-positions[4*a+1],vz = positions[4*c+2]-positions[4*a+2];
+        double nx = uy*vz-uz*vy,ny = uz*vx-ux*vz,nz = ux*vy-uy*vx;
+        double length = Math.sqrt(nx*nx + ny*ny + nz*nz);
+        if (length == 0)
+            return;
+        double area = 0.5*length;
+        nx /= length;
+        ny /= length;
+        nz /= length;
+        double d = -(nx*positions[4*a] + ny*positions[4*a+1] + nz*positions[4*a+2]);
+
+        addPlane(quadrics,10*weld[a],nx,ny,nz,d,area);
+        addPlane(quadrics,10*weld[b],nx,ny,nz,d,area);
+        addPlane(quadrics,10*weld[c],nx,ny,nz,d,area);
+    }
+
+    /**
+     * Add the quadric of the plane through the border edge (a,b) of the triangle (a,b,c) that
+     * is at right angles to the triangle, to a and b. It keeps the border from moving sideways,
+     * which the triangle alone does not see
+     */
+    private static void addBorderQuadric(double[] quadrics,int[] weld,float[] positions,int a,int b,int c)
+    {
+        double ex = positions[4*b]-positions[4*a],ey = positions[4*b+1]-positions[4*a+1],ez = positions[4*b+2]-positions[4*a+2];
+        double vx = positions[4*c]-positions[4*a],vy = positions[4*c+1]-positions[4*a+1],vz = positions[4*c+2]-positions[4*a+2];
+        double nx = ey*vz-ez*vy,ny = ez*vx-ex*vz,nz = ex*vy-ey*vx;
+        //the normal of the plane is at right angles to both the edge and the triangle
+        double px = ny*ez-nz*ey,py = nz*ex-nx*ez,pz = nx*ey-ny*ex;
+        double length = Math.sqrt(px*px + py*py + pz*pz);
+        if (length == 0)
+            return;
+        px /= length;
+        py /= length;
+        pz /= length;
+        double d = -(px*positions[4*a] + py*positions[4*a+1] + pz*positions[4*a+2]);
+        double weight = BORDER_WEIGHT*(ex*ex + ey*ey + ez*ez);
+        addPlane(quadrics,10*weld[a],px,py,pz,d,weight);
+        addPlane(quadrics,10*weld[b],px,py,pz,d,weight);
+    }
+
+    /**
+     * Add the quadric of the plane n.p + d = 0, times a weight, to the quadric at offset q
+     */
+    private static void addPlane(double[] quadrics,int q,double nx,double ny,double nz,double d,double weight)
+    {
+        quadrics[q] += weight*nx*nx;
+        quadrics[q+1] += weight*nx*ny;
+        quadrics[q+2] += weight*nx*nz;
+        quadrics[q+3] += weight*ny*ny;
+        quadrics[q+4] += weight*ny*nz;
+        quadrics[q+5] += weight*nz*nz;
+        quadrics[q+6] += weight*nx*d;
+        quadrics[q+7] += weight*ny*d;
+        quadrics[q+8] += weight*nz*d;
+        quadrics[q+9] += weight*d*d;
+    }
+
+    /**
+     * The error of moving u onto v: the sum of their quadrics at the position of v
+     */
+    private static float cost(double[] quadrics,int[] weld,float[] positions,int u,int v)
+    {
+        int a = 10*weld[u],b = 10*weld[v];
+        double x = positions[4*v],y = positions[4*v+1],z = positions[4*v+2];
+        double[] q = quadrics;
+        double error = (q[a]+q[b])*x*x + 2*(q[a+1]+q[b+1])*x*y + 2*(q[a+2]+q[b+2])*x*z
+                + (q[a+3]+q[b+3])*y*y + 2*(q[a+4]+q[b+4])*y*z + (q[a+5]+q[b+5])*z*z
+                + 2*((q[a+6]+q[b+6])*x + (q[a+7]+q[b+7])*y + (q[a+8]+q[b+8])*z) + q[a+9]+q[b+9];
+        return (float)Math.max(0,error);
+    }
+
+    /**
+     * Whether moving u onto v keeps the surface as it is: no triangle around u turns too far,
+     * and u and v have no neighbors in common other than the third corners of the triangles
+     * they share, or the surface would fold onto itself
+     */
+    private static boolean canCollapse(int u,int v,int[] indices,int[] first,int[] around,float[] positions,
+                                       int[] stamp,int[] time)
+    {
+        int mark = ++time[0];
+        int shared = 0;
+        for (int j=first[u];j<first[u+1];j++)
+        {
+            int t = 3*around[j];
+            int k = (indices[t] == u) ? 0 : (indices[t+1] == u) ? 1 : 2;
+            int p = indices[t+(k+1)%3],q = indices[t+(k+2)%3];
+            stamp[p] = mark;
+            stamp[q] = mark;
+            if ((p == v) || (q == v))
+            {
+                shared++;
+                continue;
+            }
+            if (turns(positions,u,v,p,q))
+                return false;
+        }
+        //the neighbors of u are marked, count those of v among them
+        int common = 0;
+        int seen = ++time[0];
+        for (int j=first[v];j<first[v+1];j++)
+        {
+            int t = 3*around[j];
+            for (int k=0;k<3;k++)
+            {
+                int w = indices[t+k];
+                if ((w != u) && (w != v) && (stamp[w] == mark))
+                {
+                    stamp[w] = seen;
+                    common++;
+                }
+            }
+        }
+        return common == shared;
+    }
+
+    /**
+     * Whether the triangle (u,p,q) turns too far when u moves to the position of v
+     */
+    private static boolean turns(float[] positions,int u,int v,int p,int q)
+    {
+        float px = positions[4*p],py = positions[4*p+1],pz = positions[4*p+2];
+        float qx = positions[4*q],qy = positions[4*q+1],qz = positions[4*q+2];
+        float[] before = normal(positions,u,px,py,pz,qx,qy,qz);
+        float[] after = normal(positions,v,px,py,pz,qx,qy,qz);
+        float lengthBefore = before[0]*before[0] + before[1]*before[1] + before[2]*before[2];
+        if (lengthBefore == 0)
+            return false;
+        float lengthAfter = after[0]*after[0] + after[1]*after[1] + after[2]*after[2];
+        float dot = before[0]*after[0] + before[1]*after[1] + before[2]*after[2];
+        return dot <= MIN_TURN_COSINE*(float)Math.sqrt(lengthBefore*lengthAfter);
+    }
+
+    private static float[] normal(float[] positions,int a,float px,float py,float pz,float qx,float qy,float qz)
+    {
+        float ax = positions[4*a],ay = positions[4*a+1],az = positions[4*a+2];
+        float ux = px-ax,uy = py-ay,uz = pz-az;
+        float vx = qx-ax,vy = qy-ay,vz = qz-az;
+        return new float[] {uy*vz-uz*vy,uz*vx-ux*vz,ux*vy-uy*vx};
+    }
+
+    /**
+     * Move u onto v, and mark everything around them as touched for the rest of the pass
+     * @return the number of triangles removed
+     */
+    private static int collapse(int u,int v,int[] indices,int[] first,int[] around,int[] remap,boolean[] touched)
+    {
+        int removed = 0;
+        remap[u] = v;
+        touched[v] = true;
+        for (int j=first[u];j<first[u+1];j++)
+        {
+            int t = 3*around[j];
+            for (int k=0;k<3;k++)
+            {
+                touched[indices[t+k]] = true;
+                if (indices[t+k] == v)
+                    removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Make a mesh of the vertices of a mesh that some triangles use
+     */
+    private static PolygonMesh compact(PolygonMesh mesh,int[] indices)
+    {
+        int vertexCount = mesh.getVertexCount();
+        int[] remap = new int[vertexCount];
+        Arrays.fill(remap,-1);
+        int used = 0;
+        int[] result = new int[indices.length];
+        for (int i=0;i<indices.length;i++)
+        {
+            if (remap[indices[i]] < 0)
+                remap[indices[i]] = used++;
+            result[i] = remap[indices[i]];
+        }
+
+        PolygonMesh level = new PolygonMesh();
+        level.setVertexPositions(compact(mesh.positions,remap,used));
+        level.setNormals(compact(mesh.normals,remap,used));
+        level.setTexcoords(compact(mesh.texcoords,remap,used));
+        level.setPrimitives(result);
+        level.setPrimitiveType(mesh.getPrimitiveType());
+        level.setPrimitiveSize(3);
+        return level;
+    }
+
+    private static float[] compact(float[] data,int[] remap,int used)
+    {
+        if (data.length < 4*remap.length)
+            return new float[0];
+        float[] result = new float[4*used];
+        for (int v=0;v<remap.length;v++)
+        {
+            if (remap[v] >= 0)
+                System.arraycopy(data,4*v,result,4*remap[v],4);
+        }
+        return result;
+    }
+}
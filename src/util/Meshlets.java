@@ -0,0 +1,579 @@
+package util;
+
+import org.joml.FrustumIntersection;
+import org.joml.Matrix4f;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A triangle mesh split into meshlets: small clusters of neighboring triangles, each of which
+ * can be culled on its own, so that only the parts of a large mesh that can be seen are drawn.
+ * The triangles of the mesh are reordered so that each meshlet is a range of its primitives.
+ *
+ * Each meshlet has a bounding sphere, which is tested against the view frustum, and a normal
+ * cone: an axis and the widest angle between it and the normal of one of its triangles. If the
+ * camera is behind the planes of all the triangles of a meshlet, all of them face away from
+ * it and the meshlet can be skipped. This is only right if the faces that point away are
+ * hidden, which this project does not make sure of by culling back faces in OpenGL. It is
+ * however true of a closed surface seen from the outside, so the cones are only used for
+ * meshes that are closed, and whose triangles all wind the same way, and only while the camera
+ * is outside the bounding box of the mesh. Which way is out is found from the sign of the
+ * volume of the mesh.
+ *
+ * Meshlets are grown one triangle at a time from a seed, adding the neighboring triangle that
+ * brings the fewest new vertices with it and, among those, the one that faces most like the
+ * meshlet so far (as in the meshlet builder of meshoptimizer, by Arseny Kapoulkine). The
+ * triangles of each meshlet are then ordered for the vertex cache with
+ * {@link MeshOptimizer#optimizeVertexCache}.
+ */
+public class Meshlets
+{
+    /**
+     * The default most vertices and triangles in a meshlet
+     */
+    public static final int DEFAULT_MAX_VERTICES = 96;
+    public static final int DEFAULT_MAX_TRIANGLES = 128;
+
+    /**
+     * How much facing the same way as a meshlet counts, against bringing one fewer new vertex
+     */
+    private static final float CONE_WEIGHT = 0.5f;
+
+    /**
+     * A normal cone whose triangles spread this far (the cosine of the widest angle from its
+     * axis) or further is not used for culling, as it would hardly ever cull anything
+     */
+    private static final float MIN_CONE_COSINE = 0.1f;
+
+    /**
+     * Positions closer than this, relative to the diagonal of the bounding box, are taken to
+     * be the same when deciding if a mesh is closed
+     */
+    private static final float WELD_TOLERANCE = 1e-5f;
+
+    /**
+     * For each meshlet, the offset of its first index and the number of its indices
+     */
+    protected final int[] offsets,counts;
+
+    /**
+     * For each meshlet, its bounding sphere (center and radius) and normal cone (axis and
+     * cutoff, which is 1 if it cannot be culled), 4 floats each
+     */
+    protected final float[] spheres,cones;
+
+    /**
+     * Whether the normal cones can be used for culling, and the bounding box of the mesh
+     */
+    protected final boolean closed;
+    protected final float[] bounds;
+
+    /**
+     * Scratch storage for {@link #markVisible}
+     */
+    private final Matrix4f modelViewProjection,modelToCamera;
+    private final FrustumIntersection frustum;
+
+    private Meshlets(int[] offsets,int[] counts,float[] spheres,float[] cones,boolean closed,float[] bounds)
+    {
+        this.offsets = offsets;
+        this.counts = counts;
+        this.spheres = spheres;
+        this.cones = cones;
+        this.closed = closed;
+        this.bounds = bounds;
+        modelViewProjection = new Matrix4f();
+        modelToCamera = new Matrix4f();
+        frustum = new FrustumIntersection();
+    }
+
+    /**
+     * Split a triangle mesh into meshlets of the default size. Its triangles are reordered in
+     * place, so that each meshlet is a range of them
+     * @param mesh the mesh, whose primitives must be triangles
+     * @return the meshlets
+     * @throws IllegalArgumentException if the primitives are not triangles
+     */
+    public static Meshlets build(PolygonMesh mesh) throws IllegalArgumentException
+    {
+        return build(mesh,DEFAULT_MAX_VERTICES,DEFAULT_MAX_TRIANGLES);
+    }
+
+    /**
+     * Split a triangle mesh into meshlets. Its triangles are reordered in place, so that each
+     * meshlet is a range of them
+     * @param mesh the mesh, whose primitives must be triangles
+     * @param maxVertices the most vertices in a meshlet, at least 3
+     * @param maxTriangles the most triangles in a meshlet, at least 1
+     * @return the meshlets
+     * @throws IllegalArgumentException if the primitives are not triangles, or the limits are
+     * too small
+     */
+    public static Meshlets build(PolygonMesh mesh,int maxVertices,int maxTriangles) throws IllegalArgumentException
+    {
+        if ((mesh.getPrimitiveSize() != 3) || (mesh.primitives.length%3 != 0))
+            throw new IllegalArgumentException("Only meshes of triangles can be split into meshlets");
+        if ((maxVertices < 3) || (maxTriangles < 1))
+            throw new IllegalArgumentException("A meshlet must be able to hold a triangle");
+
+        int[] indices = mesh.primitives;
+        float[] p = mesh.positions;
+        int triangleCount = indices.length/3;
+        int vertexCount = mesh.getVertexCount();
+        int[] weld = weld(mesh);
+
+        //the unit normal of each triangle, 0 if it is degenerate
+        float[] normals = new float[3*triangleCount];
+        for (int t=0;t<triangleCount;t++)
+        {
+            int a = 4*indices[3*t],b = 4*indices[3*t+1],c = 4*indices[3*t+2];
+            float ux = p[b]-p[a],uy = p[b+1]-p[a+1],uz = p[b+2]-p[a+2];
+            float vx = p[c]-p[a],vy = p[c+1]-p[a+1],vz = p[c+2]-p[a+2];
+            float nx = uy*vz-uz*vy,ny = uz*vx-ux*vz,nz = ux*vy-uy*vx;
+            float length = (float)Math.sqrt(nx*nx + ny*ny + nz*nz);
+            if (length > 0)
+            {
+                normals[3*t] = nx/length;
+                normals[3*t+1] = ny/length;
+                normals[3*t+2] = nz/length;
+            }
+        }
+
+        //the triangles around each position, so that meshlets can grow across seams
+        int[] first = new int[vertexCount+1];
+        for (int index:indices)
+        {
+            first[weld[index]+1]++;
+        }
+        for (int v=0;v<vertexCount;v++)
+        {
+            first[v+1] += first[v];
+        }
+        int[] around = new int[indices.length];
+        int[] fill = Arrays.copyOf(first,vertexCount);
+        for (int i=0;i<indices.length;i++)
+        {
+            around[fill[weld[indices[i]]]++] = i/3;
+        }
+
+        int[] order = new int[indices.length];
+        int[] offsets = new int[triangleCount+1];
+        boolean[] emitted = new boolean[triangleCount];
+        int[] vertexStamp = new int[vertexCount];
+        int[] candidateStamp = new int[triangleCount];
+        Arrays.fill(vertexStamp,-1);
+        Arrays.fill(candidateStamp,-1);
+        int[] candidates = new int[64];
+        int meshletCount = 0,emittedCount = 0,seed = 0,candidateCount = 0;
+        while (emittedCount < triangleCount)
+        {
+            //start next to the last meshlet if it left any neighbors, so that meshlets that
+            //follow each other are close, and in the order of the mesh otherwise
+            int next = -1;
+            for (int c=0;(c<candidateCount) && (next<0);c++)
+            {
+                if (!emitted[candidates[c]])
+                    next = candidates[c];
+            }
+            if (next < 0)
+            {
+                while (emitted[seed])
+                {
+                    seed++;
+                }
+                next = seed;
+            }
+            int meshlet = meshletCount++;
+            offsets[meshlet] = 3*emittedCount;
+            int vertices = 0,triangles = 0;
+            candidateCount = 0;
+            float ax = 0,ay = 0,az = 0;
+            while (next >= 0)
+            {
+                //add the triangle
+                emitted[next] = true;
+                for (int k=0;k<3;k++)
+                {
+                    int v = indices[3*next+k];
+                    order[3*emittedCount+k] = v;
+                    if (vertexStamp[v] != meshlet)
+                    {
+                        vertexStamp[v] = meshlet;
+                        vertices++;
+                    }
+                    for (int j=first[weld[v]];j<first[weld[v]+1];j++)
+                    {
+                        int t = around[j];
+                        if (!emitted[t] && (candidateStamp[t] != meshlet))
+                        {
+                            candidateStamp[t] = meshlet;
+                            if (candidateCount == candidates.length)
+                                candidates = Arrays.copyOf(candidates,2*candidateCount);
+                            candidates[candidateCount++] = t;
+                        }
+                    }
+                }
+                emittedCount++;
+                triangles++;
+                ax += normals[3*next];
+                ay += normals[3*next+1];
+                az += normals[3*next+2];
+                if (triangles == maxTriangles)
+                    break;
+
+                //pick the next one among the neighbors not added yet
+                float length = (float)Math.sqrt(ax*ax + ay*ay + az*az);
+                float nx = (length > 0) ? ax/length : 0,ny = (length > 0) ? ay/length : 0,nz = (length > 0) ? az/length : 0;
+                next = -1;
+                float best = Float.MAX_VALUE;
+                int kept = 0;
+                for (int c=0;c<candidateCount;c++)
+                {
+                    int t = candidates[c];
+                    if (emitted[t])
+                        continue;
+                    candidates[kept++] = t;
+                    int added = 0;
+                    for (int k=0;k<3;k++)
+                    {
+                        if (vertexStamp[indices[3*t+k]] != meshlet)
+                            added++;
+                    }
+                    if (vertices+added > maxVertices)
+                        continue;
+                    float score = added + CONE_WEIGHT*(1 - (nx*normals[3*t] + ny*normals[3*t+1] + nz*normals[3*t+2]));
+                    if (score < best)
+                    {
+                        best = score;
+                        next = t;
+                    }
+                }
+                candidateCount = kept;
+            }
+        }
+        offsets[meshletCount] = indices.length;
+        //order the triangles of each meshlet for the vertex cache, as growing them does not
+        int[] local = new int[vertexCount];
+        int[] global = new int[maxVertices];
+        Arrays.fill(vertexStamp,-1);
+        for (int m=0;m<meshletCount;m++)
+        {
+            int[] range = new int[offsets[m+1]-offsets[m]];
+            int n = 0;
+            for (int i=0;i<range.length;i++)
+            {
+                int v = order[offsets[m]+i];
+                if (vertexStamp[v] != m)
+                {
+                    vertexStamp[v] = m;
+                    local[v] = n;
+                    global[n++] = v;
+                }
+                range[i] = local[v];
+            }
+            range = MeshOptimizer.optimizeVertexCache(range,n,MeshOptimizer.DEFAULT_CACHE_SIZE);
+            for (int i=0;i<range.length;i++)
+            {
+                indices[offsets[m]+i] = global[range[i]];
+            }
+        }
+
+        int[] counts = new int[meshletCount];
+        for (int m=0;m<meshletCount;m++)
+        {
+            counts[m] = offsets[m+1]-offsets[m];
+        }
+        float sign = orientation(indices,weld,p);
+        float[] spheres = new float[4*meshletCount];
+        float[] cones = new float[4*meshletCount];
+        for (int m=0;m<meshletCount;m++)
+        {
+            bound(indices,offsets[m],counts[m],p,spheres,4*m);
+            cone(indices,offsets[m],counts[m],p,(sign != 0) ? sign : 1,cones,4*m);
+        }
+
+        float[] bounds = {mesh.minBounds.x,mesh.minBounds.y,mesh.minBounds.z,mesh.maxBounds.x,mesh.maxBounds.y,mesh.maxBounds.z};
+        return new Meshlets(Arrays.copyOf(offsets,meshletCount),counts,spheres,cones,sign != 0,bounds);
+    }
+
+    /**
+     * Find the vertices that are at the same position, within the tolerance. Positions are
+     * put in a grid of cells as big as the tolerance, and each vertex is welded to a vertex in
+     * its own cell or a neighboring one, if there is one close enough
+     * @return for each vertex, the vertex it is welded to
+     */
+    private static int[] weld(PolygonMesh mesh)
+    {
+        int vertexCount = mesh.getVertexCount();
+        float[] p = mesh.positions;
+        float dx = mesh.maxBounds.x-mesh.minBounds.x,dy = mesh.maxBounds.y-mesh.minBounds.y,dz = mesh.maxBounds.z-mesh.minBounds.z;
+        float cell = WELD_TOLERANCE*(float)Math.sqrt(dx*dx + dy*dy + dz*dz);
+        int[] weld = new int[vertexCount];
+        Map<Long,Integer> cells = new HashMap<Long,Integer>();
+        for (int v=0;v<vertexCount;v++)
+        {
+            weld[v] = v;
+            if (cell == 0)
+            {
+                //all the vertices are at the same position
+                weld[v] = 0;
+                continue;
+            }
+            //the box is 1/WELD_TOLERANCE cells across, which fits in 21 bits per axis
+            long x = (long)Math.floor((p[4*v]-mesh.minBounds.x)/cell);
+            long y = (long)Math.floor((p[4*v+1]-mesh.minBounds.y)/cell);
+            long z = (long)Math.floor((p[4*v+2]-mesh.minBounds.z)/cell);
+            search:
+            for (long i=x-1;i<=x+1;i++)
+            {
+                for (long j=y-1;j<=y+1;j++)
+                {
+                    for (long k=z-1;k<=z+1;k++)
+                    {
+                        Integer w = cells.get(cellKey(i,j,k));
+                        if ((w != null) && (distanceSquared(p,v,w) <= cell*cell))
+                        {
+                            weld[v] = w;
+                            break search;
+                        }
+                    }
+                }
+            }
+            if (weld[v] == v)
+            {
+                Long key = cellKey(x,y,z);
+                if (!cells.containsKey(key))
+                    cells.put(key,v);
+            }
+        }
+        return weld;
+    }
+
+    private static long cellKey(long x,long y,long z)
+    {
+        return (x+1) | ((y+1) << 21) | ((z+1) << 42);
+    }
+
+    private static float distanceSquared(float[] p,int a,int b)
+    {
+        float x = p[4*a]-p[4*b],y = p[4*a+1]-p[4*b+1],z = p[4*a+2]-p[4*b+2];
+        return x*x + y*y + z*z;
+    }
+
+    /**
+     * Find which way the triangles of a mesh face, if it is closed: every edge between welded
+     * positions must be shared by exactly two triangles that go along it in opposite directions.
+     * Triangles with two corners at the same position are ignored
+     * @return 1 if the triangles face out, -1 if they face in, and 0 if the mesh is not closed
+     */
+    private static float orientation(int[] indices,int[] weld,float[] p)
+    {
+        long[] edges = new long[indices.length];
+        int edgeCount = 0;
+        double volume = 0;
+        for (int i=0;i<indices.length;i+=3)
+        {
+            int a = weld[indices[i]],b = weld[indices[i+1]],c = weld[indices[i+2]];
+            if ((a == b) || (b == c) || (c == a))
+                continue;
+            edges[edgeCount++] = ((long)a << 32) | b;
+            edges[edgeCount++] = ((long)b << 32) | c;
+            edges[edgeCount++] = ((long)c << 32) | a;
+            a *= 4;
+            b *= 4;
+            c *= 4;
+            volume += p[a]*((double)p[b+1]*p[c+2] - (double)p[b+2]*p[c+1])
+                    - p[a+1]*((double)p[b]*p[c+2] - (double)p[b+2]*p[c])
+                    + p[a+2]*((double)p[b]*p[c+1] - (double)p[b+1]*p[c]);
+        }
+        if (edgeCount == 0)
+            return 0;
+        Arrays.sort(edges,0,edgeCount);
+        for (int e=0;e<edgeCount;e++)
+        {
+            if ((e > 0) && (edges[e] == edges[e-1]))
+                return 0;
+            long reverse = (edges[e] << 32) | (edges[e] >>> 32);
+            if (Arrays.binarySearch(edges,0,edgeCount,reverse) < 0)
+                return 0;
+        }
+        return (volume > 0) ? 1 : (volume < 0) ? -1 : 0;
+    }
+
+    /**
+     * Compute the bounding sphere of the vertices of a range of triangles, centered at the
+     * center of their bounding box
+     */
+    private static void bound(int[] indices,int offset,int count,float[] p,float[] dest,int d)
+    {
+        float minX = Float.MAX_VALUE,minY = Float.MAX_VALUE,minZ = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE,maxY = -Float.MAX_VALUE,maxZ = -Float.MAX_VALUE;
+        for (int i=offset;i<offset+count;i++)
+        {
+            int v = 4*indices[i];
+            minX = Math.min(minX,p[v]);
+            minY = Math.min(minY,p[v+1]);
+            minZ = Math.min(minZ,p[v+2]);
+            maxX = Math.max(maxX,p[v]);
+            maxY = Math.max(maxY,p[v+1]);
+            maxZ = Math.max(maxZ,p[v+2]);
+        }
+        float cx = 0.5f*(minX+maxX),cy = 0.5f*(minY+maxY),cz = 0.5f*(minZ+maxZ);
+        float radius = 0;
+        for (int i=offset;i<offset+count;i++)
+        {
+            int v = 4*indices[i];
+            float x = p[v]-cx,y = p[v+1]-cy,z = p[v+2]-cz;
+            radius = Math.max(radius,x*x + y*y + z*z);
+        }
+        dest[d] = cx;
+        dest[d+1] = cy;
+        dest[d+2] = cz;
+        //a little more, so that rounding cannot leave a vertex out
+        dest[d+3] = (float)Math.sqrt(radius)*1.0001f;
+    }
+
+    /**
+     * Compute the normal cone of a range of triangles: the axis is their average unit normal,
+     * and the cutoff the sine of the widest angle from it to one of their normals
+     * @param sign 1 if the triangles face out, or -1 to flip them
+     */
+    private static void cone(int[] indices,int offset,int count,float[] p,float sign,float[] dest,int d)
+    {
+        float[] normals = new float[count];
+        float ax = 0,ay = 0,az = 0;
+        int n = 0;
+        for (int i=offset;i<offset+count;i+=3)
+        {
+            int a = 4*indices[i],b = 4*indices[i+1],c = 4*indices[i+2];
+            float ux = p[b]-p[a],uy = p[b+1]-p[a+1],uz = p[b+2]-p[a+2];
+            float vx = p[c]-p[a],vy = p[c+1]-p[a+1],vz = p[c+2]-p[a+2];
+            float nx = uy*vz-uz*vy,ny = uz*vx-ux*vz,nz = ux*vy-uy*vx;
+            float length = (float)Math.sqrt(nx*nx + ny*ny + nz*nz);
+            if (length == 0)
+                continue;
+            normals[n++] = sign*nx/length;
+            normals[n++] = sign*ny/length;
+            normals[n++] = sign*nz/length;
+            ax += normals[n-3];
+            ay += normals[n-2];
+            az += normals[n-1];
+        }
+        float length = (float)Math.sqrt(ax*ax + ay*ay + az*az);
+        float minDot = 1;
+        if (length > 0)
+        {
+            ax /= length;
+            ay /= length;
+            az /= length;
+            for (int i=0;i<n;i+=3)
+            {
+                minDot = Math.min(minDot,ax*normals[i] + ay*normals[i+1] + az*normals[i+2]);
+            }
+        }
+        dest[d] = ax;
+        dest[d+1] = ay;
+        dest[d+2] = az;
+        dest[d+3] = ((length > 0) && (minDot > MIN_CONE_COSINE)) ? (float)Math.sqrt(1 - minDot*minDot) : 1;
+    }
+
+    public int getCount()
+    {
+        return counts.length;
+    }
+
+    /**
+     * Get the offset of the first index of a meshlet in the primitives of the mesh
+     */
+    public int getOffset(int meshlet)
+    {
+        return offsets[meshlet];
+    }
+
+    /**
+     * Get the number of indices of a meshlet, 3 per triangle
+     */
+    public int getIndexCount(int meshlet)
+    {
+        return counts[meshlet];
+    }
+
+    /**
+     * Get the bounding sphere of a meshlet, as its center and radius
+     */
+    public float[] getSphere(int meshlet)
+    {
+        return Arrays.copyOfRange(spheres,4*meshlet,4*meshlet+4);
+    }
+
+    /**
+     * Get the normal cone of a meshlet, as its axis and cutoff. The meshlet faces away from a
+     * camera at c if (center-c).axis &gt;= cutoff*|center-c| + radius, where center and radius
+     * are those of its bounding sphere. A cutoff of 1 means it never does
+     */
+    public float[] getCone(int meshlet)
+    {
+        return Arrays.copyOfRange(cones,4*meshlet,4*meshlet+4);
+    }
+
+    /**
+     * Whether the normal cones are used for culling: the mesh is closed, and the axes of the
+     * cones point out of it
+     */
+    public boolean isClosed()
+    {
+        return closed;
+    }
+
+    /**
+     * Mark the meshlets that may be seen with a given camera: those whose bounding spheres are
+     * at least partly in the view frustum, and, if the mesh is closed and the camera is outside
+     * its bounding box, that do not face away from the camera. Meshlets already marked stay
+     * marked, so that the meshlets seen by several instances of a mesh can be gathered. This
+     * uses scratch storage of this object, so it must only be called from one thread at a time
+     * @param projection the projection
+     * @param modelView the transformation from the coordinates of the mesh to the view
+     * @param visible set to true for each meshlet that may be seen
+     * @return the number of meshlets seen with this camera
+     */
+    public int markVisible(Matrix4f projection,Matrix4f modelView,boolean[] visible)
+    {
+        frustum.set(modelViewProjection.set(projection).mul(modelView));
+        modelToCamera.set(modelView).invert();
+        //a perspective projection divides by -z, an orthographic one does not
+        boolean perspective = projection.m23 != 0;
+        float ex = modelToCamera.m30,ey = modelToCamera.m31,ez = modelToCamera.m32;
+        float lx = -modelToCamera.m20,ly = -modelToCamera.m21,lz = -modelToCamera.m22;
+        boolean useCones = closed && ((ex < bounds[0]) || (ey < bounds[1]) || (ez < bounds[2])
+                || (ex > bounds[3]) || (ey > bounds[4]) || (ez > bounds[5]));
+
+        int seen = 0;
+        for (int m=0;m<counts.length;m++)
+        {
+            int s = 4*m;
+            if (!frustum.testSphere(spheres[s],spheres[s+1],spheres[s+2],spheres[s+3]))
+                continue;
+            if (useCones && (cones[s+3] < 1))
+            {
+                if (perspective)
+                {
+                    float dx = spheres[s]-ex,dy = spheres[s+1]-ey,dz = spheres[s+2]-ez;
+                    float distance = (float)Math.sqrt(dx*dx + dy*dy + dz*dz);
+                    if (dx*cones[s] + dy*cones[s+1] + dz*cones[s+2] >= cones[s+3]*distance + spheres[s+3])
+                        continue;
+                }
+                else
+                {
+                    float length = (float)Math.sqrt(lx*lx + ly*ly + lz*lz);
+                    if (lx*cones[s] + ly*cones[s+1] + lz*cones[s+2] >= cones[s+3]*length)
+                        continue;
+                }
+            }
+            visible[m] = true;
+            seen++;
+        }
+        return seen;
+    }
+}
@@ -6,30 +6,45 @@ import org.joml.Vector3f;
 import org.joml.Vector4f;
 
 import java.io.InputStream;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Scanner;
 
 /**
  * Created by ashesh on 1/19/2016.
+ *
+ * The vertices, normals, texture coordinates and triangles are read straight into growing
+ * primitive arrays, which are trimmed and handed to the mesh once at the end.
  */
 public class ObjImporter
 {
     public static PolygonMesh importFile(InputStream in, boolean scaleAndCenter) throws IllegalArgumentException
     {
-        ArrayList<Vector4f> vertices;
-        ArrayList<Vector4f> normals;
-        ArrayList<Vector4f> texcoords;
-        ArrayList<Integer> triangles, triangle_texture_indices, triangle_normal_indices;
+        return importFile(in,scaleAndCenter,false);
+    }
+
+    /**
+     * Read a mesh from an OBJ file
+     * @param in the contents of the file
+     * @param scaleAndCenter true to center the mesh at the origin and fit it in a cube of side 1
+     * @param optimize true to reorder its triangles and vertices to draw faster, with
+     *                 {@link MeshOptimizer}
+     * @return the mesh
+     * @throws IllegalArgumentException if the file is not a valid OBJ file
+     */
+    public static PolygonMesh importFile(InputStream in, boolean scaleAndCenter, boolean optimize) throws IllegalArgumentException
+    {
+        float[] vertices,normals,texcoords;
+        int[] triangles;
+        int vertexCount,normalCount,texcoordCount,triangleCount;
         int i,j;
         int lineno;
         PolygonMesh mesh = new PolygonMesh();
 
-        vertices = new ArrayList<Vector4f>();
-        normals = new ArrayList<Vector4f>();
-        texcoords = new ArrayList<Vector4f>();
-        triangles = new ArrayList<Integer>();
-        triangle_texture_indices = new ArrayList<Integer>();
-        triangle_normal_indices = new ArrayList<Integer>();
+        vertices = new float[4*64];
+        normals = new float[4*64];
+        texcoords = new float[4*64];
+        triangles = new int[3*64];
+        vertexCount = normalCount = texcoordCount = triangleCount = 0;
 
         Scanner sc = new Scanner(in);
 
@@ -76,7 +91,7 @@ public class ObjImporter
                     }
                 }
 
-                vertices.add(v);
+                vertices = put(vertices,vertexCount++,v);
             }
             else if (tokens[0].compareTo("vt")==0)
             {
@@ -96,7 +111,7 @@ public class ObjImporter
                     v.z = Float.parseFloat(tokens[3]);
                 }
 
-                texcoords.add(v);
+                texcoords = put(texcoords,texcoordCount++,v);
             }
             else if (tokens[0].compareTo("vn")==0)
             {
@@ -111,68 +126,43 @@ public class ObjImporter
                 v.z = Float.parseFloat(tokens[3]);
 
                 v = v.normalize();
-                normals.add(new Vector4f(v,0.0f));
+                normals = put(normals,normalCount++,new Vector4f(v,0.0f));
             }
             else if (tokens[0].compareTo("f")==0)
             {
                 if (tokens.length<4)
                     throw new IllegalArgumentException("Line "+lineno+": Face has too few vertices, must be at least 3");
 
-                ArrayList<Integer> t_triangles,t_tex,t_normal;
-
-                t_triangles = new ArrayList<Integer>();
-                t_tex = new ArrayList<Integer>();
-                t_normal = new ArrayList<Integer>();
+                //only the vertex indices are used: texture coordinates and normals are taken to
+                //be given per vertex, in the same order as the vertices
+                int[] t_triangles = new int[tokens.length-1];
 
                 for (i=1;i<tokens.length;i++)
                 {
                     String[] data = tokens[i].split("[/]");
 
-                    if ((data.length < 1) && (data.length > 3))
+                    if ((data.length < 1) || (data.length > 3))
                         throw new IllegalArgumentException("Line " + lineno + ": Face specification has an incorrect number of values");
 
-                    t_triangles.add(Integer.parseInt(data[0])-1); //vertex index
-                    if (data.length > 1) {
-                        if (data[1].length() > 0) //a vertex texture index exists
-                        {
-                            t_tex.add(Integer.parseInt(data[1])-1);
-                        }
-
-
-                        if (data.length > 2) //a vertex normal index exists
-                        {
-                            t_normal.add(Integer.parseInt(data[2])-1);
-                        }
-
-                    }
+                    t_triangles[i-1] = Integer.parseInt(data[0])-1; //vertex index
                 }
 
-                if (t_triangles.size()<3)
+                if (t_triangles.length<3)
                 {
                     throw new IllegalArgumentException("Line "+lineno+": Fewer than 3 vertices for a polygon");
                 }
 
                 //if face has more than 3 vertices, break down into a triangle fan
-                for (i=2;i<t_triangles.size();i++)
+                for (i=2;i<t_triangles.length;i++)
                 {
-                    triangles.add(t_triangles.get(0));
-                    triangles.add(t_triangles.get(i-1));
-                    triangles.add(t_triangles.get(i));
-
-                    if (t_tex.size()>0)
-                    {
-                        triangle_texture_indices.add(t_tex.get(0));
-                        triangle_texture_indices.add(t_tex.get(i-1));
-                        triangle_texture_indices.add(t_tex.get(i));
-                    }
-
-                    if (t_normal.size()>0)
+                    if (3*triangleCount+3 > triangles.length)
                     {
-                        triangle_normal_indices.add(t_normal.get(0));
-                        triangle_normal_indices.add(t_normal.get(i-1));
-                        triangle_normal_indices.add(t_normal.get(i));
+                        triangles = Arrays.copyOf(triangles,2*triangles.length);
                     }
-
+                    triangles[3*triangleCount] = t_triangles[0];
+                    triangles[3*triangleCount+1] = t_triangles[i-1];
+                    triangles[3*triangleCount+2] = t_triangles[i];
+                    triangleCount++;
                 }
 
 
@@ -183,16 +173,17 @@ public class ObjImporter
         {
             //center about the origin and within a cube of side 1 centered at the origin
             //find the centroid
-            Vector4f center = new Vector4f(vertices.get(0));
+            Vector4f center = new Vector4f(vertices[0],vertices[1],vertices[2],vertices[3]);
 
             Vector4f minimum = new Vector4f(center);
             Vector4f maximum = new Vector4f(center);
+            Vector4f v = new Vector4f();
 
-            for (i=1;i<vertices.size();i++)
+            for (i=1;i<vertexCount;i++)
             {
-                //center = center.add(vertices.get(i).x,vertices.get(i).y,vertices.get(i).z,0.0f);
-                minimum = minimum.min(vertices.get(i));
-                maximum = maximum.max(vertices.get(i));
+                v.set(vertices[4*i],vertices[4*i+1],vertices[4*i+2],vertices[4*i+3]);
+                minimum = minimum.min(v);
+                maximum = maximum.max(v);
             }
 
             /*
@@ -213,23 +204,48 @@ public class ObjImporter
                                                .mul(new Matrix4f().translate(-center.x,-center.y,-center.z));
 
             //scale down each other
-            for (i=0;i<vertices.size();i++)
+            for (i=0;i<vertexCount;i++)
             {
-                vertices.set(i,transformMatrix.transform(vertices.get(i)));
+                v.set(vertices[4*i],vertices[4*i+1],vertices[4*i+2],vertices[4*i+3]);
+                transformMatrix.transform(v);
+                put(vertices,i,v);
             }
         }
 
-        mesh.setVertexPositions(vertices);
-        if (texcoords.size()>0)
-            mesh.setTexcoords(texcoords);
+        mesh.setVertexPositions(Arrays.copyOf(vertices,4*vertexCount));
+        if (texcoordCount>0)
+            mesh.setTexcoords(Arrays.copyOf(texcoords,4*texcoordCount));
 
-        if ((normals.size()>0) && (normals.size()==vertices.size()))
-            mesh.setNormals(normals);
-        else
-            mesh.computeNormals();
-        mesh.setPrimitives(triangles);
+        //the primitives must be set before the normals are computed from them
+        mesh.setPrimitives(Arrays.copyOf(triangles,3*triangleCount));
         mesh.setPrimitiveType(GL.GL_TRIANGLES);
         mesh.setPrimitiveSize(3);
+        if ((normalCount>0) && (normalCount==vertexCount))
+            mesh.setNormals(Arrays.copyOf(normals,4*normalCount));
+        else
+            mesh.computeNormals();
+        if (optimize)
+            MeshOptimizer.optimize(mesh);
         return mesh;
     }
+
+    /**
+     * Store a vector in an array of 4 floats per vector, growing the array if needed
+     * @param array the array
+     * @param index the index of the vector
+     * @param v the vector
+     * @return the array, or a bigger copy of it
+     */
+    private static float[] put(float[] array,int index,Vector4f v)
+    {
+        if (4*index+4 > array.length)
+        {
+            array = Arrays.copyOf(array,Math.max(4*index+4,2*array.length));
+        }
+        array[4*index] = v.x;
+        array[4*index+1] = v.y;
+        array[4*index+2] = v.z;
+        array[4*index+3] = v.w;
+        return array;
+    }
 };
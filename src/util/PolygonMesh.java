@@ -4,16 +4,27 @@ import org.joml.*;
 
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
-import java.util.ArrayList;
+import java.util.AbstractList;
 import java.util.Arrays;
 import java.util.List;
 
+/**
+ * A mesh of polygons, stored as primitive arrays: positions, normals and texture coordinates
+ * take 4 floats per vertex each, and the primitives one int per index. The buffers returned by
+ * {@link #getVertexPositions()} and the like wrap these arrays, so the data can be handed to
+ * OpenGL as it is, without being copied first. The list getters are read-only views of the same
+ * arrays, kept for code that works with {@link Vector4f}s; each element is converted when it is
+ * read. The geometry is changed only through the setters, which also keep the bounds up to date.
+ */
 public class PolygonMesh
 {
-    protected List<Vector4f> positions;
-    protected List<Vector4f> normals;
-    protected List<Vector4f> texcoords;
-    protected List<Integer> primitives;
+    private static final float[] NO_FLOATS = new float[0];
+    private static final int[] NO_INTS = new int[0];
+
+    protected float[] positions;
+    protected float[] normals;
+    protected float[] texcoords;
+    protected int[] primitives;
     protected int primitiveType;
     protected int primitiveSize;
 
@@ -21,11 +32,11 @@ public class PolygonMesh
 
     public PolygonMesh()
     {
-        positions = new ArrayList<Vector4f>();
-        normals = new ArrayList<Vector4f>();
-        texcoords = new ArrayList<Vector4f>();
+        positions = NO_FLOATS;
+        normals = NO_FLOATS;
+        texcoords = NO_FLOATS;
 
-        primitives = new ArrayList<Integer>();
+        primitives = NO_INTS;
         primitiveType = primitiveSize = 0;
         minBounds = new Vector4f();
         maxBounds = new Vector4f();
@@ -49,12 +60,12 @@ public class PolygonMesh
 
     public int getPrimitiveCount()
     {
-        return primitives.size();
+        return primitives.length;
     }
 
     public int getVertexCount()
     {
-        return positions.size();
+        return positions.length/4;
     }
 
 
@@ -68,41 +79,48 @@ public class PolygonMesh
         return new Vector4f(maxBounds);
     }
 
+    /**
+     * Get the vertex positions, 4 floats per vertex. The buffer wraps the array of this mesh
+     * rather than a copy of it, so it must not be changed
+     */
     public FloatBuffer getVertexPositions()
     {
-        return convertToFloatBuffer(positions);
+        return FloatBuffer.wrap(positions);
     }
-    public List<Vector4f> getVertexPositionsAsList(){ return new ArrayList<Vector4f>(positions);}
+    public List<Vector4f> getVertexPositionsAsList(){ return new VectorView(positions);}
 
+    /**
+     * Get the vertex normals, 4 floats per vertex, or an empty buffer if there are none. The
+     * buffer wraps the array of this mesh rather than a copy of it, so it must not be changed
+     */
     public FloatBuffer getVertexNormals()
     {
-        return convertToFloatBuffer(normals);
+        return FloatBuffer.wrap(normals);
     }
-    public List<Vector4f> getVertexNormalsAsList(){ return new ArrayList<Vector4f>(normals);}
+    public List<Vector4f> getVertexNormalsAsList(){ return new VectorView(normals);}
 
+    /**
+     * Get the texture coordinates, 4 floats per vertex, or an empty buffer if there are none.
+     * The buffer wraps the array of this mesh rather than a copy of it, so it must not be changed
+     */
     public FloatBuffer getTexCoords()
     {
-        return convertToFloatBuffer(texcoords);
+        return FloatBuffer.wrap(texcoords);
     }
-    public List<Vector4f> getTexCoordsAsList(){ return new ArrayList<Vector4f>(texcoords);}
+    public List<Vector4f> getTexCoordsAsList(){ return new VectorView(texcoords);}
 
+    /**
+     * Get the vertex indices of the primitives. The buffer wraps the array of this mesh rather
+     * than a copy of it, so it must not be changed
+     */
     public IntBuffer getPrimitives()
     {
-        return convertToIntBuffer(primitives);
+        return IntBuffer.wrap(primitives);
     }
-    public List<Integer> getPrimitivesAsList() { return new ArrayList<Integer>(primitives);}
+    public List<Integer> getPrimitivesAsList() { return new IndexView(primitives);}
 
-    private FloatBuffer convertToFloatBuffer(List<Vector4f> arr)
+    private static float[] toArray(List<Vector4f> arr)
     {
-     /*   FloatBuffer f = FloatBuffer.allocate(4*arr.size());
-
-        for (int i=0;i<arr.size();i++)
-        {
-            f.put(arr.get(i).x);
-            f.put(arr.get(i).y);
-            f.put(arr.get(i).z);
-            f.put(arr.get(i).w);
-        }*/
         float []array = new float[4*arr.size()];
         for (int i=0;i<arr.size();i++)
         {
@@ -111,44 +129,62 @@ public class PolygonMesh
             array[4*i+2] = arr.get(i).z;
             array[4*i+3] = arr.get(i).w;
         }
-        FloatBuffer f = FloatBuffer.wrap(array);
-        return f;
+        return array;
     }
 
-
-
-    private IntBuffer convertToIntBuffer(List<Integer> arr)
+    private static int[] toIntArray(List<Integer> arr)
     {
-        /*IntBuffer f = IntBuffer.allocate(arr.size());
-
-        for (int i=0;i<arr.size();i++)
-        {
-            f.put(arr.get(i));
-        }
-        */
         int []array = new int[arr.size()];
         for (int i=0;i<arr.size();i++)
         {
             array[i] = arr.get(i);
         }
-        IntBuffer f = IntBuffer.wrap(array);
-        return f;
+        return array;
     }
 
 
     public void setVertexPositions(List<Vector4f> vp)
     {
-        positions = new ArrayList<Vector4f>(vp);
+        setVertexPositions(toArray(vp));
+    }
+
+    /**
+     * Set the vertex positions. The array is kept by this mesh, not copied
+     * @param vp 4 floats per vertex
+     */
+    public void setVertexPositions(float[] vp)
+    {
+        positions = vp;
         computeBoundingBox();
     }
 
-    public void setNormals(List<Vector4f> vn) {normals = new ArrayList<Vector4f>(vn);}
+    public void setNormals(List<Vector4f> vn) {normals = toArray(vn);}
+
+    /**
+     * Set the vertex normals. The array is kept by this mesh, not copied
+     * @param vn 4 floats per vertex
+     */
+    public void setNormals(float[] vn) {normals = vn;}
+
+    public void setTexcoords(List<Vector4f> vt) {texcoords = toArray(vt);}
 
-    public void setTexcoords(List<Vector4f> vt) {texcoords = new ArrayList<Vector4f>(vt);}
+    /**
+     * Set the texture coordinates. The array is kept by this mesh, not copied
+     * @param vt 4 floats per vertex
+     */
+    public void setTexcoords(float[] vt) {texcoords = vt;}
 
     public void setPrimitives(List<Integer> t)
     {
-        primitives = new ArrayList<Integer>(t);
+        primitives = toIntArray(t);
+    }
+
+    /**
+     * Set the vertex indices of the primitives. The array is kept by this mesh, not copied
+     */
+    public void setPrimitives(int[] t)
+    {
+        primitives = t;
     }
 
 
@@ -156,93 +192,97 @@ public class PolygonMesh
     {
         int j;
 
-        if (positions.size()<=0)
+        if (positions.length<=0)
             return;
 
-        minBounds = new Vector4f(positions.get(0));
-        maxBounds = new Vector4f(positions.get(0));
+        minBounds = new Vector4f(positions[0],positions[1],positions[2],positions[3]);
+        maxBounds = new Vector4f(minBounds);
 
-        for (j=0;j<positions.size();j++)
+        for (j=0;j<positions.length;j+=4)
         {
-            Vector4f p = positions.get(j);
+            float x = positions[j],y = positions[j+1],z = positions[j+2];
 
-            if (p.x<minBounds.x)
+            if (x<minBounds.x)
             {
-                minBounds.x = p.x;
+                minBounds.x = x;
             }
 
-            if (p.x>maxBounds.x)
+            if (x>maxBounds.x)
             {
-                maxBounds.x = p.x;
+                maxBounds.x = x;
             }
 
-            if (p.y<minBounds.y)
+            if (y<minBounds.y)
             {
-                minBounds.y = p.y;
+                minBounds.y = y;
             }
 
-            if (p.y>maxBounds.y)
+            if (y>maxBounds.y)
             {
-                maxBounds.y = p.y;
+                maxBounds.y = y;
             }
 
-            if (p.z<minBounds.z)
+            if (z<minBounds.z)
             {
-                minBounds.z = p.z;
+                minBounds.z = z;
             }
 
-            if (p.z>maxBounds.z)
+            if (z>maxBounds.z)
             {
-                maxBounds.z = p.z;
+                maxBounds.z = z;
             }
         }
     }
 
     public void computeNormals()
     {
-        int i,j,k;
+        int i,k;
 
-        normals = new ArrayList<Vector4f>();
+        normals = new float[positions.length];
 
-        for (i=0;i<positions.size();i++)
+        int []v = new int[primitiveSize];
+        for (i=0;i+primitiveSize<=primitives.length && primitiveSize>0;i+=primitiveSize)
         {
-            normals.add(new Vector4f(0.0f,0.0f,0.0f,0.0f));
-        }
-
-        for (i=0;i<primitives.size();i+=primitiveSize)
-        {
-            Vector4f norm = new Vector4f(0.0f,0.0f,0.0f,0.0f);
-
-
-
-            //compute the normal of this triangle
-            int []v = new int[primitiveSize];
+            float nx = 0,ny = 0,nz = 0;
 
+            //compute the normal of this polygon
             for (k=0;k<primitiveSize;k++)
             {
-                v[k] = primitives.get(i+k);
+                v[k] = 4*primitives[i+k];
             }
 
             //the newell's method to calculate normal
 
             for (k=0;k<primitiveSize;k++)
             {
-                norm.x += (positions.get(v[k]).y-positions.get(v[(k+1)%primitiveSize]).y)*(positions.get(v[k]).z+positions.get(v[(k+1)%primitiveSize]).z);
-                norm.y += (positions.get(v[k]).z-positions.get(v[(k+1)%primitiveSize]).z)*(positions.get(v[k]).x+positions.get(v[(k+1)%primitiveSize]).x);
-                norm.z += (positions.get(v[k]).x-positions.get(v[(k+1)%primitiveSize]).x)*(positions.get(v[k]).y+positions.get(v[(k+1)%primitiveSize]).y);
+                int a = v[k],b = v[(k+1)%primitiveSize];
+                nx += (positions[a+1]-positions[b+1])*(positions[a+2]+positions[b+2]);
+                ny += (positions[a+2]-positions[b+2])*(positions[a]+positions[b]);
+                nz += (positions[a]-positions[b])*(positions[a+1]+positions[b+1]);
+            }
+            float length = (float)Math.sqrt(nx*nx + ny*ny + nz*nz);
+            if (length == 0)
+            {
+                //a degenerate polygon has no normal
+                continue;
             }
-            norm = norm.normalize();
-
 
             for (k=0;k<primitiveSize;k++)
             {
-                normals.set(v[k],normals.get(v[k]).add(norm));
+                normals[v[k]] += nx/length;
+                normals[v[k]+1] += ny/length;
+                normals[v[k]+2] += nz/length;
             }
         }
 
-        for (i=0;i<normals.size();i++)
+        for (i=0;i<normals.length;i+=4)
         {
-            normals.set(i,normals.get(i).normalize());
+            float length = (float)Math.sqrt(normals[i]*normals[i] + normals[i+1]*normals[i+1] + normals[i+2]*normals[i+2]);
+            if (length == 0)
+                continue;
+            normals[i] /= length;
+            normals[i+1] /= length;
+            normals[i+2] /= length;
         }
     }
 
@@ -258,45 +298,31 @@ public class PolygonMesh
 
         /* trying out obj exporting by merging all models into one */
         int offset = this.getVertexCount();
-        List<Vector4f> rpositions,rnormals,rtexcoords;
-        List<Integer> rprimitives;
-        rpositions = this.getVertexPositionsAsList();
-        rnormals = this.getVertexNormalsAsList();
-        rtexcoords = this.getTexCoordsAsList();
-        rprimitives = this.getPrimitivesAsList();
-
-        List<Vector4f> pos = obj.getVertexPositionsAsList();
-        List<Vector4f> norm = obj.getVertexNormalsAsList();
-        List<Vector4f> tex = obj.getTexCoordsAsList();
-        List<Integer> prim = obj.getPrimitivesAsList();
+        float[] rpositions = Arrays.copyOf(positions,positions.length+obj.positions.length);
+        float[] rnormals = Arrays.copyOf(normals,normals.length+obj.normals.length);
+        int[] rprimitives = Arrays.copyOf(primitives,primitives.length+obj.primitives.length);
 
         Matrix4f invTranspose = new Matrix4f(transform);
         invTranspose = invTranspose.invert().transpose();
 
-        for (int j=0;j<pos.size();j++)
-        {
-            Vector4f p = pos.get(j);
-            p = transform.transform(p);
-            rpositions.add(p);
-        }
-        for (int j=0;j<norm.size();j++)
+        Vector4f p = new Vector4f();
+        for (int j=0;j<obj.positions.length;j+=4)
         {
-            Vector4f p = norm.get(j);
-            p = invTranspose.transform(p);
-            rnormals.add(p);
+            p.set(obj.positions[j],obj.positions[j+1],obj.positions[j+2],obj.positions[j+3]);
+            transform.transform(p);
+            put(p,rpositions,positions.length+j);
         }
-
-        for (int j=0;j<tex.size();j++)
+        for (int j=0;j<obj.normals.length;j+=4)
         {
-            Vector4f p = tex.get(j);
-            rtexcoords.add(p);
+            p.set(obj.normals[j],obj.normals[j+1],obj.normals[j+2],obj.normals[j+3]);
+            invTranspose.transform(p);
+            put(p,rnormals,normals.length+j);
         }
 
-        for (int j=0;j<prim.size();j++)
+        for (int j=0;j<obj.primitives.length;j++)
         {
-            rprimitives.add(offset + prim.get(j));
+            rprimitives[primitives.length+j] = offset + obj.primitives[j];
         }
-        offset += pos.size();
 
         //now export
         util.PolygonMesh result = new util.PolygonMesh();
@@ -307,4 +333,65 @@ public class PolygonMesh
 
         return result;
     }
+
+    private static void put(Vector4f v,float[] array,int offset)
+    {
+        array[offset] = v.x;
+        array[offset+1] = v.y;
+        array[offset+2] = v.z;
+        array[offset+3] = v.w;
+    }
+
+    /**
+     * A read-only list of the vectors stored 4 floats each in an array. Elements are copied out
+     * when they are read
+     */
+    private static class VectorView extends AbstractList<Vector4f>
+    {
+        private final float[] array;
+
+        VectorView(float[] array)
+        {
+            this.array = array;
+        }
+
+        @Override
+        public Vector4f get(int index)
+        {
+            if ((index < 0) || (index >= size()))
+                throw new IndexOutOfBoundsException("Index "+index+" of "+size());
+            return new Vector4f(array[4*index],array[4*index+1],array[4*index+2],array[4*index+3]);
+        }
+
+        @Override
+        public int size()
+        {
+            return array.length/4;
+        }
+    }
+
+    /**
+     * A read-only list of the indices in an array
+     */
+    private static class IndexView extends AbstractList<Integer>
+    {
+        private final int[] array;
+
+        IndexView(int[] array)
+        {
+            this.array = array;
+        }
+
+        @Override
+        public Integer get(int index)
+        {
+            return array[index];
+        }
+
+        @Override
+        public int size()
+        {
+            return array.length;
+        }
+    }
 }
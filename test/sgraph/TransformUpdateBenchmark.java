@@ -0,0 +1,167 @@
+package sgraph;
+
+import org.joml.Matrix4f;
+import sgraph.Nodes.GroupNode;
+import sgraph.Nodes.LeafNode;
+import sgraph.Nodes.TransformNode;
+import util.Material;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Measures how updating the world transforms of a compiled scene graph scales with the number
+ * of threads. The scene is a crowd of about 60000 nodes: copies of a small branching figure,
+ * each turned by its own animation transform every frame, so every world transform is updated
+ * every frame.
+ *
+ * Run it as a program, optionally with the pool sizes to try (1 updates sequentially, without
+ * a pool). By default it tries 1, 2, 4 and so on up to the number of processors. Every pool size
+ * is checked to give the same world transforms as updating sequentially.
+ */
+public class TransformUpdateBenchmark
+{
+    private static final int FIGURES = 400;
+    private static final int WARMUP_FRAMES = 200;
+    private static final int MEASURED_FRAMES = 20;
+    private static final int RUNS = 5;
+
+    public static void main(String[] args)
+    {
+        List<Integer> parallelism = new ArrayList<Integer>();
+        for (String arg:args)
+        {
+            parallelism.add(Integer.parseInt(arg));
+        }
+        if (parallelism.isEmpty())
+        {
+            int processors = Runtime.getRuntime().availableProcessors();
+            for (int p=1;p<processors;p*=2)
+            {
+                parallelism.add(p);
+            }
+            parallelism.add(processors);
+        }
+
+        Scenegraph scenegraph = new Scenegraph();
+        GroupNode root = new GroupNode(scenegraph,"root");
+        List<TransformNode> figures = new ArrayList<TransformNode>();
+        for (int f=0;f<FIGURES;f++)
+        {
+            TransformNode figure = new TransformNode(scenegraph,"figure"+f);
+            figure.setTransform(new Matrix4f().translate(f%20*10,0,f/20*10));
+            root.addChild(figure);
+            figures.add(figure);
+            GroupNode body = new GroupNode(scenegraph,"figure"+f+"-body");
+            figure.addChild(body);
+            addLimbs(scenegraph,body,0);
+        }
+        scenegraph.makeScenegraph(root);
+        scenegraph.compile();
+        CompiledScenegraph compiled = scenegraph.compiled;
+        System.out.println(compiled.size()+" nodes, "+Runtime.getRuntime().availableProcessors()+" processors");
+
+        float[] expected = worldTransforms(compiled,figures);
+        Matrix4f animation = new Matrix4f();
+        float angle = 0;
+        for (int p:parallelism)
+        {
+            ForkJoinPool pool = (p > 1) ? new ForkJoinPool(p) : null;
+            compiled.setParallelUpdate(pool,CompiledScenegraph.DEFAULT_PARALLEL_THRESHOLD);
+            for (int i=0;i<WARMUP_FRAMES;i++)
+            {
+                angle = turn(figures,animation,angle);
+                compiled.updateWorldTransforms();
+            }
+            long best = Long.MAX_VALUE;
+            for (int r=0;r<RUNS;r++)
+            {
+                long start = System.nanoTime();
+                for (int i=0;i<MEASURED_FRAMES;i++)
+                {
+                    angle = turn(figures,animation,angle);
+                    compiled.updateWorldTransforms();
+                }
+                best = Math.min(best,(System.nanoTime()-start)/MEASURED_FRAMES);
+            }
+            boolean same = matches(expected,worldTransforms(compiled,figures));
+            System.out.printf("%d thread%s: %.3f ms per frame%s%n",p,(p > 1) ? "s" : "",best/1e6,
+                    same ? "" : ", WRONG world transforms");
+            if (pool != null)
+            {
+                pool.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Turn every figure a little further
+     * @return the new angle
+     */
+    private static float turn(List<TransformNode> figures,Matrix4f animation,float angle)
+    {
+        angle += 0.001f;
+        for (int f=0;f<figures.size();f++)
+        {
+            figures.get(f).setAnimationTransform(animation.rotation(angle+f,0,1,0));
+        }
+        return angle;
+    }
+
+    /**
+     * Update the world transforms with every figure at the same angle, and copy them
+     */
+    private static float[] worldTransforms(CompiledScenegraph compiled,List<TransformNode> figures)
+    {
+        Matrix4f m = new Matrix4f();
+        for (TransformNode figure:figures)
+        {
+            figure.setAnimationTransform(m.rotation(0.1f,0,1,0));
+        }
+        compiled.updateWorldTransforms();
+        float[] result = new float[16*compiled.size()];
+        for (int i=0;i<compiled.size();i++)
+        {
+            compiled.getWorldTransform(i,m).get(result,16*i);
+        }
+        return result;
+    }
+
+    private static boolean matches(float[] a,float[] b)
+    {
+        for (int i=0;i<a.length;i++)
+        {
+            if (Math.abs(a[i]-b[i]) > 1e-3f*Math.max(1,Math.abs(a[i])))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Add a branching figure of 150 nodes: 5 limbs from the body, each splitting in two three
+     * times, with a box at each end
+     */
+    private static void addLimbs(Scenegraph scenegraph,GroupNode parent,int depth)
+    {
+        for (int i=0;i<((depth == 0) ? 5 : 2);i++)
+        {
+            String name = parent.getName()+"-"+i;
+            TransformNode limb = new TransformNode(scenegraph,name+"-transform");
+            limb.setTransform(new Matrix4f().translate(1,2,0).rotate(0.2f,1,0,0));
+            parent.addChild(limb);
+            if (depth < 3)
+            {
+                GroupNode group = new GroupNode(scenegraph,name);
+                limb.addChild(group);
+                addLimbs(scenegraph,group,depth+1);
+            }
+            else
+            {
+                LeafNode leaf = new LeafNode("box",scenegraph,name,"");
+                leaf.setMaterial(new Material());
+                limb.addChild(leaf);
+            }
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package sgraph;
+
+import org.joml.Matrix4f;
+import sgraph.Nodes.GroupNode;
+import sgraph.Nodes.INode;
+import sgraph.Nodes.LeafNode;
+import sgraph.Nodes.TransformNode;
+import util.Light;
+import util.Material;
+import util.PolygonMesh;
+import util.ShaderProgram;
+import util.TextureImage;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Stack;
+
+/**
+ * Checks that drawing a scene graph with a {@link MatrixStack} allocates nothing once it has
+ * warmed up, both when the tree is drawn directly and when it is drawn in its compiled form.
+ * The scene is drawn with a renderer that only counts meshes, so no OpenGL context is needed.
+ *
+ * Allocations are measured with the allocated-bytes counter of the current thread, which
+ * HotSpot JVMs have. Run it as a program; it exits with status 1 if any frame allocates.
+ */
+public class TraversalAllocationTest
+{
+    private static final int WARMUP_FRAMES = 2000;
+    private static final int MEASURED_FRAMES = 100;
+
+    /**
+     * The tree has this many levels of groups below the root, each with this many children,
+     * so 4096 leaves
+     */
+    private static final int DEPTH = 6;
+    private static final int BRANCHING = 4;
+
+    public static void main(String[] args) throws Exception
+    {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)
+                || !((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported())
+        {
+            System.out.println("This JVM cannot measure allocations per thread, nothing checked");
+            return;
+        }
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        allocations.setThreadAllocatedMemoryEnabled(true);
+
+        Scenegraph scenegraph = new Scenegraph();
+        GroupNode root = new GroupNode(scenegraph,"root");
+        addChildren(scenegraph,root,1);
+        scenegraph.makeScenegraph(root);
+        CountingRenderer renderer = new CountingRenderer();
+        scenegraph.setRenderer(renderer);
+        scenegraph.setProjection(new Matrix4f().perspective((float)Math.toRadians(60),1,0.1f,10000));
+
+        boolean passed = true;
+        passed &= check("tree",scenegraph,renderer,allocations);
+        scenegraph.compile();
+        passed &= check("compiled",scenegraph,renderer,allocations);
+        if (!passed)
+        {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Draw the scene graph until it has warmed up, and then report how much drawing it
+     * allocates
+     * @return true if it allocated nothing
+     */
+    private static boolean check(String name,IScenegraph scenegraph,CountingRenderer renderer,
+                                 com.sun.management.ThreadMXBean allocations)
+    {
+        MatrixStack modelView = new MatrixStack();
+        for (int i=0;i<WARMUP_FRAMES;i++)
+        {
+            draw(scenegraph,modelView);
+        }
+        renderer.meshes = 0;
+        long thread = Thread.currentThread().getId();
+        long before = allocations.getThreadAllocatedBytes(thread);
+        for (int i=0;i<MEASURED_FRAMES;i++)
+        {
+            draw(scenegraph,modelView);
+        }
+        long allocated = allocations.getThreadAllocatedBytes(thread)-before;
+
+        boolean passed = (allocated == 0) && (renderer.meshes > 0);
+        System.out.println((passed ? "PASS " : "FAIL ")+name+": "+allocated+" bytes allocated over "
+                +MEASURED_FRAMES+" frames of "+renderer.meshes/MEASURED_FRAMES+" meshes");
+        return passed;
+    }
+
+    private static void draw(IScenegraph scenegraph,MatrixStack modelView)
+    {
+        modelView.reset().lookAt(0,0,300,0,0,0,0,1,0);
+        scenegraph.draw(modelView);
+    }
+
+    private static void addChildren(IScenegraph scenegraph,GroupNode parent,int level)
+    {
+        for (int i=0;i<BRANCHING;i++)
+        {
+            String name = parent.getName()+"-"+i;
+            TransformNode transform = new TransformNode(scenegraph,name+"-transform");
+            transform.setTransform(new Matrix4f().translate(i-1.5f,1,0).rotate(0.3f,0,1,0));
+            parent.addChild(transform);
+            if (level < DEPTH)
+            {
+                GroupNode group = new GroupNode(scenegraph,name);
+                transform.addChild(group);
+                addChildren(scenegraph,group,level+1);
+            }
+            else
+            {
+                LeafNode leaf = new LeafNode("box",scenegraph,name,"");
+                leaf.setMaterial(new Material());
+                transform.addChild(leaf);
+            }
+        }
+    }
+
+    /**
+     * A renderer that walks the scene graph but only counts the meshes it is asked to draw
+     */
+    private static class CountingRenderer implements IScenegraphRenderer
+    {
+        int meshes;
+
+        @Override
+        public void setContext(Object obj)
+        {
+        }
+
+        @Override
+        public void initShaderProgram(ShaderProgram shaderProgram)
+        {
+        }
+
+        @Override
+        public int getShaderLocation(String name)
+        {
+            return -1;
+        }
+
+        @Override
+        public void addMesh(String name,PolygonMesh mesh)
+        {
+        }
+
+        @Override
+        public void addTexture(String name,TextureImage image)
+        {
+        }
+
+        @Override
+        public void addLights(List<Light> lights)
+        {
+        }
+
+        @Override
+        public void draw(INode root,Stack<Matrix4f> modelView)
+        {
+            root.draw(this,modelView);
+        }
+
+        @Override
+        public void draw(INode root,MatrixStack modelView)
+        {
+            root.draw(this,modelView);
+        }
+
+        @Override
+        public void draw(CompiledScenegraph scene,MatrixStack modelView)
+        {
+            scene.draw(this,modelView.peek());
+        }
+
+        @Override
+        public void drawMesh(String name,Material material,Matrix4f transformation,String texture)
+        {
+            meshes++;
+        }
+
+        @Override
+        public void drawLight(List<Light> lights)
+        {
+        }
+
+        @Override
+        public void drawLight(LightArray lights)
+        {
+        }
+
+        @Override
+        public void setProjection(Matrix4f projection)
+        {
+        }
+
+        @Override
+        public void dispose()
+        {
+        }
+    }
+}